@@ -25,8 +25,10 @@ import java.io.File;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import mecard.config.PropertyReader;
 import mecard.config.ConfigFileTypes;
 
@@ -38,10 +40,15 @@ import mecard.config.ConfigFileTypes;
 public class APICommand implements Command
 {
     public final static String WORKING_DIRECTORY_PROPERTY_NAME = "working-directory";
+    public final static String COMMAND_TIMEOUT_TAG = "command-timeout";
     private APICommandTypes cmdFormat;
     //    private final APICommand command;
     private final List<String> cmdArgs;
     private final List<String> stdinData;
+    private final long timeout;
+    private final ShellSessionPool sessions;
+    private final int stageCount;
+    private final LineListener stdoutListener;
 
     public static class Builder
     {
@@ -51,6 +58,11 @@ public class APICommand implements Command
         private List<String> args;
         private List<String> stdinData;
         private List<String> remoteSSHCommands;
+        private long timeout = -1L;
+        private ShellSessionPool sessions;
+        private List<List<String>> stages;
+        private int stageCount = 1;
+        private LineListener stdoutListener;
 
         /**
          * Constructor that insists that the command gets at least a status
@@ -124,6 +136,68 @@ public class APICommand implements Command
             return this;
         }
 
+        /**
+         * Sets how long the command may run before it is killed and reported
+         * as UNAVAILABLE. Without this the command-timeout entry in
+         * environment.properties is used.
+         *
+         * @param millis milliseconds, 0 to wait for as long as it takes.
+         * @return Builder.
+         */
+        public Builder timeout(long millis)
+        {
+            this.timeout = millis;
+            return this;
+        }
+
+        /**
+         * Adds a command that reads the previous command's output, like '|' 
+         * in a shell. The whole pipeline runs in one shell, locally, over 
+         * ssh or in a shell session, so its arguments are interpreted by the
+         * shell. The command's status is a {@link PipelineStatus}.
+         *
+         * @param arguments the next command and its arguments.
+         * @return Builder. Usage: APICommand cmd = new APICommand.Builder()
+         * .echo("21221012345678").commandLine(seluser).pipe(dumpflatuser).build();
+         */
+        public Builder pipe(List<String> arguments)
+        {
+            if (this.stages == null)
+            {
+                this.stages = new ArrayList<>();
+            }
+            this.stages.add(new ArrayList<>(arguments));
+            return this;
+        }
+
+        /**
+         * Runs the command in one of the pool's long running shells instead 
+         * of starting a new process. Use with the local constructor, the pool
+         * decides where its shells run.
+         *
+         * @param pool shell sessions, null to start a process as usual.
+         * @return Builder.
+         */
+        public Builder session(ShellSessionPool pool)
+        {
+            this.sessions = pool;
+            return this;
+        }
+
+        /**
+         * Hands each line of the command's output to the listener as soon as
+         * the command writes it, rather than keeping it all until the command
+         * exits. The status' stdout then holds only the exit value.
+         *
+         * @param listener gets each line of stdout, null to keep stdout.
+         * @return Builder.
+         */
+        public Builder stdout(LineListener listener)
+        {
+            this.stdoutListener = listener;
+            return this;
+        }
+
         /**
          * Builds the command and returns a reference to it.
          *
@@ -133,7 +207,25 @@ public class APICommand implements Command
          */
         public APICommand build()
         {
-            if (this.remoteSSHCommands != null)
+            if (this.stages != null)
+            {
+                List<List<String>> pipeline = new ArrayList<>();
+                pipeline.add(this.args);
+                pipeline.addAll(this.stages);
+                this.stageCount = pipeline.size();
+                this.args = new ArrayList<>();
+                if (this.remoteSSHCommands != null)
+                {
+                    this.args.addAll(this.remoteSSHCommands);
+                }
+                else if (this.sessions == null)
+                {
+                    this.args.add("/bin/sh");
+                    this.args.add("-c");
+                }
+                this.args.add(PipelineStatus.getScript(pipeline));
+            }
+            else if (this.remoteSSHCommands != null)
             {
                 List<String> tmpList = new ArrayList<String>();
                 tmpList.addAll(this.remoteSSHCommands);
@@ -150,6 +242,10 @@ public class APICommand implements Command
                 this.args.clear();
                 this.args.addAll(tmpList);
             }
+            if (this.timeout < 0L)
+            {
+                this.timeout = getDefaultTimeout();
+            }
             return new APICommand(this);
         }
     }
@@ -165,6 +261,30 @@ public class APICommand implements Command
         this.cmdFormat = b.cmdFormat;
         this.stdinData = b.stdinData;
         this.cmdArgs = b.args;
+        this.timeout = b.timeout;
+        this.sessions = b.sessions;
+        this.stageCount = b.stageCount;
+        this.stdoutListener = b.stdoutListener;
+    }
+
+    private static long getDefaultTimeout()
+    {
+        Properties props = PropertyReader.getProperties(ConfigFileTypes.ENVIRONMENT);
+        String value = props.getProperty(COMMAND_TIMEOUT_TAG);
+        if (value == null)
+        {
+            return 0L;
+        }
+        try
+        {
+            return Long.parseLong(value.trim());
+        }
+        catch (NumberFormatException ex)
+        {
+            System.out.println(new Date() + " '" + COMMAND_TIMEOUT_TAG 
+                    + "' must be a number, using 0.");
+            return 0L;
+        }
     }
 
     /**
@@ -175,6 +295,12 @@ public class APICommand implements Command
     public CommandStatus execute()
     {
         CommandStatus status;
+        if (this.sessions != null)
+        {
+            return this.sessions.execute(this.cmdArgs, 
+                    this.cmdFormat == APICommandTypes.CMD_PIPE ? this.stdinData : null,
+                    this.timeout, newStatus());
+        }
         switch(this.cmdFormat)
         {
             case CMD_PIPE:
@@ -202,8 +328,8 @@ public class APICommand implements Command
             // get properties and set them as necessary
             setEnvironment(processBuilder);
             Process process = processBuilder.start();
-            processHandler = new CommandStatus();
-            CommandWatcher watcher = new CommandWatcher(process, processHandler);
+            processHandler = newStatus();
+            CommandWatcher watcher = new CommandWatcher(process, processHandler, this.timeout);
             watcher.start();
         }
         catch (IOException ex)
@@ -227,19 +353,26 @@ public class APICommand implements Command
             ProcessBuilder processBuilder = new ProcessBuilder(this.getCmd());
             setEnvironment(processBuilder);
             Process commandTwo = processBuilder.start();
-            BufferedWriter commandTwoInput = new BufferedWriter(new OutputStreamWriter(commandTwo.getOutputStream()));
-            // read each line from ls until there are no more
-            for (String lineReadFromCommandOne : stdinData)
+            processHandler = newStatus();
+            // send end-of-file signal to next process so it will terminate itself
+            try (BufferedWriter commandTwoInput = new BufferedWriter(new OutputStreamWriter(commandTwo.getOutputStream())))
             {
-                // and send them to stdin
-                commandTwoInput.write(lineReadFromCommandOne);
-                System.out.println("API_STDIN:'" + lineReadFromCommandOne + "'");
-                commandTwoInput.newLine();
+                // read each line from ls until there are no more
+                for (String lineReadFromCommandOne : stdinData)
+                {
+                    // and send them to stdin
+                    commandTwoInput.write(lineReadFromCommandOne);
+                    System.out.println("API_STDIN:'" + lineReadFromCommandOne + "'");
+                    commandTwoInput.newLine();
+                }
             }
-            // send end-of-file signal to next process so it will terminate itself
-            commandTwoInput.close();
-            processHandler = new CommandStatus();
-            CommandWatcher commandWatcher = new CommandWatcher(commandTwo, processHandler);
+            catch (IOException ex)
+            {
+                // The command ended without reading it all, like a pipeline
+                // whose first command isn't there; its status says why.
+                System.out.println("command stopped reading stdin: " + ex.getMessage());
+            }
+            CommandWatcher commandWatcher = new CommandWatcher(commandTwo, processHandler, this.timeout);
             commandWatcher.start();
         }
         catch (IOException ex)
@@ -251,7 +384,13 @@ public class APICommand implements Command
         return processHandler;
     }
 
-    private void setEnvironment(ProcessBuilder processBuilder)
+    private CommandStatus newStatus()
+    {
+        return this.stageCount > 1 ? new PipelineStatus(this.stageCount, this.stdoutListener) 
+                : new CommandStatus(this.stdoutListener);
+    }
+
+    static void setEnvironment(ProcessBuilder processBuilder)
     {
         Map<String, String> env = processBuilder.environment();
         PropertyReader.augmentProperties(env, ConfigFileTypes.VARS);
@@ -0,0 +1,491 @@
+/*
+ * Metro allows customers from any affiliate library to join any other member library.
+ *    Copyright (C) 2013  Edmonton Public Library
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301, USA.
+ *
+ */
+package api;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import mecard.ResponseTypes;
+
+/**
+ * Gathers the records of load commands that arrive close together, like
+ * Symphony's loadflatuser during an enrolment drive, and loads them with one
+ * command instead of one each.
+ * <p>
+ * The first request of a batch waits up to the window for others to join, 
+ * or until the batch is full, then runs the load for everyone. The others 
+ * just wait for their answer. A record is matched to the output by its key,
+ * which must appear in stdout, not next to other digits, once it loads. 
+ * <ul>
+ * <li>If the batch load ran cleanly every record gets its status.
+ * <li>If it reported errors, records whose key is in stdout are answered 
+ * as loaded and the rest are loaded again one at a time, so each gets its 
+ * own error. Where loading twice isn't harmless, like a create, the loader's
+ * check runs first and records it finds are answered as loaded instead.
+ * <li>If the load couldn't run at all, everyone gets that status.
+ * </ul>
+ * A record whose key is already in the batch starts a new batch, so a load
+ * never holds two versions of the same customer. Records the check finds
+ * before the load are loaded on their own, so their error is theirs alone.
+ * <p>
+ * Optional entries in symphony.properties:
+ * <pre>
+ * &lt;entry key="load-batch-window"&gt;200&lt;/entry&gt; milliseconds, 0, the default, turns batching off.
+ * &lt;entry key="load-batch-size"&gt;20&lt;/entry&gt;
+ * </pre>
+ * @author Andrew Nisbet <anisbet@epl.ca>
+ */
+public final class CommandBatcher
+{
+    public final static String WINDOW_TAG     = "load-batch-window";
+    public final static String SIZE_TAG       = "load-batch-size";
+    public final static int DEFAULT_SIZE      = 20;
+    // How Symphony API tools start an error message.
+    public final static String ERROR_MARKER   = "**error";
+    private final static Map<String, CommandBatcher> batchers = new HashMap<>();
+
+    private final String name;
+    private long window;
+    private int maxSize;
+    private Batch current;
+    private long batchCount;
+    private long fallbackCount;
+
+    /**
+     * Makes a load command for some records.
+     */
+    public interface Loader
+    {
+        /**
+         * 
+         * @param lines the records' data, one after another.
+         * @return command that loads them.
+         */
+        Command getCommand(List<String> lines);
+
+        /**
+         * 
+         * @param keys the records' keys.
+         * @return command whose stdout mentions the keys already in the ILS,
+         * or null if loading a record again is harmless.
+         */
+        Command getCheckCommand(List<String> keys);
+    }
+
+    /**
+     * Gets the named batcher, creating it if this is the first time it has 
+     * been asked for. Settings are updated on every call.
+     * @param name which load, like 'create' or 'update'.
+     * @param props properties with the batch settings.
+     * @return the batcher, or null if batching is turned off.
+     */
+    public static synchronized CommandBatcher getInstanceOf(String name, Properties props)
+    {
+        long window = getLong(props, WINDOW_TAG, 0L);
+        if (window <= 0L)
+        {
+            return null;
+        }
+        CommandBatcher batcher = batchers.get(name);
+        if (batcher == null)
+        {
+            batcher = new CommandBatcher(name);
+            batchers.put(name, batcher);
+        }
+        batcher.configure(window, (int) getLong(props, SIZE_TAG, DEFAULT_SIZE));
+        return batcher;
+    }
+
+    CommandBatcher(String name)
+    {
+        this.name    = name;
+        this.window  = 0L;
+        this.maxSize = DEFAULT_SIZE;
+    }
+
+    synchronized void configure(long window, int maxSize)
+    {
+        this.window  = window;
+        this.maxSize = Math.max(1, maxSize);
+    }
+
+    /**
+     * 
+     * @param key what identifies the record in the load's output, like the
+     * customer's user id.
+     * @param lines the record's data.
+     * @param loader makes the load command. If this request starts the batch
+     * its loader loads everyone's records.
+     * @return command that joins the next batch when it is executed.
+     */
+    public Command getCommand(final String key, final List<String> lines, final Loader loader)
+    {
+        return new Command()
+        {
+            @Override
+            public CommandStatus execute()
+            {
+                return load(new Pending(key, lines, loader));
+            }
+        };
+    }
+
+    private CommandStatus load(Pending pending)
+    {
+        Batch batch;
+        boolean leader = false;
+        synchronized (this)
+        {
+            if (this.current != null && this.current.records.containsKey(pending.key))
+            {
+                // Let the batch with the old version go now.
+                this.current = null;
+                notifyAll();
+            }
+            if (this.current == null)
+            {
+                this.current = new Batch();
+                leader = true;
+            }
+            batch = this.current;
+            batch.records.put(pending.key, pending);
+            if (batch.records.size() >= this.maxSize)
+            {
+                this.current = null;
+                notifyAll();
+            }
+            if (leader)
+            {
+                long deadline = System.currentTimeMillis() + this.window;
+                long wait;
+                while (this.current == batch && (wait = deadline - System.currentTimeMillis()) > 0L)
+                {
+                    try
+                    {
+                        wait(wait);
+                    }
+                    catch (InterruptedException ex)
+                    {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+                if (this.current == batch)
+                {
+                    this.current = null;
+                }
+                this.batchCount++;
+            }
+        }
+        if (leader)
+        {
+            run(new ArrayList<>(batch.records.values()), pending.loader);
+        }
+        return pending.await();
+    }
+
+    /**
+     * Loads a closed batch and answers every record in it.
+     */
+    private void run(List<Pending> records, Loader loader)
+    {
+        try
+        {
+            List<Pending> batch = records;
+            if (records.size() > 1)
+            {
+                batch = new ArrayList<>();
+                String found = check(loader, records);
+                for (Pending pending: records)
+                {
+                    if (found != null && isMentioned(found, pending.key))
+                    {
+                        // It would fail, don't let it hide how the others went.
+                        loadAlone(loader, pending);
+                    }
+                    else
+                    {
+                        batch.add(pending);
+                    }
+                }
+            }
+            if (batch.size() <= 1)
+            {
+                for (Pending pending: batch)
+                {
+                    pending.answer(execute(loader, pending.lines));
+                }
+                return;
+            }
+            List<String> lines = new ArrayList<>();
+            for (Pending pending: batch)
+            {
+                lines.addAll(pending.lines);
+            }
+            CommandStatus status = execute(loader, lines);
+            System.out.println(new Date() + " " + this.name + " batch of " + batch.size() 
+                    + " records: " + status.getStatus());
+            if (status.getStatus() != ResponseTypes.COMMAND_COMPLETED)
+            {
+                for (Pending pending: batch)
+                {
+                    pending.answer(new CommandStatus(status));
+                }
+                return;
+            }
+            boolean clean = ! status.getStderr().contains(ERROR_MARKER);
+            String stdout = status.getStdout();
+            List<Pending> unknown = new ArrayList<>();
+            for (Pending pending: batch)
+            {
+                if (clean)
+                {
+                    pending.answer(new CommandStatus(status));
+                }
+                else if (isMentioned(stdout, pending.key))
+                {
+                    pending.answer(getLoaded(stdout, pending.key));
+                }
+                else
+                {
+                    unknown.add(pending);
+                }
+            }
+            if (unknown.isEmpty())
+            {
+                return;
+            }
+            // The batch may have loaded them without saying so, look before loading again.
+            String found = check(loader, unknown);
+            for (Pending pending: unknown)
+            {
+                if (found != null && isMentioned(found, pending.key))
+                {
+                    pending.answer(getLoaded(found, pending.key));
+                }
+                else
+                {
+                    // Can't tell which error was this record's, load it alone.
+                    loadAlone(loader, pending);
+                }
+            }
+        }
+        finally
+        {
+            // Nobody is left waiting, even if the load threw.
+            for (Pending pending: records)
+            {
+                pending.answer(null);
+            }
+        }
+    }
+
+    private void loadAlone(Loader loader, Pending pending)
+    {
+        synchronized (this)
+        {
+            this.fallbackCount++;
+        }
+        pending.answer(execute(loader, pending.lines));
+    }
+
+    /**
+     * 
+     * @return stdout of the loader's check for the records, or null if there
+     * is no check or it didn't run.
+     */
+    private static String check(Loader loader, List<Pending> records)
+    {
+        List<String> keys = new ArrayList<>();
+        for (Pending pending: records)
+        {
+            keys.add(pending.key);
+        }
+        Command command = loader.getCheckCommand(keys);
+        if (command == null)
+        {
+            return null;
+        }
+        CommandStatus status = command.execute();
+        if (status == null || status.getStatus() != ResponseTypes.COMMAND_COMPLETED)
+        {
+            return null;
+        }
+        return status.getStdout();
+    }
+
+    private CommandStatus execute(Loader loader, List<String> lines)
+    {
+        CommandStatus status = loader.getCommand(lines).execute();
+        if (status == null)
+        {
+            status = new CommandStatus();
+            status.setUnavailable("the load command could not be started.");
+        }
+        return status;
+    }
+
+    /**
+     * Status of a record that loaded in a batch that had errors for others.
+     */
+    private static CommandStatus getLoaded(String stdout, String key)
+    {
+        CommandStatus status = new CommandStatus();
+        status.setStarted();
+        for (String line: stdout.split("\n"))
+        {
+            if (isMentioned(line, key))
+            {
+                status.setStdout(line);
+            }
+        }
+        status.setEnded(0);
+        return status;
+    }
+
+    /**
+     * 
+     * @return true if the key is in the text without digits either side.
+     */
+    static boolean isMentioned(String text, String key)
+    {
+        if (key.isEmpty())
+        {
+            return false;
+        }
+        int at = text.indexOf(key);
+        while (at >= 0)
+        {
+            int end = at + key.length();
+            if ((at == 0 || ! Character.isDigit(text.charAt(at - 1)))
+                    && (end == text.length() || ! Character.isDigit(text.charAt(end))))
+            {
+                return true;
+            }
+            at = text.indexOf(key, at + 1);
+        }
+        return false;
+    }
+
+    /**
+     * 
+     * @return number of batches loaded.
+     */
+    synchronized long getBatchCount()
+    {
+        return this.batchCount;
+    }
+
+    /**
+     * 
+     * @return number of records that had to be loaded on their own.
+     */
+    synchronized long getFallbackCount()
+    {
+        return this.fallbackCount;
+    }
+
+    private static long getLong(Properties props, String tag, long defaultValue)
+    {
+        String value = props.getProperty(tag);
+        if (value == null)
+        {
+            return defaultValue;
+        }
+        try
+        {
+            return Long.parseLong(value.trim());
+        }
+        catch (NumberFormatException ex)
+        {
+            System.out.println(new Date() + " '" + tag + "' must be a number, using "
+                    + defaultValue + ".");
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Records gathered for one load, in arrival order.
+     */
+    private static class Batch
+    {
+        private final Map<String, Pending> records = new LinkedHashMap<>();
+    }
+
+    /**
+     * A record waiting for its batch to load.
+     */
+    private static class Pending
+    {
+        private final String key;
+        private final List<String> lines;
+        private final Loader loader;
+        private final CountDownLatch done;
+        private volatile CommandStatus status;
+
+        private Pending(String key, List<String> lines, Loader loader)
+        {
+            this.key    = key;
+            this.lines  = new ArrayList<>(lines);
+            this.loader = loader;
+            this.done   = new CountDownLatch(1);
+        }
+
+        /**
+         * Sets the answer, the first one given wins.
+         */
+        private synchronized void answer(CommandStatus result)
+        {
+            if (this.done.getCount() == 0)
+            {
+                return;
+            }
+            if (result == null)
+            {
+                result = new CommandStatus();
+                result.setError(new IllegalStateException("batch load failed."));
+            }
+            this.status = result;
+            this.done.countDown();
+        }
+
+        private CommandStatus await()
+        {
+            try
+            {
+                this.done.await();
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+                CommandStatus interrupted = new CommandStatus();
+                interrupted.setError(ex);
+                return interrupted;
+            }
+            return this.status;
+        }
+    }
+}
@@ -28,12 +28,36 @@ public class CommandStatus
     private ResponseTypes status;
     private StringBuffer stdout;
     private StringBuffer stderr;
+    private final LineListener stdoutListener;
     
     CommandStatus()
+    { 
+        this((LineListener) null);
+    }
+
+    /**
+     * 
+     * @param listener gets each line of stdout instead of it being kept, 
+     * null to keep stdout.
+     */
+    CommandStatus(LineListener listener)
     { 
         stdout = new StringBuffer();
         stderr = new StringBuffer();
         status = ResponseTypes.INIT;
+        stdoutListener = listener;
+    }
+
+    /**
+     * Copies another command's status.
+     * @param other status to copy.
+     */
+    CommandStatus(CommandStatus other)
+    {
+        stdout = new StringBuffer(other.getStdout());
+        stderr = new StringBuffer(other.getStderr());
+        status = other.getStatus();
+        stdoutListener = null;
     }
     
     void setStarted()
@@ -43,6 +67,11 @@ public class CommandStatus
 
     void setStdout(String line)
     {
+        if (this.stdoutListener != null)
+        {
+            this.stdoutListener.onLine(line);
+            return;
+        }
         this.stdout.append(line);
         this.stdout.append("\n");
     }
@@ -68,6 +97,13 @@ public class CommandStatus
         this.status = ResponseTypes.ERROR;
     }
 
+    void setUnavailable(String reason)
+    {
+        this.stderr.append(reason);
+        this.stderr.append("\n");
+        this.status = ResponseTypes.UNAVAILABLE;
+    }
+
     public ResponseTypes getStatus() 
     {
         return status;
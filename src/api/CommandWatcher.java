@@ -26,175 +26,274 @@ package api;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import mecard.util.ThreadRunner;
 
 /**
- *
+ * Runs a started process to completion, collecting its output into a
+ * {@link CommandStatus}. Stdout and stderr are read by threads from a shared
+ * pool, and one shared reaper thread kills any process still running after 
+ * its timeout, which is reported as {@link mecard.ResponseTypes#UNAVAILABLE}.
+ * No threads are started per command.
+ * <p>
+ * A child of the process, like a stage of a pipeline or ssh, can hold the 
+ * output open after the process itself is gone. The readers are given until
+ * the timeout, or {@link #READ_GRACE_MILLIS} after a kill, to reach the end of
+ * the output, then they are abandoned and the command reported unavailable.
  * <pre>
- *      Process process = Runtime.getRuntime().exec(new String[]{"/bin/java","-version"}, null, new File("."));
- *      CommandWatcher w = new CommandWatcher(process, new CommandStatus() {
- *          public void setStarted(Process process) {
- *              System.out.println("Prcess setStarted");
- *          }
- *
- *          public void setStdout(Process process, String line) {
- *              System.out.println(line);
- *          }
- *
- *          public void setStderr(Process process, String line) {
- *              System.err.println(line);
- *          }
- *
- *          public void setEnded(Process process, int value) {
- *              System.out.println("Process Shutdown. Exit Value :" + value);
- *          }
- *
- *          public void setError(Process process, Throwable th) {
- *              System.err.println(th);
- *          }
- *      });
- *      w.start();
+ *      Process process = new ProcessBuilder("/bin/java", "-version").start();
+ *      CommandStatus status = new CommandStatus();
+ *      new CommandWatcher(process, status, 30000L).start();
+ *      System.out.println(status.getStderr());
  * </pre>
  *
  * @author Taha Ben Salah (taha.bensalah@gmail.com)
  */
 public class CommandWatcher
 {
-
-    private Process process;
-    private Thread end;
-    private Thread out;
-    private Thread err;
+    private final static ExecutorService streams =
+            Executors.newCachedThreadPool(new ThreadRunner.RunnerThreadFactory("MetroCommandStream"));
+    private final static ScheduledThreadPoolExecutor reaper = newReaper();
+    // How long output may still be read once the process has been killed.
+    public final static long READ_GRACE_MILLIS = 500L;
+    private final Process process;
+    private final CommandStatus handler;
+    private final long timeout;
+    private final CountDownLatch stopped;
+    private volatile boolean killed;
+    // Set when the readers are given up on, so they stop adding to the status.
+    private volatile boolean abandoned;
     private int result;
-    private boolean stopped = false;
-    private CommandStatus handler;
 
+    /**
+     * 
+     * @param theProcess process to watch.
+     * @param theHandler collects the output and exit status.
+     */
     public CommandWatcher(Process theProcess, CommandStatus theHandler)
+    {
+        this(theProcess, theHandler, 0L);
+    }
+
+    /**
+     * 
+     * @param theProcess process to watch.
+     * @param theHandler collects the output and exit status.
+     * @param timeout milliseconds the process may run before it is killed, 
+     * 0 to wait for as long as it takes.
+     */
+    public CommandWatcher(Process theProcess, CommandStatus theHandler, long timeout)
     {
         this.process = theProcess;
         this.handler = theHandler;
-        this.end = new EndThread();
-        this.out = new StdOutThread();
-        this.err = new StdErrThread();
+        this.timeout = timeout;
+        this.stopped = new CountDownLatch(1);
+        this.killed  = false;
+        this.abandoned = false;
+        this.result  = -1;
+    }
+
+    private static ScheduledThreadPoolExecutor newReaper()
+    {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(
+                1, new ThreadRunner.RunnerThreadFactory("MetroCommandReaper"));
+        // Most commands finish well before their timeout, don't keep their kills queued.
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
     }
 
+    /**
+     * Reads the process' output until it exits or is killed, then returns.
+     */
     public void start()
     {
         handler.setStarted();
-        out.start();
-        err.start();
-        end.start();
+        long deadline = System.currentTimeMillis() + this.timeout;
+        ScheduledFuture<?> kill = null;
+        if (this.timeout > 0L)
+        {
+            kill = reaper.schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    killed = true;
+                    process.destroy();
+                }
+            }, this.timeout, TimeUnit.MILLISECONDS);
+        }
+        Future<?> outFuture = streams.submit(new StdOutWatcher());
+        Future<?> errFuture = streams.submit(new StdErrWatcher());
         try
         {
-            // now join the threads to this one so that they all end together.
-            this.end.join();
-            this.out.join();
-            this.err.join();
+            result = process.waitFor();
+            if (! awaitReader(outFuture, deadline) || ! awaitReader(errFuture, deadline))
+            {
+                // Something the process started still holds its output.
+                killed = true;
+                abandoned = true;
+                process.destroy();
+            }
+            if (killed)
+            {
+                handler.setUnavailable("command did not finish within " + this.timeout + "ms.");
+            }
+            else
+            {
+                handler.setEnded(result);
+            }
         }
         catch (InterruptedException ex)
+        {
+            abandoned = true;
+            process.destroy();
+            handler.setError(ex);
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException ex)
         {
             Logger.getLogger(CommandWatcher.class.getName()).log(Level.SEVERE, null, ex);
         }
+        finally
+        {
+            if (kill != null)
+            {
+                kill.cancel(false);
+            }
+            stopped.countDown();
+        }
     }
 
+    /**
+     * Waits for a reader to reach the end of its stream.
+     * @param reader the reader's future.
+     * @param deadline when the timeout runs out.
+     * @return false if the reader didn't finish in time.
+     */
+    private boolean awaitReader(Future<?> reader, long deadline)
+            throws InterruptedException, ExecutionException
+    {
+        if (this.timeout <= 0L)
+        {
+            reader.get();
+            return true;
+        }
+        long wait = killed ? READ_GRACE_MILLIS 
+                : Math.max(deadline - System.currentTimeMillis(), READ_GRACE_MILLIS);
+        try
+        {
+            reader.get(wait, TimeUnit.MILLISECONDS);
+            return true;
+        }
+        catch (TimeoutException ex)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Waits for {@link #start()} to finish.
+     * @return exit value of the process, -1 if it was not reached.
+     */
     public int waitFor()
     {
-        while (!stopped)
+        try
+        {
+            stopped.await();
+        }
+        catch (InterruptedException ex)
         {
-            Thread.yield();
+            Thread.currentThread().interrupt();
         }
         return result;
     }
 
-    private class StdErrThread extends Thread
+    /**
+     * 
+     * @return true if the process was killed because it ran past its timeout.
+     */
+    public boolean isKilled()
     {
+        return killed;
+    }
 
-        @Override
-        public void run()
+    private void close(BufferedReader in)
+    {
+        try
         {
-            String read;
-            BufferedReader in = null;
-            try
-            {
-                in = new BufferedReader(new InputStreamReader(process.getErrorStream()));
-                while (!stopped)
-                {
-                    read = in.readLine();
-                    if (read == null)
-                    {
-                        break;
-                    }
-                    handler.setStderr(read);
-                }
-            }
-            catch (Throwable e)
-            {
-                handler.setError(e);
-            }
-            finally
-            {
-                if (in != null)
-                {
-                    try
-                    {
-                        in.close();
-                    }
-                    catch (IOException e)
-                    {
-                        handler.setError(e);
-                    }
-                }
-            }
+            in.close();
+        }
+        catch (IOException e)
+        {
+            handler.setError(e);
         }
     }
 
-    private class StdOutThread extends Thread
+    private class StdOutWatcher implements Runnable
     {
 
         @Override
         public void run()
         {
-            String read;
             BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()));
-            while (!stopped)
+            try
             {
-                try
+                String read;
+                while ((read = in.readLine()) != null && ! abandoned)
                 {
-                    read = in.readLine();
-                    if (read == null)
-                    {
-                        break;
-                    }
                     handler.setStdout(read);
                 }
-                catch (Throwable e)
+            }
+            catch (IOException e)
+            {
+                // Killing the process closes its streams, that's not worth reporting.
+                if (! killed)
                 {
                     handler.setError(e);
-                    break;
                 }
             }
+            finally
+            {
+                close(in);
+            }
         }
     }
 
-    private class EndThread extends Thread
+    private class StdErrWatcher implements Runnable
     {
 
         @Override
         public void run()
         {
+            BufferedReader in = new BufferedReader(new InputStreamReader(process.getErrorStream()));
             try
             {
-                result = process.waitFor();
-                handler.setEnded(result);
+                String read;
+                while ((read = in.readLine()) != null && ! abandoned)
+                {
+                    handler.setStderr(read);
+                }
             }
-            catch (Throwable e)
+            catch (IOException e)
             {
-                handler.setError(e);
+                if (! killed)
+                {
+                    handler.setError(e);
+                }
             }
             finally
             {
-                stopped = true;
+                close(in);
             }
         }
     }
@@ -32,12 +32,14 @@ public class DummyCommand implements Command
     private String stdoutResponse;
     private String stderrResponse;
     private int status;
+    private String unavailable;
     
     public static class Builder
     {
         private int status;
         private String stderr;
         private String stdout;
+        private String unavailable;
         
         public Builder()
         {
@@ -64,6 +66,17 @@ public class DummyCommand implements Command
             return this;
         }
         
+        /**
+         * Answers as a command that couldn't reach the service.
+         * @param reason why.
+         * @return builder.
+         */
+        public Builder setUnavailable(String reason)
+        {
+            this.unavailable = reason;
+            return this;
+        }
+        
         public DummyCommand build()
         {
             return new DummyCommand(this);
@@ -79,12 +92,18 @@ public class DummyCommand implements Command
         this.status = b.status;
         this.stderrResponse = b.stderr;
         this.stdoutResponse = b.stdout;
+        this.unavailable = b.unavailable;
     }
 
     @Override
     public CommandStatus execute()
     {
         CommandStatus commandStatus = new CommandStatus();
+        if (this.unavailable != null)
+        {
+            commandStatus.setUnavailable(this.unavailable);
+            return commandStatus;
+        }
         // Here we are going to load the data from the debug.properties file
         // We don't need to actually execute anything so we load the status
         // with bogus information from the properties file.
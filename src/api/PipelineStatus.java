@@ -0,0 +1,177 @@
+/*
+ * Metro allows customers from any affiliate library to join any other member library.
+ *    Copyright (C) 2013  Edmonton Public Library
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301, USA.
+ *
+ */
+package api;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Status of a pipeline of commands run in one shell, like 
+ * 'seluser -iB -oU | dumpflatuser'. Stdout is the last stage's output. 
+ * Stderr holds every stage's errors, in stage order, and each stage's 
+ * errors and exit status can also be had on their own.
+ * <p>
+ * The shell script from {@link #getScript(List)} saves each stage's stderr
+ * and exit status and, once the pipeline is done, writes them to stderr one
+ * stage at a time, each after a line with {@link #STAGE_MARKER}, the stage
+ * number and its exit status. The files go in a directory made with
+ * mktemp, which is removed when the script exits; the script runs in a
+ * subshell so the trap doesn't touch a shell session, and fails before
+ * running anything if the directory can't be made.
+ *
+ * @author Andrew Nisbet <anisbet@epl.ca>
+ */
+public class PipelineStatus extends CommandStatus
+{
+    final static String STAGE_MARKER = "__METRO_STAGE ";
+    private final StringBuffer[] stageStderr;
+    private final int[] stageExit;
+    private int stage;
+
+    /**
+     * 
+     * @param stages number of commands in the pipeline.
+     */
+    PipelineStatus(int stages)
+    {
+        this(stages, null);
+    }
+
+    /**
+     * 
+     * @param stages number of commands in the pipeline.
+     * @param listener gets each line of the last stage's output instead of 
+     * it being kept, null to keep it.
+     */
+    PipelineStatus(int stages, LineListener listener)
+    {
+        super(listener);
+        this.stageStderr = new StringBuffer[stages];
+        this.stageExit   = new int[stages];
+        for (int i = 0; i < stages; i++)
+        {
+            this.stageStderr[i] = new StringBuffer();
+        }
+        Arrays.fill(this.stageExit, -1);
+        this.stage = -1;
+    }
+
+    /**
+     * Builds a POSIX shell script that runs the argument stages as a pipeline.
+     * @param stages each stage's command and arguments, which are joined with
+     * spaces and interpreted by the shell.
+     * @return script.
+     */
+    static String getScript(List<List<String>> stages)
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("( __metro_d=`mktemp -d \"${TMPDIR:-/tmp}/metro_pipe.XXXXXX\"` || exit 1; ")
+                .append("trap 'rm -rf \"$__metro_d\"' EXIT; ");
+        for (int i = 0; i < stages.size(); i++)
+        {
+            if (i > 0)
+            {
+                sb.append(" | ");
+            }
+            sb.append("{ ");
+            for (String arg: stages.get(i))
+            {
+                sb.append(arg).append(" ");
+            }
+            sb.append("2>\"$__metro_d/").append(i).append("\"; echo $? >\"$__metro_d/")
+                    .append(i).append(".rc\"; }");
+        }
+        sb.append("; for __metro_i in");
+        for (int i = 0; i < stages.size(); i++)
+        {
+            sb.append(" ").append(i);
+        }
+        sb.append("; do echo \"").append(STAGE_MARKER)
+                .append("$__metro_i `cat \"$__metro_d/$__metro_i.rc\"`\" 1>&2; ")
+                .append("cat \"$__metro_d/$__metro_i\" 1>&2; done )");
+        return sb.toString();
+    }
+
+    @Override
+    void setStderr(String line)
+    {
+        if (line.startsWith(STAGE_MARKER))
+        {
+            String[] values = line.substring(STAGE_MARKER.length()).trim().split("\\s+");
+            try
+            {
+                this.stage = Integer.parseInt(values[0]);
+                this.stageExit[this.stage] = Integer.parseInt(values[1]);
+                return;
+            }
+            catch (NumberFormatException | ArrayIndexOutOfBoundsException ex)
+            {
+                // Not one of ours after all, keep it as output.
+            }
+        }
+        if (this.stage >= 0 && this.stage < this.stageStderr.length)
+        {
+            this.stageStderr[this.stage].append(line);
+            this.stageStderr[this.stage].append("\n");
+        }
+        super.setStderr(line);
+    }
+
+    /**
+     * Reports the last stage's exit status, as a shell does for a pipeline.
+     * @param value exit status of the shell that ran the pipeline.
+     */
+    @Override
+    void setEnded(int value)
+    {
+        int last = this.stageExit[this.stageExit.length - 1];
+        super.setEnded(last >= 0 ? last : value);
+    }
+
+    /**
+     * 
+     * @return number of commands in the pipeline.
+     */
+    public int getStageCount()
+    {
+        return this.stageExit.length;
+    }
+
+    /**
+     * 
+     * @param stage stage number, starting at 0.
+     * @return what the stage wrote to stderr.
+     */
+    public String getStageStderr(int stage)
+    {
+        return this.stageStderr[stage].toString();
+    }
+
+    /**
+     * 
+     * @param stage stage number, starting at 0.
+     * @return exit status of the stage, -1 if it isn't known.
+     */
+    public int getStageExitStatus(int stage)
+    {
+        return this.stageExit[stage];
+    }
+}
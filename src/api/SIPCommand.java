@@ -75,7 +75,7 @@ public class SIPCommand implements Command
         if (b.isStatusRequest)
         {
             // St. Albert's    "990   2.00AY1AZFCD8";
-            this.queryString = "990   2.00AY1AZFCD8";
+            this.queryString = SIPConnector.STATUS_REQUEST;
         }
         else
         {
@@ -124,7 +124,7 @@ public class SIPCommand implements Command
         {
             // Can happen if the server is down, server not listening on port, login failed
             // or request timedout.
-            status.setStderr("service is currently unavailable");
+            status.setUnavailable("service is currently unavailable");
             System.out.println("service is currently unavailable" + e.getMessage());
         }
         
@@ -0,0 +1,317 @@
+/*
+ * Metro allows customers from any affiliate library to join any other member library.
+ *    Copyright (C) 2013  Edmonton Public Library
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301, USA.
+ *
+ */
+package api;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import mecard.exception.SIPException;
+
+/**
+ * One open socket to a SIP2 server. Connections are handed out by a
+ * {@link SIPConnectionPool} and used by one thread at a time. Once a read or
+ * write fails the connection is marked broken and must not be used again.
+ * <p>
+ * Every exchange has a deadline. Responses are read straight off the socket
+ * into a buffer until the '\r' terminator arrives, and the socket timeout is
+ * cut to whatever time is left before each read, so a server that stops
+ * talking, or that trickles a response out a few bytes at a time, costs at
+ * most the timeout and is then reported as a {@link SIPException}.
+ *
+ * @author Andrew Nisbet <anisbet@epl.ca>
+ */
+final class SIPConnection
+{
+    private final static int READ_BUFFER_SIZE = 1024;
+    private final Socket socket;
+    private final InputStream in;
+    private final PrintWriter out;
+    private final int timeout;
+    private final byte[] readBuffer;
+    // Bytes read but not yet returned as a response.
+    private byte[] partial;
+    private int partialLength;
+    private long lastUsed;
+    private boolean broken;
+    private int useCount;
+
+    /**
+     * Opens a socket to the SIP server.
+     * @param host SIP server.
+     * @param port SIP port.
+     * @param timeout milliseconds to wait to connect, and default time allowed
+     * for each exchange.
+     * @throws SIPException if the connection can't be made.
+     */
+    SIPConnection(String host, int port, int timeout) throws SIPException
+    {
+        try
+        {
+            this.socket = new Socket();
+            // This limits the time allowed to establish a connection in the case
+            // that the connection is refused of server doesn't exist.
+            this.socket.connect(new InetSocketAddress(host, port), timeout);
+            this.socket.setSoTimeout(timeout);
+            this.socket.setKeepAlive(true);
+            this.in  = this.socket.getInputStream();
+            this.out = new PrintWriter(this.socket.getOutputStream());
+        }
+        catch (UnknownHostException ex)
+        {
+            throw new SIPException(SIPConnection.class.getName()
+                    + " the requested host '" + host + "' is unknown");
+        }
+        catch (IOException ex)
+        {
+            throw new SIPException(SIPConnection.class.getName()
+                    + " the request for sip connection was refused");
+        }
+        this.timeout       = timeout;
+        this.readBuffer    = new byte[READ_BUFFER_SIZE];
+        this.partial       = new byte[READ_BUFFER_SIZE];
+        this.partialLength = 0;
+        this.lastUsed      = System.currentTimeMillis();
+        this.broken        = false;
+        this.useCount      = 0;
+    }
+
+    /**
+     *
+     * @return deadline for an exchange starting now.
+     */
+    long getDeadline()
+    {
+        return System.currentTimeMillis() + this.timeout;
+    }
+
+    /**
+     * Called by the pool each time it hands the connection out.
+     */
+    void lend()
+    {
+        this.useCount++;
+    }
+
+    /**
+     *
+     * @return number of times the connection has been handed out.
+     */
+    int getUseCount()
+    {
+        return this.useCount;
+    }
+
+    /**
+     * Logs in with a 93 message.
+     * @param user SIP user.
+     * @param password SIP user's password.
+     * @param location location code, the institution id, may be empty.
+     * @throws SIPException if the server refuses the login or doesn't answer.
+     */
+    void login(String user, String password, String location) throws SIPException
+    {
+        login(user, password, location, getDeadline());
+    }
+
+    /**
+     * Logs in with a 93 message.
+     * @param user SIP user.
+     * @param password SIP user's password.
+     * @param location location code, the institution id, may be empty.
+     * @param deadline time, in milliseconds, by which the server must answer.
+     * @throws SIPException if the server refuses the login or doesn't answer.
+     */
+    void login(String user, String password, String location, long deadline) throws SIPException
+    {
+        // 9300CNadmin|COsomepassword|CPlocation|AY1AZF393
+        StringBuilder sb = new StringBuilder();
+        sb.append("9300CN");
+        sb.append(user);
+        sb.append("|CO");
+        sb.append(password == null ? "" : password);
+        sb.append("|CP");
+        sb.append(location == null ? "" : location);
+        sb.append("|AY1AZ");
+        sb.append(SIPConnector.getCheckSum(sb.toString()));
+        String response = sendReceive(sb.toString(), deadline);
+        // 941 is success, 940 is a failed login.
+        if (! response.startsWith("941"))
+        {
+            this.broken = true;
+            throw new SIPException(SIPConnection.class.getName()
+                    + " SIP login failed, incorrect user name or password");
+        }
+    }
+
+    /**
+     * Sends a message and waits up to the timeout for the response.
+     * @param sipData SIP message, the terminating '\r' is added if missing.
+     * @return the server's response without the terminator.
+     * @throws SIPException if the connection is broken or the server doesn't
+     * answer within the timeout; the connection is broken after that.
+     */
+    String sendReceive(String sipData) throws SIPException
+    {
+        return sendReceive(sipData, getDeadline());
+    }
+
+    /**
+     * Sends a message and waits for the response.
+     * @param sipData SIP message, the terminating '\r' is added if missing.
+     * @param deadline time, in milliseconds, by which the whole response must
+     * have arrived.
+     * @return the server's response without the terminator.
+     * @throws SIPException if the connection is broken or the server doesn't
+     * answer by the deadline; the connection is broken after that.
+     */
+    String sendReceive(String sipData, long deadline) throws SIPException
+    {
+        if (this.broken)
+        {
+            throw new SIPException(SIPConnection.class.getName() + " connection is broken");
+        }
+        if (sipData.charAt(sipData.length() - 1) != SIPConnector.CONNECTION_TERMINATOR)
+        {
+            sipData += SIPConnector.CONNECTION_TERMINATOR;
+        }
+        this.lastUsed = System.currentTimeMillis();
+        try
+        {
+            this.out.print(sipData);
+            this.out.flush();
+            if (this.out.checkError())
+            {
+                throw new IOException("write failed");
+            }
+            return readResponse(deadline);
+        }
+        catch (SocketTimeoutException ex)
+        {
+            this.broken = true;
+            throw new SIPException(SIPConnection.class.getName()
+                    + " no response within " + this.timeout + "ms");
+        }
+        catch (IOException ex)
+        {
+            this.broken = true;
+            throw new SIPException(SIPConnection.class.getName() + " " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Reads until the '\r' terminator. Each read blocks no longer than the
+     * time left before the deadline. A '\n' left over from a server that
+     * terminates with "\r\n" is dropped.
+     */
+    private String readResponse(long deadline) throws IOException
+    {
+        int scanned = 0;
+        while (true)
+        {
+            for (int i = scanned; i < this.partialLength; i++)
+            {
+                if (this.partial[i] == SIPConnector.CONNECTION_TERMINATOR)
+                {
+                    int start = (this.partialLength > 0 && this.partial[0] == '\n') ? 1 : 0;
+                    String response = new String(this.partial, start, i - start);
+                    // Anything after the terminator belongs to the next response.
+                    this.partialLength -= i + 1;
+                    System.arraycopy(this.partial, i + 1, this.partial, 0, this.partialLength);
+                    return response;
+                }
+            }
+            scanned = this.partialLength;
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0L)
+            {
+                throw new SocketTimeoutException();
+            }
+            this.socket.setSoTimeout((int) Math.min(remaining, Integer.MAX_VALUE));
+            int count = this.in.read(this.readBuffer);
+            if (count < 0)
+            {
+                throw new IOException("server closed the connection");
+            }
+            if (this.partialLength + count > this.partial.length)
+            {
+                this.partial = Arrays.copyOf(this.partial,
+                        Math.max(this.partial.length * 2, this.partialLength + count));
+            }
+            System.arraycopy(this.readBuffer, 0, this.partial, this.partialLength, count);
+            this.partialLength += count;
+        }
+    }
+
+    /**
+     * Sends a 99 SC status message.
+     * @return true if the server answered with a 98 ACS status, false otherwise.
+     */
+    boolean isValid()
+    {
+        try
+        {
+            return sendReceive(SIPConnector.STATUS_REQUEST).startsWith("98");
+        }
+        catch (SIPException ex)
+        {
+            return false;
+        }
+    }
+
+    /**
+     *
+     * @return true if an earlier exchange failed.
+     */
+    boolean isBroken()
+    {
+        return this.broken || this.socket.isClosed();
+    }
+
+    /**
+     *
+     * @return milliseconds since the connection was last used.
+     */
+    long getIdleTime()
+    {
+        return System.currentTimeMillis() - this.lastUsed;
+    }
+
+    /**
+     * Closes the socket, quietly.
+     */
+    void close()
+    {
+        this.broken = true;
+        try
+        {
+            this.socket.close();
+        }
+        catch (IOException ex)
+        {
+            // nothing we can do, we are done with it anyway.
+        }
+    }
+}
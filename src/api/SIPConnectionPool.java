@@ -0,0 +1,423 @@
+/*
+ * Metro allows customers from any affiliate library to join any other member library.
+ *    Copyright (C) 2013  Edmonton Public Library
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301, USA.
+ *
+ */
+package api;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import mecard.exception.SIPException;
+import mecard.util.ThreadRunner;
+
+/**
+ * Keeps logged in connections to a SIP2 server so patron lookups don't pay
+ * for a TCP handshake and a 93 login every time, and so Metro never holds
+ * more than a fixed number of the server's SIP sessions. There is one pool
+ * for each host, port, institution and SIP user.
+ * <p>
+ * Idle connections are checked with a 99 SC status message every validate
+ * interval; any that don't answer with a 98 are closed, as are idle
+ * connections above the minimum size. Then the pool is topped up to its 
+ * minimum size.
+ * <p>
+ * Optional entries in sip2.properties:
+ * <pre>
+ * &lt;entry key="pool-min-size"&gt;1&lt;/entry&gt;
+ * &lt;entry key="pool-max-size"&gt;4&lt;/entry&gt; 0 turns pooling off, a connection per request.
+ * &lt;entry key="pool-validate-interval"&gt;30000&lt;/entry&gt; milliseconds.
+ * </pre>
+ * @author Andrew Nisbet <anisbet@epl.ca>
+ */
+public final class SIPConnectionPool
+{
+    public final static String MIN_SIZE_TAG          = "pool-min-size";
+    public final static String MAX_SIZE_TAG          = "pool-max-size";
+    public final static String VALIDATE_INTERVAL_TAG = "pool-validate-interval";
+    public final static int DEFAULT_MIN_SIZE         = 1;
+    public final static int DEFAULT_MAX_SIZE         = 4;
+    public final static long DEFAULT_VALIDATE_INTERVAL = 30000L;
+    private final static Map<String, SIPConnectionPool> pools = new HashMap<>();
+    private static ScheduledExecutorService maintenance;
+
+    private final String host;
+    private final int port;
+    private final String institution;
+    private final String user;
+    private final String password;
+    private final int timeout;
+    private final long validateInterval;
+    // Most recently used first, so the quietest connections are the ones left to expire.
+    private final Deque<SIPConnection> idle;
+    private int minSize;
+    private int maxSize;
+    private int open;
+
+    /**
+     * Gets the pool for the argument server, creating it if this is the first
+     * time it has been asked for. Sizes are updated on every call so they 
+     * follow changes to sip2.properties; the validate interval is fixed when
+     * the pool is created.
+     * @return the pool for the server.
+     */
+    static synchronized SIPConnectionPool getInstanceOf(String host, int port,
+            String institution, String user, String password, int timeout,
+            int minSize, int maxSize, long validateInterval)
+    {
+        String key = host + ":" + port + ":" + institution + ":" + user;
+        SIPConnectionPool pool = pools.get(key);
+        if (pool == null)
+        {
+            pool = new SIPConnectionPool(host, port, institution, user, password,
+                    timeout, validateInterval);
+            pools.put(key, pool);
+            pool.resize(minSize, maxSize);
+            if (validateInterval > 0)
+            {
+                if (maintenance == null)
+                {
+                    maintenance = Executors.newSingleThreadScheduledExecutor(
+                            new ThreadRunner.RunnerThreadFactory("MetroSIPPool"));
+                }
+                final SIPConnectionPool newPool = pool;
+                maintenance.scheduleWithFixedDelay(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        newPool.maintain();
+                    }
+                }, 0L, validateInterval, TimeUnit.MILLISECONDS);
+            }
+            System.out.println(new Date() + " SIP connection pool for " + key 
+                    + " min " + minSize + ", max " + maxSize);
+        }
+        else
+        {
+            pool.resize(minSize, maxSize);
+        }
+        return pool;
+    }
+
+    SIPConnectionPool(String host, int port, String institution, String user,
+            String password, int timeout, long validateInterval)
+    {
+        this.host             = host;
+        this.port             = port;
+        this.institution      = institution;
+        this.user             = user;
+        this.password         = password;
+        this.timeout          = timeout;
+        this.validateInterval = validateInterval;
+        this.idle             = new ArrayDeque<>();
+        this.open             = 0;
+    }
+
+    synchronized void resize(int min, int max)
+    {
+        this.maxSize = Math.max(1, max);
+        this.minSize = Math.max(0, Math.min(min, this.maxSize));
+        notifyAll();
+    }
+
+    /**
+     * Sends a message on a pooled connection. If a connection that has been
+     * sitting idle turns out to be dead, the message is tried once more on a
+     * new connection.
+     * @param request SIP message.
+     * @return the server's response.
+     * @throws SIPException if the message could not be sent, or all 
+     * connections stayed busy for the timeout.
+     */
+    String send(String request) throws SIPException
+    {
+        // One deadline covers the retry too, so a struggling server costs
+        // the caller no more than the timeout.
+        long deadline = System.currentTimeMillis() + this.timeout;
+        SIPConnection connection = borrow(true, deadline);
+        try
+        {
+            return connection.sendReceive(request, deadline);
+        }
+        catch (SIPException ex)
+        {
+            // A fresh connection that failed, or a server that is just slow,
+            // won't do any better on a new connection.
+            if (connection.getUseCount() == 1 || System.currentTimeMillis() >= deadline)
+            {
+                throw ex;
+            }
+            System.out.println(new Date() + " SIP connection went stale, reconnecting.");
+        }
+        finally
+        {
+            release(connection);
+        }
+        connection = borrow(false, deadline);
+        try
+        {
+            return connection.sendReceive(request, deadline);
+        }
+        finally
+        {
+            release(connection);
+        }
+    }
+
+    /**
+     * Takes an idle connection, or opens one if there is room, or waits up to
+     * the timeout for one to be returned.
+     * @param useIdle false to skip idle connections and always open a new one.
+     */
+    SIPConnection borrow(boolean useIdle) throws SIPException
+    {
+        return borrow(useIdle, System.currentTimeMillis() + this.timeout);
+    }
+
+    /**
+     * Takes an idle connection, or opens one if there is room, or waits until
+     * the deadline for one to be returned.
+     * @param useIdle false to skip idle connections and always open a new one.
+     * @param deadline time, in milliseconds, by which a new connection must
+     * be logged in.
+     */
+    SIPConnection borrow(boolean useIdle, long deadline) throws SIPException
+    {
+        synchronized (this)
+        {
+            while (true)
+            {
+                SIPConnection connection = useIdle ? this.idle.pollFirst() : null;
+                if (connection != null)
+                {
+                    if (connection.isBroken())
+                    {
+                        discard(connection);
+                        continue;
+                    }
+                    connection.lend();
+                    return connection;
+                }
+                if (this.open < this.maxSize)
+                {
+                    this.open++;
+                    break;
+                }
+                if (! useIdle && ! this.idle.isEmpty())
+                {
+                    // Make room by dropping the quietest idle connection.
+                    discard(this.idle.pollLast());
+                    continue;
+                }
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0)
+                {
+                    throw new SIPException(SIPConnectionPool.class.getName()
+                            + " all " + this.maxSize + " SIP connections are busy");
+                }
+                try
+                {
+                    wait(wait);
+                }
+                catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new SIPException(SIPConnectionPool.class.getName()
+                            + " interrupted waiting for a SIP connection");
+                }
+            }
+        }
+        // Connect outside the lock so a slow server doesn't hold up returns.
+        try
+        {
+            SIPConnection connection = connect(deadline);
+            connection.lend();
+            return connection;
+        }
+        catch (SIPException ex)
+        {
+            synchronized (this)
+            {
+                this.open--;
+                notifyAll();
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Returns a connection to the pool, or closes it if it is broken.
+     */
+    synchronized void release(SIPConnection connection)
+    {
+        if (connection.isBroken() || this.open > this.maxSize)
+        {
+            discard(connection);
+        }
+        else
+        {
+            this.idle.addFirst(connection);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Validates idle connections, closes surplus ones and tops the pool up
+     * to its minimum size.
+     */
+    void maintain()
+    {
+        List<SIPConnection> toCheck = new ArrayList<>();
+        synchronized (this)
+        {
+            int keep = 0;
+            Iterator<SIPConnection> it = this.idle.iterator();
+            while (it.hasNext())
+            {
+                SIPConnection connection = it.next();
+                if (connection.getIdleTime() < this.validateInterval)
+                {
+                    keep++;
+                    continue;
+                }
+                it.remove();
+                if (keep < this.minSize)
+                {
+                    keep++;
+                    toCheck.add(connection);
+                }
+                else
+                {
+                    discard(connection);
+                }
+            }
+        }
+        for (SIPConnection connection: toCheck)
+        {
+            if (! connection.isValid())
+            {
+                System.out.println(new Date() + " SIP connection to " + this.host 
+                        + " failed validation, closing it.");
+                connection.close();
+            }
+            release(connection);
+        }
+        while (true)
+        {
+            synchronized (this)
+            {
+                if (this.open >= this.minSize)
+                {
+                    return;
+                }
+                this.open++;
+            }
+            try
+            {
+                release(connect());
+            }
+            catch (SIPException ex)
+            {
+                synchronized (this)
+                {
+                    this.open--;
+                }
+                System.out.println(new Date() + " unable to open a SIP connection to "
+                        + this.host + ": " + ex.getMessage());
+                return;
+            }
+        }
+    }
+
+    /**
+     * 
+     * @return number of open connections, idle or in use.
+     */
+    synchronized int getOpenCount()
+    {
+        return this.open;
+    }
+
+    /**
+     * 
+     * @return number of connections waiting to be used.
+     */
+    synchronized int getIdleCount()
+    {
+        return this.idle.size();
+    }
+
+    /**
+     * Closes all idle connections. Connections in use are closed when they
+     * are returned.
+     */
+    synchronized void close()
+    {
+        while (! this.idle.isEmpty())
+        {
+            discard(this.idle.pollFirst());
+        }
+        this.minSize = 0;
+    }
+
+    private SIPConnection connect() throws SIPException
+    {
+        return connect(System.currentTimeMillis() + this.timeout);
+    }
+
+    private SIPConnection connect(long deadline) throws SIPException
+    {
+        if (System.currentTimeMillis() >= deadline)
+        {
+            throw new SIPException(SIPConnectionPool.class.getName()
+                    + " no time left to open a SIP connection");
+        }
+        SIPConnection connection = new SIPConnection(this.host, this.port, this.timeout);
+        if (this.user != null && ! this.user.isEmpty())
+        {
+            try
+            {
+                connection.login(this.user, this.password, this.institution, deadline);
+            }
+            catch (SIPException ex)
+            {
+                connection.close();
+                throw ex;
+            }
+        }
+        return connection;
+    }
+
+    /**
+     * Must hold the lock.
+     */
+    private void discard(SIPConnection connection)
+    {
+        connection.close();
+        this.open--;
+    }
+}
@@ -20,21 +20,14 @@
  */
 package api;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.net.UnknownHostException;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 import mecard.exception.SIPException;
 
 /**
  * SIP connection. Expects information to be formatted Usage:
  * <code>SIPConnector instance = new SIPConnector.Builder("eplapp","6001").build();</code>
  * <code>assertTrue(instance.test());</code>
+ * Unless the pool size is set to 0 messages are sent over logged in 
+ * connections from a {@link SIPConnectionPool}.
  *
  * @author Andrew Nisbet
  */
@@ -45,6 +38,8 @@ public class SIPConnector
     // however for security reasons.
 
     public final static char CONNECTION_TERMINATOR = '\r';
+    /** SC status message, answered with a 98 ACS status. */
+    public final static String STATUS_REQUEST = "990   2.00AY1AZFCD8";
     private static final int DEFAULT_TIMEOUT = 5000;
     private static int SEQUENCE_NUMBER = 0;
     private final String host;
@@ -53,9 +48,7 @@ public class SIPConnector
     private final String sipUser;
     private final String sipPassword;
     private final int timeout;
-    private Socket sipSocket;
-    private BufferedReader in;
-    private PrintWriter out;
+    private final SIPConnectionPool pool;
 
     public static class Builder
     {
@@ -66,6 +59,9 @@ public class SIPConnector
         private String user;
         private String password;
         private int timeout;
+        private int minPoolSize;
+        private int maxPoolSize;
+        private long validateInterval;
 
         /**
          * Creates builder with minimum constructor arguments.
@@ -87,6 +83,9 @@ public class SIPConnector
             // if not specified the timeout is set to 5000, or 5 seconds. That is
             // about all a customer is willing to wait for on the website.
             this.timeout = SIPConnector.DEFAULT_TIMEOUT;
+            this.minPoolSize = SIPConnectionPool.DEFAULT_MIN_SIZE;
+            this.maxPoolSize = SIPConnectionPool.DEFAULT_MAX_SIZE;
+            this.validateInterval = SIPConnectionPool.DEFAULT_VALIDATE_INTERVAL;
         }
 
         /**
@@ -156,6 +155,53 @@ public class SIPConnector
             return this;
         }
 
+        /**
+         * Sets the size of the connection pool. Values that can't be parsed
+         * leave the defaults in place.
+         *
+         * @param min connections kept open even when idle.
+         * @param max most connections open at once, 0 for no pool which
+         * opens and closes a connection for every message.
+         * @return Builder
+         */
+        public Builder poolSize(String min, String max)
+        {
+            this.minPoolSize = parse(min, this.minPoolSize);
+            this.maxPoolSize = parse(max, this.maxPoolSize);
+            return this;
+        }
+
+        /**
+         * Sets how long a pooled connection may sit idle before it is
+         * checked with a 99 message.
+         *
+         * @param millis milliseconds, 0 to never check.
+         * @return Builder
+         */
+        public Builder validateInterval(String millis)
+        {
+            this.validateInterval = parse(millis, (int) this.validateInterval);
+            return this;
+        }
+
+        private static int parse(String value, int defaultValue)
+        {
+            if (value == null || value.trim().isEmpty())
+            {
+                return defaultValue;
+            }
+            try
+            {
+                return Integer.parseInt(value.trim());
+            }
+            catch (NumberFormatException ex)
+            {
+                System.err.println("expected a number but got '" + value
+                        + "'. Default of " + defaultValue + " applied.");
+                return defaultValue;
+            }
+        }
+
         /**
          * Builds the connection.
          *
@@ -181,6 +227,16 @@ public class SIPConnector
         institutionalId = builder.institution;
         sipUser = builder.user;
         sipPassword = builder.password;
+        if (builder.maxPoolSize > 0)
+        {
+            pool = SIPConnectionPool.getInstanceOf(host, port, institutionalId,
+                    sipUser, sipPassword, timeout, builder.minPoolSize,
+                    builder.maxPoolSize, builder.validateInterval);
+        }
+        else
+        {
+            pool = null;
+        }
     }
 
     /**
@@ -226,9 +282,15 @@ public class SIPConnector
         //  (O) Terminal Name:SIPCHK
         //  (R) Sequence Number : 1 :  matches what was sent
         //  (R) Checksum : E80C : Checksum OK
-        openConnection();
-        String results = sendReceive("990   2.00AY1AZFCD8");
-        closeConnection();
+        String results;
+        try
+        {
+            results = send(STATUS_REQUEST);
+        }
+        catch (SIPException ex)
+        {
+            return false;
+        }
         // we check the 64 character, if it isn't that long
         // an exception will be thrown, but the test should 
         // return false without an exception.
@@ -253,39 +315,28 @@ public class SIPConnector
      */
     public String send(String request) throws SIPException
     {
-        openConnection();
-        // This system's SIP may not require a username password for the command's
-        // action. Check if they set it at build time.
-        if (sipUser != null)
+        if (pool != null)
         {
-            if (login() == false)
+            return pool.send(request);
+        }
+        SIPConnection connection = new SIPConnection(host, port, timeout);
+        // The login and the request share one deadline.
+        long deadline = connection.getDeadline();
+        try
+        {
+            // This system's SIP may not require a username password for the command's
+            // action. Check if they set it at build time.
+            if (sipUser != null)
             {
-                throw new SIPException(SIPConnector.class.getName()
-                        + " SIP login failed, incorrect user name or password");
+                connection.login(sipUser, sipPassword, institutionalId, deadline);
             }
+            return connection.sendReceive(request, deadline);
+        }
+        finally
+        {
+            // We don't logout, we just close the connection.
+            connection.close();
         }
-        String results = sendReceive(request);
-        // We don't logout, we just close the connection.
-        closeConnection();
-        return results;
-    }
-
-    /**
-     * Attempts to login with the assigned username and password.
-     *
-     * @return true if login succeeded.
-     */
-    private boolean login()
-    {
-        // 93  CNadmin|COsomepassword|CP|AY2AZF393
-        StringBuilder sb = new StringBuilder();
-        sb.append("93  CN");
-        sb.append(sipUser);
-        sb.append("|CO");
-        sb.append(sipPassword);
-        sb.append("CP|AY");
-        sb.append(SIPConnector.getCheckSum(sb.toString()));
-        return true;
     }
 
     public synchronized static int getSequenceNumber()
@@ -295,36 +346,6 @@ public class SIPConnector
         return number;
     }
 
-    private String sendReceive(String sipData)
-    {
-        // sipData should look like: "63                               AO|AA21221012345678|AD64058|AY0AZF374\r"
-        if (sipData.charAt(sipData.length() - 1) != SIPConnector.CONNECTION_TERMINATOR)
-        {
-            sipData += SIPConnector.CONNECTION_TERMINATOR;
-        }
-        out.print(sipData);
-        out.flush();
-        String line = null;
-        // This loop will exit after no more data arrives from the stream or
-        // the socket connection timeout is exceeded.
-        while (true)
-        {
-            try
-            {
-                line = in.readLine();
-            } 
-            catch (IOException ex)
-            {
-                Logger.getLogger(SIPConnector.class.getName()).log(Level.SEVERE, null, ex);
-            }
-            if (line != null)
-            {
-                break;
-            }
-        }
-        return line;
-    }
-
     /**
      * Returns the return code from the received message.
      *
@@ -360,45 +381,6 @@ public class SIPConnector
         return code;
     }
 
-    /**
-     * Manages the opening of the connection.
-     */
-    private void openConnection() throws SIPException
-    {
-        try
-        {
-            sipSocket = new Socket();
-            // This limits the time allowed to establish a connection in the case
-            // that the connection is refused of server doesn't exist.
-            sipSocket.connect(new InetSocketAddress(host, port), timeout);
-            // this stops the SIP request from dragging on after connection succeeds.
-            sipSocket.setSoTimeout(timeout);
-            in = new BufferedReader(new InputStreamReader(sipSocket.getInputStream()));
-            out = new PrintWriter(sipSocket.getOutputStream());
-        } catch (UnknownHostException ex)
-        {
-            throw new SIPException(SIPConnector.class.getName()
-                    + "the requested host '" + host + "' is unknown");
-        } catch (IOException ex)
-        {
-            throw new SIPException(SIPConnector.class.getName()
-                    + "the request for sip connection was refused");
-        }
-    }
-
-    private void closeConnection()
-    {
-        try
-        {
-            in.close();
-            out.close();
-            sipSocket.close();
-        } catch (IOException ex)
-        {
-            Logger.getLogger(SIPConnector.class.getName()).log(Level.WARNING, ex.getMessage(), ex);
-        }
-    }
-
     public static String getCheckSum(String data)
     {
         String chksum = "";
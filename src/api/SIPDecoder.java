@@ -0,0 +1,366 @@
+/*
+ * Metro allows customers from any affiliate library to join any other member library.
+ *    Copyright (C) 2013  Edmonton Public Library
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301, USA.
+ *
+ */
+package api;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import mecard.Protocol;
+import mecard.exception.SIPException;
+
+/**
+ * Decodes a SIP2 message in a single pass without copying it. The decoder
+ * only records where each field starts and ends, in a small table keyed on
+ * the two letter field code, and makes a String of a field when it is asked
+ * for.
+ * <p>
+ * As with {@link SIPMessage}, everything before the first '|' is the fixed
+ * length part of the message and a field repeated later in the message
+ * replaces the earlier one. The AY sequence number and AZ checksum are
+ * found on the way through so the message can be checked against them.
+ * <pre>
+ * 98YYYYYN60000320130424    1135112.00AOEPLMNA|AMEPLMNA|BXYYYYYYYYYYYNNYYY|ANSIPCHK|AY1AZE80C
+ * </pre>
+ * @author Andrew Nisbet <anisbet@epl.ca>
+ */
+public final class SIPDecoder
+{
+    private final static int INITIAL_FIELDS = 24;
+    private final CharSequence message;
+    // End of the message ignoring any trailing '\r' or '\n'.
+    private final int length;
+    // Index of the first '|', or -1 if there isn't one.
+    private final int headerEnd;
+    // Two letter codes packed into an int, with the start and end of each value.
+    private int[] codes;
+    private int[] starts;
+    private int[] ends;
+    private int fieldCount;
+    // Index of the AY sequence number, and of the first checksum digit after AZ.
+    private int sequenceIndex;
+    private int checksumIndex;
+
+    /**
+     * Finds the fields of the argument message.
+     * @param message SIP2 message, with or without its terminator.
+     * @throws SIPException if a field is too short to have a two letter code,
+     * which means this likely isn't a SIP2 message.
+     */
+    public SIPDecoder(CharSequence message)
+            throws SIPException
+    {
+        this.message = message;
+        int end = message.length();
+        while (end > 0 && (message.charAt(end - 1) == '\r' || message.charAt(end - 1) == '\n'))
+        {
+            end--;
+        }
+        this.length        = end;
+        this.codes         = new int[INITIAL_FIELDS];
+        this.starts        = new int[INITIAL_FIELDS];
+        this.ends          = new int[INITIAL_FIELDS];
+        this.fieldCount    = 0;
+        this.sequenceIndex = -1;
+        this.checksumIndex = -1;
+        int firstBar = -1;
+        int fieldStart = -1;
+        for (int i = 0; i <= this.length; i++)
+        {
+            if (i < this.length && message.charAt(i) != '|')
+            {
+                continue;
+            }
+            if (firstBar < 0)
+            {
+                if (i == this.length)
+                {
+                    break;
+                }
+                firstBar = i;
+            }
+            else
+            {
+                addField(fieldStart, i);
+            }
+            fieldStart = i + 1;
+        }
+        this.headerEnd = firstBar;
+    }
+
+    private void addField(int start, int end) throws SIPException
+    {
+        if (end - start < 2)
+        {
+            // A trailing '|' is allowed, an empty field in the middle is not.
+            if (start == end && end == this.length)
+            {
+                return;
+            }
+            throw new SIPException(SIPDecoder.class.getName()
+                    + " field at position " + start + " has no code. This may not be a "
+                    + "SIP2 message, or it may be malformed: '" + this.message + "'");
+        }
+        if (this.fieldCount == this.codes.length)
+        {
+            int size = this.codes.length * 2;
+            this.codes  = Arrays.copyOf(this.codes, size);
+            this.starts = Arrays.copyOf(this.starts, size);
+            this.ends   = Arrays.copyOf(this.ends, size);
+        }
+        char first  = this.message.charAt(start);
+        char second = this.message.charAt(start + 1);
+        this.codes[this.fieldCount]  = (first << 16) | second;
+        this.starts[this.fieldCount] = start + 2;
+        this.ends[this.fieldCount]   = end;
+        this.fieldCount++;
+        if (first == 'A' && second == 'Y')
+        {
+            this.sequenceIndex = start + 2;
+            // Usually sent as AY1AZXXXX, all one field.
+            if (end - start >= 5 && this.message.charAt(start + 3) == 'A'
+                    && this.message.charAt(start + 4) == 'Z')
+            {
+                this.checksumIndex = start + 5;
+            }
+        }
+        else if (first == 'A' && second == 'Z')
+        {
+            this.checksumIndex = start + 2;
+        }
+    }
+
+    /**
+     * Finds the last occurrence of a field.
+     * @return index into the field table or -1 if the message doesn't have it.
+     */
+    private int indexOf(String which)
+    {
+        if (which == null || which.length() != 2)
+        {
+            return -1;
+        }
+        int code = (Character.toUpperCase(which.charAt(0)) << 16)
+                | Character.toUpperCase(which.charAt(1));
+        for (int i = this.fieldCount - 1; i >= 0; i--)
+        {
+            if (this.codes[i] == code)
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     *
+     * @return true if the message has at least one '|', that is, it has the
+     * fixed length part followed by fields.
+     */
+    public boolean isDelimited()
+    {
+        return this.headerEnd >= 0;
+    }
+
+    /**
+     *
+     * @return the two character message code like '64', or an empty string
+     * if the message is too short to have one.
+     */
+    public String getCode()
+    {
+        int end = this.headerEnd < 0 ? this.length : this.headerEnd;
+        if (end < 2)
+        {
+            return "";
+        }
+        return this.message.subSequence(0, 2).toString();
+    }
+
+    /**
+     *
+     * @return the fixed length part of the message that follows the code.
+     */
+    public String getCodeMessage()
+    {
+        int end = this.headerEnd < 0 ? this.length : this.headerEnd;
+        if (end < 2)
+        {
+            return "";
+        }
+        return this.message.subSequence(2, end).toString();
+    }
+
+    /**
+     *
+     * @param which two letter field code, case insensitive.
+     * @return true if the message has the field.
+     */
+    public boolean hasField(String which)
+    {
+        return indexOf(which) >= 0;
+    }
+
+    /**
+     *
+     * @param which two letter field code, case insensitive.
+     * @return contents of the field, or {@link Protocol#DEFAULT_FIELD_VALUE}
+     * if the message doesn't have it.
+     */
+    public String getField(String which)
+    {
+        int index = indexOf(which);
+        if (index < 0)
+        {
+            return Protocol.DEFAULT_FIELD_VALUE;
+        }
+        return this.message.subSequence(this.starts[index], this.ends[index]).toString();
+    }
+
+    /**
+     *
+     * @return codes of the fields in the message, each once, in the order
+     * they first appear.
+     */
+    public List<String> getFieldNames()
+    {
+        List<String> names = new ArrayList<>(this.fieldCount);
+        for (int i = 0; i < this.fieldCount; i++)
+        {
+            String name = this.message.subSequence(this.starts[i] - 2, this.starts[i]).toString();
+            if (! names.contains(name))
+            {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
+    /**
+     *
+     * @return the AY sequence number, or -1 if the message doesn't have one.
+     */
+    public int getSequenceNumber()
+    {
+        if (this.sequenceIndex < 0 || this.sequenceIndex >= this.length)
+        {
+            return -1;
+        }
+        return Character.digit(this.message.charAt(this.sequenceIndex), 10);
+    }
+
+    /**
+     *
+     * @return true if the message ends with an AZ checksum.
+     */
+    public boolean hasChecksum()
+    {
+        return this.checksumIndex >= 0;
+    }
+
+    /**
+     * Checks the AZ checksum, the two's complement of the sum of every
+     * character up to and including 'AZ'.
+     * @return true if the message has a checksum and it matches the message,
+     * false otherwise.
+     */
+    public boolean isChecksumValid()
+    {
+        if (this.checksumIndex < 0)
+        {
+            return false;
+        }
+        int expected = 0;
+        int digits = 0;
+        for (int i = this.checksumIndex; i < this.length && this.message.charAt(i) != '|'; i++)
+        {
+            int digit = Character.digit(this.message.charAt(i), 16);
+            if (digit < 0 || ++digits > 4)
+            {
+                return false;
+            }
+            expected = (expected << 4) | digit;
+        }
+        if (digits == 0)
+        {
+            return false;
+        }
+        int sum = 0;
+        for (int i = 0; i < this.checksumIndex; i++)
+        {
+            sum += this.message.charAt(i);
+        }
+        return ((-sum) & 0xffff) == expected;
+    }
+
+    /**
+     * Checks the AY sequence number and AZ checksum of a response.
+     * @param sequenceNumber sequence number sent with the request, or -1 to
+     * skip the check.
+     * @throws SIPException if the message has no checksum, the checksum
+     * doesn't match or the sequence number is not the one expected.
+     */
+    public void validate(int sequenceNumber) throws SIPException
+    {
+        if (! isChecksumValid())
+        {
+            throw new SIPException(SIPDecoder.class.getName()
+                    + " missing or incorrect checksum: '" + this.message + "'");
+        }
+        if (sequenceNumber >= 0 && getSequenceNumber() != sequenceNumber)
+        {
+            throw new SIPException(SIPDecoder.class.getName()
+                    + " expected sequence number " + sequenceNumber
+                    + " but got " + getSequenceNumber() + ": '" + this.message + "'");
+        }
+    }
+
+    /**
+     * Tests if the characters between start and end look like a date, eight
+     * digits like '20130822'. Doesn't make a String to do it.
+     * @param chars characters to test.
+     * @param start index of the first character.
+     * @param end index after the last character.
+     * @return true if the characters are likely to be an ANSI date and false
+     * otherwise.
+     */
+    public static boolean isDate(CharSequence chars, int start, int end)
+    {
+        if (chars == null || end - start != 8)
+        {
+            return false;
+        }
+        // [1-2][0,9]\d{2}[0-1][0-9][0-3][0-9]
+        char century = chars.charAt(start + 1);
+        return inRange(chars.charAt(start), '1', '2')
+                && (century == '0' || century == '9')
+                && inRange(chars.charAt(start + 2), '0', '9')
+                && inRange(chars.charAt(start + 3), '0', '9')
+                && inRange(chars.charAt(start + 4), '0', '1')
+                && inRange(chars.charAt(start + 5), '0', '9')
+                && inRange(chars.charAt(start + 6), '0', '3')
+                && inRange(chars.charAt(start + 7), '0', '9');
+    }
+
+    private static boolean inRange(char c, char low, char high)
+    {
+        return c >= low && c <= high;
+    }
+}
@@ -21,10 +21,9 @@
 package api;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Properties;
-import java.util.Set;
 import mecard.Protocol;
 import mecard.config.ConfigFileTypes;
 import mecard.config.MessagesConfigTypes;
@@ -42,7 +41,7 @@ import mecard.exception.SIPException;
  */
 public class SIPMessage
 {
-    protected HashMap<String, String> fields;
+    protected final SIPDecoder decoder;
     protected final String originalMessage;
     protected final String code;
     protected final String codeBits;
@@ -61,13 +60,17 @@ public class SIPMessage
             return Protocol.DEFAULT_FIELD_VALUE;
         }
         // 20131231    235900STAFF
-        // Split if you can on whitespace
-        String[] split = possibleDate.split("\\s{1,}");
-        if (split.length == 0 || isDate(split[0]) == false)
+        // The date is everything up to the first whitespace.
+        int end = 0;
+        while (end < possibleDate.length() && ! Character.isWhitespace(possibleDate.charAt(end)))
+        {
+            end++;
+        }
+        if (SIPDecoder.isDate(possibleDate, 0, end) == false)
         {
             return Protocol.DEFAULT_FIELD_VALUE;
         }
-        return split[0];
+        return end == possibleDate.length() ? possibleDate : possibleDate.substring(0, end);
     }
     
      /**
@@ -82,8 +85,7 @@ public class SIPMessage
         {
             return false;
         }
-        return possibleDate.matches("^[1-2][0,9]\\d{2}[0-1][0-9][0-3][0-9]$");
-//        return possibleDate.matches("\\d{8}");
+        return SIPDecoder.isDate(possibleDate, 0, possibleDate.length());
     }
     
     /**
@@ -97,44 +99,20 @@ public class SIPMessage
         // If the message we get is broken, it is most likely that the ILS is down.
         this.messageProperties = PropertyReader.getProperties(ConfigFileTypes.MESSAGES);
         this.originalMessage = sipMessage;
-        if (sipMessage.contains("|") == false)
+        this.decoder = new SIPDecoder(sipMessage);
+        if (this.decoder.isDelimited() == false)
         {
             throw new SIPException(this.messageProperties.getProperty(
                     MessagesConfigTypes.UNAVAILABLE_SERVICE.toString()));
         }
-        this.fields = new HashMap<>();
-        // Split the fields
-        String[] stringFields = sipMessage.split("\\|");
-        try
-        {
-            this.code = stringFields[0].substring(0, 2);
-            this.codeBits = stringFields[0].substring(2);
-        }
-        catch (IndexOutOfBoundsException ex)
+        this.code = this.decoder.getCode();
+        if (this.code.isEmpty())
         {
             throw new SIPException(" Index was out of bounds while parsing "
                     + "SIP2 code section. This may not be a SIP2 message, or it "
                     + "be malformed: '" + sipMessage + "'");
         }
-        for (int i = 1; i < stringFields.length; i++)
-        {
-            String key; // 2 letter code like BX
-            String value; // The rest of the message.
-            try
-            {
-                key = stringFields[i].substring(0, 2); // 2 letter code like BX
-                value = stringFields[i].substring(2); // reset of the message
-            }
-            catch (IndexOutOfBoundsException ex)
-            {
-                throw new SIPException(SIPMessage.class.getName()
-                        + " Index was out of bounds while parsing "
-                        + "SIP2 message. This may not be a SIP2 message, or it "
-                        + "be malformed: '" + sipMessage + "'");
-            }
-            // put it in the hash
-            this.fields.put(key, value);
-        }
+        this.codeBits = this.decoder.getCodeMessage();
     }
     
     /**
@@ -161,13 +139,8 @@ public class SIPMessage
      */
     public final List<String> getFieldNames()
     {
-        List<String> myListOfKeys = new ArrayList<>();
-        Set<String> keySet = this.fields.keySet();
-        for (String s : keySet)
-        {
-            myListOfKeys.add(s);
-        }
-        return myListOfKeys;
+        // In hash order, which is the order callers have always seen.
+        return new ArrayList<>(new HashSet<>(this.decoder.getFieldNames()));
     }
 
     /**
@@ -177,12 +150,16 @@ public class SIPMessage
      */
     public final String getField(String which)
     {
-        String returnValue = this.fields.get(which.toUpperCase()); // which could return null
-        if (returnValue == null)
-        {
-            return Protocol.DEFAULT_FIELD_VALUE;
-        }
-        return returnValue;
+        return this.decoder.getField(which);
+    }
+
+    /**
+     *
+     * @return true if the message's AZ checksum is present and correct.
+     */
+    public final boolean isChecksumValid()
+    {
+        return this.decoder.isChecksumValid();
     }
     
    @Override
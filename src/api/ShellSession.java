@@ -0,0 +1,337 @@
+/*
+ * Metro allows customers from any affiliate library to join any other member library.
+ *    Copyright (C) 2013  Edmonton Public Library
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301, USA.
+ *
+ */
+package api;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import mecard.ResponseTypes;
+import mecard.util.ThreadRunner;
+
+/**
+ * One long running shell, local or at the end of an ssh connection, that
+ * runs commands one after another so they don't each pay for a process or
+ * ssh start up. Sessions are handed out by a {@link ShellSessionPool} and
+ * used by one thread at a time.
+ * <p>
+ * Each command is written to the shell's stdin followed by a line that
+ * echoes a sentinel and the command's exit status to both stdout and stderr.
+ * Everything read before the sentinel is the command's output. The sentinel
+ * carries a random session id and the command's sequence number, so output
+ * can't be mistaken for it. Data for the command's stdin goes in a quoted
+ * here document; commands without data read /dev/null so they can't eat the
+ * commands that follow.
+ * <p>
+ * Two reader threads per session move the shell's stdout and stderr onto
+ * queues, so a command can be given up on at its deadline even if it never
+ * writes another line. A session whose shell exits, or whose command runs
+ * past its timeout, is killed, marked broken and must not be used again.
+ *
+ * @author Andrew Nisbet <anisbet@epl.ca>
+ */
+final class ShellSession
+{
+    private final static SecureRandom random = new SecureRandom();
+    // Queued by a stream reader when the shell closes the stream.
+    private final static String END_OF_STREAM = new String("EOF");
+    private final Process process;
+    private final BufferedWriter in;
+    private final BlockingQueue<String> out;
+    private final BlockingQueue<String> err;
+    private final String marker;
+    private volatile boolean broken;
+    private int sequence;
+    private long lastUsed;
+    private int useCount;
+
+    /**
+     * Starts the shell.
+     * @param shell command that starts a shell reading commands from stdin,
+     * like '/bin/sh' or 'ssh user@host /bin/sh'.
+     * @throws IOException if the shell can't be started.
+     */
+    ShellSession(List<String> shell) throws IOException
+    {
+        ProcessBuilder processBuilder = new ProcessBuilder(shell);
+        APICommand.setEnvironment(processBuilder);
+        this.process  = processBuilder.start();
+        this.in       = new BufferedWriter(new OutputStreamWriter(this.process.getOutputStream()));
+        this.out      = new LinkedBlockingQueue<>();
+        this.err      = new LinkedBlockingQueue<>();
+        this.marker   = "__METRO_" + Long.toHexString(random.nextLong()) + "_";
+        this.sequence = 0;
+        this.lastUsed = System.currentTimeMillis();
+        this.useCount = 0;
+        ThreadRunner.newThread(new StreamReader(this.process.getInputStream(), this.out),
+                "MetroShellStdout").start();
+        ThreadRunner.newThread(new StreamReader(this.process.getErrorStream(), this.err),
+                "MetroShellStderr").start();
+    }
+
+    /**
+     * Runs a command in the shell and waits for it to finish.
+     * @param commandLine the command, interpreted by the shell.
+     * @param stdinData lines for the command's stdin, or null for none.
+     * @param timeout milliseconds the command may take before the session is
+     * killed, 0 to wait for as long as it takes.
+     * @param status collects the output, {@link ResponseTypes#UNAVAILABLE}
+     * if the shell died or the command timed out.
+     * @return the argument status.
+     */
+    CommandStatus run(String commandLine, List<String> stdinData, long timeout,
+            CommandStatus status)
+    {
+        status.setStarted();
+        this.sequence++;
+        String sentinel = this.marker + this.sequence + " ";
+        long deadline = timeout > 0L ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+        try
+        {
+            this.in.write(frame(commandLine, stdinData, sentinel));
+            this.in.flush();
+            int exit = read(this.out, status, sentinel, deadline, true);
+            if (exit >= 0 && read(this.err, status, sentinel, deadline, false) >= 0)
+            {
+                status.setEnded(exit);
+            }
+        }
+        catch (IOException ex)
+        {
+            this.broken = true;
+        }
+        catch (InterruptedException ex)
+        {
+            this.broken = true;
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            this.lastUsed = System.currentTimeMillis();
+        }
+        if (this.broken)
+        {
+            boolean timedOut = System.currentTimeMillis() >= deadline;
+            close();
+            status.setUnavailable(timedOut
+                    ? "command did not finish within " + timeout + "ms."
+                    : "shell session ended unexpectedly.");
+        }
+        return status;
+    }
+
+    /**
+     * Builds the text written to the shell for a command.
+     */
+    private String frame(String commandLine, List<String> stdinData, String sentinel)
+    {
+        StringBuilder sb = new StringBuilder();
+        // Braces so the redirection applies to the whole command, pipes included.
+        sb.append("{ ").append(commandLine).append("\n}");
+        if (stdinData == null)
+        {
+            sb.append(" < /dev/null\n");
+        }
+        else
+        {
+            String eof = this.marker + this.sequence + "_EOF";
+            sb.append(" <<'").append(eof).append("'\n");
+            for (String line: stdinData)
+            {
+                sb.append(line).append("\n");
+            }
+            sb.append(eof).append("\n");
+        }
+        sb.append("__metro_rc=$?; echo \"").append(sentinel).append("$__metro_rc\"; echo \"")
+                .append(sentinel).append("$__metro_rc\" 1>&2\n");
+        return sb.toString();
+    }
+
+    /**
+     * Takes the command's lines from one of the streams up to the sentinel.
+     * @return exit status of the command, or -1 if the shell went away or
+     * the deadline passed.
+     */
+    private int read(BlockingQueue<String> lines, CommandStatus status, String sentinel,
+            long deadline, boolean isStdout) throws InterruptedException
+    {
+        while (true)
+        {
+            String line = lines.poll(Math.max(0L, deadline - System.currentTimeMillis()),
+                    TimeUnit.MILLISECONDS);
+            if (line == null || line == END_OF_STREAM)
+            {
+                this.broken = true;
+                return -1;
+            }
+            int at = line.indexOf(sentinel);
+            if (at < 0)
+            {
+                add(status, line, isStdout);
+                continue;
+            }
+            // Output without a trailing new line ends up in front of the sentinel.
+            if (at > 0)
+            {
+                add(status, line.substring(0, at), isStdout);
+            }
+            return Integer.parseInt(line.substring(at + sentinel.length()).trim());
+        }
+    }
+
+    private void add(CommandStatus status, String line, boolean isStdout)
+    {
+        if (isStdout)
+        {
+            status.setStdout(line);
+        }
+        else
+        {
+            status.setStderr(line);
+        }
+    }
+
+    /**
+     * Checks the shell still answers by running the ':' no-op command.
+     * @param timeout milliseconds allowed for the answer.
+     * @return true if the session can be used.
+     */
+    boolean isValid(long timeout)
+    {
+        if (this.broken || ! isRunning())
+        {
+            return false;
+        }
+        CommandStatus status = run(":", null, timeout, new CommandStatus());
+        return ! this.broken && status.getStatus() == ResponseTypes.COMMAND_COMPLETED;
+    }
+
+    private boolean isRunning()
+    {
+        try
+        {
+            this.process.exitValue();
+            return false;
+        }
+        catch (IllegalThreadStateException ex)
+        {
+            return true;
+        }
+    }
+
+    /**
+     * Marks the session as handed out.
+     */
+    void lend()
+    {
+        this.useCount++;
+    }
+
+    /**
+     * 
+     * @return number of times the session has been handed out.
+     */
+    int getUseCount()
+    {
+        return this.useCount;
+    }
+
+    /**
+     * 
+     * @return milliseconds since the last command finished.
+     */
+    long getIdleTime()
+    {
+        return System.currentTimeMillis() - this.lastUsed;
+    }
+
+    /**
+     * 
+     * @return true if the session must not be used again.
+     */
+    boolean isBroken()
+    {
+        return this.broken;
+    }
+
+    /**
+     * Kills the shell.
+     */
+    void close()
+    {
+        this.broken = true;
+        this.process.destroy();
+    }
+
+    /**
+     * Moves lines from one of the shell's streams onto a queue, so the shell
+     * never blocks writing them, and so the thread running a command can 
+     * wait for them with a timeout. A killed shell can leave children behind
+     * holding the stream open, in which case the reader carries on until 
+     * they finish, but nothing waits for it.
+     */
+    private static class StreamReader implements Runnable
+    {
+        private final InputStream stream;
+        private final BlockingQueue<String> lines;
+
+        private StreamReader(InputStream stream, BlockingQueue<String> lines)
+        {
+            this.stream = stream;
+            this.lines  = lines;
+        }
+
+        @Override
+        public void run()
+        {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(this.stream));
+            try
+            {
+                String line;
+                while ((line = reader.readLine()) != null)
+                {
+                    this.lines.add(line);
+                }
+            }
+            catch (IOException ex)
+            {
+                // The shell has gone, the queued end of stream says so.
+            }
+            finally
+            {
+                this.lines.add(END_OF_STREAM);
+                try
+                {
+                    reader.close();
+                }
+                catch (IOException ex)
+                { }
+            }
+        }
+    }
+}
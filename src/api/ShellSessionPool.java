@@ -0,0 +1,357 @@
+/*
+ * Metro allows customers from any affiliate library to join any other member library.
+ *    Copyright (C) 2013  Edmonton Public Library
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301, USA.
+ *
+ */
+package api;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import mecard.config.PropertyReader;
+
+/**
+ * Keeps shells running, locally or over one ssh connection each, so ILS
+ * commands like seluser and loadflatuser don't start a new process, and a 
+ * new ssh connection, every time they run. There is one pool for each ssh 
+ * server, and one for the local machine.
+ * <p>
+ * A session that has been idle longer than the check interval must answer 
+ * a no-op command before it is handed out. Sessions are replaced after max
+ * uses commands, and as soon as one breaks.
+ * <p>
+ * Optional entries in symphony.properties:
+ * <pre>
+ * &lt;entry key="shell-sessions"&gt;2&lt;/entry&gt; 0, the default, starts a process per command.
+ * &lt;entry key="shell-session-max-uses"&gt;500&lt;/entry&gt;
+ * &lt;entry key="shell-session-check"&gt;60000&lt;/entry&gt; milliseconds.
+ * </pre>
+ * @author Andrew Nisbet <anisbet@epl.ca>
+ */
+public final class ShellSessionPool
+{
+    public final static String MAX_SIZE_TAG       = "shell-sessions";
+    public final static String MAX_USES_TAG       = "shell-session-max-uses";
+    public final static String CHECK_INTERVAL_TAG = "shell-session-check";
+    public final static int DEFAULT_MAX_USES      = 500;
+    public final static long DEFAULT_CHECK_INTERVAL = 60000L;
+    // Time allowed for an idle session to answer its check.
+    private final static long CHECK_TIMEOUT       = 5000L;
+    private final static Map<String, ShellSessionPool> pools = new HashMap<>();
+
+    private final List<String> shell;
+    // Most recently used first, the ones at the end are the likeliest to need checking.
+    private final Deque<ShellSession> idle;
+    private int maxSize;
+    private int maxUses;
+    private long checkInterval;
+    private int open;
+
+    /**
+     * Gets the pool for the ssh server named in the argument properties, or
+     * the local machine if there isn't one. Sizes are updated on every call
+     * so they follow changes to the properties.
+     * @param props symphony properties.
+     * @return the pool, or null if shell sessions are turned off.
+     */
+    public static ShellSessionPool getInstanceOf(Properties props)
+    {
+        int maxSize = (int) getLong(props, MAX_SIZE_TAG, 0L);
+        if (maxSize <= 0)
+        {
+            return null;
+        }
+        return getInstanceOf(props.getProperty(PropertyReader.SSH_TAG, ""), maxSize,
+                (int) getLong(props, MAX_USES_TAG, DEFAULT_MAX_USES),
+                getLong(props, CHECK_INTERVAL_TAG, DEFAULT_CHECK_INTERVAL));
+    }
+
+    /**
+     * Gets the pool for the argument ssh server, creating it if this is the 
+     * first time it has been asked for.
+     * @param sshServer user&#64;host to run the shells on, or empty for the local machine.
+     * @param maxSize most sessions open at once.
+     * @param maxUses commands a session runs before it is replaced.
+     * @param checkInterval milliseconds a session can be idle before it is checked.
+     * @return the pool.
+     */
+    static synchronized ShellSessionPool getInstanceOf(String sshServer, 
+            int maxSize, int maxUses, long checkInterval)
+    {
+        ShellSessionPool pool = pools.get(sshServer);
+        if (pool == null)
+        {
+            List<String> shell = new ArrayList<>();
+            if (! sshServer.isEmpty())
+            {
+                shell.add("ssh");
+                shell.add(sshServer);
+            }
+            shell.add("/bin/sh");
+            pool = new ShellSessionPool(shell);
+            pools.put(sshServer, pool);
+            System.out.println(new Date() + " shell sessions on " 
+                    + (sshServer.isEmpty() ? "localhost" : sshServer) + " max " + maxSize);
+        }
+        pool.configure(maxSize, maxUses, checkInterval);
+        return pool;
+    }
+
+    ShellSessionPool(List<String> shell)
+    {
+        this.shell         = new ArrayList<>(shell);
+        this.idle          = new ArrayDeque<>();
+        this.maxSize       = 1;
+        this.maxUses       = DEFAULT_MAX_USES;
+        this.checkInterval = DEFAULT_CHECK_INTERVAL;
+        this.open          = 0;
+    }
+
+    synchronized void configure(int max, int uses, long check)
+    {
+        this.maxSize       = Math.max(1, max);
+        this.maxUses       = Math.max(1, uses);
+        this.checkInterval = check;
+        notifyAll();
+    }
+
+    /**
+     * Runs a command in a pooled shell.
+     * @param cmdArgs the command and its arguments. They are joined with 
+     * spaces and interpreted by the shell, just as they are when commands
+     * are run over ssh.
+     * @param stdinData lines for the command's stdin, or null for none.
+     * @param timeout milliseconds allowed for the command, including any 
+     * wait for a free session; 0 to wait for as long as it takes.
+     * @return status of the command, UNAVAILABLE if no session could be had
+     * in time, or the session failed.
+     */
+    CommandStatus execute(List<String> cmdArgs, List<String> stdinData, long timeout)
+    {
+        return execute(cmdArgs, stdinData, timeout, new CommandStatus());
+    }
+
+    /**
+     * Runs a command in a pooled shell.
+     * @param cmdArgs the command and its arguments, interpreted by the shell.
+     * @param stdinData lines for the command's stdin, or null for none.
+     * @param timeout milliseconds allowed for the command, 0 for no limit.
+     * @param status collects the command's output and exit status.
+     * @return the argument status.
+     */
+    CommandStatus execute(List<String> cmdArgs, List<String> stdinData, long timeout,
+            CommandStatus status)
+    {
+        StringBuilder commandLine = new StringBuilder();
+        for (String arg: cmdArgs)
+        {
+            if (commandLine.length() > 0)
+            {
+                commandLine.append(" ");
+            }
+            commandLine.append(arg);
+        }
+        long deadline = timeout > 0L ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+        ShellSession session;
+        try
+        {
+            session = borrow(deadline);
+        }
+        catch (IOException ex)
+        {
+            status.setUnavailable(ex.getMessage());
+            return status;
+        }
+        try
+        {
+            long remaining = timeout > 0L ? Math.max(1L, deadline - System.currentTimeMillis()) : 0L;
+            return session.run(commandLine.toString(), stdinData, remaining, status);
+        }
+        finally
+        {
+            release(session);
+        }
+    }
+
+    /**
+     * Takes an idle session, checking it first if it has been idle a while,
+     * or starts one if there is room, or waits until the deadline for one
+     * to be returned.
+     * @throws IOException if no session could be had.
+     */
+    ShellSession borrow(long deadline) throws IOException
+    {
+        while (true)
+        {
+            ShellSession session;
+            long check;
+            synchronized (this)
+            {
+                session = waitForSession(deadline);
+                check = this.checkInterval;
+            }
+            if (session == null)
+            {
+                // Start the shell outside the lock, ssh can take a while.
+                try
+                {
+                    session = new ShellSession(this.shell);
+                }
+                catch (IOException ex)
+                {
+                    synchronized (this)
+                    {
+                        this.open--;
+                        notifyAll();
+                    }
+                    throw new IOException("unable to start shell " + this.shell + ": " + ex.getMessage());
+                }
+            }
+            else if (session.getIdleTime() >= check && ! session.isValid(CHECK_TIMEOUT))
+            {
+                System.out.println(new Date() + " shell session " + this.shell 
+                        + " failed its check, closing it.");
+                synchronized (this)
+                {
+                    discard(session);
+                }
+                continue;
+            }
+            session.lend();
+            return session;
+        }
+    }
+
+    /**
+     * Waits for an idle session, or room to start one.
+     * @return idle session, or null if the caller may start a new one.
+     */
+    private ShellSession waitForSession(long deadline) throws IOException
+    {
+        while (true)
+        {
+            ShellSession session = this.idle.pollFirst();
+            if (session != null)
+            {
+                if (session.isBroken())
+                {
+                    discard(session);
+                    continue;
+                }
+                return session;
+            }
+            if (this.open < this.maxSize)
+            {
+                this.open++;
+                return null;
+            }
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0)
+            {
+                throw new IOException("all " + this.maxSize + " shell sessions are busy");
+            }
+            try
+            {
+                wait(wait);
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted waiting for a shell session");
+            }
+        }
+    }
+
+    /**
+     * Returns a session to the pool, or closes it if it is broken or worn out.
+     */
+    synchronized void release(ShellSession session)
+    {
+        if (session.isBroken() || session.getUseCount() >= this.maxUses 
+                || this.open > this.maxSize)
+        {
+            discard(session);
+        }
+        else
+        {
+            this.idle.addFirst(session);
+        }
+        notifyAll();
+    }
+
+    private void discard(ShellSession session)
+    {
+        session.close();
+        this.open--;
+        notifyAll();
+    }
+
+    /**
+     * 
+     * @return number of sessions open, busy or idle.
+     */
+    synchronized int getOpenCount()
+    {
+        return this.open;
+    }
+
+    /**
+     * 
+     * @return number of sessions waiting for a command.
+     */
+    synchronized int getIdleCount()
+    {
+        return this.idle.size();
+    }
+
+    /**
+     * Closes idle sessions.
+     */
+    synchronized void close()
+    {
+        while (! this.idle.isEmpty())
+        {
+            discard(this.idle.pollFirst());
+        }
+    }
+
+    private static long getLong(Properties props, String tag, long defaultValue)
+    {
+        String value = props.getProperty(tag);
+        if (value == null)
+        {
+            return defaultValue;
+        }
+        try
+        {
+            return Long.parseLong(value.trim());
+        }
+        catch (NumberFormatException ex)
+        {
+            System.out.println(new Date() + " '" + tag + "' must be a number, using "
+                    + defaultValue + ".");
+            return defaultValue;
+        }
+    }
+}
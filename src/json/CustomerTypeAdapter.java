@@ -0,0 +1,180 @@
+/*
+ * Metro allows customers from any affiliate library to join any other member library.
+ *    Copyright (C) 2013  Edmonton Public Library
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301, USA.
+ *
+ */
+package json;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import mecard.Protocol;
+import mecard.config.CustomerFieldTypes;
+import mecard.customer.Customer;
+
+/**
+ * Streams a {@link Customer} to and from JSON without building a tree first.
+ * Produces the same JSON as {@link CustomerSerializer}.
+ * @author Andrew Nisbet <anisbet@epl.ca>
+ */
+public class CustomerTypeAdapter extends TypeAdapter<Customer>
+{
+    private final static Map<String, CustomerFieldTypes> fieldNames = new HashMap<>();
+    
+    static
+    {
+        for (CustomerFieldTypes cType: CustomerFieldTypes.values())
+        {
+            fieldNames.put(cType.toString(), cType);
+        }
+    }
+
+    @Override
+    public void write(JsonWriter out, Customer customer) throws IOException
+    {
+        if (customer == null)
+        {
+            out.nullValue();
+            return;
+        }
+        out.beginObject();
+        for (CustomerFieldTypes cType: CustomerFieldTypes.values())
+        {
+            out.name(cType.toString()).value(customer.get(cType));
+        }
+        out.endObject();
+    }
+
+    @Override
+    public Customer read(JsonReader in) throws IOException
+    {
+        if (in.peek() == JsonToken.NULL)
+        {
+            in.nextNull();
+            return null;
+        }
+        Map<CustomerFieldTypes, String> values = new EnumMap<>(CustomerFieldTypes.class);
+        in.beginObject();
+        while (in.hasNext())
+        {
+            String name = in.nextName();
+            CustomerFieldTypes cType = getFieldType(name);
+            if (cType == null || in.peek() == JsonToken.NULL)
+            {
+                in.skipValue();
+                continue;
+            }
+            values.put(cType, in.nextString());
+        }
+        in.endObject();
+        // Set in field order, like CustomerDeserializer, so FIRSTNAME and
+        // LASTNAME win over the names split out of PREFEREDNAME.
+        Customer customer = new Customer();
+        for (CustomerFieldTypes cType: values.keySet())
+        {
+            customer.set(cType, values.get(cType));
+        }
+        return customer;
+    }
+
+    /**
+     * Writes the customer member of a request or response in the argument
+     * wire format version.
+     * @param out writer positioned where the customer goes.
+     * @param customer customer, may be null.
+     * @param version wire format version.
+     * @throws IOException 
+     */
+    void writeField(JsonWriter out, Customer customer, int version) throws IOException
+    {
+        out.name("customer");
+        if (version < Protocol.WIRE_VERSION_2)
+        {
+            out.value(toJsonString(customer));
+            return;
+        }
+        // 'null' is written so clients don't have to test for the member.
+        boolean serializeNulls = out.getSerializeNulls();
+        out.setSerializeNulls(true);
+        write(out, customer);
+        out.setSerializeNulls(serializeNulls);
+    }
+
+    /**
+     * Reads the customer member of a request or response, whether it is
+     * a version 1 JSON string or a version 2 object.
+     * @param in reader positioned on the customer's value.
+     * @return Customer or null if there is none.
+     * @throws IOException 
+     */
+    Customer readField(JsonReader in) throws IOException
+    {
+        if (in.peek() == JsonToken.STRING)
+        {
+            return fromJsonString(in.nextString());
+        }
+        return read(in);
+    }
+
+    /**
+     * The customer travels as a JSON string inside version 1 requests and responses.
+     * @param customer customer, may be null.
+     * @return the customer as a JSON string, or "null" if there is no customer.
+     * @throws IOException 
+     */
+    String toJsonString(Customer customer) throws IOException
+    {
+        StringWriter json = new StringWriter();
+        JsonWriter writer = new JsonWriter(json);
+        // Gson's defaults, so the string matches the old serializers exactly.
+        writer.setHtmlSafe(true);
+        writer.setLenient(true);
+        write(writer, customer);
+        writer.flush();
+        return json.toString();
+    }
+
+    /**
+     * Reads the customer out of a string written by {@link #toJsonString(Customer)}.
+     * @param json customer as a JSON string.
+     * @return Customer or null if the string is empty or 'null'.
+     * @throws IOException 
+     */
+    Customer fromJsonString(String json) throws IOException
+    {
+        if (json == null || json.trim().isEmpty())
+        {
+            return null;
+        }
+        JsonReader reader = new JsonReader(new StringReader(json));
+        reader.setLenient(true);
+        return read(reader);
+    }
+
+    private static CustomerFieldTypes getFieldType(String name)
+    {
+        return fieldNames.get(name);
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Metro allows customers from any affiliate library to join any other member library.
+ *    Copyright (C) 2013  Edmonton Public Library
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301, USA.
+ *
+ */
+package json;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import java.io.IOException;
+import java.io.StringReader;
+import mecard.Request;
+import mecard.Response;
+import mecard.customer.Customer;
+
+/**
+ * Converts Metro's messages to and from JSON. Gson is thread safe, so one
+ * instance, with the streaming type adapters registered, is built once and
+ * shared by every connection.
+ * @author Andrew Nisbet <anisbet@epl.ca>
+ */
+public final class JsonCodec
+{
+    private final static Gson gson = new GsonBuilder()
+            .registerTypeAdapter(Request.class, new RequestTypeAdapter())
+            .registerTypeAdapter(Response.class, new ResponseTypeAdapter())
+            .registerTypeAdapter(Customer.class, new CustomerTypeAdapter())
+            .create();
+
+    private JsonCodec()
+    { }
+
+    /**
+     * 
+     * @param json request string from the client.
+     * @return Request object.
+     * @throws com.google.gson.JsonParseException if the string isn't a request.
+     */
+    public static Request toRequest(String json)
+    {
+        return gson.fromJson(json, Request.class);
+    }
+
+    /**
+     * 
+     * @param request
+     * @return request as a JSON string.
+     */
+    public static String toJson(Request request)
+    {
+        return gson.toJson(request, Request.class);
+    }
+
+    /**
+     * 
+     * @param json response string from Metro.
+     * @return Response object.
+     * @throws com.google.gson.JsonParseException if the string isn't a response.
+     */
+    public static Response toResponse(String json)
+    {
+        return gson.fromJson(json, Response.class);
+    }
+
+    /**
+     * 
+     * @param response
+     * @return response as a JSON string.
+     */
+    public static String toJson(Response response)
+    {
+        return gson.toJson(response, Response.class);
+    }
+
+    /**
+     * Reads just the requestId of a request, skipping everything else.
+     * @param json request string from the client.
+     * @return the id or an empty string if the request has none.
+     * @throws com.google.gson.JsonParseException if the string isn't a JSON object.
+     */
+    public static String getRequestId(String json)
+    {
+        JsonReader reader = new JsonReader(new StringReader(json));
+        reader.setLenient(true);
+        try
+        {
+            reader.beginObject();
+            while (reader.hasNext())
+            {
+                if (reader.nextName().equals("requestId")
+                    && (reader.peek() == JsonToken.STRING || reader.peek() == JsonToken.NUMBER))
+                {
+                    return reader.nextString();
+                }
+                reader.skipValue();
+            }
+            return "";
+        }
+        catch (IOException | IllegalStateException ex)
+        {
+            throw new JsonParseException(ex);
+        }
+    }
+
+    /**
+     * 
+     * @param json customer as JSON.
+     * @return Customer object.
+     */
+    public static Customer toCustomer(String json)
+    {
+        return gson.fromJson(json, Customer.class);
+    }
+
+    /**
+     * 
+     * @param customer
+     * @return customer as a JSON string.
+     */
+    public static String toJson(Customer customer)
+    {
+        return gson.toJson(customer, Customer.class);
+    }
+}
@@ -61,6 +61,10 @@ public class RequestDeserializer implements JsonDeserializer<Request>
         Reader data = new StringReader(jsonObject.get("customer").getAsString());
         Customer customer = gson.fromJson(data, Customer.class);
         request.setCustomer(customer);
+        if (jsonObject.has("requestId"))
+        {
+            request.setRequestId(jsonObject.get("requestId").getAsString());
+        }
         return request;
     }
 
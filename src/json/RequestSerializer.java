@@ -55,6 +55,11 @@ public class RequestSerializer implements JsonSerializer<Request>
         Gson gson = gsonBuilder.create();
         String jsonCustomer = gson.toJson(request.getCustomer());
         json.addProperty("customer", jsonCustomer);
+        // Only tagged requests carry an id so untagged clients see no change.
+        if (! request.getRequestId().isEmpty())
+        {
+            json.addProperty("requestId", request.getRequestId());
+        }
 //        System.out.println(">>>"+gson.toJson(request.getCustomer()));
         return json;
     }
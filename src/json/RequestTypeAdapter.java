@@ -0,0 +1,117 @@
+/*
+ * Metro allows customers from any affiliate library to join any other member library.
+ *    Copyright (C) 2013  Edmonton Public Library
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301, USA.
+ *
+ */
+package json;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import mecard.Protocol;
+import mecard.QueryTypes;
+import mecard.Request;
+
+/**
+ * Streams a {@link Request} to and from JSON without building a tree first.
+ * Version 1 messages are the same JSON as {@link RequestSerializer} and 
+ * {@link RequestDeserializer}; version 2 messages carry their version and nest
+ * the customer as an object. Either is accepted when reading.
+ * @author Andrew Nisbet <anisbet@epl.ca>
+ */
+public class RequestTypeAdapter extends TypeAdapter<Request>
+{
+    private final CustomerTypeAdapter customerAdapter = new CustomerTypeAdapter();
+
+    @Override
+    public void write(JsonWriter out, Request request) throws IOException
+    {
+        if (request == null)
+        {
+            out.nullValue();
+            return;
+        }
+        out.beginObject();
+        if (request.getVersion() >= Protocol.WIRE_VERSION_2)
+        {
+            out.name("version").value(request.getVersion());
+        }
+        out.name("code").value(request.getCommandType().name());
+        out.name("authorityToken").value(request.getTransactionId());
+        out.name("userId").value(request.getUserId());
+        out.name("pin").value(request.getUserPin());
+        customerAdapter.writeField(out, request.getCustomer(), request.getVersion());
+        if (request.hasRequestId())
+        {
+            out.name("requestId").value(request.getRequestId());
+        }
+        out.endObject();
+    }
+
+    @Override
+    public Request read(JsonReader in) throws IOException
+    {
+        if (in.peek() == JsonToken.NULL)
+        {
+            in.nextNull();
+            return null;
+        }
+        Request request = new Request();
+        in.beginObject();
+        while (in.hasNext())
+        {
+            String name = in.nextName();
+            if (in.peek() == JsonToken.NULL)
+            {
+                in.nextNull();
+                continue;
+            }
+            switch (name)
+            {
+                case "code":
+                    request.setCode(QueryTypes.valueOf(in.nextString()));
+                    break;
+                case "authorityToken":
+                    request.setAuthorityToken(in.nextString());
+                    break;
+                case "userId":
+                    request.setUserId(in.nextString());
+                    break;
+                case "pin":
+                    request.setPin(in.nextString());
+                    break;
+                case "customer":
+                    request.setCustomer(customerAdapter.readField(in));
+                    break;
+                case "version":
+                    request.setVersion(in.nextInt());
+                    break;
+                case "requestId":
+                    request.setRequestId(in.nextString());
+                    break;
+                default:
+                    in.skipValue();
+                    break;
+            }
+        }
+        in.endObject();
+        return request;
+    }
+}
@@ -59,6 +59,10 @@ public class ResponseDeserializer implements JsonDeserializer<Response>
         Reader data = new StringReader(jsonObject.get("customer").getAsString());
         Customer customer = gson.fromJson(data, Customer.class);
         request.setCustomer(customer);
+        if (jsonObject.has("requestId"))
+        {
+            request.setRequestId(jsonObject.get("requestId").getAsString());
+        }
         return request;
     }
 
@@ -51,6 +51,11 @@ public class ResponseSerializer implements JsonSerializer<Response>
         Gson gson = gsonBuilder.create();
         String jsonCustomer = gson.toJson(response.getCustomer());
         json.addProperty("customer", jsonCustomer);
+        // Only tagged requests carry an id so untagged clients see no change.
+        if (! response.getRequestId().isEmpty())
+        {
+            json.addProperty("requestId", response.getRequestId());
+        }
         return json;
     }
 
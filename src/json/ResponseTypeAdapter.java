@@ -0,0 +1,109 @@
+/*
+ * Metro allows customers from any affiliate library to join any other member library.
+ *    Copyright (C) 2013  Edmonton Public Library
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301, USA.
+ *
+ */
+package json;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import mecard.Protocol;
+import mecard.Response;
+import mecard.ResponseTypes;
+
+/**
+ * Streams a {@link Response} to and from JSON without building a tree first.
+ * Version 1 messages are the same JSON as {@link ResponseSerializer} and 
+ * {@link ResponseDeserializer}; version 2 messages carry their version and nest
+ * the customer as an object. Either is accepted when reading.
+ * @author Andrew Nisbet <anisbet@epl.ca>
+ */
+public class ResponseTypeAdapter extends TypeAdapter<Response>
+{
+    private final CustomerTypeAdapter customerAdapter = new CustomerTypeAdapter();
+
+    @Override
+    public void write(JsonWriter out, Response response) throws IOException
+    {
+        if (response == null)
+        {
+            out.nullValue();
+            return;
+        }
+        out.beginObject();
+        if (response.getVersion() >= Protocol.WIRE_VERSION_2)
+        {
+            out.name("version").value(response.getVersion());
+        }
+        out.name("code").value(response.getCode().name());
+        out.name("responseMessage").value(response.getMessage());
+        customerAdapter.writeField(out, response.getCustomer(), response.getVersion());
+        if (! response.getRequestId().isEmpty())
+        {
+            out.name("requestId").value(response.getRequestId());
+        }
+        out.endObject();
+    }
+
+    @Override
+    public Response read(JsonReader in) throws IOException
+    {
+        if (in.peek() == JsonToken.NULL)
+        {
+            in.nextNull();
+            return null;
+        }
+        Response response = new Response();
+        in.beginObject();
+        while (in.hasNext())
+        {
+            String name = in.nextName();
+            if (in.peek() == JsonToken.NULL)
+            {
+                in.nextNull();
+                continue;
+            }
+            switch (name)
+            {
+                case "code":
+                    response.setCode(ResponseTypes.valueOf(in.nextString()));
+                    break;
+                case "responseMessage":
+                    response.setResponse(in.nextString());
+                    break;
+                case "customer":
+                    response.setCustomer(customerAdapter.readField(in));
+                    break;
+                case "version":
+                    response.setVersion(in.nextInt());
+                    break;
+                case "requestId":
+                    response.setRequestId(in.nextString());
+                    break;
+                default:
+                    in.skipValue();
+                    break;
+            }
+        }
+        in.endObject();
+        return response;
+    }
+}
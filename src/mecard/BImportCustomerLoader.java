@@ -24,23 +24,42 @@ import api.APICommand;
 import api.Command;
 import api.CommandStatus;
 import api.DummyCommand;
+import api.LineListener;
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import mecard.config.BImportPropertyTypes;
+import mecard.config.BImportTableTypes;
+import mecard.config.ConfigFileTypes;
 import mecard.config.PropertyReader;
 import mecard.customer.BImportBat;
-import mecard.customer.UserFile;
 import mecard.exception.BImportException;
 import mecard.requestbuilder.BImportRequestBuilder;
 import static mecard.requestbuilder.BImportRequestBuilder.FILE_NAME_PREFIX;
 import mecard.util.BImportResultParser;
+import mecard.util.ThreadRunner;
 import org.apache.commons.cli.BasicParser;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -50,7 +69,16 @@ import org.apache.commons.cli.ParseException;
 /**
  * This class queues the bimport customers and, run as a timed process, will load 
  * all the customers found in the Customer directory since the last time it ran.
- * This is done because bimport cannot be run concurrently.
+ * This is done because bimport cannot be run concurrently, so every load holds
+ * a lock on the metro-load.lock file, by default in the load directory. The
+ * lock goes when the process does, so a crashed load never blocks the next.
+ * Metro can also run loads itself, see {@link BImportLoadScheduler}. It always
+ * locks the load directory, so while it is on -p is ignored.
+ * <p>
+ * A large backlog can be split into load-partitions bimport files, each 
+ * loaded by its own bimport, load-parallel of them at a time, if the Horizon
+ * database tolerates it. A bad record then only spoils its own partition's
+ * report. Both are optional bimport.properties entries and default to 1.
  * java -cp MeCard.jar mecard.BImportCustomerLoader
  * @author Andrew Nisbet <anisbet@epl.ca>
  */
@@ -70,7 +98,7 @@ public class BImportCustomerLoader
         // add v option v for server version.
         options.addOption("v", false, "Metro server version information.");
         options.addOption("U", false, "Execute upload of customer accounts, otherwise just cleans up the directory.");
-        options.addOption("p", true, "Path to PID file. If present back off and wait for reschedule customer load.");
+        options.addOption("p", true, "Directory of the lock file, the load directory by default, and always when Metro loads customers itself (load-delay). If another load holds the lock back off and wait for reschedule customer load.");
         try
         {
             // parse the command line.
@@ -86,28 +114,25 @@ public class BImportCustomerLoader
             {
                 uploadCustomers = true;
             }
-            if (cmd.hasOption("p")) // location of the pidFile, default is current directory (relative to jar location).
+             // get c option value
+            String configDirectory = cmd.getOptionValue("c");
+            PropertyReader.setConfigDirectory(configDirectory);
+            String lockDir = getLockDir(cmd.getOptionValue("p"));
+            // Should we run, if another load holds the lock back out without doing anything.
+            FileLock lock = getLock(lockDir);
+            if (lock == null)
             {
-                pidDir = cmd.getOptionValue("p");
+                System.out.println(new Date() + " another customer load is running, try again later.");
+                return;
             }
-            // Should we run, if there is a pid back out without doing anything.
-            File lock;
-            if ((lock = getLockFile()) == null)
+            try
             {
-                return;
+                BImportCustomerLoader loader = new BImportCustomerLoader();
+                loader.run();
             }
-            
-             // get c option value
-            String configDirectory = cmd.getOptionValue("c");
-            PropertyReader.setConfigDirectory(configDirectory);
-            BImportCustomerLoader loader = new BImportCustomerLoader();
-            loader.run();
-            if (! lock.delete())
+            finally
             {
-                String msg = new Date() + "unable to delete " + lock.getAbsolutePath() 
-                        + ", other loads won't run until this is removed. "
-                        + "Check for runaway bimport processes.";
-                Logger.getLogger(MetroService.class.getName()).log(Level.WARNING, msg);
+                release(lock);
             }
         } 
         catch (ParseException ex)
@@ -120,33 +145,118 @@ public class BImportCustomerLoader
 
     /**
      * 
-     * @return null if there is a bimport process running and a new lock file otherwise.
+     * @param requested directory from -p, or null.
+     * @return directory of the lock file. Metro's own loads lock the load 
+     * directory, so that is used while they are on, whatever -p says.
      */
-    protected static File getLockFile()
+    static String getLockDir(String requested)
     {
-        if (pidDir.endsWith(File.separator) == false)
+        String loadDir = getLoadDir();
+        if (requested == null)
         {
-            pidDir += File.separator;
+            return loadDir;
         }
-        // now test if there is a pid file and if so, exit because another 
-        // process is using bimport.
-        if (new File(pidDir + pidFile).exists())
+        if (BImportLoadScheduler.isConfigured() 
+                && ! new File(requested).getAbsoluteFile().equals(new File(loadDir).getAbsoluteFile()))
         {
-            return null;
+            System.out.println(new Date() + " Metro loads customers itself (load-delay), locking '" 
+                    + loadDir + "' instead of '" + requested + "'.");
+            return loadDir;
+        }
+        return requested;
+    }
+
+    /**
+     * 
+     * @return the load-dir from bimport.properties.
+     */
+    static String getLoadDir()
+    {
+        return PropertyReader.getProperties(ConfigFileTypes.BIMPORT)
+                .getProperty(BImportPropertyTypes.LOAD_DIR.toString(), ".");
+    }
+
+    /**
+     * Takes the load lock, which the operating system releases if this 
+     * process dies.
+     * @param lockDir directory of the lock file.
+     * @return null if another load holds the lock, and the lock otherwise.
+     */
+    protected static FileLock getLock(String lockDir)
+    {
+        File lockFile = new File(lockDir, LOCK_FILE);
+        FileChannel channel = null;
+        try
+        {
+            channel = new RandomAccessFile(lockFile, "rw").getChannel();
+            FileLock lock = channel.tryLock();
+            if (lock != null)
+            {
+                return lock;
+            }
+        }
+        catch (OverlappingFileLockException ex)
+        {
+            // Another load in this JVM has it.
+        }
+        catch (IOException ex)
+        {
+            System.out.println(new Date() + " unable to lock '" + lockFile.getAbsolutePath() 
+                    + "': " + ex.getMessage());
+        }
+        close(channel);
+        return null;
+    }
+
+    /**
+     * Releases a lock from {@link #getLock(java.lang.String)}.
+     * @param lock the lock.
+     */
+    protected static void release(FileLock lock)
+    {
+        try
+        {
+            lock.release();
+        }
+        catch (IOException ex)
+        {
+            System.out.println(new Date() + " unable to release load lock: " + ex.getMessage());
+        }
+        close(lock.channel());
+    }
+
+    private static void close(FileChannel channel)
+    {
+        if (channel == null)
+        {
+            return;
+        }
+        try
+        {
+            channel.close();
+        }
+        catch (IOException ex)
+        {
+            System.out.println(new Date() + " unable to close load lock: " + ex.getMessage());
         }
-        UserFile pid = new UserFile(pidDir + pidFile);
-        pid.addUserData(new ArrayList<String>());
-        return new File(pidDir + pidFile);
     }
 
     private BImportLoadRequestBuilder loadRequestBuilder;
     private static boolean uploadCustomers = false;
-    private static String pidDir           = ".";
-    private static final String pidFile    = "metro-load.pid";
+    public static final String LOCK_FILE   = "metro-load.lock";
+    public final static String PARTITIONS_TAG = "load-partitions";
+    public final static String PARALLEL_TAG   = "load-parallel";
+    // Such as the 'M- ' in front of a customer's first table.
+    private final static Pattern CHANGE_MARKER = Pattern.compile("^[A-Za-z]-\\s*");
+    private final int partitions;
+    private final int parallel;
     
     public BImportCustomerLoader()
     {
         this.loadRequestBuilder = new BImportLoadRequestBuilder(true);
+        Properties props = PropertyReader.getProperties(ConfigFileTypes.BIMPORT);
+        this.partitions = Math.max(1, getInt(props, PARTITIONS_TAG, 1));
+        this.parallel   = Math.max(1, getInt(props, PARALLEL_TAG, 1));
     }
     
     /**
@@ -157,23 +267,172 @@ public class BImportCustomerLoader
      * names and are never removed in this process.
      */
     public void run()
+    {
+        run(uploadCustomers, 0L);
+    }
+
+    /**
+     * Runs the BImport load and cleans the directory.
+     * @param upload true to run bimport, false to just gather the files.
+     * @param settleMillis customer files changed more recently than this 
+     * many milliseconds ago may still be being written, and are left for 
+     * the next load.
+     * @return the files that were loaded, or replaced by a newer record.
+     */
+    List<String> run(boolean upload, long settleMillis)
     {
         // This process needs to run to format the user data
         List<String> fileList = getFileList(
                 this.loadRequestBuilder.getLoadDir(), 
                 BImportRequestBuilder.DATA_FILE);
-        Command command = this.loadRequestBuilder.loadCustomers(fileList);
-        if (uploadCustomers)
+        if (settleMillis > 0L)
+        {
+            long settled = System.currentTimeMillis() - settleMillis;
+            for (int i = fileList.size() - 1; i >= 0; i--)
+            {
+                if (new File(fileList.get(i)).lastModified() > settled)
+                {
+                    fileList.remove(i);
+                }
+            }
+        }
+        // A customer who changed their account twice since the last load only needs the last.
+        List<String> superseded = new ArrayList<>();
+        fileList = compact(fileList, superseded);
+        if (! superseded.isEmpty())
         {
-            // But only run the command if the user requests.
-            CommandStatus status = command.execute();
-            this.loadRequestBuilder.isSuccessful(null, status, null);
-            String rpt = new Date() + " LOAD_STDOUT:" + status.getStdout() 
-                    + "\r\n LOAD_STDERR:" + status.getStderr() + "\r\n";
-            Logger.getLogger(MetroService.class.getName()).log(Level.INFO, rpt);
-            System.out.println(rpt);
+            System.out.println(new Date() + " collapsed " + superseded.size() 
+                    + " older customer record(s): " + superseded);
+        }
+        List<List<String>> parts = partition(fileList, this.partitions);
+        List<BImportLoadRequestBuilder> builders = new ArrayList<>();
+        List<Command> commands = new ArrayList<>();
+        fileList = new ArrayList<>(superseded);
+        for (int i = 0; i < parts.size(); i++)
+        {
+            BImportLoadRequestBuilder builder = (i == 0) ? this.loadRequestBuilder 
+                    : new BImportLoadRequestBuilder(true, i);
+            commands.add(builder.loadCustomers(parts.get(i)));
+            // Only files whose contents made it into a bimport file are removed.
+            fileList.addAll(builder.getConsumedFiles());
+            builders.add(builder);
+        }
+        if (upload)
+        {
+            // But only run the commands if the user requests.
+            List<CommandStatus> results = execute(commands);
+            BImportResultParser report = new BImportResultParser(null);
+            for (int i = 0; i < results.size(); i++)
+            {
+                CommandStatus status = results.get(i);
+                report.add(builders.get(i).getResults(status));
+                String rpt = new Date() + " LOAD_STDOUT:" + status.getStdout() 
+                        + "\r\n LOAD_STDERR:" + status.getStderr() + "\r\n";
+                Logger.getLogger(MetroService.class.getName()).log(Level.INFO, rpt);
+                System.out.println(rpt);
+            }
+            System.out.println(new Date() + " " + report.toString()
+                    + (results.size() > 1 ? " in " + results.size() + " partitions" : ""));
         }
         clean(fileList); // get rid of the bat files. All contents are in the main data file.
+        return fileList;
+    }
+   
+    /**
+     * Runs the bimport commands, up to load-parallel at a time.
+     * @param commands one command per partition.
+     * @return each command's status, in the same order.
+     */
+    private List<CommandStatus> execute(List<Command> commands)
+    {
+        List<CommandStatus> results = new ArrayList<>();
+        int threads = Math.min(this.parallel, commands.size());
+        if (threads <= 1)
+        {
+            for (Command command: commands)
+            {
+                results.add(command.execute());
+            }
+            return results;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(threads, 
+                new ThreadRunner.RunnerThreadFactory("MetroBImportPartition"));
+        try
+        {
+            List<Future<CommandStatus>> futures = new ArrayList<>();
+            for (final Command command: commands)
+            {
+                futures.add(executor.submit(new Callable<CommandStatus>()
+                {
+                    @Override
+                    public CommandStatus call()
+                    {
+                        return command.execute();
+                    }
+                }));
+            }
+            for (Future<CommandStatus> future: futures)
+            {
+                results.add(future.get());
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new BImportException(BImportCustomerLoader.class.getName()
+                    + " interrupted while waiting for bimport.");
+        }
+        catch (ExecutionException ex)
+        {
+            throw new BImportException(BImportCustomerLoader.class.getName()
+                    + " bimport failed: " + ex.getCause().getMessage());
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+        return results;
+    }
+
+    /**
+     * Splits the files into partitions of nearly equal size, keeping their
+     * order.
+     * @param files customer data files.
+     * @param count number of partitions wanted.
+     * @return at least one partition, and none that are empty unless there 
+     * are no files.
+     */
+    static List<List<String>> partition(List<String> files, int count)
+    {
+        List<List<String>> parts = new ArrayList<>();
+        count = Math.max(1, Math.min(count, files.size()));
+        int start = 0;
+        for (int i = 0; i < count; i++)
+        {
+            int size = files.size() / count + (i < files.size() % count ? 1 : 0);
+            parts.add(new ArrayList<>(files.subList(start, start + size)));
+            start += size;
+        }
+        return parts;
+    }
+
+    private static int getInt(Properties props, String tag, int defaultValue)
+    {
+        String value = props.getProperty(tag);
+        if (value == null)
+        {
+            return defaultValue;
+        }
+        try
+        {
+            return Integer.parseInt(value.trim());
+        }
+        catch (NumberFormatException ex)
+        {
+            System.out.println(new Date() + " '" + tag + "' must be a number, using "
+                    + defaultValue + ".");
+            return defaultValue;
+        }
     }
    
     /**
@@ -214,15 +473,176 @@ public class BImportCustomerLoader
         }
     }
     
+    /**
+     * Keeps only the newest queued record for each customer. Records are 
+     * matched on the second_id of their borrower table, and the newest is 
+     * the file modified last. Files without a borrower table are kept.
+     * @param files customer data files with fully-qualified path.
+     * @param superseded gets the names of files replaced by a newer record
+     * for the same customer.
+     * @return files to load, in their original order.
+     */
+    static List<String> compact(List<String> files, List<String> superseded)
+    {
+        Map<String, String> newest = new HashMap<>();
+        for (String file: files)
+        {
+            String key = getCustomerKey(file);
+            if (key.isEmpty())
+            {
+                continue;
+            }
+            String other = newest.get(key);
+            if (other == null)
+            {
+                newest.put(key, file);
+            }
+            else if (new File(file).lastModified() >= new File(other).lastModified())
+            {
+                newest.put(key, file);
+                superseded.add(other);
+            }
+            else
+            {
+                superseded.add(file);
+            }
+        }
+        List<String> compacted = new ArrayList<>(files);
+        compacted.removeAll(superseded);
+        return compacted;
+    }
+
+    /**
+     * Reads a customer data file's borrower second_id. Columns are written in
+     * name order by {@link mecard.customer.BImportTable}, so second_id is the 
+     * borrower table's last column. The first line of a customer carries a 
+     * change marker, like 'M- ', which is skipped.
+     * @param file customer data file.
+     * @return the customer's second_id or an empty string if there isn't one.
+     */
+    static String getCustomerKey(String file)
+    {
+        String table = BImportTableTypes.BORROWER_TABLE.toString() + ": ";
+        try (BufferedReader in = new BufferedReader(new FileReader(file)))
+        {
+            String line;
+            while ((line = in.readLine()) != null)
+            {
+                line = CHANGE_MARKER.matcher(line).replaceFirst("");
+                if (line.startsWith(table))
+                {
+                    return line.substring(Math.max(table.length(), line.lastIndexOf("; ") + 2)).trim();
+                }
+            }
+        }
+        catch (IOException ex)
+        {
+            // Can't be compared, concatenate() will report it if it can't be loaded either.
+        }
+        return "";
+    }
+
+    /**
+     * Appends the argument files to the target file, a byte for byte copy 
+     * made by the file system that never passes through the heap, so a 
+     * backlog of any size loads in constant memory. The target is sized for
+     * all the files up front. A file that doesn't end with a new line gets
+     * a "\r\n" so the next customer starts on a line of its own.
+     * @param files customer data files with fully-qualified path.
+     * @param target file to write, replaced if it exists.
+     * @param consumed gets the names of files whose contents were written. 
+     * Missing files, and files that couldn't be read in full, are left out
+     * and leave nothing behind in the target.
+     * @return number of bytes written.
+     * @throws IOException if the target can't be written.
+     */
+    static long concatenate(List<String> files, File target, List<String> consumed)
+            throws IOException
+    {
+        long size = 0L;
+        for (String file: files)
+        {
+            size += new File(file).length() + 2L;
+        }
+        ByteBuffer lastByte = ByteBuffer.allocate(1);
+        ByteBuffer newLine  = ByteBuffer.wrap(new byte[] {'\r', '\n'});
+        try (RandomAccessFile output = new RandomAccessFile(target, "rw"))
+        {
+            output.setLength(size);
+            FileChannel out = output.getChannel();
+            long position = 0L;
+            for (String file: files)
+            {
+                try (FileInputStream input = new FileInputStream(file))
+                {
+                    FileChannel in = input.getChannel();
+                    long length = in.size();
+                    long copied = 0L;
+                    while (copied < length)
+                    {
+                        long count = in.transferTo(copied, length - copied, out.position(position + copied));
+                        if (count <= 0L)
+                        {
+                            throw new IOException("'" + file + "' shrank while it was being read.");
+                        }
+                        copied += count;
+                    }
+                    if (length > 0L)
+                    {
+                        lastByte.clear();
+                        in.read(lastByte, length - 1L);
+                        if (lastByte.get(0) != '\n')
+                        {
+                            newLine.rewind();
+                            out.write(newLine, position + copied);
+                            copied += 2L;
+                        }
+                    }
+                    position += copied;
+                    consumed.add(file);
+                }
+                catch (FileNotFoundException ex)
+                {
+                    // a file may be missing but keep checking the others.
+                    System.out.println("'" + file + "' not found.");
+                }
+                catch (IOException ex)
+                {
+                    // Leave the file for the next load, what was copied is overwritten.
+                    Logger.getLogger(BImportCustomerLoader.class.getName()).log(Level.SEVERE, 
+                            "unable to read '" + file + "'", ex);
+                }
+            }
+            out.truncate(position);
+            return position;
+        }
+    }
+
     /**
      * This class is a specialization of BImportRequestBuilder whose job it is
      * to load 
      */
     final class BImportLoadRequestBuilder extends BImportRequestBuilder
     {
+        private final List<String> consumed = new ArrayList<>();
+        private final int partition;
+        private BImportResultParser results;
+
         public BImportLoadRequestBuilder(boolean b)
+        {
+            this(b, 0);
+        }
+
+        /**
+         * 
+         * @param b debug.
+         * @param partition number of the partition this builder loads, which
+         * names its bimport file.
+         */
+        BImportLoadRequestBuilder(boolean b, int partition)
         {
             super(b);
+            this.partition = partition;
             // compute header and data file names.
             if (loadDir.endsWith(File.separator) == false)
             {
@@ -236,7 +656,8 @@ public class BImportCustomerLoader
             long longTime = today.getTime();
             batFile    = loadDir + FILE_NAME_PREFIX + "template" + BAT_FILE;
             headerFile = loadDir + FILE_NAME_PREFIX + "template" + HEADER_FILE;
-            dataFile   = loadDir + FILE_NAME_PREFIX + longTime + DATA_FILE_BIMPORT;
+            dataFile   = loadDir + FILE_NAME_PREFIX + longTime 
+                    + (partition > 0 ? "-" + partition : "") + DATA_FILE_BIMPORT;
         }
         
         /**
@@ -262,17 +683,27 @@ public class BImportCustomerLoader
                 throw new BImportException(BImportRequestBuilder.class.getName()
                         + " Failed to find header file: '" + headerFile + "'.");
             }
-            List<String> customersData = getCustomerData(files);
+            File bimportDataFile = new File(dataFile);
+            long bytes;
+            try
+            {
+                bytes = writeCustomerData(files, bimportDataFile);
+            }
+            catch (IOException ex)
+            {
+                throw new BImportException(BImportRequestBuilder.class.getName()
+                        + " Failed to write data file: '" + dataFile + "'. " + ex.getMessage());
+            }
             // if there were no customers to load return a command that does nothing.
-            if (customersData.isEmpty())
+            if (bytes == 0L)
             {
+                this.results = null;
+                bimportDataFile.delete();
                 return new DummyCommand.Builder()
                 .setStatus(0)
                 .setStdout(BImportRequestBuilder.SUCCESS_MARKER.toString())
                 .build(); // empty command always returns success
             }
-            UserFile bimportDataFile = new UserFile(dataFile);
-            bimportDataFile.addUserData(customersData);
             // Ok the goal is to get the path to the batch file here with the name.
             // Don't include a file name to just use the command line without creating a file.
 //            BImportBat batch = new BImportBat.Builder(batFile)
@@ -287,61 +718,53 @@ public class BImportCustomerLoader
                     .build();
             List<String> bimportBatExec = new ArrayList<>();
             batch.getCommandLine(bimportBatExec);
-            Command command = new APICommand.Builder().commandLine(bimportBatExec).build();
+            // Fail files are written as bimport reports each failed customer.
+            this.results = new BImportResultParser(loadDir);
+            // The report isn't kept, so each line is logged as it is parsed.
+            final String tag = " LOAD_STDOUT" + (this.partition > 0 ? "-" + this.partition : "") + ":";
+            LineListener logger = new LineListener()
+            {
+                @Override
+                public void onLine(String line)
+                {
+                    String rpt = new Date() + tag + line;
+                    Logger.getLogger(MetroService.class.getName()).log(Level.INFO, rpt);
+                    System.out.println(rpt);
+                    results.onLine(line);
+                }
+            };
+            // A batch load may take a long time, it isn't subject to command-timeout.
+            Command command = new APICommand.Builder()
+                    .commandLine(bimportBatExec)
+                    .stdout(logger)
+                    .timeout(0L)
+                    .build();
             return command;
         }
 
         /**
-         * Takes a list of files and concatenates the contents of all files into
-         * a big single bimport file.
+         * Concatenates the contents of all the files into the big single 
+         * bimport file.
          * @param files list of customer data files with fully-qualified path.
-         * @return List of the contents of all the files in argument files.
+         * @param bimportDataFile the bimport data file.
+         * @return number of bytes of customer data written.
+         * @throws IOException if the bimport file can't be written.
          */
-        protected List<String> getCustomerData(List<String> files)
+        protected long writeCustomerData(List<String> files, File bimportDataFile)
+                throws IOException
         {
-            // for each file open it get the lines append them to the big list and close
-            List<String> bigListOfAllCustomerData = new ArrayList<>();
-            for (String file: files)
-            {
-                BufferedReader br = null;
-                try 
-                {
-                    File f = new File(file);
-                    if (! f.exists())
-                    {
-                        continue;
-                    }
-                    br = new BufferedReader(new FileReader(f));
-                    String line;
-                    // add all the lines.
-                    while ((line = br.readLine()) != null) 
-                    {
-                       bigListOfAllCustomerData.add(line + "\r\n");
-                    }
-                    br.close();
-                } 
-                catch (FileNotFoundException ex)
-                {
-                    // a file may be missing but keep checking the others.
-                    System.out.println("'" + file + "' not found.");
-                    continue;
-                } 
-                catch (IOException ex)
-                {
-                    Logger.getLogger(BImportCustomerLoader.class.getName()).log(Level.SEVERE, null, ex);
-                } 
-                finally
-                {
-                    try
-                    {
-                        br.close();
-                    } catch (IOException | NullPointerException ex)
-                    {
-                        return bigListOfAllCustomerData;
-                    }
-                }
-            }
-            return bigListOfAllCustomerData;
+            this.consumed.clear();
+            return concatenate(files, bimportDataFile, this.consumed);
+        }
+
+        /**
+         * 
+         * @return names of the files whose contents went into the last 
+         * bimport file.
+         */
+        final List<String> getConsumedFiles()
+        {
+            return new ArrayList<>(this.consumed);
         }
         
         @Override
@@ -350,20 +773,23 @@ public class BImportCustomerLoader
             // the commandType doesn't matter and could be null, as could the response
             // since this object doesn't respond to anything.
             // This class will create a list of problematic customer files from 
-            // bimport's output.
-            BImportResultParser parser = new BImportResultParser(status.getStdout(), loadDir);
-            List<String> failedCustomerIds = parser.getFailedCustomerKeys();
-            // for all the failed customers output a fail file.
-            for (String userId: failedCustomerIds)
+            // bimport's output, as bimport writes it.
+            BImportResultParser parser = getResults(status);
+            return parser.getFailedCustomers() == 0;
+        }
+
+        /**
+         * 
+         * @param status status of the last command from {@link #loadCustomers(List)}.
+         * @return results of the last load.
+         */
+        final BImportResultParser getResults(CommandStatus status)
+        {
+            if (this.results == null)
             {
-                UserFile touchKey = new UserFile(this.loadDir + userId + ".fail");
-//                UserFile touchKey = new UserFile("logs" + File.separator + userId + ".fail"); // NOT working.
-                List<String> statusList = new ArrayList<>();
-                statusList.add(status.getStdout());
-                statusList.add(status.getStderr());
-                touchKey.addUserData(statusList);
+                return new BImportResultParser(status.getStdout(), loadDir);
             }
-            return parser.getFailedCustomers() == 0;
+            return this.results;
         }
 
         /**
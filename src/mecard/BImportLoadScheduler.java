@@ -0,0 +1,401 @@
+/*
+ * Metro allows customers from any affiliate library to join any other member library.
+ *    Copyright (C) 2013  Edmonton Public Library
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301, USA.
+ *
+ */
+package mecard;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileLock;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import mecard.config.ConfigFileTypes;
+import mecard.config.LibraryPropertyTypes;
+import mecard.config.PropertyReader;
+import mecard.requestbuilder.BImportRequestBuilder;
+import mecard.requestbuilder.ResponderMethodTypes;
+import mecard.util.ThreadRunner;
+
+/**
+ * Loads BImport customers from inside Metro, within seconds of their files
+ * arriving, instead of waiting for an external scheduler to run
+ * {@link BImportCustomerLoader}.
+ * <p>
+ * A thread watches the load directory for customer data files. Once
+ * load-files files are waiting, or the first of them has waited load-delay 
+ * milliseconds, a load is run on a single writer thread, so there is never
+ * more than one bimport at a time. Loads take the same lock as 
+ * BImportCustomerLoader, so an external scheduler can still be used
+ * alongside; if it holds the lock the load is tried again after the delay.
+ * The lock is in the load directory, so while load-delay is set 
+ * BImportCustomerLoader ignores a -p that points anywhere else.
+ * Files changed in the last second are left for the next load in case they
+ * are still being written. Files already waiting when Metro starts are 
+ * loaded after the delay.
+ * <p>
+ * Only runs if creates go to BImport. Optional environment.properties entries:
+ * <pre>
+ * &lt;entry key="load-delay"&gt;10000&lt;/entry&gt; milliseconds, 0, the default, leaves loads to an external scheduler.
+ * &lt;entry key="load-files"&gt;20&lt;/entry&gt;
+ * </pre>
+ * @author Andrew Nisbet <anisbet@epl.ca>
+ */
+public final class BImportLoadScheduler implements Runnable
+{
+    public final static String DELAY_TAG = "load-delay";
+    public final static String FILES_TAG = "load-files";
+    private final static int DEFAULT_FILES = 20;
+    // Files younger than this may still be being written.
+    private final static long SETTLE_MILLIS = 1000L;
+    private static BImportLoadScheduler instance;
+
+    private final Path loadDir;
+    private final long delay;
+    private final int maxFiles;
+    private final WatchService watcher;
+    private final ExecutorService writer;
+    private final Runnable loader;
+    private final Set<String> pending;
+    private final AtomicLong loadCount;
+    private long firstPending;
+    private boolean loading;
+    private volatile boolean running;
+    private Thread watchThread;
+
+    /**
+     * Starts the shared scheduler if creates go to BImport and load-delay is
+     * set.
+     * @return the scheduler, or null if loads are left to an external scheduler.
+     */
+    public static synchronized BImportLoadScheduler start()
+    {
+        if (instance != null)
+        {
+            return instance;
+        }
+        if (! isConfigured())
+        {
+            return null;
+        }
+        Properties props = PropertyReader.getProperties(ConfigFileTypes.ENVIRONMENT);
+        long delay = getLong(props, DELAY_TAG, 0L);
+        try
+        {
+            instance = new BImportLoadScheduler(Paths.get(BImportCustomerLoader.getLoadDir()),
+                    delay, (int) getLong(props, FILES_TAG, DEFAULT_FILES), new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            List<String> loaded = new BImportCustomerLoader().run(true, SETTLE_MILLIS);
+                            System.out.println(new Date() + " loaded " + loaded.size() + " customer files.");
+                        }
+                    });
+            instance.startWatching();
+        }
+        catch (IOException ex)
+        {
+            System.out.println(new Date() + " unable to watch the customer load directory, "
+                    + "loads are left to an external scheduler: " + ex.getMessage());
+            instance = null;
+            return null;
+        }
+        System.out.println(new Date() + " loading customers " + delay + "ms after they arrive, or every "
+                + instance.maxFiles + " customers.");
+        return instance;
+    }
+
+    /**
+     * 
+     * @return true if creates go to BImport and load-delay is set, that is,
+     * Metro loads customers itself.
+     */
+    public static boolean isConfigured()
+    {
+        Properties props = PropertyReader.getProperties(ConfigFileTypes.ENVIRONMENT);
+        String createService = props.getProperty(LibraryPropertyTypes.CREATE_SERVICE.toString(), "");
+        return getLong(props, DELAY_TAG, 0L) > 0L 
+                && createService.equalsIgnoreCase(ResponderMethodTypes.BIMPORT.toString());
+    }
+
+    /**
+     *
+     * @return the running scheduler or null if there isn't one.
+     */
+    public static synchronized BImportLoadScheduler getInstanceOf()
+    {
+        return instance;
+    }
+
+    /**
+     * Stops the shared scheduler if it is running, letting a load in 
+     * progress finish.
+     */
+    public static synchronized void stop()
+    {
+        if (instance != null)
+        {
+            instance.shutdown();
+            instance = null;
+        }
+    }
+
+    /**
+     * 
+     * @param loadDir directory customer data files arrive in.
+     * @param delay milliseconds the first waiting file waits before a load.
+     * @param maxFiles number of waiting files that starts a load straight away.
+     * @param loader loads the customers, run with the load lock held.
+     * @throws IOException if the directory can't be watched.
+     */
+    BImportLoadScheduler(Path loadDir, long delay, int maxFiles, Runnable loader) 
+            throws IOException
+    {
+        this.loadDir   = loadDir;
+        this.delay     = delay;
+        this.maxFiles  = Math.max(1, maxFiles);
+        this.watcher   = FileSystems.getDefault().newWatchService();
+        this.writer    = Executors.newSingleThreadExecutor(
+                new ThreadRunner.RunnerThreadFactory("MetroBImportLoad"));
+        this.loader    = loader;
+        this.pending   = new HashSet<>();
+        this.loadCount = new AtomicLong();
+        this.loadDir.register(this.watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+    }
+
+    void startWatching()
+    {
+        this.running = true;
+        // Pick up what arrived while Metro wasn't running.
+        rescan();
+        this.watchThread = ThreadRunner.newThread(this, "MetroBImportWatch");
+        this.watchThread.start();
+    }
+
+    void shutdown()
+    {
+        this.running = false;
+        try
+        {
+            this.watcher.close();
+        }
+        catch (IOException ex)
+        {
+            System.out.println(new Date() + " unable to stop watching the load directory: " + ex.getMessage());
+        }
+        this.writer.shutdown();
+    }
+
+    @Override
+    public void run()
+    {
+        while (this.running)
+        {
+            try
+            {
+                WatchKey key = this.watcher.poll(getWait(), TimeUnit.MILLISECONDS);
+                if (key != null)
+                {
+                    for (WatchEvent<?> event: key.pollEvents())
+                    {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+                        {
+                            rescan();
+                        }
+                        else
+                        {
+                            addPending(event.context().toString());
+                        }
+                    }
+                    key.reset();
+                }
+                startLoadIfDue();
+            }
+            catch (InterruptedException | ClosedWatchServiceException ex)
+            {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 
+     * @return milliseconds until the waiting files are due, or the delay 
+     * if nothing is waiting.
+     */
+    private synchronized long getWait()
+    {
+        if (this.pending.isEmpty() || this.loading)
+        {
+            return this.delay;
+        }
+        return Math.max(1L, this.firstPending + this.delay - System.currentTimeMillis());
+    }
+
+    private synchronized void addPending(String fileName)
+    {
+        if (! fileName.endsWith(BImportRequestBuilder.DATA_FILE))
+        {
+            return;
+        }
+        if (this.pending.isEmpty())
+        {
+            this.firstPending = System.currentTimeMillis();
+        }
+        this.pending.add(fileName);
+    }
+
+    /**
+     * Makes every customer data file in the load directory a waiting file.
+     */
+    private void rescan()
+    {
+        File[] files = this.loadDir.toFile().listFiles();
+        if (files == null)
+        {
+            return;
+        }
+        for (File file: files)
+        {
+            addPending(file.getName());
+        }
+    }
+
+    /**
+     * Hands a load to the writer if enough files are waiting, or the first
+     * has waited long enough, and no load is running.
+     */
+    synchronized void startLoadIfDue()
+    {
+        if (this.loading || this.pending.isEmpty())
+        {
+            return;
+        }
+        if (this.pending.size() < this.maxFiles 
+                && System.currentTimeMillis() - this.firstPending < this.delay)
+        {
+            return;
+        }
+        this.loading = true;
+        this.pending.clear();
+        this.writer.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                load();
+            }
+        });
+    }
+
+    /**
+     * Loads the waiting customers, runs on the writer thread.
+     */
+    private void load()
+    {
+        try
+        {
+            FileLock lock = BImportCustomerLoader.getLock(this.loadDir.toString());
+            if (lock == null)
+            {
+                System.out.println(new Date() + " another customer load is running, trying again in "
+                        + this.delay + "ms.");
+                return;
+            }
+            try
+            {
+                this.loader.run();
+                this.loadCount.incrementAndGet();
+            }
+            finally
+            {
+                BImportCustomerLoader.release(lock);
+            }
+        }
+        catch (RuntimeException ex)
+        {
+            System.out.println(new Date() + " customer load failed, trying again in "
+                    + this.delay + "ms: " + ex.getMessage());
+        }
+        finally
+        {
+            synchronized (this)
+            {
+                this.loading = false;
+                // Whatever is left, new or not loaded, waits for the next load.
+                this.pending.clear();
+                this.firstPending = System.currentTimeMillis();
+                rescan();
+            }
+        }
+    }
+
+    /**
+     * 
+     * @return number of customer files waiting to be loaded.
+     */
+    synchronized int getPendingCount()
+    {
+        return this.pending.size();
+    }
+
+    /**
+     * 
+     * @return number of loads run.
+     */
+    long getLoadCount()
+    {
+        return this.loadCount.get();
+    }
+
+    private static long getLong(Properties props, String tag, long defaultValue)
+    {
+        String value = props.getProperty(tag);
+        if (value == null)
+        {
+            return defaultValue;
+        }
+        try
+        {
+            return Long.parseLong(value.trim());
+        }
+        catch (NumberFormatException ex)
+        {
+            System.out.println(new Date() + " '" + tag + "' must be a number, using "
+                    + defaultValue + ".");
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,349 @@
+/*
+ * Metro allows customers from any affiliate library to join any other member library.
+ *    Copyright (C) 2013  Edmonton Public Library
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301, USA.
+ *
+ */
+package mecard;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import mecard.config.ConfigFileTypes;
+import mecard.config.CustomerFieldTypes;
+import mecard.config.PropertyReader;
+import mecard.customer.Customer;
+
+/**
+ * Keeps the answers to recent GET_CUSTOMER requests for a short time, since
+ * the website often asks about the same card several times in a few minutes.
+ * <p>
+ * There is at most one entry per user id. An entry is only used if the PIN
+ * of the request hashes to the same value as the PIN the entry was made
+ * with; the hash is salted with a random value chosen at start up, and the
+ * customer is stored without their PIN, which is put back from the request
+ * on a hit. The least recently used entries are dropped once the cache is
+ * full, and creating or updating a customer drops their entry.
+ * <p>
+ * Only successful answers are kept, so a lookup with the wrong PIN can't
+ * push out the answer kept for the right one. A lookup that started before
+ * the customer was created or updated would put back the old account, so
+ * each invalidation is stamped from a counter and an answer is only kept if
+ * its customer hasn't been invalidated since the lookup started. The stamps
+ * are bounded like the entries; the newest stamp dropped stands in for any
+ * customer without one.
+ * <p>
+ * Optional environment.properties entries:
+ * <pre>
+ * &lt;entry key="customer-cache-ttl"&gt;120000&lt;/entry&gt; milliseconds an answer is kept, 0 turns the cache off.
+ * &lt;entry key="customer-cache-size"&gt;1000&lt;/entry&gt; most customers kept.
+ * </pre>
+ * @author Andrew Nisbet <anisbet@epl.ca>
+ */
+public final class CustomerCache
+{
+    public final static String TTL_TAG  = "customer-cache-ttl";
+    public final static String SIZE_TAG = "customer-cache-size";
+    private final static long DEFAULT_TTL = 120000L;
+    private final static int DEFAULT_SIZE = 1000;
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+    private final static byte[] SALT = new byte[16];
+    private static CustomerCache instance;
+    private static boolean configured;
+
+    static
+    {
+        new SecureRandom().nextBytes(SALT);
+    }
+
+    private final long ttl;
+    private final LinkedHashMap<String, CachedResponse> entries;
+    private final LinkedHashMap<String, Long> invalidated;
+    private long generation;
+    private long droppedGeneration;
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+
+    /**
+     * Returns the shared cache, creating it from environment.properties on
+     * first use.
+     * @return the cache, or null if it is turned off.
+     */
+    public static synchronized CustomerCache getInstanceOf()
+    {
+        if (! configured)
+        {
+            configured = true;
+            Properties props = PropertyReader.getProperties(ConfigFileTypes.ENVIRONMENT);
+            long ttl = getLong(props, TTL_TAG, DEFAULT_TTL);
+            if (ttl > 0L)
+            {
+                instance = new CustomerCache(ttl, (int) getLong(props, SIZE_TAG, DEFAULT_SIZE));
+                System.out.println(new Date() + " customer cache: " + instance.toString());
+            }
+        }
+        return instance;
+    }
+
+    /**
+     *
+     * @param ttl milliseconds an answer is kept.
+     * @param size most customers kept.
+     */
+    CustomerCache(long ttl, final int size)
+    {
+        this.ttl     = ttl;
+        this.hits    = new AtomicLong();
+        this.misses  = new AtomicLong();
+        this.entries = new LinkedHashMap<String, CachedResponse>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedResponse> eldest)
+            {
+                return size() > size;
+            }
+        };
+        this.invalidated = new LinkedHashMap<String, Long>(16, 0.75f, false)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest)
+            {
+                if (size() > size)
+                {
+                    droppedGeneration = Math.max(droppedGeneration, eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Salted SHA-256 hash of a PIN, so it can be compared with the PIN of a
+     * later request without keeping the PIN.
+     * @param pin the PIN.
+     * @return hex hash of the PIN.
+     */
+    public static String hashPin(String pin)
+    {
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(SALT);
+            byte[] hash = digest.digest((pin == null ? "" : pin).getBytes(UTF8));
+            StringBuilder sb = new StringBuilder(hash.length * 2);
+            for (byte b: hash)
+            {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        }
+        catch (NoSuchAlgorithmException ex)
+        {
+            // Every JVM must have SHA-256.
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Fills in the response with the cached answer, if there is one.
+     * @param userId customer's id.
+     * @param pin PIN from the request.
+     * @param response response to fill in.
+     * @return true if the response was answered from the cache.
+     */
+    public boolean get(String userId, String pin, Response response)
+    {
+        CachedResponse entry;
+        synchronized (this.entries)
+        {
+            entry = this.entries.get(userId);
+            if (entry != null && System.currentTimeMillis() > entry.expires)
+            {
+                this.entries.remove(userId);
+                entry = null;
+            }
+        }
+        if (entry == null || ! entry.pinHash.equals(hashPin(pin)))
+        {
+            this.misses.incrementAndGet();
+            return false;
+        }
+        this.hits.incrementAndGet();
+        response.setCode(entry.code);
+        response.setResponse(entry.message);
+        if (entry.customer != null)
+        {
+            Customer customer = copy(entry.customer);
+            customer.set(CustomerFieldTypes.PIN, pin);
+            response.setCustomer(customer);
+        }
+        return true;
+    }
+
+    /**
+     * Call before looking up a customer, and pass the result to 
+     * {@link #put(String, String, Response, long)}.
+     * @return the current generation of the cache.
+     */
+    public long getGeneration()
+    {
+        synchronized (this.entries)
+        {
+            return this.generation;
+        }
+    }
+
+    /**
+     * Keeps the answer to a GET_CUSTOMER request, if it was successful and 
+     * the customer hasn't been invalidated since the lookup started.
+     * @param userId customer's id.
+     * @param pin PIN from the request.
+     * @param response the answer.
+     * @param generation value of {@link #getGeneration()} before the lookup.
+     * @return true if the answer was kept.
+     */
+    public boolean put(String userId, String pin, Response response, long generation)
+    {
+        if (response.getCode() != ResponseTypes.OK || response.getCustomer() == null)
+        {
+            return false;
+        }
+        CachedResponse entry = new CachedResponse(hashPin(pin), response, System.currentTimeMillis() + this.ttl);
+        synchronized (this.entries)
+        {
+            Long stamp = this.invalidated.get(userId);
+            long lastInvalidated = stamp == null ? this.droppedGeneration : stamp;
+            if (lastInvalidated > generation)
+            {
+                return false;
+            }
+            this.entries.put(userId, entry);
+            return true;
+        }
+    }
+
+    /**
+     * Drops any answer kept for the customer.
+     * @param userId customer's id.
+     */
+    public void invalidate(String userId)
+    {
+        if (userId == null)
+        {
+            return;
+        }
+        synchronized (this.entries)
+        {
+            this.entries.remove(userId);
+            this.invalidated.remove(userId);
+            this.invalidated.put(userId, ++this.generation);
+        }
+    }
+
+    /**
+     *
+     * @return number of customers cached.
+     */
+    public int size()
+    {
+        synchronized (this.entries)
+        {
+            return this.entries.size();
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "CustomerCache[ttl=" + this.ttl + "ms, size=" + size()
+                + ", hits=" + this.hits.get() + ", misses=" + this.misses.get() + "]";
+    }
+
+    /**
+     * Copies the customer, setting the preferred name first so the first and
+     * last names it sets are overwritten with the customer's own.
+     */
+    private static Customer copy(Customer customer)
+    {
+        Customer copy = new Customer();
+        copy.set(CustomerFieldTypes.PREFEREDNAME, customer.get(CustomerFieldTypes.PREFEREDNAME));
+        for (CustomerFieldTypes type: CustomerFieldTypes.values())
+        {
+            if (type != CustomerFieldTypes.PREFEREDNAME)
+            {
+                copy.set(type, customer.get(type));
+            }
+        }
+        return copy;
+    }
+
+    private static long getLong(Properties props, String tag, long defaultValue)
+    {
+        String value = props.getProperty(tag);
+        if (value == null)
+        {
+            return defaultValue;
+        }
+        try
+        {
+            return Long.parseLong(value.trim());
+        }
+        catch (NumberFormatException ex)
+        {
+            System.out.println(new Date() + " '" + tag + "' must be a number, using "
+                    + defaultValue + ".");
+            return defaultValue;
+        }
+    }
+
+    /**
+     * A cached answer, without the customer's PIN.
+     */
+    private final static class CachedResponse
+    {
+        private final String pinHash;
+        private final ResponseTypes code;
+        private final String message;
+        private final Customer customer;
+        private final long expires;
+
+        private CachedResponse(String pinHash, Response response, long expires)
+        {
+            this.pinHash = pinHash;
+            this.code    = response.getCode();
+            this.message = response.getMessage().trim();
+            if (response.getCustomer() == null)
+            {
+                this.customer = null;
+            }
+            else
+            {
+                this.customer = copy(response.getCustomer());
+                this.customer.set(CustomerFieldTypes.PIN, Protocol.DEFAULT_FIELD_VALUE);
+            }
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Metro allows customers from any affiliate library to join any other member library.
+ *    Copyright (C) 2013  Edmonton Public Library
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301, USA.
+ *
+ */
+package mecard;
+
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import mecard.config.ConfigFileTypes;
+import mecard.config.LibraryPropertyTypes;
+import mecard.config.MessagesConfigTypes;
+import mecard.config.PropertyReader;
+import mecard.requestbuilder.ResponderMethodTypes;
+
+/**
+ * Answers GET_CUSTOMER requests that can't succeed without asking the ILS.
+ * <p>
+ * A card the ILS says doesn't exist is remembered for a short time, whatever
+ * PIN came with it, so a bot or a confused customer retrying the same
+ * barcode gets the same answer straight away. Separately, the PIN mismatches
+ * for each card are counted over a sliding window; once there are too many,
+ * further lookups of that card are refused as {@link ResponseTypes#UNAUTHORIZED}
+ * until the oldest mismatches fall out of the window, which slows down
+ * anyone trying to guess a PIN. A successful lookup clears the count.
+ * <p>
+ * Only SIP2 says when a PIN doesn't match; Symphony and BImport look a
+ * customer up by card alone, so with any other get-protocol there are no
+ * mismatches to count and pin-mismatch-limit does nothing. A warning is
+ * logged at start up if it is set anyway.
+ * <p>
+ * Optional environment.properties entries:
+ * <pre>
+ * &lt;entry key="not-found-ttl"&gt;60000&lt;/entry&gt; milliseconds a missing card is remembered, 0 to not remember.
+ * &lt;entry key="pin-mismatch-limit"&gt;5&lt;/entry&gt; mismatches allowed in the window, 0 for no limit.
+ * &lt;entry key="pin-mismatch-window"&gt;900000&lt;/entry&gt; milliseconds.
+ * &lt;entry key="lookup-filter-size"&gt;10000&lt;/entry&gt; most cards tracked by each.
+ * </pre>
+ * @author Andrew Nisbet <anisbet@epl.ca>
+ */
+public final class LookupFilter
+{
+    public final static String NOT_FOUND_TTL_TAG = "not-found-ttl";
+    public final static String MISMATCH_LIMIT_TAG = "pin-mismatch-limit";
+    public final static String MISMATCH_WINDOW_TAG = "pin-mismatch-window";
+    public final static String SIZE_TAG = "lookup-filter-size";
+    private static LookupFilter instance;
+    private static boolean configured;
+
+    private final long notFoundTtl;
+    private final int mismatchLimit;
+    private final long mismatchWindow;
+    // Card to the time it stops being known as missing.
+    private final LinkedHashMap<String, Long> notFound;
+    // Card to the times of its recent PIN mismatches, oldest first.
+    private final LinkedHashMap<String, ArrayDeque<Long>> mismatches;
+    private final AtomicLong notFoundAnswers;
+    private final AtomicLong throttled;
+
+    /**
+     * Returns the shared filter, creating it from environment.properties on
+     * first use.
+     * @return the filter, or null if both checks are turned off.
+     */
+    public static synchronized LookupFilter getInstanceOf()
+    {
+        if (! configured)
+        {
+            configured = true;
+            Properties props = PropertyReader.getProperties(ConfigFileTypes.ENVIRONMENT);
+            long ttl = getLong(props, NOT_FOUND_TTL_TAG, 60000L);
+            int limit = (int) getLong(props, MISMATCH_LIMIT_TAG, 5L);
+            if (ttl > 0L || limit > 0)
+            {
+                instance = new LookupFilter(ttl, limit,
+                        getLong(props, MISMATCH_WINDOW_TAG, 900000L),
+                        (int) getLong(props, SIZE_TAG, 10000L));
+                System.out.println(new Date() + " " + instance.toString());
+            }
+            String getService = props.getProperty(LibraryPropertyTypes.GET_SERVICE.toString(), "");
+            if (limit > 0 && ! getService.equalsIgnoreCase(ResponderMethodTypes.SIP2.toString()))
+            {
+                System.out.println(new Date() + " WARNING: '" + MISMATCH_LIMIT_TAG 
+                        + "' only works with a " + LibraryPropertyTypes.GET_SERVICE.toString() 
+                        + " of '" + ResponderMethodTypes.SIP2.toString() + "', not '" + getService 
+                        + "', since only SIP2 reports PIN mismatches.");
+            }
+        }
+        return instance;
+    }
+
+    /**
+     *
+     * @param notFoundTtl milliseconds a missing card is remembered, 0 to not remember.
+     * @param mismatchLimit PIN mismatches allowed in the window, 0 for no limit.
+     * @param mismatchWindow milliseconds over which mismatches are counted.
+     * @param size most cards tracked by each check.
+     */
+    LookupFilter(long notFoundTtl, int mismatchLimit, long mismatchWindow, final int size)
+    {
+        this.notFoundTtl     = notFoundTtl;
+        this.mismatchLimit   = mismatchLimit;
+        this.mismatchWindow  = mismatchWindow;
+        this.notFoundAnswers = new AtomicLong();
+        this.throttled       = new AtomicLong();
+        this.notFound = new LinkedHashMap<String, Long>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest)
+            {
+                return size() > size;
+            }
+        };
+        this.mismatches = new LinkedHashMap<String, ArrayDeque<Long>>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ArrayDeque<Long>> eldest)
+            {
+                return size() > size;
+            }
+        };
+    }
+
+    /**
+     * Answers the lookup if the card is known to be missing, or has had too
+     * many PIN mismatches.
+     * @param userId card being looked up.
+     * @param response response to fill in.
+     * @return true if the response was answered and the ILS must not be asked.
+     */
+    public boolean answer(String userId, Response response)
+    {
+        long now = System.currentTimeMillis();
+        Properties messages = PropertyReader.getProperties(ConfigFileTypes.MESSAGES);
+        synchronized (this)
+        {
+            Long expires = this.notFound.get(userId);
+            if (expires != null)
+            {
+                if (now <= expires)
+                {
+                    this.notFoundAnswers.incrementAndGet();
+                    response.setCode(ResponseTypes.FAIL);
+                    response.setResponse(messages.getProperty(MessagesConfigTypes.ACCOUNT_NOT_FOUND.toString()));
+                    return true;
+                }
+                this.notFound.remove(userId);
+            }
+            if (this.mismatchLimit > 0 && countMismatches(userId, now) >= this.mismatchLimit)
+            {
+                this.throttled.incrementAndGet();
+                System.out.println(new Date() + " too many PIN mismatches for '" + userId + "', not asking the ILS.");
+                response.setCode(ResponseTypes.UNAUTHORIZED);
+                response.setResponse(messages.getProperty(MessagesConfigTypes.USERID_PIN_MISMATCH.toString()));
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Counts mismatches inside the window, dropping older ones. Must hold the lock.
+     */
+    private int countMismatches(String userId, long now)
+    {
+        ArrayDeque<Long> times = this.mismatches.get(userId);
+        if (times == null)
+        {
+            return 0;
+        }
+        while (! times.isEmpty() && now - times.peekFirst() > this.mismatchWindow)
+        {
+            times.pollFirst();
+        }
+        if (times.isEmpty())
+        {
+            this.mismatches.remove(userId);
+            return 0;
+        }
+        return times.size();
+    }
+
+    /**
+     * Remembers that the ILS has no such card.
+     * @param userId card that was looked up.
+     */
+    public synchronized void recordNotFound(String userId)
+    {
+        if (this.notFoundTtl > 0L)
+        {
+            this.notFound.put(userId, System.currentTimeMillis() + this.notFoundTtl);
+        }
+    }
+
+    /**
+     * Counts a PIN that didn't match the card's.
+     * @param userId card that was looked up.
+     */
+    public synchronized void recordPinMismatch(String userId)
+    {
+        if (this.mismatchLimit <= 0)
+        {
+            return;
+        }
+        ArrayDeque<Long> times = this.mismatches.get(userId);
+        if (times == null)
+        {
+            times = new ArrayDeque<>();
+            this.mismatches.put(userId, times);
+        }
+        times.addLast(System.currentTimeMillis());
+        // No need to keep more than it takes to reach the limit.
+        while (times.size() > this.mismatchLimit)
+        {
+            times.pollFirst();
+        }
+    }
+
+    /**
+     * Forgets everything about the card, after it is found, created or updated.
+     * @param userId card.
+     */
+    public synchronized void clear(String userId)
+    {
+        this.notFound.remove(userId);
+        this.mismatches.remove(userId);
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "LookupFilter[not found ttl=" + this.notFoundTtl + "ms, mismatch limit="
+                + this.mismatchLimit + " in " + this.mismatchWindow + "ms, not found="
+                + this.notFound.size() + ", answered=" + this.notFoundAnswers.get()
+                + ", throttled=" + this.throttled.get() + "]";
+    }
+
+    private static long getLong(Properties props, String tag, long defaultValue)
+    {
+        String value = props.getProperty(tag);
+        if (value == null)
+        {
+            return defaultValue;
+        }
+        try
+        {
+            return Long.parseLong(value.trim());
+        }
+        catch (NumberFormatException ex)
+        {
+            System.out.println(new Date() + " '" + tag + "' must be a number, using "
+                    + defaultValue + ".");
+            return defaultValue;
+        }
+    }
+}
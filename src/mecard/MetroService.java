@@ -28,6 +28,7 @@ import java.util.Properties;
 import mecard.config.ConfigFileTypes;
 import mecard.config.LibraryPropertyTypes;
 import mecard.config.PropertyReader;
+import mecard.util.ThreadRunner;
 import org.apache.commons.cli.BasicParser;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -42,6 +43,7 @@ import org.apache.commons.daemon.*;
 public final class MetroService implements Daemon
 {
     private static ServerSocket serverSocket = null;
+    private static SelectorServer selectorServer = null;
     private static boolean listening         = true;
     private static String defaultPort        = "2004";
     private static String[] ARGS;
@@ -77,7 +79,21 @@ public final class MetroService implements Daemon
         
         Properties properties = PropertyReader.getProperties(ConfigFileTypes.ENVIRONMENT);
         String portString = properties.getProperty(LibraryPropertyTypes.METRO_PORT.toString(), defaultPort);
+        ThreadRunner.configure(properties);
+        if (! properties.getProperty(PropertyReader.WATCH_TAG, "true").trim().equalsIgnoreCase("false"))
+        {
+            PropertyReader.watchConfigDirectory();
+        }
+        StatusProber.start();
+        BImportLoadScheduler.start();
+        RequestJournal.start();
         
+        if (SelectorServer.isSelectorMode(properties))
+        {
+            runSelectorServer(portString, SelectorServer.getWorkerCount(properties),
+                    SelectorServer.getQueueDepth(properties));
+            return;
+        }
         try
         {
             int port = Integer.parseInt(portString);
@@ -100,7 +116,7 @@ public final class MetroService implements Daemon
         {
             try
             {
-                new SocketThread(serverSocket.accept()).start();
+                ThreadRunner.start(new SocketThread(serverSocket.accept()), "MetroSocket");
             }
             catch (IOException ex)
             {
@@ -121,6 +137,31 @@ public final class MetroService implements Daemon
         }
     }
 
+    /**
+     * Runs the non-blocking front end instead of a thread per connection.
+     * @param portString port number from environment.properties.
+     * @param workers number of threads that process requests.
+     * @param queueDepth number of tasks that may wait for a worker.
+     */
+    private static void runSelectorServer(String portString, int workers, int queueDepth)
+    {
+        try
+        {
+            int port = Integer.parseInt(portString);
+            selectorServer = new SelectorServer(port, workers, queueDepth);
+            System.out.println(new Date() + " selector mode with " + workers + " workers.");
+            selectorServer.run();
+        }
+        catch (IOException ex)
+        {
+            System.out.println(new Date() + "Could not listen on port: " + portString);
+        }
+        catch (NumberFormatException ex)
+        {
+            System.out.println(new Date() + "Could not parse port number defined in configuration file.");
+        }
+    }
+
     @Override
     public void init(DaemonContext dc) throws DaemonInitException, Exception
     {
@@ -139,7 +180,12 @@ public final class MetroService implements Daemon
     public void stop() throws Exception
     {
         System.out.println(new Date() + " stopping service...");
-        // Stubbed for future cleanup.
+        if (selectorServer != null)
+        {
+            selectorServer.shutdown();
+        }
+        BImportLoadScheduler.stop();
+        RequestJournal.stop();
     }
     
     /**
@@ -152,6 +198,10 @@ public final class MetroService implements Daemon
         // Used by Windows to stop the service.
         System.out.println(new Date() + " stopping service...");
         listening = false;
+        if (selectorServer != null)
+        {
+            selectorServer.shutdown();
+        }
         System.exit(0);
     }
     
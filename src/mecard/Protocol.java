@@ -20,8 +20,8 @@
  */
 package mecard;
 
-import json.RequestDeserializer;
-import json.ResponseSerializer;
+import json.JsonCodec;
+import mecard.exception.BusyException;
 import mecard.exception.MetroSecurityException;
 import mecard.config.ConfigFileTypes;
 import mecard.config.LibraryPropertyTypes;
@@ -32,7 +32,16 @@ import mecard.config.PropertyReader;
  * Responsible for interpreting incoming MeCard requests.
  *
  * Requests are sent as JSON strings. All requests must include the API key or a 
- * MetroSecurityException is thrown.
+ * MetroSecurityException is thrown. A request may carry an optional 'requestId'
+ * which is echoed in its response; clients that tag their requests may send
+ * several on one connection and match the responses, which can arrive in any
+ * order, by id.
+ * <p>
+ * Two wire formats are understood. In version 1 the customer travels as a JSON
+ * string inside the message. Clients that send '"version":2' may send and
+ * receive the customer as a nested object; responses are written in the
+ * version of the request, or the newest version this server knows if the 
+ * client asks for a later one.
  *
  * @author Andrew Nisbet <anisbet@epl.ca>
  */
@@ -44,6 +53,12 @@ public final class Protocol
     public final static String TERMINATE   = "XX0";
     public final static String ACKNOWLEDGE = "XK0";
     public final static String ERROR       = "XE0";
+    /** Customer is sent as a JSON string inside the message. */
+    public final static int WIRE_VERSION_1 = 1;
+    /** Customer is sent as a nested JSON object and messages carry a 'version'. */
+    public final static int WIRE_VERSION_2 = 2;
+    /** Newest wire format this server speaks. */
+    public final static int WIRE_VERSION_LATEST = WIRE_VERSION_2;
     
     private boolean debugMode;
     
@@ -62,6 +77,42 @@ public final class Protocol
         }
     }
 
+    /**
+     * Reads a request without running it, so a front end can look at it 
+     * first and then pass it to {@link #processInput(Request)}.
+     *
+     * @param cmd command string request.
+     * @return the request, or null if it can't be read, in which case 
+     * {@link #processInput(String)} reports the problem.
+     */
+    public static Request readRequest(String cmd)
+    {
+        try
+        {
+            return JsonCodec.toRequest(SecurityManager.unEncrypt(cmd));
+        }
+        catch (RuntimeException ex)
+        {
+            // not our problem here, processInput() will report it.
+            return null;
+        }
+    }
+
+    /**
+     * Answers a request the server has no room to run, without running it.
+     *
+     * @param request the request, or null if it couldn't be read.
+     * @return formatted BUSY response.
+     */
+    public static String getBusyResponse(Request request)
+    {
+        Response response = Responder.getExceptionResponse(
+                new BusyException("Metro is busy, please try again."));
+        response.setRequestId((request != null) ? request.getRequestId() : "");
+        response.setVersion((request != null) ? negotiateVersion(request.getVersion()) : WIRE_VERSION_1);
+        return SecurityManager.encrypt(JsonCodec.toJson(response));
+    }
+
     /**
      * Checks incoming commands to the server, parses what the command, its 
      * security token and if valid then runs the required activity.
@@ -71,18 +122,44 @@ public final class Protocol
      */
     public String processInput(String cmd)
     {
-        Response response = new Response();
+        Request request;
         try
         {
             String jsonCommand = SecurityManager.unEncrypt(cmd);
-            RequestDeserializer deserializer = new RequestDeserializer();
-            Request request = deserializer.getDeserializedRequest(jsonCommand);
+            request = JsonCodec.toRequest(jsonCommand);
+        }
+        catch (RuntimeException ex)
+        {
+            ex.printStackTrace(System.out);
+            Response response = Responder.getExceptionResponse(ex);
+            response.setRequestId("");
+            response.setVersion(WIRE_VERSION_1);
+            return SecurityManager.encrypt(JsonCodec.toJson(response));
+        }
+        return processInput(request);
+    }
+
+    /**
+     * Checks the security token of a request that has already been read 
+     * and if valid runs the required activity.
+     *
+     * @param request the request, from {@link #readRequest(String)}.
+     * @return formatted response string.
+     */
+    public String processInput(Request request)
+    {
+        Response response = new Response();
+        String requestId = request.getRequestId();
+        int version = WIRE_VERSION_1;
+        try
+        {
+            version = negotiateVersion(request.getVersion());
             if (! SecurityManager.isAuthorized(request.getTransactionId()))
             {
                 throw new MetroSecurityException("Unrecognized security token");
             }
-            Responder responder = new Responder(request, this.debugMode);
-            response = responder.getResponse();
+            // Refuses with BUSY, rather than queue without bound, when saturated.
+            response = RequestExecutor.getInstanceOf().execute(request, this.debugMode);
         }
         catch (RuntimeException ex)
         {
@@ -91,9 +168,25 @@ public final class Protocol
         }
         finally
         {
-            ResponseSerializer responseSerializer = new ResponseSerializer();
-            String serializedResponse = responseSerializer.getSerializedResponse(response);
+            response.setRequestId(requestId);
+            response.setVersion(version);
+            String serializedResponse = JsonCodec.toJson(response);
             return SecurityManager.encrypt(serializedResponse);
         }
     }
+
+    /**
+     * Picks the wire format to answer in.
+     * @param requested version the client used.
+     * @return requested version if this server speaks it, the nearest one
+     * it does otherwise.
+     */
+    static int negotiateVersion(int requested)
+    {
+        if (requested < WIRE_VERSION_1)
+        {
+            return WIRE_VERSION_1;
+        }
+        return Math.min(requested, WIRE_VERSION_LATEST);
+    }
 }
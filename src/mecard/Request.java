@@ -37,6 +37,8 @@ public final class Request
     private Customer customer;
     private String pin;
     private String userId;
+    private String requestId;
+    private int version;
     
     public Request()
     {
@@ -45,6 +47,8 @@ public final class Request
         customer = null;
         pin = "";
         userId = "";
+        requestId = "";
+        version = Protocol.WIRE_VERSION_1;
     }
 
     /**
@@ -156,4 +160,52 @@ public final class Request
     {
         this.userId = userId;
     }
+
+    /**
+     * 
+     * @return the client's correlation id, or an empty string if the client
+     * did not send one.
+     */
+    public String getRequestId()
+    {
+        return this.requestId;
+    }
+
+    /**
+     * Sets the correlation id the client uses to match responses to requests
+     * when it sends several on one connection.
+     * @param requestId the client's id for this request, null or empty for none.
+     */
+    public void setRequestId(String requestId)
+    {
+        this.requestId = (requestId == null) ? "" : requestId;
+    }
+
+    /**
+     * 
+     * @return true if the client tagged this request with a correlation id.
+     */
+    public boolean hasRequestId()
+    {
+        return ! this.requestId.isEmpty();
+    }
+
+    /**
+     * 
+     * @return the wire format version the client used, see {@link Protocol}.
+     */
+    public int getVersion()
+    {
+        return this.version;
+    }
+
+    /**
+     * Sets the wire format version for this request. Clients that don't say
+     * which version they use are assumed to use version 1.
+     * @param version 
+     */
+    public void setVersion(int version)
+    {
+        this.version = version;
+    }
 }
@@ -0,0 +1,395 @@
+/*
+ * Metro allows customers from any affiliate library to join any other member library.
+ *    Copyright (C) 2013  Edmonton Public Library
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301, USA.
+ *
+ */
+package mecard;
+
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import mecard.config.ConfigFileTypes;
+import mecard.config.PropertyReader;
+import mecard.exception.BusyException;
+import mecard.util.ThreadRunner;
+
+/**
+ * Bounded pool that runs {@link Responder}s. When every worker is busy and the
+ * queue is full, or a query type has reached its concurrency limit, requests
+ * are refused straight away with a {@link BusyException} which the client
+ * sees as {@link ResponseTypes#BUSY}. The website can then retry rather than
+ * wait on an ILS that is already struggling.
+ *
+ * All settings are optional entries in environment.properties:
+ * <pre>
+ * &lt;entry key="executor-core-threads"&gt;8&lt;/entry&gt;
+ * &lt;entry key="executor-max-threads"&gt;32&lt;/entry&gt;
+ * &lt;entry key="executor-queue-depth"&gt;64&lt;/entry&gt;
+ * &lt;entry key="executor-queue-timeout"&gt;2000&lt;/entry&gt; milliseconds a request may wait in the queue.
+ * &lt;entry key="executor-limit-get_customer"&gt;16&lt;/entry&gt; one per {@link QueryTypes}, no limit if absent.
+ * </pre>
+ * @author Andrew Nisbet <anisbet@epl.ca>
+ */
+public final class RequestExecutor
+{
+    public final static String CORE_THREADS_TAG  = "executor-core-threads";
+    public final static String MAX_THREADS_TAG   = "executor-max-threads";
+    public final static String QUEUE_DEPTH_TAG   = "executor-queue-depth";
+    public final static String QUEUE_TIMEOUT_TAG = "executor-queue-timeout";
+    public final static String LIMIT_TAG_PREFIX  = "executor-limit-";
+    private final static int DEFAULT_CORE_THREADS  = 8;
+    private final static int DEFAULT_MAX_THREADS   = 32;
+    private final static int DEFAULT_QUEUE_DEPTH   = 64;
+    private final static long DEFAULT_QUEUE_TIMEOUT= 2000L;
+    private static RequestExecutor instance;
+
+    private final ThreadPoolExecutor executor;
+    private final long queueTimeout;
+    private final EnumMap<QueryTypes, Semaphore> limits;
+    private final EnumMap<QueryTypes, AtomicLong> rejections;
+    private final AtomicLong totalRejections;
+
+    /**
+     * Returns the shared executor, creating it from environment.properties on
+     * first use.
+     * @return the executor.
+     */
+    public static synchronized RequestExecutor getInstanceOf()
+    {
+        if (instance == null)
+        {
+            Properties props = PropertyReader.getProperties(ConfigFileTypes.ENVIRONMENT);
+            Map<QueryTypes, Integer> limits = new EnumMap<>(QueryTypes.class);
+            for (QueryTypes type: QueryTypes.values())
+            {
+                int limit = getInt(props, LIMIT_TAG_PREFIX + type.name().toLowerCase(), 0);
+                if (limit > 0)
+                {
+                    limits.put(type, limit);
+                }
+            }
+            instance = new RequestExecutor(
+                    getInt(props, CORE_THREADS_TAG, DEFAULT_CORE_THREADS),
+                    getInt(props, MAX_THREADS_TAG, DEFAULT_MAX_THREADS),
+                    getInt(props, QUEUE_DEPTH_TAG, DEFAULT_QUEUE_DEPTH),
+                    getInt(props, QUEUE_TIMEOUT_TAG, (int) DEFAULT_QUEUE_TIMEOUT),
+                    limits);
+            System.out.println(new Date() + " " + instance.toString());
+        }
+        return instance;
+    }
+
+    /**
+     *
+     * @param coreThreads threads kept alive when idle.
+     * @param maxThreads most threads that will run requests at once.
+     * @param queueDepth number of requests that may wait for a thread.
+     * @param queueTimeout milliseconds a request may sit in the queue before
+     * it is refused as busy, 0 to wait indefinitely.
+     * @param limits most concurrent requests allowed for each query type.
+     */
+    RequestExecutor(int coreThreads, int maxThreads, int queueDepth, long queueTimeout,
+            Map<QueryTypes, Integer> limits)
+    {
+        if (maxThreads < coreThreads)
+        {
+            maxThreads = coreThreads;
+        }
+        this.executor = new ThreadPoolExecutor(
+                coreThreads, maxThreads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, queueDepth)),
+                new ThreadRunner.RunnerThreadFactory("MetroResponder"),
+                new ThreadPoolExecutor.AbortPolicy());
+        this.queueTimeout    = queueTimeout;
+        this.limits          = new EnumMap<>(QueryTypes.class);
+        this.rejections      = new EnumMap<>(QueryTypes.class);
+        this.totalRejections = new AtomicLong();
+        for (QueryTypes type: QueryTypes.values())
+        {
+            this.rejections.put(type, new AtomicLong());
+            Integer limit = limits.get(type);
+            if (limit != null)
+            {
+                this.limits.put(type, new Semaphore(limit));
+            }
+        }
+    }
+
+    /**
+     * Runs the request through a {@link Responder} on the pool and waits for
+     * the response.
+     * @param request the client's request.
+     * @param debug debug mode.
+     * @return the response from the responder.
+     * @throws BusyException if the request could not be admitted.
+     */
+    public Response execute(final Request request, final boolean debug)
+            throws BusyException
+    {
+        return execute(request.getCommandType(), new Callable<Response>()
+        {
+            @Override
+            public Response call()
+            {
+                // The whole request sees one version of each config file.
+                PropertyReader.pin();
+                RequestJournal journal = null;
+                long entry = 0L;
+                try
+                {
+                    // Everything after pin() is inside the try so unpin() always runs.
+                    if (isJournaled(request.getCommandType()))
+                    {
+                        journal = RequestJournal.getInstanceOf();
+                    }
+                    if (journal != null)
+                    {
+                        entry = journal.record(request);
+                    }
+                    Responder responder = new Responder(request, debug);
+                    return responder.getResponse();
+                }
+                finally
+                {
+                    if (journal != null)
+                    {
+                        journal.complete(entry);
+                    }
+                    PropertyReader.unpin();
+                }
+            }
+        });
+    }
+
+    /**
+     * Admits the argument task if there is room, runs it and waits for the result.
+     * @param type query type, used for per type limits and counts.
+     * @param task work to do.
+     * @return result of the task.
+     */
+    Response execute(QueryTypes type, Callable<Response> task)
+            throws BusyException
+    {
+        Semaphore limit = this.limits.get(type);
+        if (limit != null && ! limit.tryAcquire())
+        {
+            throw reject(type, "too many " + type.name() + " requests in progress");
+        }
+        try
+        {
+            Future<Response> future;
+            try
+            {
+                future = this.executor.submit(new QueuedTask(type, task));
+            }
+            catch (RejectedExecutionException ex)
+            {
+                throw reject(type, "request queue is full");
+            }
+            if (this.queueTimeout <= 0)
+            {
+                return future.get();
+            }
+            try
+            {
+                return future.get(this.queueTimeout, TimeUnit.MILLISECONDS);
+            }
+            catch (TimeoutException ex)
+            {
+                // Only a request still in the queue is refused, one that started runs to the end.
+                // A task is only in the queue until a worker takes it, so removing it is the test.
+                if (this.executor.remove((Runnable) future))
+                {
+                    future.cancel(false);
+                    throw reject(type, "request waited more than " + this.queueTimeout + "ms");
+                }
+                return future.get();
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new BusyException("interrupted while waiting for a response.");
+        }
+        catch (ExecutionException ex)
+        {
+            // Keep the original exception so Responder.getExceptionResponse() can map it.
+            if (ex.getCause() instanceof RuntimeException)
+            {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new RuntimeException(ex.getCause());
+        }
+        finally
+        {
+            if (limit != null)
+            {
+                limit.release();
+            }
+        }
+    }
+
+    /**
+     * 
+     * @param type query type.
+     * @return true if requests of the argument type change customers, and 
+     * are written to the {@link RequestJournal} before they run.
+     */
+    static boolean isJournaled(QueryTypes type)
+    {
+        return type == QueryTypes.CREATE_CUSTOMER || type == QueryTypes.UPDATE_CUSTOMER;
+    }
+
+    private BusyException reject(QueryTypes type, String reason)
+    {
+        this.rejections.get(type).incrementAndGet();
+        this.totalRejections.incrementAndGet();
+        String msg = "Metro is busy, " + reason + ", please try again.";
+        System.out.println(new Date() + " BUSY: " + reason + " " + this.toString());
+        return new BusyException(msg);
+    }
+
+    /**
+     *
+     * @return number of requests waiting for a thread.
+     */
+    public int getQueueDepth()
+    {
+        return this.executor.getQueue().size();
+    }
+
+    /**
+     *
+     * @return number of threads running requests right now.
+     */
+    public int getActiveCount()
+    {
+        return this.executor.getActiveCount();
+    }
+
+    /**
+     *
+     * @return number of requests refused as busy since start up.
+     */
+    public long getRejectedCount()
+    {
+        return this.totalRejections.get();
+    }
+
+    /**
+     *
+     * @param type query type.
+     * @return number of requests of the argument type refused since start up.
+     */
+    public long getRejectedCount(QueryTypes type)
+    {
+        return this.rejections.get(type).get();
+    }
+
+    /**
+     * Stops accepting work, letting requests already admitted finish.
+     */
+    public void shutdown()
+    {
+        this.executor.shutdown();
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("RequestExecutor[threads=");
+        sb.append(this.executor.getPoolSize());
+        sb.append("/");
+        sb.append(this.executor.getMaximumPoolSize());
+        sb.append(", active=");
+        sb.append(getActiveCount());
+        sb.append(", queued=");
+        sb.append(getQueueDepth());
+        sb.append(", rejected=");
+        sb.append(getRejectedCount());
+        for (QueryTypes type: this.limits.keySet())
+        {
+            sb.append(", ");
+            sb.append(type.name());
+            sb.append("=");
+            sb.append(this.limits.get(type).availablePermits());
+            sb.append(" free");
+        }
+        sb.append("]");
+        return sb.toString();
+    }
+
+    private static int getInt(Properties props, String tag, int defaultValue)
+    {
+        String value = props.getProperty(tag);
+        if (value == null)
+        {
+            return defaultValue;
+        }
+        try
+        {
+            return Integer.parseInt(value.trim());
+        }
+        catch (NumberFormatException ex)
+        {
+            System.out.println(new Date() + " '" + tag + "' must be a number, using "
+                    + defaultValue + ".");
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Refuses to start a request that waited in the queue longer than the
+     * client is likely to wait for its answer.
+     */
+    private final class QueuedTask implements Callable<Response>
+    {
+        private final QueryTypes type;
+        private final Callable<Response> task;
+        private final long queuedAt;
+
+        private QueuedTask(QueryTypes type, Callable<Response> task)
+        {
+            this.type     = type;
+            this.task     = task;
+            this.queuedAt = System.currentTimeMillis();
+        }
+
+        @Override
+        public Response call() throws Exception
+        {
+            if (queueTimeout > 0 && System.currentTimeMillis() - queuedAt > queueTimeout)
+            {
+                throw reject(type, "request waited more than " + queueTimeout + "ms");
+            }
+            return task.call();
+        }
+    }
+}
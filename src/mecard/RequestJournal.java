@@ -0,0 +1,606 @@
+/*
+ * Metro allows customers from any affiliate library to join any other member library.
+ *    Copyright (C) 2013  Edmonton Public Library
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301, USA.
+ *
+ */
+package mecard;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.zip.CRC32;
+import json.JsonCodec;
+import mecard.config.ConfigFileTypes;
+import mecard.config.PropertyReader;
+import mecard.exception.ServiceUnavailableException;
+import mecard.util.ThreadRunner;
+
+/**
+ * Write-ahead journal of create and update requests, so a customer isn't lost
+ * if Metro, or the machine it runs on, goes down between telling the client 
+ * the request succeeded and the ILS keeping it, which on BImport sites is 
+ * the next load.
+ * <p>
+ * A request is written to the journal, and forced to disk, before it is run.
+ * Requests that arrive while the disk is busy forcing earlier ones are 
+ * forced together, one fsync for the lot. Once the ILS has answered, 
+ * whatever the answer, the request is marked complete. Requests in the 
+ * journal that never completed are run again when Metro starts.
+ * <p>
+ * Each record carries a CRC32 so a record torn by a crash is recognized and
+ * ignored. The journal is written in segments of about journal-segment-size 
+ * bytes. When a segment is full, the requests still running are copied to 
+ * a new segment and the old segments are deleted, so the journal stays 
+ * about one segment in size.
+ * <p>
+ * The journal holds customers' personal information, keep its directory as
+ * private as the customer load directory. Optional environment.properties 
+ * entries:
+ * <pre>
+ * &lt;entry key="journal-dir"&gt;journal&lt;/entry&gt; no journal if absent.
+ * &lt;entry key="journal-segment-size"&gt;4194304&lt;/entry&gt; bytes.
+ * </pre>
+ * @author Andrew Nisbet <anisbet@epl.ca>
+ */
+public final class RequestJournal
+{
+    public final static String DIR_TAG          = "journal-dir";
+    public final static String SEGMENT_SIZE_TAG = "journal-segment-size";
+    private final static long DEFAULT_SEGMENT_SIZE = 4L * 1024L * 1024L;
+    final static String SEGMENT_PREFIX = "metro-journal-";
+    final static String SEGMENT_SUFFIX = ".log";
+    private final static byte ENTRY    = 1;
+    private final static byte COMPLETE = 2;
+    // length, CRC, type and sequence number.
+    private final static int HEADER_SIZE  = 4 + 4 + 1 + 8;
+    private final static int MAX_PAYLOAD  = 16 * 1024 * 1024;
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+    private static RequestJournal instance;
+
+    private final File dir;
+    private final long segmentSize;
+    // Requests written but not yet complete, oldest first.
+    private final Map<Long, byte[]> open;
+    private final Map<Long, String> replay;
+    private FileChannel segment;
+    private File segmentFile;
+    private long nextSeq;
+    // Highest request whose entry is in the segment, and the highest that 
+    // was there when a force began.
+    private long writtenSeq;
+    private long forcedSeq;
+    private long syncedSeq;
+    private boolean syncing;
+    private long syncCount;
+
+    /**
+     * Opens the journal if journal-dir is set, and starts running requests
+     * that never completed.
+     * @return the journal or null if there isn't one.
+     */
+    public static synchronized RequestJournal start()
+    {
+        if (instance != null)
+        {
+            return instance;
+        }
+        Properties props = PropertyReader.getProperties(ConfigFileTypes.ENVIRONMENT);
+        String dirName = props.getProperty(DIR_TAG, "").trim();
+        if (dirName.isEmpty())
+        {
+            return null;
+        }
+        try
+        {
+            instance = new RequestJournal(new File(dirName), 
+                    getLong(props, SEGMENT_SIZE_TAG, DEFAULT_SEGMENT_SIZE));
+        }
+        catch (IOException ex)
+        {
+            System.out.println(new Date() + " unable to open the request journal in '" 
+                    + dirName + "', creates and updates are not journaled: " + ex.getMessage());
+            return null;
+        }
+        System.out.println(new Date() + " journaling creates and updates in '" + dirName + "', "
+                + instance.getPendingCount() + " request(s) to replay.");
+        final RequestJournal journal = instance;
+        ThreadRunner.newThread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                journal.replay();
+            }
+        }, "MetroJournalReplay").start();
+        return instance;
+    }
+
+    /**
+     *
+     * @return the journal or null if creates and updates aren't journaled.
+     */
+    public static synchronized RequestJournal getInstanceOf()
+    {
+        return instance;
+    }
+
+    /**
+     * Closes the journal. Requests still running are replayed on the next 
+     * start.
+     */
+    public static synchronized void stop()
+    {
+        if (instance != null)
+        {
+            instance.close();
+            instance = null;
+        }
+    }
+
+    /**
+     * Opens the journal, reading which requests never completed.
+     * @param dir directory of the journal's segments, created if need be.
+     * @param segmentSize bytes written to a segment before a new one is started.
+     * @throws IOException if the journal can't be read or written.
+     */
+    RequestJournal(File dir, long segmentSize) throws IOException
+    {
+        this.dir         = dir;
+        this.segmentSize = Math.max(HEADER_SIZE, segmentSize);
+        this.open        = new LinkedHashMap<>();
+        this.replay      = new LinkedHashMap<>();
+        this.nextSeq     = 1L;
+        if (! dir.isDirectory() && ! dir.mkdirs())
+        {
+            throw new IOException("'" + dir + "' is not a directory.");
+        }
+        for (File file: getSegments())
+        {
+            read(file);
+        }
+        for (Map.Entry<Long, byte[]> entry: this.open.entrySet())
+        {
+            this.replay.put(entry.getKey(), new String(entry.getValue(), UTF8));
+        }
+        synchronized (this)
+        {
+            roll();
+        }
+    }
+
+    /**
+     * 
+     * @return segment files, oldest first.
+     */
+    private File[] getSegments()
+    {
+        File[] files = this.dir.listFiles();
+        if (files == null)
+        {
+            return new File[0];
+        }
+        List<File> segments = new ArrayList<>();
+        for (File file: files)
+        {
+            if (file.getName().startsWith(SEGMENT_PREFIX) && file.getName().endsWith(SEGMENT_SUFFIX))
+            {
+                segments.add(file);
+            }
+        }
+        File[] sorted = segments.toArray(new File[segments.size()]);
+        // Names hold the zero padded sequence number of their first record.
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * Reads a segment up to its end or its first damaged record.
+     */
+    private void read(File file) throws IOException
+    {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file))))
+        {
+            while (true)
+            {
+                int length;
+                try
+                {
+                    length = in.readInt();
+                }
+                catch (EOFException ex)
+                {
+                    return;
+                }
+                int crc    = in.readInt();
+                byte type  = in.readByte();
+                long seq   = in.readLong();
+                if (length < 0 || length > MAX_PAYLOAD)
+                {
+                    throw new EOFException();
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                if (crc != getCRC(type, seq, payload))
+                {
+                    throw new EOFException();
+                }
+                if (type == ENTRY)
+                {
+                    this.open.put(seq, payload);
+                }
+                else
+                {
+                    this.open.remove(seq);
+                }
+                this.nextSeq = Math.max(this.nextSeq, seq + 1L);
+            }
+        }
+        catch (EOFException ex)
+        {
+            // A record cut short by a crash, nothing after it was acknowledged.
+            System.out.println(new Date() + " request journal '" + file.getName() 
+                    + "' ends with a damaged record, it is ignored.");
+        }
+    }
+
+    /**
+     * Writes the request to the journal and waits until it is on disk.
+     * @param request create or update request.
+     * @return the request's number in the journal, used to complete it.
+     * @throws ServiceUnavailableException if the request couldn't be written.
+     */
+    public long record(Request request)
+    {
+        byte[] payload = JsonCodec.toJson(request).getBytes(UTF8);
+        long seq = 0L;
+        try
+        {
+            // One block, so a sync never counts a number whose entry isn't written yet.
+            synchronized (this)
+            {
+                seq = this.nextSeq++;
+                // Open first, so a new segment started by this write carries it.
+                this.open.put(seq, payload);
+                write(ENTRY, seq, payload);
+            }
+            sync(seq);
+        }
+        catch (IOException ex)
+        {
+            // The client is told it failed, so it mustn't be replayed.
+            complete(seq);
+            System.out.println(new Date() + " unable to write the request journal: " + ex.getMessage());
+            throw new ServiceUnavailableException("Metro is unable to keep the request safe, please try again.");
+        }
+        return seq;
+    }
+
+    /**
+     * Marks the request complete, it won't be replayed. Not forced to disk,
+     * if the mark is lost the request is simply run again.
+     * @param seq the request's number from {@link #record(Request)}.
+     */
+    public synchronized void complete(long seq)
+    {
+        if (this.open.remove(seq) == null)
+        {
+            return;
+        }
+        try
+        {
+            write(COMPLETE, seq, new byte[0]);
+        }
+        catch (IOException ex)
+        {
+            System.out.println(new Date() + " unable to complete request " + seq 
+                    + " in the journal, it will be run again on restart: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Appends a record to the current segment, starting a new segment if 
+     * this one is full.
+     */
+    private void write(byte type, long seq, byte[] payload) throws IOException
+    {
+        if (this.segment == null)
+        {
+            throw new IOException("the journal is closed.");
+        }
+        if (! this.segment.isOpen())
+        {
+            // An interrupted thread closes the channel it was writing.
+            roll();
+        }
+        append(type, seq, payload);
+        if (type == ENTRY)
+        {
+            this.writtenSeq = Math.max(this.writtenSeq, seq);
+        }
+        if (this.segment.position() >= this.segmentSize)
+        {
+            roll();
+        }
+    }
+
+    private void append(byte type, long seq, byte[] payload) throws IOException
+    {
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        record.putInt(payload.length);
+        record.putInt(getCRC(type, seq, payload));
+        record.put(type);
+        record.putLong(seq);
+        record.put(payload);
+        record.flip();
+        while (record.hasRemaining())
+        {
+            this.segment.write(record);
+        }
+    }
+
+    /**
+     * Starts a new segment holding the requests that are still open, then 
+     * deletes the older segments.
+     */
+    private void roll() throws IOException
+    {
+        File oldFile = this.segmentFile;
+        if (this.segment != null && this.segment.isOpen())
+        {
+            this.segment.force(false);
+            this.segment.close();
+        }
+        this.segmentFile = new File(this.dir, String.format("%s%020d%s", 
+                SEGMENT_PREFIX, this.nextSeq, SEGMENT_SUFFIX));
+        this.segment = FileChannel.open(this.segmentFile.toPath(), StandardOpenOption.CREATE, 
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        for (Map.Entry<Long, byte[]> entry: this.open.entrySet())
+        {
+            append(ENTRY, entry.getKey(), entry.getValue());
+        }
+        this.segment.force(true);
+        // Everything written so far is on disk.
+        this.forcedSeq = this.writtenSeq;
+        this.syncedSeq = this.nextSeq - 1L;
+        notifyAll();
+        for (File file: getSegments())
+        {
+            if (! file.equals(this.segmentFile) && ! file.delete())
+            {
+                System.out.println(new Date() + " unable to delete old request journal '" 
+                        + file.getName() + "'.");
+            }
+        }
+        if (oldFile != null)
+        {
+            System.out.println(new Date() + " request journal moved to '" + this.segmentFile.getName()
+                    + "' with " + this.open.size() + " open request(s).");
+        }
+    }
+
+    /**
+     * Waits until the argument record is on disk. The first thread to 
+     * arrive forces everything written so far, threads that arrive while it 
+     * does wait for it, and the next of them forces all that was written 
+     * meanwhile.
+     */
+    private void sync(long seq) throws IOException
+    {
+        long target;
+        long written;
+        FileChannel channel;
+        synchronized (this)
+        {
+            while (this.syncing && this.syncedSeq < seq)
+            {
+                waitForSync();
+            }
+            if (this.syncedSeq >= seq)
+            {
+                return;
+            }
+            this.syncing = true;
+            target  = this.nextSeq - 1L;
+            written = this.writtenSeq;
+            channel = this.segment;
+        }
+        try
+        {
+            if (channel == null)
+            {
+                throw new IOException("the journal is closed.");
+            }
+            channel.force(false);
+        }
+        catch (IOException ex)
+        {
+            synchronized (this)
+            {
+                // A segment change forces it on the way out.
+                if (this.syncedSeq < seq)
+                {
+                    this.syncing = false;
+                    notifyAll();
+                    throw ex;
+                }
+            }
+        }
+        synchronized (this)
+        {
+            this.syncing   = false;
+            this.syncedSeq = Math.max(this.syncedSeq, target);
+            this.forcedSeq = Math.max(this.forcedSeq, written);
+            this.syncCount++;
+            notifyAll();
+        }
+    }
+
+    private void waitForSync() throws IOException
+    {
+        try
+        {
+            wait();
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted waiting for the journal.");
+        }
+    }
+
+    /**
+     * Runs the requests that never completed before Metro last stopped.
+     */
+    void replay()
+    {
+        for (Map.Entry<Long, String> entry: getPending().entrySet())
+        {
+            PropertyReader.pin();
+            try
+            {
+                Request request = JsonCodec.toRequest(entry.getValue());
+                Response response = new Responder(request, false).getResponse();
+                System.out.println(new Date() + " replayed journaled " + request.getCommandType().name() 
+                        + ": " + response.getCode());
+            }
+            catch (RuntimeException ex)
+            {
+                System.out.println(new Date() + " unable to replay journaled request " 
+                        + entry.getKey() + ": " + ex.getMessage());
+            }
+            finally
+            {
+                PropertyReader.unpin();
+                complete(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * 
+     * @return requests that hadn't completed when the journal was opened, 
+     * by number.
+     */
+    Map<Long, String> getPending()
+    {
+        return new LinkedHashMap<>(this.replay);
+    }
+
+    /**
+     * 
+     * @return number of requests that hadn't completed when the journal was opened.
+     */
+    public int getPendingCount()
+    {
+        return this.replay.size();
+    }
+
+    /**
+     * 
+     * @return number of requests written but not yet complete.
+     */
+    public synchronized int getOpenCount()
+    {
+        return this.open.size();
+    }
+
+    /**
+     * 
+     * @return number of times the journal was forced to disk for new requests.
+     */
+    synchronized long getSyncCount()
+    {
+        return this.syncCount;
+    }
+
+    /**
+     * 
+     * @return highest request whose entry was in the journal when it was last
+     * forced to disk.
+     */
+    synchronized long getForcedSeq()
+    {
+        return this.forcedSeq;
+    }
+
+    /**
+     * Closes the current segment.
+     */
+    synchronized void close()
+    {
+        if (this.segment == null)
+        {
+            return;
+        }
+        try
+        {
+            this.segment.force(false);
+            this.segment.close();
+        }
+        catch (IOException ex)
+        {
+            System.out.println(new Date() + " unable to close the request journal: " + ex.getMessage());
+        }
+        this.segment = null;
+    }
+
+    private static int getCRC(byte type, long seq, byte[] payload)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        for (int shift = 56; shift >= 0; shift -= 8)
+        {
+            crc.update((int) (seq >>> shift));
+        }
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    private static long getLong(Properties props, String tag, long defaultValue)
+    {
+        String value = props.getProperty(tag);
+        if (value == null)
+        {
+            return defaultValue;
+        }
+        try
+        {
+            return Long.parseLong(value.trim());
+        }
+        catch (NumberFormatException ex)
+        {
+            System.out.println(new Date() + " '" + tag + "' must be a number, using "
+                    + defaultValue + ".");
+            return defaultValue;
+        }
+    }
+}
@@ -27,6 +27,7 @@ import api.SIPCustomerMessage;
 import mecard.requestbuilder.ILSRequestBuilder;
 import java.util.Date;
 import java.util.Properties;
+import java.util.concurrent.Callable;
 import mecard.config.ConfigFileTypes;
 import mecard.config.CustomerFieldTypes;
 import mecard.config.MessagesConfigTypes;
@@ -40,7 +41,9 @@ import mecard.exception.DummyException;
 import mecard.exception.LostCardException;
 import mecard.config.PropertyReader;
 import mecard.customer.UserFailFile;
+import mecard.util.SingleFlight;
 import mecard.exception.BusyException;
+import mecard.exception.ServiceUnavailableException;
 import site.CustomerLoadNormalizer;
 import site.MeCardPolicy;
 
@@ -53,6 +56,7 @@ import site.MeCardPolicy;
 public class Responder
 {
     private final static String SIP_AUTHORIZATION_FAILURE = "AFInvalid PIN";
+    private final static SingleFlight<String, Lookup> customerLookups = new SingleFlight<>();
     protected Request request;
     protected final boolean debug;
     private final Properties props;
@@ -104,6 +108,10 @@ public class Responder
         {
             response = new Response(ResponseTypes.BUSY);
         }
+        else if (ex instanceof ServiceUnavailableException)
+        {
+            response = new Response(ResponseTypes.UNAVAILABLE);
+        }
         else if (ex instanceof UnsupportedCommandException)
         {
             response = new Response(ResponseTypes.UNKNOWN);
@@ -163,15 +171,39 @@ public class Responder
     {
         String userId  = this.request.getUserId();
         String userPin = this.request.getUserPin();
+        LookupFilter filter = LookupFilter.getInstanceOf();
+        if (filter != null && filter.answer(userId, response))
+        {
+            System.out.println(new Date() + " GET__FILTERED:" + userId);
+            return;
+        }
+        CustomerCache cache = CustomerCache.getInstanceOf();
+        if (cache != null && cache.get(userId, userPin, response))
+        {
+            System.out.println(new Date() + " GET__CACHED:" + userId);
+            return;
+        }
         
+        // Taken before the lookup so an answer that raced a create or update isn't kept.
+        long generation = cache == null ? 0L : cache.getGeneration();
         // So all this stuff will be put to the SIPCommand
-        ILSRequestBuilder requestBuilder = ILSRequestBuilder.getInstanceOf(QueryTypes.GET_CUSTOMER, debug);
-        Command command = requestBuilder.getCustomerCommand(userId, userPin, response);
-        CommandStatus status = command.execute();
+        final ILSRequestBuilder requestBuilder = ILSRequestBuilder.getInstanceOf(QueryTypes.GET_CUSTOMER, debug);
+        CommandStatus status = lookupCustomer(requestBuilder, userId, userPin, response);
+        // Nothing to format if the ILS didn't answer in time.
+        if (status.getStatus() == ResponseTypes.UNAVAILABLE)
+        {
+            requestBuilder.isSuccessful(QueryTypes.GET_CUSTOMER, status, response);
+            System.out.println(new Date() + " GET__STDERR:"+status.getStderr());
+            return;
+        }
         CustomerFormatter customerFormatter = requestBuilder.getFormatter();
         Customer customer = customerFormatter.getCustomer(status.getStdout());
         response.setCustomer(customer);
         requestBuilder.isSuccessful(QueryTypes.GET_CUSTOMER, status, response);
+        if (filter != null)
+        {
+            filterResult(filter, userId, response);
+        }
         // SIPFormatter() will place AF message in the reserve field. If it is not "OK"
         // then interpretResults() further sets ISVALID to Protocol.FALSE.
         if (customer.isEmpty(CustomerFieldTypes.ISVALID))
@@ -200,20 +232,64 @@ public class Responder
             response.setResponse(failedTests.toString());
             response.setCustomer(null);
         }
+        if (cache != null)
+        {
+            cache.put(userId, userPin, response, generation);
+        }
         System.out.println(new Date() + " GET__STDOUT:"+status.getStdout());
         System.out.println(new Date() + " GET__STDERR:"+status.getStderr());
     }
     
     /**
-     * Gets the status of the ILS server.
+     * Runs the get customer command, sharing one run between concurrent
+     * requests for the same card and PIN.
+     * @return status of the command.
+     */
+    private CommandStatus lookupCustomer(final ILSRequestBuilder requestBuilder,
+            final String userId, final String userPin, Response response)
+    {
+        String key = userId + ":" + CustomerCache.hashPin(userPin);
+        Lookup lookup = customerLookups.execute(key, new Callable<Lookup>()
+        {
+            @Override
+            public Lookup call()
+            {
+                // Builders may leave messages while making the command, which
+                // every request sharing the lookup needs.
+                Response messages = new Response();
+                Command command = requestBuilder.guard(requestBuilder.getCustomerCommand(userId, userPin, messages));
+                return new Lookup(command.execute(), messages);
+            }
+        });
+        if (! lookup.message.isEmpty())
+        {
+            response.setResponse(lookup.message);
+        }
+        return lookup.status;
+    }
+    
+    /**
+     * Gets the status of the ILS server, from the {@link StatusProber} if it
+     * is running and has a fresh result.
      * @param response
      */
     public void getILSStatus(Response response)
     {
+        // Answer from the background check if it is recent enough.
+        StatusProber prober = StatusProber.getInstanceOf();
+        if (prober != null && prober.answer(response))
+        {
+            return;
+        }
+        long start = System.nanoTime();
         ILSRequestBuilder sipRequestBuilder = ILSRequestBuilder.getInstanceOf(QueryTypes.GET_STATUS, debug);
-        Command sipCommand = sipRequestBuilder.getStatusCommand(response);
+        Command sipCommand = sipRequestBuilder.guard(sipRequestBuilder.getStatusCommand(response));
         CommandStatus status = sipCommand.execute();
         sipRequestBuilder.isSuccessful(QueryTypes.GET_STATUS, status, response);
+        if (prober != null)
+        {
+            prober.record(response, status, (System.nanoTime() - start) / 1000000L);
+        }
         System.out.println(new Date() + " STAT_STDOUT:"+status.getStdout());
         System.out.println(new Date() + " STAT_STDERR:"+status.getStderr());
     }
@@ -228,11 +304,21 @@ public class Responder
     public void createCustomer(Response response)
     {
         Customer customer = request.getCustomer();
+        forget(customer);
         CustomerLoadNormalizer normalizer = getNormalizerPreformatCustomer(customer, response);
         normalizer.normalizeOnCreate(customer, response);
         ILSRequestBuilder requestBuilder = ILSRequestBuilder.getInstanceOf(QueryTypes.CREATE_CUSTOMER, debug);
-        Command command = requestBuilder.getCreateUserCommand(customer, response, normalizer);
-        CommandStatus status = command.execute();
+        Command command = requestBuilder.guard(requestBuilder.getCreateUserCommand(customer, response, normalizer));
+        CommandStatus status;
+        try
+        {
+            status = command.execute();
+        }
+        finally
+        {
+            // A lookup that ran during the write may have cached the old account.
+            forget(customer);
+        }
         System.out.println(new Date() + " CRAT_STDOUT:"+status.getStdout());
         System.out.println(new Date() + " CRAT_STDERR:"+status.getStderr());
         if (requestBuilder.isSuccessful(QueryTypes.CREATE_CUSTOMER, status, response) == false)
@@ -251,11 +337,21 @@ public class Responder
     public void updateCustomer(Response response)
     {
         Customer customer = request.getCustomer();
+        forget(customer);
         CustomerLoadNormalizer normalizer = getNormalizerPreformatCustomer(customer, response);
         normalizer.normalizeOnUpdate(customer, response);
         ILSRequestBuilder requestBuilder = ILSRequestBuilder.getInstanceOf(QueryTypes.UPDATE_CUSTOMER, debug);
-        Command command = requestBuilder.getUpdateUserCommand(customer, response, normalizer);
-        CommandStatus status = command.execute();
+        Command command = requestBuilder.guard(requestBuilder.getUpdateUserCommand(customer, response, normalizer));
+        CommandStatus status;
+        try
+        {
+            status = command.execute();
+        }
+        finally
+        {
+            // A lookup that ran during the write may have cached the old account.
+            forget(customer);
+        }
         System.out.println(new Date() + " UPDT_STDOUT:"+status.getStdout());
         System.out.println(new Date() + " UPDT_STDERR:"+status.getStderr());
         if (requestBuilder.isSuccessful(QueryTypes.UPDATE_CUSTOMER, status, response) == false)
@@ -266,6 +362,62 @@ public class Responder
         }
     }
 
+    /**
+     * Tells the filter about cards that don't exist and PINs that don't match.
+     * Every builder answers a missing card with FAIL and the account not found
+     * message. Only the SIP2 builder checks the PIN, answering a wrong one with
+     * UNAUTHORIZED, so PIN mismatches are only counted when get-protocol is SIP2.
+     */
+    private void filterResult(LookupFilter filter, String userId, Response response)
+    {
+        String notFound = props.getProperty(MessagesConfigTypes.ACCOUNT_NOT_FOUND.toString(), "");
+        switch (response.getCode())
+        {
+            case UNAUTHORIZED:
+                filter.recordPinMismatch(userId);
+                break;
+            case FAIL:
+                if (! notFound.isEmpty() && response.getMessage().contains(notFound))
+                {
+                    filter.recordNotFound(userId);
+                }
+                break;
+            case OK:
+            case SUCCESS:
+                filter.clear(userId);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Drops any cached or filtered lookup of the customer, who is about to 
+     * change or just has.
+     * @param customer customer being created or updated.
+     */
+    private void forget(Customer customer)
+    {
+        CustomerCache cache = CustomerCache.getInstanceOf();
+        if (cache != null)
+        {
+            cache.invalidate(request.getUserId());
+            if (customer != null)
+            {
+                cache.invalidate(customer.get(CustomerFieldTypes.ID));
+            }
+        }
+        LookupFilter filter = LookupFilter.getInstanceOf();
+        if (filter != null)
+        {
+            filter.clear(request.getUserId());
+            if (customer != null)
+            {
+                filter.clear(customer.get(CustomerFieldTypes.ID));
+            }
+        }
+    }
+
     /**
      * Normalizes information from melibraries.ca into a format that the local ILS
      * can handle. Example: some libraries can only accept 4 digit pins. The 
@@ -395,4 +547,19 @@ public class Responder
         }
         return true;
     }
+
+    /**
+     * Result of a get customer command shared by concurrent requests.
+     */
+    private final static class Lookup
+    {
+        private final CommandStatus status;
+        private final String message;
+
+        private Lookup(CommandStatus status, Response messages)
+        {
+            this.status  = status;
+            this.message = messages.getMessage().trim();
+        }
+    }
 }
@@ -33,12 +33,16 @@ public final class Response
     protected ResponseTypes code;
     protected String responseMessage;
     protected Customer customer;
+    protected String requestId;
+    protected int version;
     
     public Response()
     {
         code = ResponseTypes.INIT;
         responseMessage = "";
         customer = null;
+        requestId = "";
+        version = Protocol.WIRE_VERSION_1;
     }
     
     /**
@@ -50,6 +54,8 @@ public final class Response
         code = rt;
         responseMessage = "";
         customer = null;
+        requestId = "";
+        version = Protocol.WIRE_VERSION_1;
     }
     
     /**
@@ -129,4 +135,42 @@ public final class Response
     {
         return responseMessage;
     }
+
+    /**
+     * Gets the correlation id of the request this responds to.
+     * @return the request's id or an empty string if it had none.
+     */
+    public String getRequestId()
+    {
+        return requestId;
+    }
+
+    /**
+     * Tags the response with the id of the request it answers, so a client
+     * with several requests outstanding on one connection can match them up.
+     * @param requestId the request's id, null or empty for none.
+     */
+    public void setRequestId(String requestId)
+    {
+        this.requestId = (requestId == null) ? "" : requestId;
+    }
+
+    /**
+     * 
+     * @return the wire format version this response will be written in.
+     */
+    public int getVersion()
+    {
+        return version;
+    }
+
+    /**
+     * Sets the wire format this response is written in, normally the 
+     * version the request arrived in.
+     * @param version see {@link Protocol#WIRE_VERSION_1} and {@link Protocol#WIRE_VERSION_2}.
+     */
+    public void setVersion(int version)
+    {
+        this.version = version;
+    }
 }
@@ -0,0 +1,712 @@
+/*
+ * Metro allows customers from any affiliate library to join any other member library.
+ *    Copyright (C) 2013  Edmonton Public Library
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301, USA.
+ *
+ */
+package mecard;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import mecard.util.ThreadRunner;
+
+/**
+ * Non-blocking alternative to {@link SocketThread}. A single selector thread
+ * accepts connections and reads the line based Metro protocol from every open
+ * socket; complete request lines are handed to a fixed pool of worker threads
+ * that run them through the {@link Protocol}. Idle or slow clients therefore
+ * cost a buffer, not a thread.
+ *
+ * Requests on a single connection are answered in the order they arrive, just
+ * as they are with {@link SocketThread}, unless they carry a correlation id in
+ * which case they run side by side and are answered as soon as they are done.
+ * A connection with {@link SocketThread#MAX_PIPELINED} requests waiting or
+ * running isn't read until one of them answers.
+ *
+ * The workers take requests from a bounded queue, so under overload a request
+ * is answered BUSY straight away, like one the {@link RequestExecutor} has no
+ * room for, rather than queued without end.
+ *
+ * Turn it on by adding the following to environment.properties:
+ * <pre>
+ * &lt;entry key="server-mode"&gt;selector&lt;/entry&gt;
+ * &lt;entry key="server-workers"&gt;8&lt;/entry&gt; (optional)
+ * &lt;entry key="server-queue-depth"&gt;64&lt;/entry&gt; (optional)
+ * </pre>
+ * @author Andrew Nisbet <anisbet@epl.ca>
+ */
+public final class SelectorServer implements Runnable
+{
+    /** Optional environment.properties tag that selects the socket front end. */
+    public final static String SERVER_MODE_TAG = "server-mode";
+    /** Value of {@link #SERVER_MODE_TAG} that turns on this server. */
+    public final static String SELECTOR_MODE   = "selector";
+    /** Optional environment.properties tag for the number of worker threads. */
+    public final static String WORKERS_TAG     = "server-workers";
+    public final static int DEFAULT_WORKERS    = 8;
+    /** Optional environment.properties tag for the number of tasks waiting for a worker. */
+    public final static String QUEUE_DEPTH_TAG = "server-queue-depth";
+    public final static int DEFAULT_QUEUE_DEPTH= 64;
+    private final static int READ_BUFFER_SIZE  = 4096;
+    // A client that never sends a line terminator should not be able to eat the heap.
+    private final static int MAX_LINE_LENGTH   = 1024 * 1024;
+    private final static String LINE_SEPARATOR = System.getProperty("line.separator");
+    private final static Charset CHARSET       = Charset.defaultCharset();
+
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final ExecutorService workers;
+    private final ByteBuffer readBuffer;
+    // Connections with output waiting, handed over from worker threads.
+    private final Queue<Connection> pendingWrites;
+    private volatile boolean listening;
+
+    /**
+     * Tests if the environment properties ask for the selector front end.
+     * @param properties environment properties.
+     * @return true if 'server-mode' is set to 'selector' and false otherwise.
+     */
+    public static boolean isSelectorMode(Properties properties)
+    {
+        String mode = properties.getProperty(SERVER_MODE_TAG, "");
+        return mode.trim().equalsIgnoreCase(SELECTOR_MODE);
+    }
+
+    /**
+     * Reads the number of workers from the environment properties.
+     * @param properties environment properties.
+     * @return number of workers requested or {@link #DEFAULT_WORKERS} if not
+     * set, or set to something that is not a positive integer.
+     */
+    public static int getWorkerCount(Properties properties)
+    {
+        return getPositiveInt(properties, WORKERS_TAG, DEFAULT_WORKERS);
+    }
+
+    /**
+     * Reads the depth of the workers' queue from the environment properties.
+     * @param properties environment properties.
+     * @return depth requested or {@link #DEFAULT_QUEUE_DEPTH} if not set, or
+     * set to something that is not a positive integer.
+     */
+    public static int getQueueDepth(Properties properties)
+    {
+        return getPositiveInt(properties, QUEUE_DEPTH_TAG, DEFAULT_QUEUE_DEPTH);
+    }
+
+    private static int getPositiveInt(Properties properties, String tag, int defaultValue)
+    {
+        String value = properties.getProperty(tag, "");
+        try
+        {
+            int count = Integer.parseInt(value.trim());
+            if (count > 0)
+            {
+                return count;
+            }
+        }
+        catch (NumberFormatException ex)
+        {
+            // fall through to the default.
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Opens the listening socket.
+     * @param port port to listen on, 0 for any free port.
+     * @param workerCount number of threads that process requests.
+     * @throws IOException if the port could not be bound.
+     */
+    public SelectorServer(int port, int workerCount) throws IOException
+    {
+        this(port, workerCount, DEFAULT_QUEUE_DEPTH);
+    }
+
+    /**
+     * Opens the listening socket.
+     * @param port port to listen on, 0 for any free port.
+     * @param workerCount number of threads that process requests.
+     * @param queueDepth number of tasks that may wait for a worker, past 
+     * that requests are answered BUSY.
+     * @throws IOException if the port could not be bound.
+     */
+    public SelectorServer(int port, int workerCount, int queueDepth) throws IOException
+    {
+        this.selector      = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.configureBlocking(false);
+        this.serverChannel.socket().setReuseAddress(true);
+        this.serverChannel.socket().bind(new InetSocketAddress(port));
+        this.serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+        this.workers       = new ThreadPoolExecutor(workerCount, workerCount, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, queueDepth)), 
+                new ThreadRunner.RunnerThreadFactory("MetroWorker"));
+        this.readBuffer    = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        this.pendingWrites = new ConcurrentLinkedQueue<>();
+        this.listening     = true;
+    }
+
+    /**
+     *
+     * @return the port the server is listening on.
+     */
+    public int getPort()
+    {
+        return this.serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Runs the selector loop until {@link #shutdown()} is called.
+     */
+    @Override
+    public void run()
+    {
+        System.out.println(new Date() + " Selector server listening on port " + getPort());
+        while (listening)
+        {
+            try
+            {
+                selector.select();
+                registerPendingWrites();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext())
+                {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (! key.isValid())
+                    {
+                        continue;
+                    }
+                    try
+                    {
+                        if (key.isAcceptable())
+                        {
+                            accept();
+                        }
+                        else
+                        {
+                            if (key.isReadable())
+                            {
+                                read(key);
+                            }
+                            if (key.isValid() && key.isWritable())
+                            {
+                                write(key);
+                            }
+                        }
+                    }
+                    catch (IOException ex)
+                    {
+                        System.err.println(new Date() + " " + ex.getMessage());
+                        close(key);
+                    }
+                }
+            }
+            catch (IOException ex)
+            {
+                System.err.println(new Date() + " selector failed: " + ex.getMessage());
+            }
+        }
+        closeAll();
+    }
+
+    /**
+     * Stops accepting connections, closes all open connections and stops the
+     * workers once they finish what they are doing.
+     */
+    public void shutdown()
+    {
+        this.listening = false;
+        this.selector.wakeup();
+    }
+
+    private void accept() throws IOException
+    {
+        SocketChannel channel = this.serverChannel.accept();
+        if (channel == null)
+        {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        System.out.println(new Date() + " Connection received from "
+                + channel.socket().getInetAddress().getHostName());
+        SelectionKey key = channel.register(this.selector, SelectionKey.OP_READ);
+        Connection connection = new Connection(channel, key);
+        key.attach(connection);
+        connection.send(Protocol.ACKNOWLEDGE + " status OK use '" + Protocol.TERMINATE + "' to hangup.");
+        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    private void read(SelectionKey key) throws IOException
+    {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Connection connection = (Connection) key.attachment();
+        this.readBuffer.clear();
+        int count = channel.read(this.readBuffer);
+        if (count < 0)
+        {
+            close(key);
+            return;
+        }
+        this.readBuffer.flip();
+        while (this.readBuffer.hasRemaining())
+        {
+            byte b = this.readBuffer.get();
+            if (b == '\n')
+            {
+                connection.lineComplete();
+            }
+            else if (connection.line.size() >= MAX_LINE_LENGTH)
+            {
+                throw new IOException("request exceeds " + MAX_LINE_LENGTH
+                        + " bytes without a line terminator, hanging up.");
+            }
+            else
+            {
+                connection.line.write(b);
+            }
+        }
+    }
+
+    private void write(SelectionKey key) throws IOException
+    {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Connection connection = (Connection) key.attachment();
+        synchronized (connection)
+        {
+            while (! connection.output.isEmpty())
+            {
+                ByteBuffer buffer = connection.output.peek();
+                channel.write(buffer);
+                if (buffer.hasRemaining())
+                {
+                    return; // socket buffer is full, wait for the next OP_WRITE.
+                }
+                connection.output.remove();
+            }
+            if (connection.isClosing)
+            {
+                close(key);
+                return;
+            }
+            key.interestOps(connection.isFull() ? 0 : SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Worker threads can't touch selection keys safely, so they queue the
+     * connection and wake the selector which then registers interest in writing.
+     */
+    private void registerPendingWrites()
+    {
+        Connection connection;
+        while ((connection = this.pendingWrites.poll()) != null)
+        {
+            if (connection.key.isValid())
+            {
+                // An answer means a request is done, so a full connection may be read again.
+                connection.key.interestOps(connection.isFull() 
+                        ? SelectionKey.OP_WRITE : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+    private void close(SelectionKey key)
+    {
+        key.cancel();
+        try
+        {
+            Connection connection = (Connection) key.attachment();
+            if (connection != null)
+            {
+                System.out.println(new Date() + " Connection closed to "
+                        + connection.channel.socket().getInetAddress().getHostName());
+            }
+            key.channel().close();
+        }
+        catch (IOException ex)
+        {
+            System.err.println(new Date() + " ioException " + ex.getMessage());
+        }
+    }
+
+    private void closeAll()
+    {
+        for (SelectionKey key: this.selector.keys())
+        {
+            close(key);
+        }
+        try
+        {
+            this.selector.close();
+            this.serverChannel.close();
+        }
+        catch (IOException ex)
+        {
+            System.err.println(new Date() + " failed to close the server socket. " + ex.getMessage());
+        }
+        this.workers.shutdown();
+    }
+
+    /**
+     * State of one client connection. The selector thread owns the line buffer;
+     * everything else is guarded by the connection's monitor because workers
+     * append responses and pull the next request.
+     */
+    private final class Connection
+    {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final ByteArrayOutputStream line;
+        private final Queue<Pending> requests;
+        private final Queue<ByteBuffer> output;
+        private Protocol protocol;
+        private boolean isBusy;
+        private boolean isClosing;
+        // Tagged requests running on workers, see nextRequest().
+        private int inFlight;
+
+        private Connection(SocketChannel channel, SelectionKey key)
+        {
+            this.channel  = channel;
+            this.key      = key;
+            this.line     = new ByteArrayOutputStream(256);
+            this.requests = new ArrayDeque<>();
+            this.output   = new ArrayDeque<>();
+            this.isBusy   = false;
+            this.isClosing= false;
+            this.inFlight = 0;
+        }
+
+        /**
+         * Called by the selector thread when a '\n' arrives.
+         */
+        private void lineComplete()
+        {
+            String message = new String(this.line.toByteArray(), CHARSET);
+            this.line.reset();
+            // BufferedReader.readLine() accepted '\r\n' so we do too.
+            if (message.endsWith("\r"))
+            {
+                message = message.substring(0, message.length() - 1);
+            }
+            synchronized (this)
+            {
+                if (this.isClosing)
+                {
+                    return;
+                }
+                this.requests.add(new Pending(message));
+                resume();
+                if (isFull())
+                {
+                    // Stop reading until a request answers, see registerPendingWrites().
+                    this.key.interestOps(this.key.interestOps() & ~SelectionKey.OP_READ);
+                }
+            }
+        }
+
+        /**
+         * Starts a worker on the request queue if none is on it.
+         */
+        private synchronized void resume()
+        {
+            if (this.isBusy || this.isClosing || this.requests.isEmpty())
+            {
+                return;
+            }
+            this.isBusy = true;
+            if (! dispatch(new RequestTask(this)))
+            {
+                this.isBusy = false;
+                refuseAll();
+            }
+        }
+
+        /**
+         * Answers everything waiting on the connection BUSY, the workers have
+         * no room for it.
+         */
+        private synchronized void refuseAll()
+        {
+            Pending request;
+            while ((request = this.requests.poll()) != null)
+            {
+                if (request.isTerminate())
+                {
+                    send(Protocol.TERMINATE);
+                    this.isClosing = true;
+                    this.requests.clear();
+                    break;
+                }
+                send(Protocol.getBusyResponse(request.getRequest()));
+            }
+            pendingWrites.add(this);
+            selector.wakeup();
+        }
+
+        /**
+         * 
+         * @return true if the connection has as many requests waiting or 
+         * running as it may.
+         */
+        private synchronized boolean isFull()
+        {
+            return this.requests.size() + this.inFlight >= SocketThread.MAX_PIPELINED;
+        }
+
+        /**
+         * Queues a line for output. Caller must arrange for OP_WRITE.
+         * @param message
+         */
+        private synchronized void send(String message)
+        {
+            this.output.add(ByteBuffer.wrap((message + LINE_SEPARATOR).getBytes(CHARSET)));
+        }
+
+        /**
+         * Takes the next untagged request, or marks the connection idle if
+         * there isn't one. Tagged requests at the head of the queue are handed
+         * to workers of their own on the way. An untagged request has to wait
+         * for tagged requests ahead of it, so if any are still running the
+         * connection is left idle and the last of them to finish resumes it.
+         * @return next request or null if there is none to run now.
+         */
+        private synchronized Pending nextRequest()
+        {
+            Pending request;
+            while ((request = this.requests.peek()) != null)
+            {
+                if (! request.isTagged())
+                {
+                    if (this.inFlight > 0)
+                    {
+                        break;
+                    }
+                    return this.requests.poll();
+                }
+                this.requests.poll();
+                this.inFlight++;
+                if (! dispatch(new TaggedRequestTask(this, request)))
+                {
+                    this.inFlight--;
+                    send(Protocol.getBusyResponse(request.getRequest()));
+                    pendingWrites.add(this);
+                    selector.wakeup();
+                }
+            }
+            this.isBusy = false;
+            return null;
+        }
+
+        /**
+         * Called when a tagged request has been answered.
+         */
+        private synchronized void taggedRequestDone()
+        {
+            this.inFlight--;
+            if (this.inFlight == 0)
+            {
+                resume();
+            }
+        }
+
+        private synchronized Protocol getProtocol()
+        {
+            // Created on the first real request so accepting a socket stays cheap.
+            if (this.protocol == null)
+            {
+                this.protocol = new Protocol();
+            }
+            return this.protocol;
+        }
+    }
+
+    /**
+     * Hands a task to the workers.
+     * @return false if their queue is full.
+     */
+    private boolean dispatch(Runnable task)
+    {
+        try
+        {
+            this.workers.execute(task);
+            return true;
+        }
+        catch (RejectedExecutionException ex)
+        {
+            System.out.println(new Date() + " BUSY: no room in the worker queue " + this.workers);
+            return false;
+        }
+    }
+
+    /**
+     * A request line, read once however often it is looked at.
+     */
+    private final static class Pending
+    {
+        private final String message;
+        private Request request;
+        private boolean isRead;
+
+        private Pending(String message)
+        {
+            this.message = message;
+            this.isRead  = false;
+        }
+
+        private boolean isTerminate()
+        {
+            return this.message.equals(Protocol.TERMINATE);
+        }
+
+        /**
+         * 
+         * @return the request, or null if it is the hang up or can't be read.
+         */
+        private Request getRequest()
+        {
+            if (! this.isRead)
+            {
+                this.isRead  = true;
+                this.request = isTerminate() ? null : Protocol.readRequest(this.message);
+            }
+            return this.request;
+        }
+
+        private boolean isTagged()
+        {
+            Request read = getRequest();
+            return read != null && read.hasRequestId();
+        }
+    }
+
+    /**
+     * Runs a request and returns the protocol's answer, or an error if the
+     * protocol failed outright.
+     */
+    private static String process(Connection connection, Pending pending)
+    {
+        try
+        {
+            Request request = pending.getRequest();
+            // One that can't be read goes through as it came so the problem is reported.
+            return (request != null) 
+                    ? connection.getProtocol().processInput(request)
+                    : connection.getProtocol().processInput(pending.message);
+        }
+        catch (RuntimeException ex)
+        {
+            System.err.println(new Date() + " " + ex.getMessage());
+            return Protocol.ERROR;
+        }
+    }
+
+    /**
+     * Runs one request that carries a correlation id. Its response is
+     * written as soon as it is ready, whatever else the connection is doing.
+     */
+    private final class TaggedRequestTask implements Runnable
+    {
+        private final Connection connection;
+        private final Pending message;
+
+        private TaggedRequestTask(Connection connection, Pending message)
+        {
+            this.connection = connection;
+            this.message    = message;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                connection.send(process(connection, message));
+                pendingWrites.add(connection);
+                selector.wakeup();
+            }
+            finally
+            {
+                connection.taggedRequestDone();
+            }
+        }
+    }
+
+    /**
+     * Drains the request queue of a single connection on a worker thread,
+     * one request at a time so responses keep their order.
+     */
+    private final class RequestTask implements Runnable
+    {
+        private final Connection connection;
+
+        private RequestTask(Connection connection)
+        {
+            this.connection = connection;
+        }
+
+        @Override
+        public void run()
+        {
+            Pending message;
+            while ((message = connection.nextRequest()) != null)
+            {
+                String response;
+                if (message.isTerminate())
+                {
+                    response = Protocol.TERMINATE;
+                }
+                else
+                {
+                    response = process(connection, message);
+                }
+                synchronized (connection)
+                {
+                    connection.send(response);
+                    if (response.equals(Protocol.TERMINATE))
+                    {
+                        connection.isClosing = true;
+                        connection.requests.clear();
+                    }
+                }
+                pendingWrites.add(connection);
+                selector.wakeup();
+            }
+        }
+    }
+}
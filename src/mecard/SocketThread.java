@@ -26,29 +26,121 @@ import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.Socket;
 import java.util.Date;
+import mecard.util.ThreadRunner;
 
 /**
  * This class is the server socket that allows a Metro server to handle several
  * requests at a time. Its function is acknowledge a connection request, listen
  * for further requests and pass them onto the Metro server for consideration,
  * return responses and gracefully close the connection.
+ * <p>
+ * Requests without a correlation id are answered one at a time in the order
+ * they arrive. Requests with an id are run concurrently and answered as soon
+ * as they are done, up to {@link #MAX_PIPELINED} at a time; after that the 
+ * connection isn't read until one of them answers.
  *
  * @author Andrew Nisbet <anisbet@epl.ca>
  */
 public final class SocketThread extends Thread
 {
+    // Most tagged requests one connection may have running at a time.
+    public final static int MAX_PIPELINED = 16;
 
     private Socket connection = null;
     private PrintWriter out;
     private BufferedReader in;
     private String message;
     private final Protocol protocol;
+    // Guards the writer and the pipelined count; this is a Thread so its own monitor is used by join().
+    private final Object lock = new Object();
+    private int pipelined;
 
     public SocketThread(Socket socket)
     {
         super("MetroSocket");
         this.connection = socket;
         protocol = new Protocol();
+        pipelined = 0;
+    }
+
+    /**
+     * Writes a response, responses from pipelined requests may be written
+     * from other threads.
+     * @param response 
+     */
+    private void send(String response)
+    {
+        synchronized (lock)
+        {
+            out.println(response);
+        }
+    }
+
+    /**
+     * Runs a request that has a correlation id on its own thread so the next
+     * request can be read straight away, once there is room for it.
+     * @param request the request.
+     */
+    private void startPipelined(final Request request)
+    {
+        synchronized (lock)
+        {
+            while (pipelined >= MAX_PIPELINED)
+            {
+                try
+                {
+                    lock.wait();
+                }
+                catch (InterruptedException ex)
+                {
+                    // Run it anyway rather than drop the client's request.
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            pipelined++;
+        }
+        ThreadRunner.start(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    send(protocol.processInput(request));
+                }
+                finally
+                {
+                    synchronized (lock)
+                    {
+                        pipelined--;
+                        lock.notifyAll();
+                    }
+                }
+            }
+        }, "MetroPipelined");
+    }
+
+    /**
+     * Waits until every pipelined request on this connection has answered.
+     */
+    private void awaitPipelined()
+    {
+        synchronized (lock)
+        {
+            while (pipelined > 0)
+            {
+                try
+                {
+                    lock.wait();
+                }
+                catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
     }
 
     @Override
@@ -70,15 +162,25 @@ public final class SocketThread extends Thread
                 // Catch any protocol related strings, the rest are commands.
                 if (message.equals(Protocol.TERMINATE))
                 {
-                    out.println(Protocol.TERMINATE);
+                    awaitPipelined();
+                    send(Protocol.TERMINATE);
                     break;
                 }
+                Request request = Protocol.readRequest(message);
+                if (request != null && request.hasRequestId())
+                {
+                    // Tagged requests run side by side and answer when ready.
+                    startPipelined(request);
+                }
                 else
                 {
-                    String response = protocol.processInput(message);
-                    out.println(response);
+                    // Untagged requests keep strict order, so let any tagged
+                    // requests ahead of this one finish first.
+                    awaitPipelined();
+                    send(request != null ? protocol.processInput(request) : protocol.processInput(message));
                 }
             }
+            awaitPipelined();
             System.out.println(new Date() + " Connection closed to " + connection.getInetAddress().getHostName());
         }
         catch (IOException ex)
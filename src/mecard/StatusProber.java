@@ -0,0 +1,355 @@
+/*
+ * Metro allows customers from any affiliate library to join any other member library.
+ *    Copyright (C) 2013  Edmonton Public Library
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301, USA.
+ *
+ */
+package mecard;
+
+import api.Command;
+import api.CommandStatus;
+import api.SIPStatusMessage;
+import java.util.Date;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import mecard.config.ConfigFileTypes;
+import mecard.config.LibraryPropertyTypes;
+import mecard.config.PropertyReader;
+import mecard.exception.SIPException;
+import mecard.requestbuilder.ILSRequestBuilder;
+import mecard.util.ThreadRunner;
+
+/**
+ * Checks the status backend on a schedule so GET_STATUS requests can be
+ * answered from the last result instead of each sending its own SC status
+ * message to the ILS. How often the website and load balancers poll no
+ * longer matters to the ILS.
+ * <p>
+ * If the last result is older than the maximum age, because a check is
+ * hanging or the status-protocol was changed, the request checks the
+ * backend itself as it always did, and its result is kept for the next
+ * request.
+ * <p>
+ * Optional environment.properties entries:
+ * <pre>
+ * &lt;entry key="status-probe-interval"&gt;30000&lt;/entry&gt; milliseconds between checks, 0 to check on every request.
+ * &lt;entry key="status-max-age"&gt;90000&lt;/entry&gt; milliseconds a result may be used for, default 3 intervals.
+ * </pre>
+ * @author Andrew Nisbet <anisbet@epl.ca>
+ */
+public final class StatusProber implements Runnable
+{
+    public final static String INTERVAL_TAG = "status-probe-interval";
+    public final static String MAX_AGE_TAG  = "status-max-age";
+    private final static long DEFAULT_INTERVAL = 30000L;
+    private static StatusProber instance;
+
+    private final long interval;
+    private final long maxAge;
+    private final AtomicReference<Probe> latest;
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Starts the shared prober with the settings in environment.properties,
+     * unless the interval is 0.
+     * @return the prober, or null if probing is turned off.
+     */
+    public static synchronized StatusProber start()
+    {
+        if (instance != null)
+        {
+            return instance;
+        }
+        Properties props = PropertyReader.getProperties(ConfigFileTypes.ENVIRONMENT);
+        long interval = getLong(props, INTERVAL_TAG, DEFAULT_INTERVAL);
+        if (interval <= 0L)
+        {
+            System.out.println(new Date() + " status probe off, every status request checks the ILS.");
+            return null;
+        }
+        instance = new StatusProber(interval, getLong(props, MAX_AGE_TAG, interval * 3L));
+        instance.schedule();
+        System.out.println(new Date() + " status probe every " + interval + "ms.");
+        return instance;
+    }
+
+    /**
+     *
+     * @return the running prober or null if there isn't one.
+     */
+    public static synchronized StatusProber getInstanceOf()
+    {
+        return instance;
+    }
+
+    /**
+     * Stops the shared prober if it is running.
+     */
+    public static synchronized void stop()
+    {
+        if (instance != null)
+        {
+            instance.shutdown();
+            instance = null;
+        }
+    }
+
+    /**
+     *
+     * @param interval milliseconds between checks.
+     * @param maxAge milliseconds a result may be used for.
+     */
+    StatusProber(long interval, long maxAge)
+    {
+        this.interval = interval;
+        this.maxAge   = maxAge;
+        this.latest   = new AtomicReference<>();
+    }
+
+    private void schedule()
+    {
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadRunner.RunnerThreadFactory("MetroStatusProbe"));
+        this.scheduler.scheduleWithFixedDelay(this, 0L, this.interval, TimeUnit.MILLISECONDS);
+    }
+
+    private void shutdown()
+    {
+        if (this.scheduler != null)
+        {
+            this.scheduler.shutdownNow();
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        try
+        {
+            probe();
+        }
+        catch (RuntimeException ex)
+        {
+            // A scheduled task that throws is never run again.
+            System.out.println(new Date() + " status probe failed: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Checks the configured status backend now and keeps the result.
+     * @return the result.
+     */
+    Probe probe()
+    {
+        String backend = getBackend();
+        Response response = new Response();
+        long start = System.nanoTime();
+        CommandStatus status = null;
+        try
+        {
+            ILSRequestBuilder builder = ILSRequestBuilder.getInstanceOf(QueryTypes.GET_STATUS, false);
+            Command command = builder.guard(builder.getStatusCommand(response));
+            status = command.execute();
+            builder.isSuccessful(QueryTypes.GET_STATUS, status, response);
+        }
+        catch (RuntimeException ex)
+        {
+            response = Responder.getExceptionResponse(ex);
+        }
+        long latency = (System.nanoTime() - start) / 1000000L;
+        Probe probe = new Probe(backend, response, status, latency);
+        Probe previous = this.latest.getAndSet(probe);
+        if (previous == null || previous.code != probe.code)
+        {
+            System.out.println(new Date() + " ILS status: " + probe.toString());
+        }
+        return probe;
+    }
+
+    /**
+     * Answers a status request from the last result, if there is one that
+     * is recent enough and is for the backend currently configured.
+     * @param response the response to fill in.
+     * @return true if the response was answered, false if the caller needs
+     * to check the ILS itself.
+     */
+    public boolean answer(Response response)
+    {
+        Probe probe = getLatest();
+        if (probe == null)
+        {
+            return false;
+        }
+        response.setCode(probe.code);
+        response.setResponse(probe.message);
+        return true;
+    }
+
+    /**
+     *
+     * @return the last result if it is fresh and for the current backend,
+     * null otherwise.
+     */
+    public Probe getLatest()
+    {
+        Probe probe = this.latest.get();
+        if (probe == null
+                || System.currentTimeMillis() - probe.time > this.maxAge
+                || ! probe.backend.equals(getBackend()))
+        {
+            return null;
+        }
+        return probe;
+    }
+
+    /**
+     * Keeps the result of a status check a request made itself.
+     * @param response the answer the request got.
+     * @param status result of the status command, may be null.
+     * @param latency milliseconds the check took.
+     */
+    public void record(Response response, CommandStatus status, long latency)
+    {
+        this.latest.set(new Probe(getBackend(), response, status, latency));
+    }
+
+    private static String getBackend()
+    {
+        String backend = PropertyReader.getProperties(ConfigFileTypes.ENVIRONMENT)
+                .getProperty(LibraryPropertyTypes.STATUS_SERVICE.toString());
+        return backend == null ? "" : backend.trim();
+    }
+
+    private static long getLong(Properties props, String tag, long defaultValue)
+    {
+        String value = props.getProperty(tag);
+        if (value == null)
+        {
+            return defaultValue;
+        }
+        try
+        {
+            return Long.parseLong(value.trim());
+        }
+        catch (NumberFormatException ex)
+        {
+            System.out.println(new Date() + " '" + tag + "' must be a number, using "
+                    + defaultValue + ".");
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Result of one status check.
+     */
+    public final static class Probe
+    {
+        private final String backend;
+        private final ResponseTypes code;
+        private final String message;
+        private final long time;
+        private final long latency;
+        private final String online;
+        private final String patronInfo;
+
+        private Probe(String backend, Response response, CommandStatus status, long latency)
+        {
+            this.backend = backend;
+            this.code    = response.getCode();
+            this.message = response.getMessage().trim();
+            this.time    = System.currentTimeMillis();
+            this.latency = latency;
+            String onlineFlag = "";
+            String patronInfoFlag = "";
+            // Only a SIP2 backend tells us more than up or down.
+            if (status != null && status.getStdout().startsWith("98"))
+            {
+                try
+                {
+                    SIPStatusMessage sipStatus = new SIPStatusMessage(status.getStdout());
+                    onlineFlag = sipStatus.isOnline();
+                    patronInfoFlag = sipStatus.getPatronInfoPermitted();
+                }
+                catch (SIPException ex)
+                {
+                    // leave the flags empty.
+                }
+            }
+            this.online     = onlineFlag;
+            this.patronInfo = patronInfoFlag;
+        }
+
+        public ResponseTypes getCode()
+        {
+            return this.code;
+        }
+
+        public String getMessage()
+        {
+            return this.message;
+        }
+
+        /**
+         *
+         * @return time of the check.
+         */
+        public Date getTime()
+        {
+            return new Date(this.time);
+        }
+
+        /**
+         *
+         * @return milliseconds the check took.
+         */
+        public long getLatency()
+        {
+            return this.latency;
+        }
+
+        /**
+         *
+         * @return SIP2 on-line status flag 'Y' or 'N', or an empty string if
+         * the backend isn't SIP2 or didn't answer.
+         */
+        public String getOnline()
+        {
+            return this.online;
+        }
+
+        /**
+         *
+         * @return SIP2 patron information permitted flag 'Y' or 'N', or an
+         * empty string if the backend isn't SIP2 or didn't answer.
+         */
+        public String getPatronInfoPermitted()
+        {
+            return this.patronInfo;
+        }
+
+        @Override
+        public String toString()
+        {
+            return this.backend + " " + this.code.name() + " in " + this.latency
+                    + "ms, online='" + this.online + "', patron info='" + this.patronInfo
+                    + "' " + this.message;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Metro allows customers from any affiliate library to join any other member library.
+ *    Copyright (C) 2013  Edmonton Public Library
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301, USA.
+ *
+ */
+package mecard.config;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.AbstractMap;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Read only copy of a config file as it was when it was loaded. Snapshots are
+ * shared by every thread, so any attempt to change one throws an
+ * {@link UnsupportedOperationException}; copy it into a new {@link Properties}
+ * if you need to make changes. The key, entry and value views are read only
+ * too.
+ * <p>
+ * putIfAbsent, replace and remove(key, value) came with Java 8, so they are
+ * overridden without {@literal @}Override to build for Java 7. compute,
+ * computeIfAbsent, computeIfPresent, merge and replaceAll take Java 8
+ * function types and can't be overridden here; don't call them.
+ * @author Andrew Nisbet <anisbet@epl.ca>
+ */
+public final class ConfigSnapshot extends Properties
+{
+    private final static long serialVersionUID = 1L;
+    private final ConfigFileTypes type;
+    private final long loaded;
+    private final boolean sealed;
+
+    /**
+     *
+     * @param type the config file this is a snapshot of.
+     * @param properties values read from the file.
+     */
+    ConfigSnapshot(ConfigFileTypes type, Properties properties)
+    {
+        this.type   = type;
+        this.loaded = System.currentTimeMillis();
+        for (String key: properties.stringPropertyNames())
+        {
+            super.put(key, properties.getProperty(key));
+        }
+        this.sealed = true;
+    }
+
+    /**
+     *
+     * @return the config file this is a snapshot of.
+     */
+    public ConfigFileTypes getType()
+    {
+        return this.type;
+    }
+
+    /**
+     *
+     * @return time the snapshot was read from disk.
+     */
+    public Date getLoadTime()
+    {
+        return new Date(this.loaded);
+    }
+
+    @Override
+    public synchronized Object put(Object key, Object value)
+    {
+        if (this.sealed)
+        {
+            throw new UnsupportedOperationException(type + " config is read only.");
+        }
+        return super.put(key, value);
+    }
+
+    @Override
+    public synchronized void putAll(Map<?, ?> t)
+    {
+        throw new UnsupportedOperationException(type + " config is read only.");
+    }
+
+    @Override
+    public synchronized Object remove(Object key)
+    {
+        throw new UnsupportedOperationException(type + " config is read only.");
+    }
+
+    @Override
+    public synchronized void clear()
+    {
+        throw new UnsupportedOperationException(type + " config is read only.");
+    }
+
+    @Override
+    public synchronized void load(Reader reader)
+    {
+        throw new UnsupportedOperationException(type + " config is read only.");
+    }
+
+    @Override
+    public synchronized void load(InputStream inStream)
+    {
+        throw new UnsupportedOperationException(type + " config is read only.");
+    }
+
+    @Override
+    public synchronized void loadFromXML(InputStream in)
+    {
+        throw new UnsupportedOperationException(type + " config is read only.");
+    }
+
+    public synchronized Object putIfAbsent(Object key, Object value)
+    {
+        throw new UnsupportedOperationException(type + " config is read only.");
+    }
+
+    public synchronized boolean remove(Object key, Object value)
+    {
+        throw new UnsupportedOperationException(type + " config is read only.");
+    }
+
+    public synchronized Object replace(Object key, Object value)
+    {
+        throw new UnsupportedOperationException(type + " config is read only.");
+    }
+
+    public synchronized boolean replace(Object key, Object oldValue, Object newValue)
+    {
+        throw new UnsupportedOperationException(type + " config is read only.");
+    }
+
+    @Override
+    public Set<Object> keySet()
+    {
+        return Collections.unmodifiableSet(super.keySet());
+    }
+
+    @Override
+    public Set<Map.Entry<Object, Object>> entrySet()
+    {
+        // An unmodifiable map's entries can't be set either.
+        Map<Object, Object> view = new AbstractMap<Object, Object>()
+        {
+            @Override
+            public Set<Map.Entry<Object, Object>> entrySet()
+            {
+                return ConfigSnapshot.super.entrySet();
+            }
+        };
+        return Collections.unmodifiableMap(view).entrySet();
+    }
+
+    @Override
+    public Collection<Object> values()
+    {
+        return Collections.unmodifiableCollection(super.values());
+    }
+}
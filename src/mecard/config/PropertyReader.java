@@ -8,13 +8,26 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.Date;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.Enumeration;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import mecard.util.ThreadRunner;
 
 /**
  *
@@ -30,26 +43,33 @@ public class PropertyReader
      */
     public final static String SSH_TAG           = "ssh";
     public final static String LOAD_DIR          = "load-dir";
+    /** Optional environment.properties tag, 'false' stops Metro reloading config files when they change. */
+    public final static String WATCH_TAG         = "config-watch";
     private static String CONFIG_DIR             = "";
-    private static String BIMPORT_PROPERTY_FILE  = "bimport.properties";
-    private static String SYMPHONY_PROPERTY_FILE = "symphony.properties";
-    private static String POLARIS_PROPERTY_FILE  = "polaris.properties";
-    private static String ENVIRONMENT_FILE       = "environment.properties";
-    private static String SIP2_FILE              = "sip2.properties";
-    private static String BIMPORT_CITY_MAPPING   = "city_st.properties";
-    private static String DEBUG_SETTINGS_FILE    = "debug.properties";
-    private static String VARIABLES_FILE         = "sysvar.properties"; // these are system specific variables, like PATH.
-    private static String MESSAGES_PROPERTY_FILE = "messages.properties";
-        // There are no mandatory variables, so no checking is done.
-    private static Properties polaris;            // Default properties needed by Polaris.
-    private static Properties symphony;           // Default properties needed to create a user in Symphony.
-    private static Properties bimport;            // Properties Metro needs to operate BImport.
-    private static Properties environment;        // Basic envrionment values.
-    private static Properties sip2;               // Variables used to talk to SIP2.
-    private static Properties city;               // Required for Horizon users to translate site specific city codes.
-    private static Properties debugProperties;    // Optional config for debugging.
-    private static Properties systemVariables;    // Optional no mandatory fields.
-    private static Properties messagesProperties; // Messages tailored by local library.
+    private final static String BIMPORT_PROPERTY_FILE  = "bimport.properties";
+    private final static String SYMPHONY_PROPERTY_FILE = "symphony.properties";
+    private final static String POLARIS_PROPERTY_FILE  = "polaris.properties";
+    private final static String ENVIRONMENT_FILE       = "environment.properties";
+    private final static String SIP2_FILE              = "sip2.properties";
+    private final static String BIMPORT_CITY_MAPPING   = "city_st.properties";
+    private final static String DEBUG_SETTINGS_FILE    = "debug.properties";
+    private final static String VARIABLES_FILE         = "sysvar.properties"; // these are system specific variables, like PATH.
+    private final static String MESSAGES_PROPERTY_FILE = "messages.properties";
+    // Current snapshot of each config file, read on first use and replaced
+    // whole when the file changes.
+    private final static Map<ConfigFileTypes, AtomicReference<ConfigSnapshot>> snapshots;
+    // Snapshots a thread has used since it called pin().
+    private final static ThreadLocal<Map<ConfigFileTypes, ConfigSnapshot>> pinned = new ThreadLocal<>();
+    private static Thread watcher;
+    
+    static
+    {
+        snapshots = new EnumMap<>(ConfigFileTypes.class);
+        for (ConfigFileTypes type: ConfigFileTypes.values())
+        {
+            snapshots.put(type, new AtomicReference<ConfigSnapshot>());
+        }
+    }
     
     /**
      * Parses a list of ',' comma separated types from a given entry in the 
@@ -98,15 +118,11 @@ public class PropertyReader
         }
         System.out.println("Metro (MeCard) server version " + VERSION);
         System.out.println(new Date() + " CONFIG: dir set to '" + CONFIG_DIR + "'");
-        BIMPORT_PROPERTY_FILE  = CONFIG_DIR + BIMPORT_PROPERTY_FILE;
-        SYMPHONY_PROPERTY_FILE = CONFIG_DIR + SYMPHONY_PROPERTY_FILE;
-        POLARIS_PROPERTY_FILE  = CONFIG_DIR + POLARIS_PROPERTY_FILE;
-        MESSAGES_PROPERTY_FILE = CONFIG_DIR + MESSAGES_PROPERTY_FILE;
-        ENVIRONMENT_FILE       = CONFIG_DIR + ENVIRONMENT_FILE;
-        SIP2_FILE              = CONFIG_DIR + SIP2_FILE;
-        BIMPORT_CITY_MAPPING   = CONFIG_DIR + BIMPORT_CITY_MAPPING;
-        DEBUG_SETTINGS_FILE    = CONFIG_DIR + DEBUG_SETTINGS_FILE;
-        VARIABLES_FILE         = CONFIG_DIR + VARIABLES_FILE;
+        // Files from the old directory are no use now.
+        for (AtomicReference<ConfigSnapshot> snapshot: snapshots.values())
+        {
+            snapshot.set(null);
+        }
     }
     
     /**
@@ -119,122 +135,204 @@ public class PropertyReader
 //    }
     
     /**
-     * Gets specific properties from a configuration file.
+     * Gets specific properties from a configuration file. The file is read
+     * once and the same read only snapshot is returned until the file changes
+     * on disk, see {@link #watchConfigDirectory()}. A thread that has called
+     * {@link #pin()} keeps getting the snapshot it saw first, even if the file
+     * is reloaded in the mean time.
      * @param type of configuration file to read, ie environment or bimport etc.
      * @return Java properties object filled with values read from the property file.
      */
     public static Properties getProperties(ConfigFileTypes type)
     {
+        Map<ConfigFileTypes, ConfigSnapshot> pins = pinned.get();
+        if (pins != null)
+        {
+            ConfigSnapshot snapshot = pins.get(type);
+            if (snapshot == null)
+            {
+                snapshot = getSnapshot(type);
+                pins.put(type, snapshot);
+            }
+            return snapshot;
+        }
+        return getSnapshot(type);
+    }
+    
+    /**
+     * Makes the calling thread keep using the config it sees from now on
+     * until it calls {@link #unpin()}. Call it when starting work on a request
+     * so a reload half way through can't give the request a mix of old and
+     * new settings.
+     */
+    public static void pin()
+    {
+        pinned.set(new EnumMap<ConfigFileTypes, ConfigSnapshot>(ConfigFileTypes.class));
+    }
+    
+    /**
+     * Lets the calling thread see the latest config again.
+     */
+    public static void unpin()
+    {
+        pinned.remove();
+    }
+    
+    /**
+     * Re-reads a config file and, if it could be read and has all its 
+     * mandatory entries, makes it the current snapshot. If not the 
+     * current snapshot stays in place.
+     * @param type of config file.
+     * @return true if the new snapshot was installed and false otherwise.
+     */
+    public static boolean reload(ConfigFileTypes type)
+    {
+        Properties properties = new Properties();
+        String fileName = getFileName(type);
+        try (FileInputStream fis = new FileInputStream(fileName))
+        {
+            properties.loadFromXML(fis);
+        }
+        catch (IOException ex)
+        {
+            String msg = "Failed to reload '" + fileName + "', keeping the previous settings.";
+            Logger.getLogger(PropertyReader.class.getName()).log(Level.SEVERE, msg, ex);
+            return false;
+        }
+        if (! isComplete(type, properties))
+        {
+            String msg = "'" + fileName + "' is missing mandatory entries, keeping the previous settings.";
+            Logger.getLogger(PropertyReader.class.getName()).log(Level.SEVERE, msg);
+            return false;
+        }
+        snapshots.get(type).set(new ConfigSnapshot(type, properties));
+        System.out.println(new Date() + " CONFIG: reloaded '" + fileName + "'");
+        return true;
+    }
+    
+    /**
+     * Starts a daemon thread that reloads config files as they change in the 
+     * config directory. Calling it again does nothing.
+     */
+    public static synchronized void watchConfigDirectory()
+    {
+        if (watcher != null)
+        {
+            return;
+        }
+        try
+        {
+            Path dir = Paths.get(CONFIG_DIR.isEmpty() ? "." : CONFIG_DIR);
+            WatchService watchService = dir.getFileSystem().newWatchService();
+            dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+            watcher = ThreadRunner.newThread(new ConfigWatcher(watchService), "MetroConfigWatcher");
+            watcher.start();
+            System.out.println(new Date() + " CONFIG: watching '" + dir.toAbsolutePath() + "' for changes.");
+        }
+        catch (IOException ex)
+        {
+            String msg = "Unable to watch the config directory, changes need a restart.";
+            Logger.getLogger(PropertyReader.class.getName()).log(Level.WARNING, msg, ex);
+        }
+    }
+    
+    /**
+     * Returns the current snapshot, reading the file if this is the first 
+     * time it has been asked for.
+     */
+    private static ConfigSnapshot getSnapshot(ConfigFileTypes type)
+    {
+        AtomicReference<ConfigSnapshot> reference = snapshots.get(type);
+        ConfigSnapshot snapshot = reference.get();
+        if (snapshot == null)
+        {
+            Properties properties = readPropertyFile(getFileName(type));
+            // Missing entries are reported, but we carry on as we always have.
+            isComplete(type, properties);
+            // If another thread got there first use its copy.
+            reference.compareAndSet(null, new ConfigSnapshot(type, properties));
+            snapshot = reference.get();
+        }
+        return snapshot;
+    }
+    
+    /**
+     * Checks that all mandatory values are here, logging any that are not.
+     * @return true if all mandatory values are present, false otherwise.
+     */
+    private static boolean isComplete(ConfigFileTypes type, Properties properties)
+    {
+        Object[] mandatory;
         switch (type)
         {
-            case SYMPHONY: // Additional properties that are given to a customer by default at creation time.
-                symphony = readPropertyFile(PropertyReader.SYMPHONY_PROPERTY_FILE);
-                // Now check manditory fields
-                for (SymphonyPropertyTypes sType : SymphonyPropertyTypes.values())
-                {
-                    if (symphony.get(sType.toString()) == null)
-                    {
-                        String msg = "'" + sType + "' unset in " + PropertyReader.SYMPHONY_PROPERTY_FILE;
-                        Logger.getLogger(PropertyReader.class.getName()).log(Level.SEVERE, msg, new NullPointerException());
-                    }
-                }
-                return symphony;
-                
+            case SYMPHONY:
+                mandatory = SymphonyPropertyTypes.values();
+                break;
             case ENVIRONMENT:
-                environment = readPropertyFile(PropertyReader.ENVIRONMENT_FILE);
-                // now check that all mandetory values are here.
-                for (LibraryPropertyTypes lType : LibraryPropertyTypes.values())
-                {
-                    if (environment.get(lType.toString()) == null)
-                    {
-                        String msg = "'" + lType + "' unset in " + PropertyReader.ENVIRONMENT_FILE;
-                        Logger.getLogger(PropertyReader.class.getName()).log(Level.SEVERE, msg, new NullPointerException());
-                    }
-                }
-                return environment;
-                
+                mandatory = LibraryPropertyTypes.values();
+                break;
             case SIP2:
-                sip2 = readPropertyFile(PropertyReader.SIP2_FILE);
-                // now check that all mandetory values are here.
-                for (SipPropertyTypes sType : SipPropertyTypes.values())
-                {
-                    if (sip2.get(sType.toString()) == null)
-                    {
-                        String msg = "'" + sType + "' unset in " + PropertyReader.SIP2_FILE;
-                        Logger.getLogger(PropertyReader.class.getName()).log(Level.SEVERE, msg, new NullPointerException());
-                    }
-                }
-                return sip2;
-                
+                mandatory = SipPropertyTypes.values();
+                break;
             case BIMPORT:
-                bimport = readPropertyFile(PropertyReader.BIMPORT_PROPERTY_FILE);
-                // now check that all mandetory values are here.
-                for (BImportPropertyTypes bType : BImportPropertyTypes.values())
-                {
-                    if (bimport.get(bType.toString()) == null)
-                    {
-                        String msg = "'" + bType + "' unset in " + PropertyReader.BIMPORT_PROPERTY_FILE;
-                        Logger.getLogger(PropertyReader.class.getName()).log(Level.SEVERE, msg, new NullPointerException());
-                    }
-                }
-                return bimport;
-
-            case BIMPORT_CITY_MAPPING:
-                city = readPropertyFile(PropertyReader.BIMPORT_CITY_MAPPING);
-                // now check that all mandetory values are here.
-//                for (MemberTypes mType : MemberTypes.values())
-//                {
-//                    if (city.get(mType.toString()) == null)
-//                    {
-//                        String msg = "'" + mType + "' unset in " + PropertyReader.BIMPORT_CITY_MAPPING;
-//                        Logger.getLogger(PropertyReader.class.getName()).log(Level.SEVERE, msg, new NullPointerException());
-//                    }
-//                }
-                return city;
-
+                mandatory = BImportPropertyTypes.values();
+                break;
             case DEBUG:
-                debugProperties = readPropertyFile(PropertyReader.DEBUG_SETTINGS_FILE);
-                // now check that all mandetory values are here.
-                for (DebugQueryConfigTypes dType : DebugQueryConfigTypes.values())
-                {
-                    if (debugProperties.get(dType.toString()) == null)
-                    {
-                        String msg = "'" + dType + "' unset in " + PropertyReader.DEBUG_SETTINGS_FILE;
-                        Logger.getLogger(PropertyReader.class.getName()).log(Level.SEVERE, msg, new NullPointerException());
-                    }
-                }
-                return debugProperties;
-
-            case VARS: // Additional variables used by this application as a user on a system like PATH.
-                systemVariables = readPropertyFile(PropertyReader.VARIABLES_FILE);
-                return systemVariables;
-                
+                mandatory = DebugQueryConfigTypes.values();
+                break;
             case POLARIS:
-                polaris = readPropertyFile(PropertyReader.POLARIS_PROPERTY_FILE);
-                // now check that all mandetory values are here.
-                for (PolarisPropertyTypes pType : PolarisPropertyTypes.values())
-                {
-                    if (polaris.get(pType.toString()) == null)
-                    {
-                        String msg = "'" + pType + "' unset in " + PropertyReader.POLARIS_PROPERTY_FILE;
-                        Logger.getLogger(PropertyReader.class.getName()).log(Level.SEVERE, msg, new NullPointerException());
-                    }
-                }
-                return polaris;
-                
+                mandatory = PolarisPropertyTypes.values();
+                break;
             case MESSAGES:
-                messagesProperties = readPropertyFile(PropertyReader.MESSAGES_PROPERTY_FILE);
-                // now check that all mandetory values are here.
-                for (MessagesConfigTypes mType : MessagesConfigTypes.values())
-                {
-                    if (messagesProperties.get(mType.toString()) == null)
-                    {
-                        String msg = "'" + mType + "' unset in " + PropertyReader.MESSAGES_PROPERTY_FILE;
-                        Logger.getLogger(PropertyReader.class.getName()).log(Level.SEVERE, msg, new NullPointerException());
-                    }
-                }
-                return messagesProperties;
-                
+                mandatory = MessagesConfigTypes.values();
+                break;
+            case BIMPORT_CITY_MAPPING: // There are no mandatory variables, so no checking is done.
+            case VARS:
+                return true;
+            default:
+                throw new UnsupportedOperationException("unsupported property file");
+        }
+        boolean isComplete = true;
+        for (Object entry : mandatory)
+        {
+            if (properties.get(entry.toString()) == null)
+            {
+                String msg = "'" + entry + "' unset in " + getFileName(type);
+                Logger.getLogger(PropertyReader.class.getName()).log(Level.SEVERE, msg, new NullPointerException());
+                isComplete = false;
+            }
+        }
+        return isComplete;
+    }
+    
+    /**
+     * 
+     * @param type of config file.
+     * @return path of the file.
+     */
+    private static String getFileName(ConfigFileTypes type)
+    {
+        switch (type)
+        {
+            case SYMPHONY: // Additional properties that are given to a customer by default at creation time.
+                return CONFIG_DIR + SYMPHONY_PROPERTY_FILE;
+            case ENVIRONMENT:
+                return CONFIG_DIR + ENVIRONMENT_FILE;
+            case SIP2:
+                return CONFIG_DIR + SIP2_FILE;
+            case BIMPORT:
+                return CONFIG_DIR + BIMPORT_PROPERTY_FILE;
+            case BIMPORT_CITY_MAPPING: // Required for Horizon users to translate site specific city codes.
+                return CONFIG_DIR + BIMPORT_CITY_MAPPING;
+            case DEBUG: // Optional config for debugging.
+                return CONFIG_DIR + DEBUG_SETTINGS_FILE;
+            case VARS: // Additional variables used by this application as a user on a system like PATH.
+                return CONFIG_DIR + VARIABLES_FILE;
+            case POLARIS:
+                return CONFIG_DIR + POLARIS_PROPERTY_FILE;
+            case MESSAGES: // Messages tailored by local library.
+                return CONFIG_DIR + MESSAGES_PROPERTY_FILE;
             default:
                 throw new UnsupportedOperationException("unsupported property file");
         }
@@ -272,9 +370,8 @@ public class PropertyReader
     private static Properties readPropertyFile(String propertyFileName)
     {
         Properties properties = new Properties();
-        try
+        try (FileInputStream fis = new FileInputStream(propertyFileName))
         {
-            FileInputStream fis = new FileInputStream(propertyFileName);
             properties.loadFromXML(fis);
         } catch (FileNotFoundException ex)
         {
@@ -290,4 +387,69 @@ public class PropertyReader
         }
         return properties;
     }
+
+    /**
+     * Reloads config files that change in the config directory. Editors often
+     * write a file in several steps so changes are collected for a moment
+     * before anything is reloaded.
+     */
+    private static final class ConfigWatcher implements Runnable
+    {
+        private final static long SETTLE_MILLIS = 250L;
+        private final WatchService watchService;
+
+        private ConfigWatcher(WatchService watchService)
+        {
+            this.watchService = watchService;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                while (true)
+                {
+                    WatchKey key = this.watchService.take();
+                    Set<ConfigFileTypes> changed = EnumSet.noneOf(ConfigFileTypes.class);
+                    while (key != null)
+                    {
+                        for (WatchEvent<?> event: key.pollEvents())
+                        {
+                            Object context = event.context();
+                            if (context instanceof Path)
+                            {
+                                addType(changed, ((Path) context).getFileName().toString());
+                            }
+                        }
+                        key.reset();
+                        key = this.watchService.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+                    }
+                    for (ConfigFileTypes type: changed)
+                    {
+                        // Files no one has asked for yet will be read when they are.
+                        if (snapshots.get(type).get() != null)
+                        {
+                            reload(type);
+                        }
+                    }
+                }
+            }
+            catch (InterruptedException | ClosedWatchServiceException ex)
+            {
+                System.out.println(new Date() + " CONFIG: stopped watching for changes.");
+            }
+        }
+
+        private void addType(Set<ConfigFileTypes> changed, String fileName)
+        {
+            for (ConfigFileTypes type: ConfigFileTypes.values())
+            {
+                if (new File(getFileName(type)).getName().equals(fileName))
+                {
+                    changed.add(type);
+                }
+            }
+        }
+    }
 }
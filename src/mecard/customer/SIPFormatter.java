@@ -121,7 +121,7 @@ public class SIPFormatter implements CustomerFormatter
         cleanDate = SIPMessage.cleanDateTime(sipMessage.getField("PB"));
         if (SIPMessage.isDate(cleanDate))
         {
-            customer.set(CustomerFieldTypes.DOB, SIPMessage.cleanDateTime(sipMessage.getField("PB"))); // Strathcona.
+            customer.set(CustomerFieldTypes.DOB, cleanDate); // Strathcona.
         }
         else
         {
@@ -26,9 +26,13 @@ import api.CommandStatus;
 import api.DummyCommand;
 import mecard.Response;
 import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.Date;
 import java.util.Properties;
 import mecard.QueryTypes;
+import mecard.RequestJournal;
 import mecard.ResponseTypes;
 import mecard.config.BImportPropertyTypes;
 import mecard.config.ConfigFileTypes;
@@ -132,6 +136,11 @@ public class BImportRequestBuilder extends ILSRequestBuilder
             throw new BImportException(BImportRequestBuilder.class.getName()
                     + " Could not create data file: '" + dataFile + "'.");
         }
+        // A journaled request is complete once this returns, so the customer must be on disk.
+        if (RequestJournal.getInstanceOf() != null)
+        {
+            sync(fTest);
+        }
         Command command = new DummyCommand.Builder()
                 .setStatus(0)
                 .setStdout(BImportRequestBuilder.SUCCESS_MARKER.toString())
@@ -139,6 +148,38 @@ public class BImportRequestBuilder extends ILSRequestBuilder
         return command;
     }
 
+    /**
+     * Forces the file's contents, and its entry in the load directory, to disk.
+     * @param file customer data file.
+     */
+    private static void sync(File file)
+    {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE))
+        {
+            channel.force(true);
+        }
+        catch (IOException ex)
+        {
+            throw new BImportException(BImportRequestBuilder.class.getName()
+                    + " Could not write data file to disk: '" + file + "'. " + ex.getMessage());
+        }
+        // A new file whose directory entry isn't on disk can still vanish.
+        File dir = file.getAbsoluteFile().getParentFile();
+        try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ))
+        {
+            channel.force(true);
+        }
+        catch (IOException ex)
+        {
+            // Windows can't open a directory to force it.
+            if (File.separatorChar != '\\')
+            {
+                throw new BImportException(BImportRequestBuilder.class.getName()
+                        + " Could not write load directory to disk: '" + dir + "'. " + ex.getMessage());
+            }
+        }
+    }
+
     @Override
     public Command getUpdateUserCommand(Customer customer, Response response, CustomerLoadNormalizer normalizer)
     {
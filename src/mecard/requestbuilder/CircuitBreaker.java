@@ -0,0 +1,379 @@
+/*
+ * Metro allows customers from any affiliate library to join any other member library.
+ *    Copyright (C) 2013  Edmonton Public Library
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301, USA.
+ *
+ */
+package mecard.requestbuilder;
+
+import api.Command;
+import api.CommandStatus;
+import api.DummyCommand;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import mecard.ResponseTypes;
+import mecard.config.CircuitStateTypes;
+import mecard.config.ConfigFileTypes;
+import mecard.config.MessagesConfigTypes;
+import mecard.config.PropertyReader;
+import mecard.exception.ServiceUnavailableException;
+
+/**
+ * Stops sending commands to an ILS backend that is failing, so requests get
+ * UNAVAILABLE straight away instead of each one waiting out a connect
+ * timeout or a hung process.
+ * <p>
+ * While {@link CircuitStateTypes#CLOSED} the outcome of the last few commands
+ * is kept. Once enough of them have failed, or have been slow, the breaker
+ * opens and commands are refused with a {@link ServiceUnavailableException}.
+ * After the open time a few trial commands are let through; if they all
+ * succeed the breaker closes again, if any fails it opens again.
+ * <p>
+ * A command fails if it throws, or its status is
+ * {@link ResponseTypes#UNAVAILABLE} or {@link ResponseTypes#ERROR}. A
+ * customer that can't be found is not a failure of the ILS.
+ * <p>
+ * There is one breaker for each {@link ResponderMethodTypes}. All settings
+ * are optional entries in environment.properties:
+ * <pre>
+ * &lt;entry key="breaker-window"&gt;20&lt;/entry&gt; commands remembered, 0 turns the breakers off.
+ * &lt;entry key="breaker-minimum-calls"&gt;10&lt;/entry&gt; commands needed before the breaker can open.
+ * &lt;entry key="breaker-failure-rate"&gt;50&lt;/entry&gt; percent of failed commands that opens the breaker.
+ * &lt;entry key="breaker-slow-call"&gt;5000&lt;/entry&gt; milliseconds after which a command is slow.
+ * &lt;entry key="breaker-slow-call-rate"&gt;80&lt;/entry&gt; percent of slow commands that opens the breaker.
+ * &lt;entry key="breaker-open-time"&gt;30000&lt;/entry&gt; milliseconds to refuse commands before trying again.
+ * &lt;entry key="breaker-half-open-calls"&gt;3&lt;/entry&gt; trial commands that must succeed to close.
+ * </pre>
+ * @author Andrew Nisbet <anisbet@epl.ca>
+ */
+public final class CircuitBreaker
+{
+    public final static String WINDOW_TAG          = "breaker-window";
+    public final static String MINIMUM_CALLS_TAG   = "breaker-minimum-calls";
+    public final static String FAILURE_RATE_TAG    = "breaker-failure-rate";
+    public final static String SLOW_CALL_TAG       = "breaker-slow-call";
+    public final static String SLOW_CALL_RATE_TAG  = "breaker-slow-call-rate";
+    public final static String OPEN_TIME_TAG       = "breaker-open-time";
+    public final static String HALF_OPEN_CALLS_TAG = "breaker-half-open-calls";
+    private final static int FAILED = 1;
+    private final static int SLOW   = 2;
+    private final static EnumMap<ResponderMethodTypes, CircuitBreaker> breakers
+            = new EnumMap<>(ResponderMethodTypes.class);
+
+    private final String name;
+    private final int minimumCalls;
+    private final int failureRate;
+    private final long slowCall;
+    private final int slowCallRate;
+    private final long openTime;
+    private final int halfOpenCalls;
+    // Outcome of each of the last commands, a ring buffer of FAILED and SLOW bits.
+    private final byte[] outcomes;
+    private int next;
+    private int calls;
+    private int failures;
+    private int slowCalls;
+    private CircuitStateTypes state;
+    private long openedAt;
+    private int trialsStarted;
+    private int trialsPassed;
+    private final EnumMap<CircuitStateTypes, AtomicLong> transitions;
+    private final AtomicLong rejected;
+
+    /**
+     * Returns the breaker of the argument backend, creating it from
+     * environment.properties on first use.
+     * @param type ILS backend.
+     * @return the breaker, or null if breakers are turned off.
+     */
+    public static CircuitBreaker getInstanceOf(ResponderMethodTypes type)
+    {
+        synchronized (breakers)
+        {
+            if (! breakers.containsKey(type))
+            {
+                Properties props = PropertyReader.getProperties(ConfigFileTypes.ENVIRONMENT);
+                int window = (int) getLong(props, WINDOW_TAG, 20L);
+                CircuitBreaker breaker = null;
+                if (window > 0)
+                {
+                    breaker = new CircuitBreaker(type.toString(), window,
+                            (int) getLong(props, MINIMUM_CALLS_TAG, 10L),
+                            (int) getLong(props, FAILURE_RATE_TAG, 50L),
+                            getLong(props, SLOW_CALL_TAG, 5000L),
+                            (int) getLong(props, SLOW_CALL_RATE_TAG, 80L),
+                            getLong(props, OPEN_TIME_TAG, 30000L),
+                            (int) getLong(props, HALF_OPEN_CALLS_TAG, 3L));
+                }
+                breakers.put(type, breaker);
+            }
+            return breakers.get(type);
+        }
+    }
+
+    /**
+     *
+     * @param name backend name used in log messages.
+     * @param window number of commands remembered.
+     * @param minimumCalls commands needed before the breaker can open.
+     * @param failureRate percentage of failed commands that opens the breaker.
+     * @param slowCall milliseconds after which a command counts as slow.
+     * @param slowCallRate percentage of slow commands that opens the breaker.
+     * @param openTime milliseconds the breaker stays open.
+     * @param halfOpenCalls trial commands that must succeed to close it.
+     */
+    CircuitBreaker(String name, int window, int minimumCalls, int failureRate,
+            long slowCall, int slowCallRate, long openTime, int halfOpenCalls)
+    {
+        this.name          = name;
+        this.outcomes      = new byte[window];
+        this.minimumCalls  = Math.max(1, Math.min(minimumCalls, window));
+        this.failureRate   = failureRate;
+        this.slowCall      = slowCall;
+        this.slowCallRate  = slowCallRate;
+        this.openTime      = openTime;
+        this.halfOpenCalls = Math.max(1, halfOpenCalls);
+        this.state         = CircuitStateTypes.CLOSED;
+        this.transitions   = new EnumMap<>(CircuitStateTypes.class);
+        for (CircuitStateTypes type: CircuitStateTypes.values())
+        {
+            this.transitions.put(type, new AtomicLong());
+        }
+        this.rejected = new AtomicLong();
+    }
+
+    /**
+     * Wraps the command so it only runs if the breaker allows it, and its
+     * outcome is counted.
+     * @param command command to guard.
+     * @return guarded command.
+     */
+    public Command wrap(final Command command)
+    {
+        return new Command()
+        {
+            @Override
+            public CommandStatus execute()
+            {
+                boolean trial = acquire();
+                long start = System.nanoTime();
+                CommandStatus status;
+                try
+                {
+                    status = command.execute();
+                }
+                catch (RuntimeException ex)
+                {
+                    record(trial, true, (System.nanoTime() - start) / 1000000L);
+                    throw ex;
+                }
+                if (status == null)
+                {
+                    // The command couldn't even start, a failure like any other.
+                    status = new DummyCommand.Builder()
+                            .setUnavailable("the command could not be started.").build().execute();
+                }
+                ResponseTypes result = status.getStatus();
+                record(trial, result == ResponseTypes.UNAVAILABLE || result == ResponseTypes.ERROR,
+                        (System.nanoTime() - start) / 1000000L);
+                return status;
+            }
+        };
+    }
+
+    /**
+     * Lets a command through or refuses it.
+     * @return true if the command is a half-open trial.
+     * @throws ServiceUnavailableException if the breaker is open.
+     */
+    synchronized boolean acquire() throws ServiceUnavailableException
+    {
+        if (this.state == CircuitStateTypes.OPEN
+                && System.currentTimeMillis() - this.openedAt >= this.openTime)
+        {
+            moveTo(CircuitStateTypes.HALF_OPEN);
+        }
+        switch (this.state)
+        {
+            case CLOSED:
+                return false;
+            case HALF_OPEN:
+                if (this.trialsStarted < this.halfOpenCalls)
+                {
+                    this.trialsStarted++;
+                    return true;
+                }
+                break;
+            default:
+                break;
+        }
+        this.rejected.incrementAndGet();
+        Properties messages = PropertyReader.getProperties(ConfigFileTypes.MESSAGES);
+        throw new ServiceUnavailableException(messages.getProperty(
+                MessagesConfigTypes.UNAVAILABLE_SERVICE.toString()));
+    }
+
+    /**
+     * Counts the outcome of a command.
+     * @param trial true if the command was a half-open trial.
+     * @param failed true if the command failed.
+     * @param millis how long the command took.
+     */
+    synchronized void record(boolean trial, boolean failed, long millis)
+    {
+        boolean slow = this.slowCall > 0 && millis >= this.slowCall;
+        if (trial)
+        {
+            if (this.state != CircuitStateTypes.HALF_OPEN)
+            {
+                return;
+            }
+            if (failed || slow)
+            {
+                moveTo(CircuitStateTypes.OPEN);
+            }
+            else if (++this.trialsPassed >= this.halfOpenCalls)
+            {
+                moveTo(CircuitStateTypes.CLOSED);
+            }
+            return;
+        }
+        // Commands that started before the breaker opened don't count.
+        if (this.state != CircuitStateTypes.CLOSED)
+        {
+            return;
+        }
+        if (this.calls == this.outcomes.length)
+        {
+            byte oldest = this.outcomes[this.next];
+            this.failures  -= oldest & FAILED;
+            this.slowCalls -= (oldest & SLOW) >> 1;
+        }
+        else
+        {
+            this.calls++;
+        }
+        this.outcomes[this.next] = (byte) ((failed ? FAILED : 0) | (slow ? SLOW : 0));
+        this.failures  += failed ? 1 : 0;
+        this.slowCalls += slow ? 1 : 0;
+        this.next = (this.next + 1) % this.outcomes.length;
+        if (this.calls >= this.minimumCalls
+                && (this.failures * 100 >= this.failureRate * this.calls
+                    || this.slowCalls * 100 >= this.slowCallRate * this.calls))
+        {
+            moveTo(CircuitStateTypes.OPEN);
+        }
+    }
+
+    private void moveTo(CircuitStateTypes newState)
+    {
+        System.out.println(new Date() + " " + this.name + " circuit breaker "
+                + this.state + " -> " + newState + " after " + this.calls + " commands, "
+                + this.failures + " failed, " + this.slowCalls + " slow.");
+        this.state = newState;
+        this.transitions.get(newState).incrementAndGet();
+        this.trialsStarted = 0;
+        this.trialsPassed  = 0;
+        if (newState == CircuitStateTypes.OPEN)
+        {
+            this.openedAt = System.currentTimeMillis();
+        }
+        else if (newState == CircuitStateTypes.CLOSED)
+        {
+            this.calls     = 0;
+            this.next      = 0;
+            this.failures  = 0;
+            this.slowCalls = 0;
+        }
+    }
+
+    /**
+     *
+     * @return current state.
+     */
+    public synchronized CircuitStateTypes getState()
+    {
+        return this.state;
+    }
+
+    /**
+     *
+     * @param type state.
+     * @return number of times the breaker has moved into the argument state.
+     */
+    public long getTransitionCount(CircuitStateTypes type)
+    {
+        return this.transitions.get(type).get();
+    }
+
+    /**
+     *
+     * @return number of commands refused since start up.
+     */
+    public long getRejectedCount()
+    {
+        return this.rejected.get();
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("CircuitBreaker[");
+        sb.append(this.name);
+        sb.append(", state=");
+        sb.append(this.state);
+        sb.append(", calls=");
+        sb.append(this.calls);
+        sb.append(", failed=");
+        sb.append(this.failures);
+        sb.append(", slow=");
+        sb.append(this.slowCalls);
+        sb.append(", rejected=");
+        sb.append(getRejectedCount());
+        for (CircuitStateTypes type: CircuitStateTypes.values())
+        {
+            sb.append(", ");
+            sb.append(type);
+            sb.append("=");
+            sb.append(getTransitionCount(type));
+        }
+        sb.append("]");
+        return sb.toString();
+    }
+
+    private static long getLong(Properties props, String tag, long defaultValue)
+    {
+        String value = props.getProperty(tag);
+        if (value == null)
+        {
+            return defaultValue;
+        }
+        try
+        {
+            return Long.parseLong(value.trim());
+        }
+        catch (NumberFormatException ex)
+        {
+            System.out.println(new Date() + " '" + tag + "' must be a number, using "
+                    + defaultValue + ".");
+            return defaultValue;
+        }
+    }
+}
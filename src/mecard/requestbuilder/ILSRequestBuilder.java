@@ -43,6 +43,25 @@ import site.CustomerLoadNormalizer;
  */
 public abstract class ILSRequestBuilder
 {
+    private CircuitBreaker breaker;
+    
+    /**
+     * Wraps a command in the circuit breaker of this builder's ILS backend,
+     * so it is refused straight away while the backend is down.
+     * @param command command to run.
+     * @return the guarded command, or the command itself if circuit breakers
+     * are turned off.
+     * @see CircuitBreaker
+     */
+    public final Command guard(Command command)
+    {
+        if (this.breaker == null)
+        {
+            return command;
+        }
+        return this.breaker.wrap(command);
+    }
+    
     /**
      *
      *
@@ -85,7 +104,29 @@ public abstract class ILSRequestBuilder
             System.out.println(ILSRequestBuilder.class.getName()
                     + " ILS: '" + serviceType + "' ");
         }
-        return mapBuilderType(serviceType, debug);
+        ILSRequestBuilder builder = mapBuilderType(serviceType, debug);
+        builder.breaker = CircuitBreaker.getInstanceOf(getResponderMethod(serviceType));
+        return builder;
+    }
+
+    /**
+     * 
+     * @param configRequestedService value from environment.properties.
+     * @return the matching method type.
+     * @throws UnsupportedCommandException if there isn't one.
+     */
+    private static ResponderMethodTypes getResponderMethod(String configRequestedService)
+        throws UnsupportedCommandException
+    {
+        for (ResponderMethodTypes type: ResponderMethodTypes.values())
+        {
+            if (configRequestedService.equalsIgnoreCase(type.toString()))
+            {
+                return type;
+            }
+        }
+        throw new UnsupportedCommandException(configRequestedService + 
+                " can't respond to request ");
     }
     
     /**
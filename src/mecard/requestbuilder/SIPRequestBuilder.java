@@ -24,6 +24,7 @@ import api.Command;
 import api.CommandStatus;
 import mecard.Response;
 import api.SIPCommand;
+import api.SIPConnectionPool;
 import api.SIPConnector;
 import api.SIPStatusMessage;
 import java.util.Date;
@@ -71,6 +72,9 @@ public class SIPRequestBuilder extends ILSRequestBuilder
                 .institution(institutionId)
                 .sipUser(user)
                 .timeout(timeout)
+                .poolSize(sipProps.getProperty(SIPConnectionPool.MIN_SIZE_TAG), 
+                        sipProps.getProperty(SIPConnectionPool.MAX_SIZE_TAG))
+                .validateInterval(sipProps.getProperty(SIPConnectionPool.VALIDATE_INTERVAL_TAG))
                 .build();
     }
 
@@ -109,6 +113,15 @@ public class SIPRequestBuilder extends ILSRequestBuilder
     public boolean isSuccessful(QueryTypes commandType, CommandStatus status, Response response)
     {
         boolean result = false;
+        // The SIP server didn't answer in time, or couldn't be reached at all.
+        if (status.getStatus() == ResponseTypes.UNAVAILABLE
+                && (commandType == QueryTypes.GET_STATUS || commandType == QueryTypes.GET_CUSTOMER))
+        {
+            response.setCode(ResponseTypes.UNAVAILABLE);
+            response.setResponse(messageProperties.getProperty(MessagesConfigTypes.UNAVAILABLE_SERVICE.toString()));
+            System.out.println(new Date() + " SIP2 service did not respond to " + commandType.name() + ".");
+            return false;
+        }
         switch (commandType)
         {
             case GET_STATUS:
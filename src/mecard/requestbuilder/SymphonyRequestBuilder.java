@@ -21,7 +21,10 @@ package mecard.requestbuilder;
 
 import api.APICommand;
 import api.Command;
+import api.CommandBatcher;
 import api.CommandStatus;
+import api.PipelineStatus;
+import api.ShellSessionPool;
 import mecard.Response;
 import java.io.File;
 import java.util.ArrayList;
@@ -58,6 +61,7 @@ import site.CustomerLoadNormalizer;
 public class SymphonyRequestBuilder extends ILSRequestBuilder
 {
     private static List<String> seluser;
+    private static List<String> seluserIds;
     private static List<String> dumpflatuser;
     private static List<String> loadFlatUserCreate;
     private static List<String> loadFlatUserUpdate;
@@ -66,6 +70,11 @@ public class SymphonyRequestBuilder extends ILSRequestBuilder
     private final String homeDirectory;
     private final String sshServer;
     private final Properties messageProperties;
+    // Long running shells for the commands, null to start a process for each.
+    private final ShellSessionPool sessions;
+    // Gather creates and updates into fewer loadflatuser runs, null if off.
+    private final CommandBatcher createBatcher;
+    private final CommandBatcher updateBatcher;
     
     public SymphonyRequestBuilder(boolean debug)
     {
@@ -77,11 +86,19 @@ public class SymphonyRequestBuilder extends ILSRequestBuilder
         // This is an optional tag that if included will run the commands remotely.
         // sshServer should now have either the name of the ssh server or "" if not defined.
         this.sshServer = symphonyProps.getProperty(PropertyReader.SSH_TAG, "");
+        this.sessions = ShellSessionPool.getInstanceOf(symphonyProps);
+        this.createBatcher = CommandBatcher.getInstanceOf("create", symphonyProps);
+        this.updateBatcher = CommandBatcher.getInstanceOf("update", symphonyProps);
         
         seluser = new ArrayList<>();
         seluser.add("seluser");
         seluser.add("-iB"); // expects barcode.
         seluser.add("-oU"); // will output user key.
+        // Finds which of some barcodes are already users.
+        seluserIds = new ArrayList<>();
+        seluserIds.add("seluser");
+        seluserIds.add("-iB"); // expects barcode.
+        seluserIds.add("-oB"); // will output the barcodes it found.
         // Dumpflatuser settings, ready for inclusion in the APICommand object.
         dumpflatuser = new ArrayList<>();
         dumpflatuser.add("dumpflatuser");
@@ -110,34 +127,12 @@ public class SymphonyRequestBuilder extends ILSRequestBuilder
     @Override
     public Command getCustomerCommand(String userId, String userPin, Response response)
     {
-        // for Symphony, this is a two stage process.
-        // 1) call seluser to get the user key. If that fails append message to reponsebuffer.
-        // if succeeds
-        // 2) create a command that will complete the transaction
-        APICommand command = new APICommand.Builder().echo(userId).commandLine(seluser).build();
-        CommandStatus status = command.execute();
-        switch(status.getStatus())
-        {
-            case UNAVAILABLE:
-                response.setResponse(messageProperties.getProperty(MessagesConfigTypes.UNAVAILABLE_SERVICE.toString()));
-                System.out.println(new Date() + "system is currently unavailable." + status.getStderr());
-                break;
-            case FAIL:
-                response.setResponse(messageProperties.getProperty(MessagesConfigTypes.ACCOUNT_NOT_FOUND.toString()));
-                System.out.println(new Date() + "account not found." + status.getStderr());
-                break;
-            case OK:
-                String customerKey = status.getStdout();
-                command = new APICommand.Builder().echo(customerKey).commandLine(dumpflatuser).build();
-                System.out.println(new Date() + " Ok.");
-                break;
-            default:
-                response.setResponse(messageProperties.getProperty(MessagesConfigTypes.ACCOUNT_NOT_FOUND.toString()));
-                System.out.println(new Date() + "an error occured while searching for account."
-                        + status.getStderr());
-                break;
-        }
-        return command;
+        // seluser finds the user key for the barcode and dumpflatuser dumps 
+        // that user, in one pipeline so it is one launch, or one ssh login.
+        APICommand.Builder builder = (this.sshServer.isEmpty() || this.sessions != null)
+                ? new APICommand.Builder().session(this.sessions)
+                : new APICommand.Builder(this.sshServer);
+        return builder.echo(userId).commandLine(seluser).pipe(dumpflatuser).build();
     }
 
     @Override
@@ -155,11 +150,12 @@ public class SymphonyRequestBuilder extends ILSRequestBuilder
         normalizer.finalize(customer, formattedCustomer, response);
         List<String> flatFileLines = formattedCustomer.getFormattedCustomer();
         this.printReceipt(customer, flatFileLines);
-        if (this.sshServer.isEmpty())
+        if (this.createBatcher != null)
         {
-            return new APICommand.Builder().cat(flatFileLines).commandLine(loadFlatUserCreate).build();
+            return this.createBatcher.getCommand(customer.get(CustomerFieldTypes.ID), flatFileLines, 
+                    new LoadFlatUser(loadFlatUserCreate, true));
         }
-        return new APICommand.Builder(this.sshServer).cat(flatFileLines).commandLine(loadFlatUserCreate).build();
+        return getLoadCommand(flatFileLines, loadFlatUserCreate);
     }
     
     @Override
@@ -171,11 +167,27 @@ public class SymphonyRequestBuilder extends ILSRequestBuilder
         normalizer.finalize(customer, formattedCustomer, response);
         List<String> flatFileLines = formattedCustomer.getFormattedCustomer();
         this.printReceipt(customer, flatFileLines);
-        if (this.sshServer.isEmpty())
+        if (this.updateBatcher != null)
+        {
+            return this.updateBatcher.getCommand(customer.get(CustomerFieldTypes.ID), flatFileLines, 
+                    new LoadFlatUser(loadFlatUserUpdate, false));
+        }
+        return getLoadCommand(flatFileLines, loadFlatUserUpdate);
+    }
+
+    /**
+     * 
+     * @param flatFileLines one or more flat users.
+     * @param loadFlatUser loadflatuser and its arguments.
+     * @return command that loads the users.
+     */
+    private Command getLoadCommand(List<String> flatFileLines, List<String> loadFlatUser)
+    {
+        if (this.sshServer.isEmpty() || this.sessions != null)
         {
-            return new APICommand.Builder().cat(flatFileLines).commandLine(loadFlatUserUpdate).build();
+            return new APICommand.Builder().session(this.sessions).cat(flatFileLines).commandLine(loadFlatUser).build();
         }
-        return new APICommand.Builder(this.sshServer).cat(flatFileLines).commandLine(loadFlatUserUpdate).build();
+        return new APICommand.Builder(this.sshServer).cat(flatFileLines).commandLine(loadFlatUser).build();
     }
 
     @Override
@@ -205,6 +217,15 @@ public class SymphonyRequestBuilder extends ILSRequestBuilder
                     System.out.println("account not found.");
                     result = false;
                 }
+                // seluser failed for some other reason, like not being there
+                // or not being able to log in, so Symphony couldn't be asked.
+                else if (status.getStatus() == ResponseTypes.UNAVAILABLE || isSeluserFailed(status))
+                {
+                    response.setCode(ResponseTypes.UNAVAILABLE);
+                    response.setResponse(messageProperties.getProperty(MessagesConfigTypes.UNAVAILABLE_SERVICE.toString()));
+                    System.out.println(new Date() + " system is currently unavailable." + status.getStderr());
+                    result = false;
+                }
                 else
                 {
                     response.setCode(ResponseTypes.SUCCESS);
@@ -255,6 +276,27 @@ public class SymphonyRequestBuilder extends ILSRequestBuilder
         return result;
     }
     
+    /**
+     * 
+     * @param status status of the seluser | dumpflatuser pipeline.
+     * @return true if seluser, the first stage, didn't exit cleanly.
+     */
+    private boolean isSeluserFailed(CommandStatus status)
+    {
+        if (! (status instanceof PipelineStatus))
+        {
+            return false;
+        }
+        PipelineStatus pipeline = (PipelineStatus) status;
+        if (pipeline.getStageExitStatus(0) != 0)
+        {
+            System.out.println(new Date() + " seluser exited with " + pipeline.getStageExitStatus(0)
+                    + ": " + pipeline.getStageStderr(0));
+            return true;
+        }
+        return false;
+    }
+    
     @Override
     public boolean tidy()
     {
@@ -277,4 +319,37 @@ public class SymphonyRequestBuilder extends ILSRequestBuilder
         UserFile userFile = new UserFile(userDataFileName);
         userFile.addUserData(flatUser);
     }
+
+    /**
+     * Loads a batch of flat users the way this request would load one.
+     */
+    private class LoadFlatUser implements CommandBatcher.Loader
+    {
+        private final List<String> loadFlatUser;
+        // A second create of the same user fails, a second update doesn't.
+        private final boolean create;
+
+        private LoadFlatUser(List<String> loadFlatUser, boolean create)
+        {
+            this.loadFlatUser = loadFlatUser;
+            this.create       = create;
+        }
+
+        @Override
+        public Command getCommand(List<String> lines)
+        {
+            return getLoadCommand(lines, this.loadFlatUser);
+        }
+
+        @Override
+        public Command getCheckCommand(List<String> keys)
+        {
+            if (! this.create)
+            {
+                return null;
+            }
+            // Same plumbing as a load, the barcodes go in on stdin.
+            return getLoadCommand(keys, seluserIds);
+        }
+    }
 }
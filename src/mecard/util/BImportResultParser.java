@@ -20,27 +20,75 @@
  */
 package mecard.util;
 
+import api.LineListener;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import mecard.customer.UserFile;
 import mecard.requestbuilder.BImportRequestBuilder;
 
 /**
  * This class interprets results from the bimport process, received from 
  * STDOUT (Windows) and parses the error message into a meaningful signal.
+ * <p>
+ * Given to {@link api.APICommand.Builder#stdout(LineListener)} the parser reads
+ * bimport's report as it is written, and a customer's '.fail' file is 
+ * written in the report directory as soon as their record fails, so a long 
+ * load's progress can be followed, and the report is never held in memory.
+ * The lines after a failed customer's result, up to the next result, blank
+ * line, header or statistics, are the reason and go in their '.fail' file.
  * @author Andrew Nisbet <anisbet@epl.ca>
  */
-public class BImportResultParser implements ResultParser
+public class BImportResultParser implements ResultParser, LineListener
 {
     private int successfulCustomers;
     private int failedCustomers;
     private final Pattern resultPattern;
     private final Pattern cardPattern;
     private List<String> loadFailedCustomers;
+    private final String reportDirPath;
+    private CustomerListener listener;
+    private UserFile failFile;
     
+    /**
+     * Gets each customer's result as soon as it is parsed.
+     */
+    public interface CustomerListener
+    {
+        /**
+         * 
+         * @param userId the customer's id.
+         * @param loaded true if the customer loaded and false otherwise.
+         */
+        void onCustomer(String userId, boolean loaded);
+    }
+    
+    /**
+     * Parses a complete bimport report.
+     * @param results bimport's stdout.
+     * @param reportDirPath not used, no fail files are written.
+     */
     public BImportResultParser(String results, String reportDirPath)
+    {
+        this(null);
+        List<String> allLines    = new ArrayList<>();
+        allLines.addAll(Arrays.asList(results.split("\n")));
+        for (String line: allLines)
+        {
+            onLine(line);
+        }
+        System.out.println(this.toString());
+    }
+    
+    /**
+     * Creates a parser to be fed bimport's report one line at a time with 
+     * {@link #onLine(String)}.
+     * @param reportDirPath directory, with trailing separator, for failed 
+     * customers' '.fail' files, null to not write them.
+     */
+    public BImportResultParser(String reportDirPath)
     {
         //record line   action key(s)
         //------ ------ ------ ---------------------------------------------------------
@@ -58,43 +106,104 @@ public class BImportResultParser implements ResultParser
         this.resultPattern       = Pattern.compile("^\\d{1,}\\s+\\d{1,}.*");
         this.cardPattern         = Pattern.compile("\\d{2,}");
         this.loadFailedCustomers = new ArrayList<>();
-        List<String> allLines    = new ArrayList<>();
-        allLines.addAll(Arrays.asList(results.split("\n")));
-        // Look for the pattern of success
-        for (String line: allLines)
+        this.reportDirPath       = reportDirPath;
+    }
+    
+    /**
+     * 
+     * @param customerListener gets each customer's result, null for none.
+     */
+    public void setCustomerListener(CustomerListener customerListener)
+    {
+        this.listener = customerListener;
+    }
+    
+    /**
+     * Parses the next line of bimport's report.
+     * @param line line of bimport's stdout.
+     */
+    @Override
+    public void onLine(String line)
+    {
+        line = line.trim();
+        Matcher matcher = this.resultPattern.matcher(line);
+        // If you find the following line:
+        //     1      1 modify 23877000204705
+        // you have a report line.
+        if (! matcher.find())
         {
-            line = line.trim();
-            Matcher matcher = this.resultPattern.matcher(line);
-            // If you find the following line:
-            //     1      1 modify 23877000204705
-            // you have a report line.
-            if (matcher.find())
+            // The reason a customer failed follows their report line, and 
+            // ends at a blank line, the next header or the statistics.
+            if (isReportEnd(line))
+            {
+                this.failFile = null;
+            }
+            else if (this.failFile != null)
             {
-                if (line.endsWith(BImportRequestBuilder.SUCCESS_MARKER.toString()))
-                {
-                    this.successfulCustomers++;
-                }
-                else
-                {
-                    // Try and set the user's id a fail file will be created later.
-                    String userId = "99999012345678";
-                    if (getUserId(line).isEmpty() == false)
-                    {
-                        userId = getUserId(line);
-                    }
-                    this.loadFailedCustomers.add(userId);
-                    System.out.println("load fail:"+userId);
-                    this.failedCustomers++;
-                }
+                addFailure(line);
             }
+            return;
+        }
+        this.failFile = null;
+        // Try and set the user's id a fail file will be created.
+        String userId = "99999012345678";
+        if (getUserId(line).isEmpty() == false)
+        {
+            userId = getUserId(line);
+        }
+        boolean loaded = line.endsWith(BImportRequestBuilder.SUCCESS_MARKER.toString());
+        if (loaded)
+        {
+            this.successfulCustomers++;
+        }
+        else
+        {
+            this.loadFailedCustomers.add(userId);
+            System.out.println("load fail:"+userId);
+            this.failedCustomers++;
+            if (this.reportDirPath != null)
+            {
+                this.failFile = new UserFile(this.reportDirPath + userId + ".fail");
+                addFailure(line);
+            }
+        }
+        if (this.listener != null)
+        {
+            this.listener.onCustomer(userId, loaded);
         }
-        int total = (this.failedCustomers + this.successfulCustomers);
-        System.out.println("Customer loads attempted: " + total);
-        System.out.println("success: " + this.successfulCustomers 
-                + " fail: " + this.failedCustomers);
     }
     
+    /**
+     * Adds another load's results to these, so the results of loads run
+     * side by side can be reported as one.
+     * @param other results of another load.
+     */
+    public void add(BImportResultParser other)
+    {
+        this.successfulCustomers += other.getSuccessfulCustomers();
+        this.failedCustomers     += other.getFailedCustomers();
+        this.loadFailedCustomers.addAll(other.getFailedCustomerKeys());
+    }
     
+    /**
+     * 
+     * @param line trimmed line of bimport's report that isn't a result.
+     * @return true if the line is a blank, a header or the statistics.
+     */
+    private boolean isReportEnd(String line)
+    {
+        return line.isEmpty() 
+                || line.startsWith("------") 
+                || line.contains("record line") 
+                || line.startsWith("statistics:");
+    }
+    
+    private void addFailure(String line)
+    {
+        List<String> data = new ArrayList<>();
+        data.add(line + "\n");
+        this.failFile.addUserData(data);
+    }
     
     /**
      * 
@@ -142,4 +251,12 @@ public class BImportResultParser implements ResultParser
     {
         return this.loadFailedCustomers;
     }
+    
+    @Override
+    public String toString()
+    {
+        int total = (this.failedCustomers + this.successfulCustomers);
+        return "Customer loads attempted: " + total + "\nsuccess: " 
+                + this.successfulCustomers + " fail: " + this.failedCustomers;
+    }
 }
@@ -0,0 +1,119 @@
+/*
+ * Metro allows customers from any affiliate library to join any other member library.
+ *    Copyright (C) 2013  Edmonton Public Library
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301, USA.
+ *
+ */
+package mecard.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lets concurrent callers asking for the same thing share one piece of work.
+ * The first caller with a key runs the task on its own thread; callers that
+ * arrive with the same key while it runs wait for it and get the same
+ * result, or the same exception. Nothing is kept once the task finishes,
+ * so a caller never sees a result from before it asked.
+ * @param <K> key type.
+ * @param <V> result type.
+ * @author Andrew Nisbet <anisbet@epl.ca>
+ */
+public final class SingleFlight<K, V>
+{
+    private final ConcurrentMap<K, FutureTask<V>> inFlight;
+    private final AtomicLong shared;
+
+    public SingleFlight()
+    {
+        this.inFlight = new ConcurrentHashMap<>();
+        this.shared   = new AtomicLong();
+    }
+
+    /**
+     * Runs the task, or waits for the same task already running.
+     * @param key identifies the work.
+     * @param task work to do if no one else is doing it.
+     * @return result of the task.
+     * @throws RuntimeException thrown by the task, or wrapping a checked
+     * exception it threw.
+     */
+    public V execute(K key, Callable<V> task)
+    {
+        FutureTask<V> future = new FutureTask<>(task);
+        FutureTask<V> running = this.inFlight.putIfAbsent(key, future);
+        if (running == null)
+        {
+            try
+            {
+                future.run();
+            }
+            finally
+            {
+                this.inFlight.remove(key, future);
+            }
+            running = future;
+        }
+        else
+        {
+            this.shared.incrementAndGet();
+        }
+        try
+        {
+            return running.get();
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted waiting for " + key, ex);
+        }
+        catch (ExecutionException ex)
+        {
+            if (ex.getCause() instanceof RuntimeException)
+            {
+                throw (RuntimeException) ex.getCause();
+            }
+            if (ex.getCause() instanceof Error)
+            {
+                throw (Error) ex.getCause();
+            }
+            throw new RuntimeException(ex.getCause());
+        }
+    }
+
+    /**
+     *
+     * @return number of tasks running now.
+     */
+    public int getInFlightCount()
+    {
+        return this.inFlight.size();
+    }
+
+    /**
+     *
+     * @return number of callers that got the result of someone else's task.
+     */
+    public long getSharedCount()
+    {
+        return this.shared.get();
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Metro allows customers from any affiliate library to join any other member library.
+ *    Copyright (C) 2013  Edmonton Public Library
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301, USA.
+ *
+ */
+package mecard.util;
+
+import java.util.Date;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import mecard.config.ThreadModeTypes;
+
+/**
+ * Single place Metro gets threads for blocking work, mainly client connections.
+ * <p>
+ * In {@link ThreadModeTypes#PLATFORM} mode every task gets a brand new thread,
+ * which is how Metro has always worked. In {@link ThreadModeTypes#POOLED} mode
+ * tasks run on a shared pool of daemon threads that are re-used once their
+ * task is done, and that are created with a small stack, so thousands of
+ * lookups blocked on I/O cost far less memory and no thread start up.
+ * The stack size only applies in pooled mode; in platform mode every thread
+ * gets the JVM default, as it always has.
+ * <p>
+ * Optional environment.properties entries:
+ * <pre>
+ * &lt;entry key="thread-mode"&gt;pooled&lt;/entry&gt;
+ * &lt;entry key="thread-stack-size"&gt;256&lt;/entry&gt; kilobytes in pooled mode, 0 for the JVM default.
+ * </pre>
+ * @author Andrew Nisbet <anisbet@epl.ca>
+ */
+public final class ThreadRunner
+{
+    public final static String THREAD_MODE_TAG = "thread-mode";
+    public final static String STACK_SIZE_TAG  = "thread-stack-size";
+    private final static long DEFAULT_POOLED_STACK_SIZE = 256L * 1024L;
+    private static ThreadModeTypes mode = ThreadModeTypes.PLATFORM;
+    private static long stackSize = 0L;
+    private static ExecutorService pool;
+
+    private ThreadRunner()
+    { }
+
+    /**
+     * Reads the thread mode and stack size from the environment properties.
+     * @param properties environment properties.
+     */
+    public static void configure(Properties properties)
+    {
+        String modeName = properties.getProperty(THREAD_MODE_TAG, ThreadModeTypes.PLATFORM.toString());
+        ThreadModeTypes requestedMode = ThreadModeTypes.PLATFORM;
+        for (ThreadModeTypes type: ThreadModeTypes.values())
+        {
+            if (type.toString().equalsIgnoreCase(modeName.trim()))
+            {
+                requestedMode = type;
+            }
+        }
+        long requestedStack = (requestedMode == ThreadModeTypes.POOLED) ? DEFAULT_POOLED_STACK_SIZE : 0L;
+        String stack = properties.getProperty(STACK_SIZE_TAG);
+        if (stack != null && requestedMode != ThreadModeTypes.POOLED)
+        {
+            System.out.println(new Date() + " '" + STACK_SIZE_TAG + "' only applies to "
+                    + ThreadModeTypes.POOLED + " mode, ignoring it.");
+        }
+        else if (stack != null)
+        {
+            try
+            {
+                requestedStack = Long.parseLong(stack.trim()) * 1024L;
+            }
+            catch (NumberFormatException ex)
+            {
+                System.out.println(new Date() + " '" + STACK_SIZE_TAG
+                        + "' must be a number of kilobytes, using default.");
+            }
+        }
+        setMode(requestedMode, requestedStack);
+        System.out.println(new Date() + " thread mode: " + mode + ", stack: "
+                + (stackSize == 0L ? "default" : (stackSize / 1024L) + "k"));
+    }
+
+    /**
+     * Changes the thread mode. Tasks already started are not affected.
+     * @param threadMode mode to use from now on.
+     * @param stackBytes stack size of new threads in bytes, 0 for the JVM 
+     * default. Only used in pooled mode.
+     */
+    public static synchronized void setMode(ThreadModeTypes threadMode, long stackBytes)
+    {
+        mode      = threadMode;
+        stackSize = (threadMode == ThreadModeTypes.POOLED) ? stackBytes : 0L;
+        if (pool != null)
+        {
+            pool.shutdown();
+            pool = null;
+        }
+        if (mode == ThreadModeTypes.POOLED)
+        {
+            // A cached pool never makes a task wait for another to finish.
+            pool = Executors.newCachedThreadPool(new RunnerThreadFactory("MetroPooled"));
+        }
+    }
+
+    /**
+     *
+     * @return the current thread mode.
+     */
+    public static synchronized ThreadModeTypes getMode()
+    {
+        return mode;
+    }
+
+    /**
+     *
+     * @return stack size of new threads in bytes, 0 for the JVM default.
+     */
+    static synchronized long getStackSize()
+    {
+        return stackSize;
+    }
+
+    /**
+     * Runs the task on a thread of the configured mode.
+     * @param task work to do.
+     * @param name name for the thread, used in platform mode.
+     * @return Future that completes when the task finishes.
+     */
+    public static Future<?> start(Runnable task, String name)
+    {
+        ExecutorService executor;
+        synchronized (ThreadRunner.class)
+        {
+            executor = pool;
+        }
+        if (executor != null)
+        {
+            return executor.submit(task);
+        }
+        FutureTask<Void> future = new FutureTask<>(task, null);
+        newThread(future, name).start();
+        return future;
+    }
+
+    /**
+     * Creates, but does not start, a thread with the configured stack size.
+     * @param task what the thread will run.
+     * @param name thread name.
+     * @return new daemon thread.
+     */
+    public static Thread newThread(Runnable task, String name)
+    {
+        Thread thread = new Thread(null, task, name, stackSize);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * Thread factory for executors elsewhere in Metro so their threads follow
+     * the configured stack size.
+     */
+    public final static class RunnerThreadFactory implements ThreadFactory
+    {
+        private final AtomicInteger count = new AtomicInteger();
+        private final String prefix;
+
+        public RunnerThreadFactory(String prefix)
+        {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r)
+        {
+            return ThreadRunner.newThread(r, prefix + "-" + count.incrementAndGet());
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package api;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import mecard.ResponseTypes;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Andrew Nisbet <anisbet@epl.ca>
+ */
+public class CommandBatcherTest
+{
+    private final String loadflatuser;
+
+    public CommandBatcherTest() throws Exception
+    {
+        // Stand in for loadflatuser that echoes the ids it loads, and refuses 
+        // ids ending in 9 the way Symphony does, without saying whose they were.
+        loadflatuser = script("loadflatuser", "while read line; do\n"
+                + "  case \"$line\" in\n"
+                + "    *.USER_ID.*9) echo \"**error number 111 on user start, cat=0 seq=0 stat=0\" 1>&2;;\n"
+                + "    *.USER_ID.*) echo \"$line\";;\n"
+                + "  esac\n"
+                + "done\n");
+    }
+
+    private static String script(String name, String body) throws Exception
+    {
+        File script = File.createTempFile(name, ".sh");
+        script.deleteOnExit();
+        try (FileWriter writer = new FileWriter(script))
+        {
+            writer.write("#!/bin/sh\n" + body);
+        }
+        assertTrue(script.setExecutable(true));
+        return script.getAbsolutePath();
+    }
+
+    /**
+     * Counts the loads it makes.
+     */
+    private class CountingLoader implements CommandBatcher.Loader
+    {
+        private final AtomicInteger loads = new AtomicInteger();
+
+        @Override
+        public Command getCommand(List<String> lines)
+        {
+            loads.incrementAndGet();
+            return new APICommand.Builder().cat(lines).commandLine(Arrays.asList(loadflatuser)).build();
+        }
+
+        @Override
+        public Command getCheckCommand(List<String> keys)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Loads with stand ins for loadflatuser -mc and seluser -iB -oB that
+     * keep the users they create in a file. Like Symphony, loadflatuser logs
+     * to stderr, answers only user keys on stdout and refuses, with error 111,
+     * a user who is already there, or ids ending in 9.
+     */
+    private static class CreatingLoader implements CommandBatcher.Loader
+    {
+        private final AtomicInteger loads = new AtomicInteger();
+        private final File users;
+        private final String loadflatuser;
+        private final String seluser;
+
+        private CreatingLoader(String... existing) throws Exception
+        {
+            users = File.createTempFile("users", ".lst");
+            users.deleteOnExit();
+            try (FileWriter writer = new FileWriter(users))
+            {
+                for (String id: existing)
+                {
+                    writer.write(id + "\n");
+                }
+            }
+            loadflatuser = script("loadflatuser", "echo \"**Symphony \\$<users> \\$<load> \\$<started_on>\" 1>&2\n"
+                    + "while read line; do\n"
+                    + "  case \"$line\" in\n"
+                    + "    *.USER_ID.*)\n"
+                    + "      id=${line##*|a}\n"
+                    + "      if grep -qx \"$id\" \"$1\" || [ \"${id%9}\" != \"$id\" ]; then\n"
+                    + "        echo \"**error number 111 on user start, cat=0 seq=0 stat=0\" 1>&2\n"
+                    + "      else\n"
+                    + "        echo \"$id\" >> \"$1\"\n"
+                    + "        echo \"$(wc -l < \"$1\" | tr -d ' ')|\"\n"
+                    + "      fi;;\n"
+                    + "  esac\n"
+                    + "done\n"
+                    + "echo \"**Symphony \\$<users> \\$<load> \\$<ended_on>\" 1>&2\n");
+            seluser = script("seluser", "while read id; do\n"
+                    + "  if grep -qx \"$id\" \"$1\"; then\n"
+                    + "    echo \"$id|\"\n"
+                    + "  else\n"
+                    + "    echo \"**error number 111 on user start, cat=0 seq=0 stat=0\" 1>&2\n"
+                    + "  fi\n"
+                    + "done\n");
+        }
+
+        @Override
+        public Command getCommand(List<String> lines)
+        {
+            loads.incrementAndGet();
+            return new APICommand.Builder().cat(lines)
+                    .commandLine(Arrays.asList(loadflatuser, users.getAbsolutePath())).build();
+        }
+
+        @Override
+        public Command getCheckCommand(List<String> keys)
+        {
+            return new APICommand.Builder().cat(keys)
+                    .commandLine(Arrays.asList(seluser, users.getAbsolutePath())).build();
+        }
+    }
+
+    private static List<String> flatUser(String id)
+    {
+        return Arrays.asList("*** DOCUMENT BOUNDARY ***", "FORM=LDUSER", ".USER_ID.   |a" + id);
+    }
+
+    /**
+     * Runs a load for each id at the same time.
+     */
+    private List<CommandStatus> loadAll(final CommandBatcher batcher, 
+            final CommandBatcher.Loader loader, List<String> ids) throws Exception
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(ids.size());
+        List<Future<CommandStatus>> futures = new ArrayList<>();
+        for (final String id: ids)
+        {
+            futures.add(executor.submit(new Callable<CommandStatus>()
+            {
+                @Override
+                public CommandStatus call()
+                {
+                    return batcher.getCommand(id, flatUser(id), loader).execute();
+                }
+            }));
+        }
+        List<CommandStatus> results = new ArrayList<>();
+        for (Future<CommandStatus> future: futures)
+        {
+            results.add(future.get());
+        }
+        executor.shutdown();
+        return results;
+    }
+
+    /**
+     * Test of getCommand method, of class CommandBatcher.
+     */
+    @Test
+    public void testBatch() throws Exception
+    {
+        System.out.println("==batch==");
+        CommandBatcher batcher = new CommandBatcher("test");
+        batcher.configure(500L, 20);
+        CountingLoader loader = new CountingLoader();
+        List<CommandStatus> results = loadAll(batcher, loader, 
+                Arrays.asList("21221000000001", "21221000000002", "21221000000003", "21221000000004"));
+        assertEquals(1, loader.loads.get());
+        assertEquals(1, batcher.getBatchCount());
+        for (CommandStatus status: results)
+        {
+            assertEquals(ResponseTypes.COMMAND_COMPLETED, status.getStatus());
+            assertFalse(status.getStdout().isEmpty());
+            assertFalse(status.getStderr().contains("**error"));
+        }
+    }
+
+    /**
+     * Errors that can't be matched to a record send the unmatched records
+     * through on their own.
+     */
+    @Test
+    public void testFallback() throws Exception
+    {
+        System.out.println("==fallback==");
+        CommandBatcher batcher = new CommandBatcher("test");
+        batcher.configure(500L, 3);
+        CountingLoader loader = new CountingLoader();
+        List<CommandStatus> results = loadAll(batcher, loader, 
+                Arrays.asList("21221000000001", "21221000000009", "21221000000003"));
+        // The full batch went straight away, then the bad record alone.
+        assertEquals(2, loader.loads.get());
+        assertEquals(1, batcher.getFallbackCount());
+        assertTrue(results.get(0).getStdout().contains("21221000000001"));
+        assertFalse(results.get(0).getStdout().contains("21221000000003"));
+        assertFalse(results.get(0).getStderr().contains("**error"));
+        assertTrue(results.get(1).getStderr().contains("**error number 111"));
+        assertTrue(results.get(1).getStdout().startsWith("0"));
+        assertFalse(results.get(2).getStderr().contains("**error"));
+    }
+
+    /**
+     * A create that fails in a batch doesn't make the others it created fail,
+     * and a customer who is already there isn't loaded with the rest.
+     */
+    @Test
+    public void testCreateFallback() throws Exception
+    {
+        System.out.println("==create fallback==");
+        CommandBatcher batcher = new CommandBatcher("test");
+        batcher.configure(500L, 4);
+        CreatingLoader loader = new CreatingLoader("21221000000005");
+        List<CommandStatus> results = loadAll(batcher, loader, 
+                Arrays.asList("21221000000001", "21221000000005", "21221000000009", "21221000000003"));
+        // The batch, then the existing customer and the bad record on their own.
+        assertEquals(3, loader.loads.get());
+        assertEquals(2, batcher.getFallbackCount());
+        assertTrue(results.get(0).getStdout().contains("21221000000001"));
+        assertFalse(results.get(0).getStderr().contains("**error"));
+        assertTrue(results.get(1).getStderr().contains("**error number 111"));
+        assertTrue(results.get(2).getStderr().contains("**error number 111"));
+        assertTrue(results.get(3).getStdout().contains("21221000000003"));
+        assertFalse(results.get(3).getStderr().contains("**error"));
+    }
+
+    /**
+     * A second version of a customer doesn't share a batch with the first.
+     */
+    @Test
+    public void testSameKey() throws Exception
+    {
+        System.out.println("==same key==");
+        CommandBatcher batcher = new CommandBatcher("test");
+        batcher.configure(300L, 20);
+        CountingLoader loader = new CountingLoader();
+        List<CommandStatus> results = loadAll(batcher, loader, 
+                Arrays.asList("21221000000001", "21221000000001"));
+        assertEquals(2, loader.loads.get());
+        assertEquals(2, batcher.getBatchCount());
+        for (CommandStatus status: results)
+        {
+            assertEquals(ResponseTypes.COMMAND_COMPLETED, status.getStatus());
+        }
+    }
+
+    /**
+     * Test of isMentioned method, of class CommandBatcher.
+     */
+    @Test
+    public void testIsMentioned()
+    {
+        System.out.println("==isMentioned==");
+        assertTrue(CommandBatcher.isMentioned(".USER_ID.   |a21221000000001", "21221000000001"));
+        assertFalse(CommandBatcher.isMentioned(".USER_ID.   |a212210000000012", "21221000000001"));
+        assertFalse(CommandBatcher.isMentioned("321221000000001", "21221000000001"));
+        assertTrue(CommandBatcher.isMentioned("x 3 21221000000001", "21221000000001"));
+        assertFalse(CommandBatcher.isMentioned("anything", ""));
+    }
+}
@@ -0,0 +1,131 @@
+package api;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+/**
+ * Compares how many short commands a second can be run with three new
+ * threads watching each one, as CommandWatcher used to, against the shared
+ * stream pool and reaper it uses now. Not a unit test, run it by hand:
+ * <pre>
+ * java -cp ... api.CommandWatcherBenchmark [iterations] [rounds]
+ * </pre>
+ * Each round runs every case the given number of times; the first round is
+ * warm up and is not reported.
+ * @author Andrew Nisbet <anisbet@epl.ca>
+ */
+public class CommandWatcherBenchmark
+{
+    private final static String[] COMMAND = {"/bin/sh", "-c", "echo out; echo err 1>&2"};
+    // Stops the JIT from discarding work whose result is never used.
+    private static int sink;
+
+    public static void main(String[] args) throws Exception
+    {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        for (int round = 0; round <= rounds; round++)
+        {
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+            {
+                sink += runThreeThreads().getStdout().length();
+            }
+            report(round, "thread per stream", iterations, start);
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+            {
+                Process process = new ProcessBuilder(COMMAND).start();
+                CommandStatus status = new CommandStatus();
+                new CommandWatcher(process, status, 30000L).start();
+                sink += status.getStdout().length();
+            }
+            report(round, "shared reaper", iterations, start);
+        }
+        System.out.println("(" + sink + ")");
+    }
+
+    /**
+     * The old way: a new thread each for stdout, stderr and the exit value.
+     */
+    private static CommandStatus runThreeThreads() throws Exception
+    {
+        final Process process = new ProcessBuilder(COMMAND).start();
+        final CommandStatus status = new CommandStatus();
+        status.setStarted();
+        Thread out = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                drain(process.getInputStream(), status, true);
+            }
+        });
+        Thread err = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                drain(process.getErrorStream(), status, false);
+            }
+        });
+        Thread end = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    status.setEnded(process.waitFor());
+                }
+                catch (InterruptedException ex)
+                {
+                    status.setError(ex);
+                }
+            }
+        });
+        out.start();
+        err.start();
+        end.start();
+        end.join();
+        out.join();
+        err.join();
+        return status;
+    }
+
+    private static void drain(InputStream stream, CommandStatus status, boolean isStdout)
+    {
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(stream)))
+        {
+            String read;
+            while ((read = in.readLine()) != null)
+            {
+                if (isStdout)
+                {
+                    status.setStdout(read);
+                }
+                else
+                {
+                    status.setStderr(read);
+                }
+            }
+        }
+        catch (IOException ex)
+        {
+            status.setError(ex);
+        }
+    }
+
+    private static void report(int round, String name, int iterations, long start)
+    {
+        if (round == 0)
+        {
+            return;
+        }
+        long nanos = System.nanoTime() - start;
+        System.out.println("round " + round + " " + name + ": " + (nanos / iterations / 1000L) 
+                + " us/op, " + (iterations * 1000000000L / nanos) + " commands/s");
+    }
+}
@@ -0,0 +1,111 @@
+package api;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import mecard.ResponseTypes;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Andrew Nisbet <anisbet@epl.ca>
+ */
+public class CommandWatcherTest
+{
+
+    public CommandWatcherTest()
+    {
+    }
+
+    private CommandStatus run(long timeout, String script) throws Exception
+    {
+        List<String> cmd = new ArrayList<>(Arrays.asList("/bin/sh", "-c", script));
+        Process process = new ProcessBuilder(cmd).start();
+        process.getOutputStream().close();
+        CommandStatus status = new CommandStatus();
+        new CommandWatcher(process, status, timeout).start();
+        return status;
+    }
+
+    /**
+     * Test of start method, of class CommandWatcher.
+     */
+    @Test
+    public void testStart() throws Exception
+    {
+        System.out.println("==start==");
+        CommandStatus status = run(5000L, "echo out; echo err 1>&2; exit 3");
+        assertEquals(ResponseTypes.COMMAND_COMPLETED, status.getStatus());
+        assertEquals("out\n3\n", status.getStdout());
+        assertEquals("err\n3\n", status.getStderr());
+    }
+
+    /**
+     * Output larger than a pipe buffer on both streams doesn't stall the process.
+     */
+    @Test
+    public void testLargeOutput() throws Exception
+    {
+        System.out.println("==large output==");
+        CommandStatus status = run(10000L, 
+                "i=0; while [ $i -lt 5000 ]; do echo line$i; echo eline$i 1>&2; i=$((i+1)); done");
+        assertEquals(ResponseTypes.COMMAND_COMPLETED, status.getStatus());
+        assertTrue(status.getStdout().contains("line4999\n"));
+        assertTrue(status.getStderr().contains("eline4999\n"));
+    }
+
+    /**
+     * A process that runs past its timeout is killed and reported unavailable.
+     */
+    @Test
+    public void testTimeout() throws Exception
+    {
+        System.out.println("==timeout==");
+        long start = System.currentTimeMillis();
+        CommandStatus status = run(300L, "exec sleep 10");
+        long elapsed = System.currentTimeMillis() - start;
+        System.out.println("killed after " + elapsed + "ms: " + status.getStderr());
+        assertEquals(ResponseTypes.UNAVAILABLE, status.getStatus());
+        assertTrue(elapsed < 5000L);
+    }
+
+    /**
+     * A child that outlives the killed process, and holds its output open,
+     * doesn't hold up the answer.
+     */
+    @Test
+    public void testTimeoutChildHoldsOutput() throws Exception
+    {
+        System.out.println("==timeout child holds output==");
+        long start = System.currentTimeMillis();
+        CommandStatus status = run(500L, "sleep 5 | cat");
+        long elapsed = System.currentTimeMillis() - start;
+        System.out.println("answered after " + elapsed + "ms: " + status.getStderr());
+        assertEquals(ResponseTypes.UNAVAILABLE, status.getStatus());
+        assertTrue(elapsed < 500L + CommandWatcher.READ_GRACE_MILLIS + 1000L);
+    }
+
+    /**
+     * Test of waitFor method, of class CommandWatcher.
+     */
+    @Test
+    public void testWaitFor() throws Exception
+    {
+        System.out.println("==waitFor==");
+        Process process = new ProcessBuilder("/bin/sh", "-c", "exit 7").start();
+        final CommandWatcher watcher = new CommandWatcher(process, new CommandStatus());
+        Thread thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                watcher.start();
+            }
+        });
+        thread.start();
+        assertEquals(7, watcher.waitFor());
+        assertFalse(watcher.isKilled());
+        thread.join();
+    }
+}
@@ -0,0 +1,210 @@
+package api;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Just enough of a SIP2 server to test Metro against without an ILS. It
+ * answers 93 logins (only user 'metro', password 'secret' succeed), 99 SC
+ * status and 63 patron information messages, and counts what it sees.
+ *
+ * @author Andrew Nisbet <anisbet@epl.ca>
+ */
+public class FakeSIPServer implements Runnable
+{
+    public final static String USER     = "metro";
+    public final static String PASSWORD = "secret";
+    public final static String STATUS_RESPONSE =
+            "98YYYYYN60000320130424    1135112.00AOEPLMNA|AMEPLMNA|BXYYYYYYYYYYYNNYYY|ANSIPCHK|AY1AZE80C";
+    public final static String PATRON_RESPONSE =
+            "64              00020130903    143600000000000000000000000000AOst|AA21221012345678|AEBilly, Balzac|AQst|BZ0025|CA0041|CB0040|BLY|CQY|BD7 Sir Winston Churchill Square Edmonton, AB T5J 2V4|BEilsteam@epl.ca|BF780-496-4058|AY1AZAC20";
+    private final ServerSocket serverSocket;
+    private final List<Socket> sockets;
+    private final AtomicInteger connections;
+    private final AtomicInteger logins;
+    private final AtomicInteger messages;
+    private volatile long delay;
+    private volatile long trickle;
+
+    public FakeSIPServer() throws IOException
+    {
+        this.serverSocket = new ServerSocket(0);
+        this.sockets      = new ArrayList<>();
+        this.connections  = new AtomicInteger();
+        this.logins       = new AtomicInteger();
+        this.messages     = new AtomicInteger();
+        this.delay        = 0L;
+        this.trickle      = 0L;
+        Thread thread = new Thread(this, "FakeSIPServer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public int getPort()
+    {
+        return this.serverSocket.getLocalPort();
+    }
+
+    public int getConnectionCount()
+    {
+        return this.connections.get();
+    }
+
+    public int getLoginCount()
+    {
+        return this.logins.get();
+    }
+
+    public int getMessageCount()
+    {
+        return this.messages.get();
+    }
+
+    /**
+     * Makes the server wait before answering each message.
+     * @param millis 
+     */
+    public void setDelay(long millis)
+    {
+        this.delay = millis;
+    }
+
+    /**
+     * Makes the server send its responses one byte at a time.
+     * @param millis wait between bytes.
+     */
+    public void setTrickle(long millis)
+    {
+        this.trickle = millis;
+    }
+
+    /**
+     * Hangs up on every client, like a SIP server that has been restarted.
+     */
+    public void dropConnections() throws IOException
+    {
+        synchronized (this.sockets)
+        {
+            for (Socket socket: this.sockets)
+            {
+                socket.close();
+            }
+            this.sockets.clear();
+        }
+    }
+
+    public void shutdown() throws IOException
+    {
+        dropConnections();
+        this.serverSocket.close();
+    }
+
+    @Override
+    public void run()
+    {
+        while (! this.serverSocket.isClosed())
+        {
+            try
+            {
+                final Socket socket = this.serverSocket.accept();
+                this.connections.incrementAndGet();
+                synchronized (this.sockets)
+                {
+                    this.sockets.add(socket);
+                }
+                Thread thread = new Thread(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        serve(socket);
+                    }
+                }, "FakeSIPClient");
+                thread.setDaemon(true);
+                thread.start();
+            }
+            catch (IOException ex)
+            {
+                // closed.
+            }
+        }
+    }
+
+    private void serve(Socket socket)
+    {
+        try
+        {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            OutputStream out = socket.getOutputStream();
+            String line;
+            while ((line = in.readLine()) != null)
+            {
+                if (line.isEmpty())
+                {
+                    continue;
+                }
+                this.messages.incrementAndGet();
+                if (this.delay > 0)
+                {
+                    Thread.sleep(this.delay);
+                }
+                String response;
+                if (line.startsWith("93"))
+                {
+                    this.logins.incrementAndGet();
+                    boolean ok = line.contains("CN" + USER + "|") && line.contains("CO" + PASSWORD + "|");
+                    response = ok ? "941AY1AZFDFC" : "940AY1AZFDFD";
+                }
+                else if (line.startsWith("99"))
+                {
+                    response = STATUS_RESPONSE;
+                }
+                else if (line.startsWith("63"))
+                {
+                    response = PATRON_RESPONSE;
+                }
+                else
+                {
+                    response = "96AZFEF6";
+                }
+                byte[] bytes = (response + "\r").getBytes();
+                if (this.trickle > 0)
+                {
+                    for (byte b: bytes)
+                    {
+                        out.write(b);
+                        out.flush();
+                        Thread.sleep(this.trickle);
+                    }
+                }
+                else
+                {
+                    out.write(bytes);
+                    out.flush();
+                }
+            }
+        }
+        catch (IOException | InterruptedException ex)
+        {
+            // client went away.
+        }
+        finally
+        {
+            try
+            {
+                socket.close();
+            }
+            catch (IOException ex)
+            {
+                // done with it.
+            }
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package api;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Scanner;
+import mecard.ResponseTypes;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Andrew Nisbet <anisbet@epl.ca>
+ */
+public class PipelineStatusTest
+{
+    private final List<String> seluser;
+    private final List<String> dumpflatuser;
+
+    public PipelineStatusTest() throws Exception
+    {
+        // Stand ins for the Symphony API that know one customer.
+        seluser = Arrays.asList(writeScript("seluser", "read barcode\n"
+                + "if [ \"$barcode\" = \"21221012345678\" ]; then echo \"301585|\"; exit 0; fi\n"
+                + "echo \"**error number 111 on user start, cat=0 seq=0 stat=0\" 1>&2\n"
+                + "exit 1\n"), "-iB", "-oU");
+        dumpflatuser = Arrays.asList(writeScript("dumpflatuser", "while read key; do\n"
+                + "echo \"*** DOCUMENT BOUNDARY ***\"; echo \".USER_ID.   |a21221012345678\"; done\n"
+                + "echo \"1 users dumped\" 1>&2\n"));
+    }
+
+    private static String writeScript(String name, String body) throws Exception
+    {
+        File script = File.createTempFile(name, ".sh");
+        script.deleteOnExit();
+        try (FileWriter writer = new FileWriter(script))
+        {
+            writer.write("#!/bin/sh\n" + body);
+        }
+        assertTrue(script.setExecutable(true));
+        return script.getAbsolutePath();
+    }
+
+    private void checkFound(CommandStatus status)
+    {
+        assertTrue(status instanceof PipelineStatus);
+        PipelineStatus pipeline = (PipelineStatus) status;
+        assertEquals(ResponseTypes.COMMAND_COMPLETED, pipeline.getStatus());
+        assertEquals(2, pipeline.getStageCount());
+        assertTrue(pipeline.getStdout().contains(".USER_ID.   |a21221012345678\n"));
+        assertEquals(0, pipeline.getStageExitStatus(0));
+        assertEquals(0, pipeline.getStageExitStatus(1));
+        assertEquals("", pipeline.getStageStderr(0));
+        assertEquals("1 users dumped\n", pipeline.getStageStderr(1));
+        assertFalse(pipeline.getStderr().contains(PipelineStatus.STAGE_MARKER));
+    }
+
+    private void checkNotFound(CommandStatus status)
+    {
+        PipelineStatus pipeline = (PipelineStatus) status;
+        assertEquals(1, pipeline.getStageExitStatus(0));
+        assertTrue(pipeline.getStageStderr(0).contains("**error number 111"));
+        assertFalse(pipeline.getStdout().contains("USER_ID"));
+        // Callers that only look at the whole of stderr still see the error.
+        assertTrue(pipeline.getStderr().contains("**error number 111"));
+    }
+
+    /**
+     * A pipeline run as a new process.
+     */
+    @Test
+    public void testPipeline()
+    {
+        System.out.println("==pipeline==");
+        CommandStatus status = new APICommand.Builder().echo("21221012345678")
+                .commandLine(seluser).pipe(dumpflatuser).build().execute();
+        System.out.println("STDOUT:" + status.getStdout() + "STDERR:" + status.getStderr());
+        checkFound(status);
+        status = new APICommand.Builder().echo("21221000000000")
+                .commandLine(seluser).pipe(dumpflatuser).build().execute();
+        checkNotFound(status);
+    }
+
+    /**
+     * The same pipeline in a shell session.
+     */
+    @Test
+    public void testPipelineSession()
+    {
+        System.out.println("==pipeline session==");
+        ShellSessionPool pool = new ShellSessionPool(Arrays.asList("/bin/sh"));
+        CommandStatus status = new APICommand.Builder().session(pool).echo("21221012345678")
+                .commandLine(seluser).pipe(dumpflatuser).build().execute();
+        checkFound(status);
+        status = new APICommand.Builder().session(pool).echo("21221000000000")
+                .commandLine(seluser).pipe(dumpflatuser).build().execute();
+        checkNotFound(status);
+        assertEquals(1, pool.getOpenCount());
+        pool.close();
+    }
+
+    /**
+     * Test of getScript method, of class PipelineStatus.
+     */
+    @Test
+    public void testGetScript()
+    {
+        System.out.println("==getScript==");
+        List<List<String>> stages = new ArrayList<>();
+        stages.add(Arrays.asList("seluser", "-iB", "-oU"));
+        stages.add(Arrays.asList("dumpflatuser"));
+        String script = PipelineStatus.getScript(stages);
+        System.out.println(script);
+        assertTrue(script.contains("{ seluser -iB -oU 2>"));
+        assertTrue(script.contains(" | { dumpflatuser 2>"));
+        assertTrue(script.contains("mktemp -d"));
+        assertTrue(script.contains("trap 'rm -rf \"$__metro_d\"' EXIT"));
+    }
+
+    /**
+     * The pipeline fails without running anything if it can't make its 
+     * temporary directory, and removes the directory when it's done.
+     */
+    @Test
+    public void testScriptTemporaryDirectory() throws Exception
+    {
+        System.out.println("==script temporary directory==");
+        List<List<String>> stages = new ArrayList<>();
+        stages.add(Arrays.asList("echo", "ran"));
+        stages.add(Arrays.asList("cat"));
+        String script = PipelineStatus.getScript(stages);
+        File tmp = File.createTempFile("metro_tmpdir", "");
+        assertTrue(tmp.delete());
+        assertTrue(tmp.mkdir());
+        ProcessBuilder builder = new ProcessBuilder("/bin/sh", "-c", script).redirectErrorStream(true);
+        builder.environment().put("TMPDIR", tmp.getAbsolutePath());
+        Process process = builder.start();
+        assertEquals(0, process.waitFor());
+        assertEquals(0, tmp.list().length);
+        assertTrue(tmp.delete());
+        builder.environment().put("TMPDIR", tmp.getAbsolutePath());
+        process = builder.start();
+        Scanner output = new Scanner(process.getInputStream()).useDelimiter("\\A");
+        String text = output.hasNext() ? output.next() : "";
+        assertTrue(process.waitFor() != 0);
+        assertFalse(text, text.contains("ran"));
+    }
+}
@@ -0,0 +1,240 @@
+package api;
+
+import mecard.exception.SIPException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Andrew Nisbet <anisbet@epl.ca>
+ */
+public class SIPConnectionPoolTest
+{
+    private FakeSIPServer server;
+    private SIPConnectionPool pool;
+
+    public SIPConnectionPoolTest()
+    {
+    }
+
+    @Before
+    public void setUp() throws Exception
+    {
+        server = new FakeSIPServer();
+        pool = new SIPConnectionPool("localhost", server.getPort(), "EPLMNA",
+                FakeSIPServer.USER, FakeSIPServer.PASSWORD, 1000, 0L);
+        pool.resize(0, 2);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        pool.close();
+        server.shutdown();
+    }
+
+    /**
+     * Test of send method, of class SIPConnectionPool. Sequential messages
+     * share one logged in connection.
+     */
+    @Test
+    public void testSendReusesConnection()
+    {
+        System.out.println("==send reuses connection==");
+        for (int i = 0; i < 5; i++)
+        {
+            assertTrue(pool.send("63                               AO|AA21221012345678|AD64058|AY1AZF374").startsWith("64"));
+        }
+        assertEquals(1, server.getConnectionCount());
+        assertEquals(1, server.getLoginCount());
+        assertEquals(1, pool.getOpenCount());
+        assertEquals(1, pool.getIdleCount());
+    }
+
+    /**
+     * A connection the server has hung up on is replaced and the message
+     * still gets through.
+     */
+    @Test
+    public void testBrokenConnectionEvicted() throws Exception
+    {
+        System.out.println("==broken connection evicted==");
+        assertTrue(pool.send(SIPConnector.STATUS_REQUEST).startsWith("98"));
+        server.dropConnections();
+        Thread.sleep(100);
+        assertTrue(pool.send(SIPConnector.STATUS_REQUEST).startsWith("98"));
+        assertEquals(2, server.getConnectionCount());
+        assertEquals(1, pool.getOpenCount());
+    }
+
+    /**
+     * Test of maintain method, of class SIPConnectionPool.
+     */
+    @Test
+    public void testMaintain() throws Exception
+    {
+        System.out.println("==maintain==");
+        SIPConnectionPool validating = new SIPConnectionPool("localhost", server.getPort(), "EPLMNA",
+                FakeSIPServer.USER, FakeSIPServer.PASSWORD, 1000, 50L);
+        validating.resize(1, 2);
+        validating.maintain();
+        // topped up to the minimum.
+        assertEquals(1, validating.getOpenCount());
+        assertEquals(1, server.getLoginCount());
+        Thread.sleep(100);
+        int before = server.getMessageCount();
+        validating.maintain();
+        // the idle connection was checked with a 99.
+        assertEquals(before + 1, server.getMessageCount());
+        assertEquals(1, validating.getIdleCount());
+        server.dropConnections();
+        Thread.sleep(100);
+        validating.maintain();
+        // dead connection closed and replaced.
+        assertEquals(1, validating.getOpenCount());
+        assertEquals(2, server.getConnectionCount());
+        validating.close();
+    }
+
+    /**
+     * When every connection is in use, callers wait no longer than the timeout.
+     */
+    @Test
+    public void testMaxSize()
+    {
+        System.out.println("==max size==");
+        SIPConnection first = pool.borrow(true);
+        SIPConnection second = pool.borrow(true);
+        long start = System.currentTimeMillis();
+        try
+        {
+            pool.borrow(true);
+            fail("expected SIPException");
+        }
+        catch (SIPException ex)
+        {
+            System.out.println(ex.getMessage());
+        }
+        assertTrue(System.currentTimeMillis() - start >= 900);
+        pool.release(first);
+        pool.release(second);
+        assertEquals(2, server.getConnectionCount());
+    }
+
+    /**
+     * Test of login, a bad password is an error, not a connection.
+     */
+    @Test
+    public void testBadLogin()
+    {
+        System.out.println("==bad login==");
+        SIPConnectionPool badPool = new SIPConnectionPool("localhost", server.getPort(), "EPLMNA",
+                FakeSIPServer.USER, "wrong", 1000, 0L);
+        badPool.resize(0, 1);
+        try
+        {
+            badPool.send(SIPConnector.STATUS_REQUEST);
+            fail("expected SIPException");
+        }
+        catch (SIPException ex)
+        {
+            System.out.println(ex.getMessage());
+        }
+        assertEquals(0, badPool.getOpenCount());
+    }
+
+    /**
+     * With a pool size of 0 the connector opens and logs in a new connection
+     * for every message, as it always has.
+     */
+    @Test
+    public void testUnpooledConnector()
+    {
+        System.out.println("==unpooled connector==");
+        SIPConnector connector = new SIPConnector.Builder("localhost", String.valueOf(server.getPort()))
+                .sipUser(FakeSIPServer.USER)
+                .password(FakeSIPServer.PASSWORD)
+                .poolSize("0", "0")
+                .build();
+        assertTrue(connector.test());
+        assertTrue(connector.test());
+        assertEquals(2, server.getConnectionCount());
+        assertEquals(2, server.getLoginCount());
+    }
+
+    /**
+     * A server that stops answering costs no more than the timeout, and the
+     * connection it was on is thrown away.
+     */
+    @Test
+    public void testDeadline()
+    {
+        System.out.println("==deadline==");
+        assertTrue(pool.send(SIPConnector.STATUS_REQUEST).startsWith("98"));
+        server.setDelay(3000);
+        long start = System.currentTimeMillis();
+        try
+        {
+            pool.send(SIPConnector.STATUS_REQUEST);
+            fail("expected SIPException");
+        }
+        catch (SIPException ex)
+        {
+            System.out.println(ex.getMessage());
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("took " + elapsed + "ms", elapsed < 1500);
+        assertEquals(0, pool.getOpenCount());
+    }
+
+    /**
+     * A response trickled out a byte at a time is still cut off at the
+     * deadline, even though no single read times out.
+     */
+    @Test
+    public void testTrickledResponse()
+    {
+        System.out.println("==trickled response==");
+        SIPConnection connection = pool.borrow(true);
+        server.setTrickle(20);
+        long start = System.currentTimeMillis();
+        try
+        {
+            connection.sendReceive(SIPConnector.STATUS_REQUEST);
+            fail("expected SIPException");
+        }
+        catch (SIPException ex)
+        {
+            System.out.println(ex.getMessage());
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("took " + elapsed + "ms", elapsed < 1500);
+        assertTrue(connection.isBroken());
+        pool.release(connection);
+        // short responses still make it through in pieces.
+        server.setTrickle(5);
+        assertEquals("941AY1AZFDFC", pool.send("9300CN" + FakeSIPServer.USER
+                + "|CO" + FakeSIPServer.PASSWORD + "|CP|AY1AZF000"));
+    }
+
+    /**
+     * A SIP command that times out reports the service as unavailable.
+     */
+    @Test
+    public void testCommandUnavailable()
+    {
+        System.out.println("==command unavailable==");
+        SIPConnector connector = new SIPConnector.Builder("localhost", String.valueOf(server.getPort()))
+                .sipUser(FakeSIPServer.USER)
+                .password(FakeSIPServer.PASSWORD)
+                .timeout("500")
+                .poolSize("0", "0")
+                .build();
+        server.setDelay(2000);
+        CommandStatus status = new SIPCommand.Builder(connector).isStatusRequest().build().execute();
+        assertEquals(mecard.ResponseTypes.UNAVAILABLE, status.getStatus());
+        assertTrue(status.getStdout().isEmpty());
+    }
+}
@@ -0,0 +1,88 @@
+package api;
+
+import java.util.HashMap;
+
+/**
+ * Compares {@link SIPDecoder} with the regular expression split that
+ * {@link SIPMessage} used to do, on a typical patron information response.
+ * Not a unit test, run it by hand:
+ * <pre>
+ * java -cp ... api.SIPDecoderBenchmark [iterations] [rounds]
+ * </pre>
+ * Each round runs every case the given number of times; the first round is
+ * warm up and is not reported.
+ * @author Andrew Nisbet <anisbet@epl.ca>
+ */
+public class SIPDecoderBenchmark
+{
+    // Stops the JIT from discarding work whose result is never used.
+    private static int sink;
+
+    public static void main(String[] args)
+    {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        String message = "64              00020130903    143600000000000002000000000010AOsps|AA21974011602274|AENUTTYCOMBE, SHARON|AQsps|BZ0200|CA0020|CB0150|BLY|CQY|BD66 Great Oaks, Sherwood Park, Ab, T8A 0V8|BEredtarot@telus.net|BF780-416-5518|DHSHARON|DJNUTTYCOMBE|PASTAFF|PB19680920|PCs|PE20140903    235900STAFF|PS20140903    235900STAFF|ZYs|AY1AZA949";
+        String[] wanted = {"AA", "AE", "AF", "BE", "BF", "PA", "PE", "PB", "PD", "PF", "BD", "PC"};
+        for (int round = 0; round <= rounds; round++)
+        {
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+            {
+                HashMap<String, String> fields = new HashMap<>();
+                String[] split = message.split("\\|");
+                for (int f = 1; f < split.length; f++)
+                {
+                    fields.put(split[f].substring(0, 2), split[f].substring(2));
+                }
+                for (String code: wanted)
+                {
+                    String value = fields.get(code);
+                    sink += value == null ? 0 : value.length();
+                }
+                sink += split[0].substring(0, 2).length();
+            }
+            report(round, "regex split", iterations, start);
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+            {
+                SIPDecoder decoder = new SIPDecoder(message);
+                for (String code: wanted)
+                {
+                    sink += decoder.getField(code).length();
+                }
+                sink += decoder.getCode().length();
+            }
+            report(round, "decoder", iterations, start);
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+            {
+                sink += new SIPDecoder(message).isChecksumValid() ? 1 : 0;
+            }
+            report(round, "decoder checksum", iterations, start);
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+            {
+                sink += "20140903    235900STAFF".split("\\s{1,}")[0].matches("^[1-2][0,9]\\d{2}[0-1][0-9][0-3][0-9]$") ? 1 : 0;
+            }
+            report(round, "regex date", iterations, start);
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+            {
+                sink += SIPMessage.cleanDateTime("20140903    235900STAFF").length();
+            }
+            report(round, "clean date", iterations, start);
+        }
+        System.out.println("(" + sink + ")");
+    }
+
+    private static void report(int round, String name, int iterations, long start)
+    {
+        if (round == 0)
+        {
+            return;
+        }
+        long nanos = System.nanoTime() - start;
+        System.out.println("round " + round + " " + name + ": " + (nanos / iterations) + " ns/op");
+    }
+}
@@ -0,0 +1,108 @@
+package api;
+
+import java.util.List;
+import mecard.Protocol;
+import mecard.exception.SIPException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Andrew Nisbet <anisbet@epl.ca>
+ */
+public class SIPDecoderTest
+{
+    private final String status;
+    private final String customer;
+
+    public SIPDecoderTest()
+    {
+        this.status   = "98YYYYYN60000320130424    1135112.00AOEPLMNA|AMEPLMNA|BXYYYYYYYYYYYNNYYY|ANSIPCHK|AY1AZE80C";
+        this.customer = "64              00020130903    143600000000000002000000000010AOsps|AA21974011602274|AENUTTYCOMBE, SHARON|AQsps|BZ0200|CA0020|CB0150|BLY|CQY|BD66 Great Oaks, Sherwood Park, Ab, T8A 0V8|BEredtarot@telus.net|BF780-416-5518|DHSHARON|DJNUTTYCOMBE|PASTAFF|PB19680920|PCs|PE20140903    235900STAFF|PS20140903    235900STAFF|ZYs|AY1AZA949";
+    }
+
+    /**
+     * Test of getField method, of class SIPDecoder.
+     */
+    @Test
+    public void testGetField()
+    {
+        System.out.println("==getField==");
+        SIPDecoder instance = new SIPDecoder(this.customer);
+        assertEquals("64", instance.getCode());
+        assertEquals("21974011602274", instance.getField("AA"));
+        assertEquals("NUTTYCOMBE, SHARON", instance.getField("ae"));
+        assertEquals("20140903    235900STAFF", instance.getField("PE"));
+        assertEquals("1AZA949", instance.getField("AY"));
+        assertEquals(Protocol.DEFAULT_FIELD_VALUE, instance.getField("XX"));
+        assertEquals(Protocol.DEFAULT_FIELD_VALUE, instance.getField("A"));
+        assertTrue(instance.hasField("ZY"));
+        assertFalse(instance.hasField("AF"));
+        // A repeated field replaces the earlier one, as SIPMessage always did.
+        instance = new SIPDecoder("64 AO|AFfirst|AFsecond|AY1AZ0000");
+        assertEquals("second", instance.getField("AF"));
+        List<String> names = instance.getFieldNames();
+        assertEquals(2, names.size());
+        assertEquals("AF", names.get(0));
+        // Empty fields are fine, fields without a code are not.
+        assertEquals("", new SIPDecoder("64 AO|AF|AY1AZ0000").getField("AF"));
+        try
+        {
+            new SIPDecoder("64 AO||AY1AZ0000");
+            fail("expected SIPException");
+        }
+        catch (SIPException ex)
+        {
+            System.out.println(ex.getMessage());
+        }
+    }
+
+    /**
+     * Test of isChecksumValid method, of class SIPDecoder.
+     */
+    @Test
+    public void testChecksum()
+    {
+        System.out.println("==checksum==");
+        SIPDecoder instance = new SIPDecoder(this.status);
+        assertTrue(instance.hasChecksum());
+        assertTrue(instance.isChecksumValid());
+        assertEquals(1, instance.getSequenceNumber());
+        instance.validate(1);
+        // The terminator doesn't count.
+        assertTrue(new SIPDecoder(this.customer + "\r").isChecksumValid());
+        // Sent the way we send them.
+        String request = "9300CNmetro|COsecret|CP|AY1AZ";
+        assertTrue(new SIPDecoder(request + SIPConnector.getCheckSum(request)).isChecksumValid());
+        assertFalse(new SIPDecoder(this.status.replace("SIPCHK", "SIPCHX")).isChecksumValid());
+        assertFalse(new SIPDecoder("98YYYYYN60000320130424    1135112.00AOEPLMNA|AMEPLMNA").hasChecksum());
+        try
+        {
+            instance.validate(2);
+            fail("expected SIPException");
+        }
+        catch (SIPException ex)
+        {
+            System.out.println(ex.getMessage());
+        }
+    }
+
+    /**
+     * Test of isDate method, of class SIPDecoder.
+     */
+    @Test
+    public void testIsDate()
+    {
+        System.out.println("==isDate==");
+        assertTrue(SIPDecoder.isDate("20131231", 0, 8));
+        assertTrue(SIPDecoder.isDate("PE19680920    235900", 2, 10));
+        assertFalse(SIPDecoder.isDate("2013123", 0, 7));
+        assertFalse(SIPDecoder.isDate("30131231", 0, 8));
+        assertFalse(SIPDecoder.isDate("20134231", 0, 8));
+        assertFalse(SIPDecoder.isDate("STAFF123", 0, 8));
+        assertEquals(Protocol.DEFAULT_FIELD_VALUE, SIPMessage.cleanDateTime("  20131231"));
+        assertEquals(Protocol.DEFAULT_FIELD_VALUE, SIPMessage.cleanDateTime(""));
+        assertEquals("20131231", SIPMessage.cleanDateTime("20131231"));
+        assertEquals("20131231", SIPMessage.cleanDateTime("20131231\t235900"));
+    }
+}
@@ -0,0 +1,152 @@
+package api;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.Arrays;
+import java.util.List;
+import mecard.ResponseTypes;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Andrew Nisbet <anisbet@epl.ca>
+ */
+public class ShellSessionPoolTest
+{
+    private final static List<String> SHELL = Arrays.asList("/bin/sh");
+
+    public ShellSessionPoolTest()
+    {
+    }
+
+    /**
+     * Writes a stand in for seluser that knows one card.
+     */
+    private String writeSeluser() throws Exception
+    {
+        File script = File.createTempFile("seluser", ".sh");
+        script.deleteOnExit();
+        try (FileWriter writer = new FileWriter(script))
+        {
+            writer.write("#!/bin/sh\n"
+                    + "read barcode\n"
+                    + "if [ \"$barcode\" = \"21221012345678\" ]; then echo \"301585|\"; exit 0; fi\n"
+                    + "echo \"**error number 111 on user start, cat=0 seq=0 stat=0\" 1>&2\n"
+                    + "exit 1\n");
+        }
+        assertTrue(script.setExecutable(true));
+        return script.getAbsolutePath();
+    }
+
+    /**
+     * Test of execute method, of class ShellSessionPool.
+     */
+    @Test
+    public void testExecute() throws Exception
+    {
+        System.out.println("==execute==");
+        ShellSessionPool pool = new ShellSessionPool(SHELL);
+        List<String> seluser = Arrays.asList(writeSeluser(), "-iB", "-oU");
+        CommandStatus status = pool.execute(seluser, Arrays.asList("21221012345678"), 5000L);
+        assertEquals(ResponseTypes.COMMAND_COMPLETED, status.getStatus());
+        assertEquals("301585|\n0\n", status.getStdout());
+        assertEquals("0\n", status.getStderr());
+        status = pool.execute(seluser, Arrays.asList("21221000000000"), 5000L);
+        assertEquals(ResponseTypes.COMMAND_COMPLETED, status.getStatus());
+        assertEquals("1\n", status.getStdout());
+        assertTrue(status.getStderr().contains("**error number 111"));
+        // Both ran in the same shell.
+        assertEquals(1, pool.getOpenCount());
+        assertEquals(1, pool.getIdleCount());
+        pool.close();
+    }
+
+    /**
+     * Output without a trailing new line, and stdin data that looks like 
+     * shell syntax, arrive intact.
+     */
+    @Test
+    public void testFraming() throws Exception
+    {
+        System.out.println("==framing==");
+        ShellSessionPool pool = new ShellSessionPool(SHELL);
+        CommandStatus status = pool.execute(Arrays.asList("printf", "partial"), null, 5000L);
+        assertEquals("partial\n0\n", status.getStdout());
+        List<String> data = Arrays.asList("$HOME `ls` 'quoted'", "EOF", "");
+        status = pool.execute(Arrays.asList("cat"), data, 5000L);
+        assertEquals("$HOME `ls` 'quoted'\nEOF\n\n0\n", status.getStdout());
+        // A command that reads stdin without data must not eat what follows.
+        status = pool.execute(Arrays.asList("cat"), null, 5000L);
+        assertEquals("0\n", status.getStdout());
+        status = pool.execute(Arrays.asList("echo", "still", "here"), null, 5000L);
+        assertEquals("still here\n0\n", status.getStdout());
+        pool.close();
+    }
+
+    /**
+     * Sessions are re-used until max uses, and replaced when they break.
+     */
+    @Test
+    public void testRecycle() throws Exception
+    {
+        System.out.println("==recycle==");
+        ShellSessionPool pool = new ShellSessionPool(SHELL);
+        pool.configure(1, 2, 60000L);
+        List<String> pid = Arrays.asList("echo", "$$");
+        String first = pool.execute(pid, null, 5000L).getStdout();
+        assertEquals(first, pool.execute(pid, null, 5000L).getStdout());
+        // Worn out after two uses.
+        String second = pool.execute(pid, null, 5000L).getStdout();
+        assertFalse(first.equals(second));
+        // A command that ends the shell leaves a broken session behind.
+        CommandStatus status = pool.execute(Arrays.asList("exit", "4"), null, 5000L);
+        assertEquals(ResponseTypes.UNAVAILABLE, status.getStatus());
+        assertEquals(0, pool.getOpenCount());
+        status = pool.execute(pid, null, 5000L);
+        assertEquals(ResponseTypes.COMMAND_COMPLETED, status.getStatus());
+        assertFalse(second.equals(status.getStdout()));
+        pool.close();
+    }
+
+    /**
+     * A command that runs too long kills its session.
+     */
+    @Test
+    public void testTimeout() throws Exception
+    {
+        System.out.println("==timeout==");
+        ShellSessionPool pool = new ShellSessionPool(SHELL);
+        long start = System.currentTimeMillis();
+        CommandStatus status = pool.execute(Arrays.asList("sleep", "10"), null, 300L);
+        long elapsed = System.currentTimeMillis() - start;
+        System.out.println("killed after " + elapsed + "ms: " + status.getStderr());
+        assertEquals(ResponseTypes.UNAVAILABLE, status.getStatus());
+        assertTrue(elapsed < 5000L);
+        assertEquals(0, pool.getOpenCount());
+        assertEquals(ResponseTypes.COMMAND_COMPLETED, 
+                pool.execute(Arrays.asList("true"), null, 5000L).getStatus());
+        pool.close();
+    }
+
+    /**
+     * Idle sessions are checked before they are handed out.
+     */
+    @Test
+    public void testCheck() throws Exception
+    {
+        System.out.println("==check==");
+        ShellSessionPool pool = new ShellSessionPool(SHELL);
+        pool.configure(1, 100, 0L);
+        pool.execute(Arrays.asList("true"), null, 5000L);
+        ShellSession session = pool.borrow(System.currentTimeMillis() + 5000L);
+        assertFalse(session.isBroken());
+        // Kill it behind the pool's back.
+        session.close();
+        pool.release(session);
+        assertEquals(0, pool.getOpenCount());
+        assertEquals(ResponseTypes.COMMAND_COMPLETED, 
+                pool.execute(Arrays.asList("true"), null, 5000L).getStatus());
+        pool.close();
+    }
+}
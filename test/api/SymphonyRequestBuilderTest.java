@@ -3,9 +3,11 @@ package api;
 import mecard.Response;
 import mecard.Request;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import json.RequestDeserializer;
 import mecard.QueryTypes;
+import mecard.ResponseTypes;
 import mecard.customer.Customer;
 import mecard.customer.FlatFormattedCustomer;
 import mecard.customer.FlatUserFormatter;
@@ -121,4 +123,30 @@ public class SymphonyRequestBuilderTest
 //        APICommand result = instance.getCustomerCommand(userId, userPin, response);
 //        assertEquals(expResult, result.toString());
     }
-}
\ No newline at end of file
+
+    /**
+     * Test of isSuccessful method, of class SymphonyRequestBuilder, when 
+     * seluser fails in the lookup pipeline.
+     */
+    @Test
+    public void testIsSuccessfulSeluserFailed()
+    {
+        System.out.println("===isSuccessful seluser failed===");
+        ILSRequestBuilder instance = ILSRequestBuilder.getInstanceOf(QueryTypes.CREATE_CUSTOMER, true);
+        // Customer not found is a failure.
+        CommandStatus status = new APICommand.Builder().echo("21221000000000")
+                .commandLine(Arrays.asList("/bin/sh", "-c", 
+                    "'echo \"**error number 111 on user start\" 1>&2; exit 1'"))
+                .pipe(Arrays.asList("cat")).build().execute();
+        Response response = new Response();
+        assertFalse(instance.isSuccessful(QueryTypes.GET_CUSTOMER, status, response));
+        assertEquals(ResponseTypes.FAIL, response.getCode());
+        // seluser that isn't there means Symphony couldn't be asked.
+        status = new APICommand.Builder().echo("21221012345678")
+                .commandLine(Arrays.asList("/nonexistent/seluser", "-iB", "-oU"))
+                .pipe(Arrays.asList("cat")).build().execute();
+        response = new Response();
+        assertFalse(instance.isSuccessful(QueryTypes.GET_CUSTOMER, status, response));
+        assertEquals(ResponseTypes.UNAVAILABLE, response.getCode());
+    }
+}
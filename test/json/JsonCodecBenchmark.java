@@ -0,0 +1,83 @@
+package json;
+
+import mecard.QueryTypes;
+import mecard.Request;
+import mecard.Response;
+import mecard.ResponseTypes;
+import mecard.config.CustomerFieldTypes;
+import mecard.customer.Customer;
+
+/**
+ * Compares {@link JsonCodec} with the tree based serializers on a typical
+ * request and response. Not a unit test, run it by hand:
+ * <pre>
+ * java -cp ... json.JsonCodecBenchmark [iterations] [rounds]
+ * </pre>
+ * Each round runs every case the given number of times; the first round is
+ * warm up and is not reported.
+ * @author Andrew Nisbet <anisbet@epl.ca>
+ */
+public class JsonCodecBenchmark
+{
+    // Stops the JIT from discarding work whose result is never used.
+    private static int sink;
+
+    public static void main(String[] args)
+    {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        Customer customer = new Customer();
+        for (CustomerFieldTypes cType: CustomerFieldTypes.values())
+        {
+            customer.set(cType, cType.name().toLowerCase() + " value");
+        }
+        Request request = new Request();
+        request.setCode(QueryTypes.CREATE_CUSTOMER);
+        request.setAuthorityToken("12345678");
+        request.setUserId("21221012345678");
+        request.setPin("64058");
+        request.setCustomer(customer);
+        Response response = new Response(ResponseTypes.SUCCESS);
+        response.setResponse("Customer account created.");
+        response.setCustomer(customer);
+        String requestJson = JsonCodec.toJson(request);
+        for (int round = 0; round <= rounds; round++)
+        {
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+            {
+                sink += new RequestDeserializer().getDeserializedRequest(requestJson).getUserId().length();
+            }
+            report(round, "tree read request", iterations, start);
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+            {
+                sink += JsonCodec.toRequest(requestJson).getUserId().length();
+            }
+            report(round, "codec read request", iterations, start);
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+            {
+                sink += new ResponseSerializer().getSerializedResponse(response).length();
+            }
+            report(round, "tree write response", iterations, start);
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+            {
+                sink += JsonCodec.toJson(response).length();
+            }
+            report(round, "codec write response", iterations, start);
+        }
+        System.out.println("(" + sink + ")");
+    }
+
+    private static void report(int round, String name, int iterations, long start)
+    {
+        if (round == 0)
+        {
+            return;
+        }
+        long nanos = System.nanoTime() - start;
+        System.out.println("round " + round + " " + name + ": " + (nanos / iterations) + " ns/op");
+    }
+}
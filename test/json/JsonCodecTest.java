@@ -0,0 +1,156 @@
+package json;
+
+import mecard.Protocol;
+import mecard.QueryTypes;
+import mecard.Request;
+import mecard.Response;
+import mecard.ResponseTypes;
+import mecard.config.CustomerFieldTypes;
+import mecard.customer.Customer;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Andrew Nisbet <anisbet@epl.ca>
+ */
+public class JsonCodecTest
+{
+    private final Customer customer;
+
+    public JsonCodecTest()
+    {
+        customer = new Customer();
+        customer.set(CustomerFieldTypes.ID, "21221012345678");
+        customer.set(CustomerFieldTypes.PREFEREDNAME, "Billy, Balzac");
+        customer.set(CustomerFieldTypes.STREET, "12345 123 St. <unit> & \"rear\"");
+        customer.set(CustomerFieldTypes.EMAIL, "name=ilsteam@epl.ca");
+        customer.set(CustomerFieldTypes.LASTNAME, "Billy");
+    }
+
+    /**
+     * The codec must write exactly what the old serializers did.
+     */
+    @Test
+    public void testToJsonRequest()
+    {
+        System.out.println("==toJson request==");
+        Request request = new Request();
+        assertEquals(new RequestSerializer().getSerializedRequest(request), JsonCodec.toJson(request));
+        request.setCode(QueryTypes.CREATE_CUSTOMER);
+        request.setAuthorityToken("12345678");
+        request.setUserId("21221012345678");
+        request.setPin("64058");
+        request.setCustomer(customer);
+        String expResult = new RequestSerializer().getSerializedRequest(request);
+        String result = JsonCodec.toJson(request);
+        System.out.println("RESULT:" + result);
+        assertEquals(expResult, result);
+        request.setRequestId("17");
+        assertEquals(new RequestSerializer().getSerializedRequest(request), JsonCodec.toJson(request));
+    }
+
+    /**
+     * The codec must write exactly what the old serializers did.
+     */
+    @Test
+    public void testToJsonResponse()
+    {
+        System.out.println("==toJson response==");
+        Response response = new Response(ResponseTypes.SUCCESS);
+        assertEquals(new ResponseSerializer().getSerializedResponse(response), JsonCodec.toJson(response));
+        response.setResponse("Customer's 'name' <ok>");
+        response.setCustomer(customer);
+        response.setRequestId("a-1");
+        String expResult = new ResponseSerializer().getSerializedResponse(response);
+        String result = JsonCodec.toJson(response);
+        System.out.println("RESULT:" + result);
+        assertEquals(expResult, result);
+    }
+
+    /**
+     * Test of toRequest method, of class JsonCodec.
+     */
+    @Test
+    public void testToRequest()
+    {
+        System.out.println("==toRequest==");
+        Request request = new Request();
+        request.setCode(QueryTypes.UPDATE_CUSTOMER);
+        request.setAuthorityToken("12345678");
+        request.setUserId("21221012345678");
+        request.setPin("64058");
+        request.setCustomer(customer);
+        request.setRequestId("99");
+        String json = JsonCodec.toJson(request);
+        Request result = JsonCodec.toRequest(json);
+        Request expResult = new RequestDeserializer().getDeserializedRequest(json);
+        assertEquals(expResult.toString(), result.toString());
+        assertEquals("99", result.getRequestId());
+        assertEquals("Balzac", result.getCustomer().get(CustomerFieldTypes.FIRSTNAME));
+        assertEquals(customer.get(CustomerFieldTypes.STREET), result.getCustomer().get(CustomerFieldTypes.STREET));
+        result = JsonCodec.toRequest("{\"code\":\"GET_CUSTOMER\",\"authorityToken\":\"zaqwsx123456\",\"pin\":\"64058\",\"userId\":\"21221012345678\",\"customer\":\"null\"}");
+        assertEquals("[\"GET_CUSTOMER\", \"21221012345678\", \"64058\"]", result.toString());
+        assertNull(result.getCustomer());
+    }
+
+    /**
+     * Test of toResponse method, of class JsonCodec.
+     */
+    @Test
+    public void testToResponse()
+    {
+        System.out.println("==toResponse==");
+        Response response = new Response(ResponseTypes.OK);
+        response.setResponse("Hello World!");
+        response.setCustomer(customer);
+        String json = JsonCodec.toJson(response);
+        Response result = JsonCodec.toResponse(json);
+        assertEquals(new ResponseDeserializer().getDeserializedResponse(json).toString(), result.toString());
+        assertEquals(ResponseTypes.OK, result.getCode());
+    }
+
+    /**
+     * Test of getRequestId method, of class JsonCodec.
+     */
+    @Test
+    public void testGetRequestId()
+    {
+        System.out.println("==getRequestId==");
+        assertEquals("", JsonCodec.getRequestId("{\"code\":\"NULL\",\"customer\":\"{\\\"requestId\\\":\\\"x\\\"}\"}"));
+        assertEquals("x-1", JsonCodec.getRequestId("{\"code\":\"NULL\",\"customer\":\"null\",\"requestId\":\"x-1\"}"));
+        assertEquals("5", JsonCodec.getRequestId("{\"requestId\":5}"));
+    }
+
+    /**
+     * Version 2 messages nest the customer as an object.
+     */
+    @Test
+    public void testVersion2()
+    {
+        System.out.println("==version 2==");
+        Response response = new Response(ResponseTypes.SUCCESS);
+        response.setVersion(Protocol.WIRE_VERSION_2);
+        String result = JsonCodec.toJson(response);
+        System.out.println("RESULT:" + result);
+        assertEquals("{\"version\":2,\"code\":\"SUCCESS\",\"responseMessage\":\"\",\"customer\":null}", result);
+        response.setCustomer(customer);
+        result = JsonCodec.toJson(response);
+        System.out.println("RESULT:" + result);
+        assertTrue(result.contains("\"customer\":{\"ID\":\"21221012345678\","));
+        Response readBack = JsonCodec.toResponse(result);
+        assertEquals(Protocol.WIRE_VERSION_2, readBack.getVersion());
+        assertEquals(customer.toString(), readBack.getCustomer().toString());
+
+        Request request = new Request();
+        request.setCode(QueryTypes.CREATE_CUSTOMER);
+        request.setVersion(Protocol.WIRE_VERSION_2);
+        request.setCustomer(customer);
+        Request requestBack = JsonCodec.toRequest(JsonCodec.toJson(request));
+        assertEquals(Protocol.WIRE_VERSION_2, requestBack.getVersion());
+        assertEquals(customer.toString(), requestBack.getCustomer().toString());
+        // Old clients don't send a version.
+        requestBack = JsonCodec.toRequest("{\"code\":\"GET_CUSTOMER\",\"authorityToken\":\"x\",\"pin\":\"1\",\"userId\":\"2\",\"customer\":\"null\"}");
+        assertEquals(Protocol.WIRE_VERSION_1, requestBack.getVersion());
+    }
+}
@@ -63,4 +63,20 @@ public class RequestDeserializerTest
         String expectedRequestString = "[\"GET_CUSTOMER\", \"21221012345678\", \"64058\"]";
         assertTrue(expectedRequestString.compareTo(request.toString()) == 0);
     }
-}
\ No newline at end of file
+
+    /**
+     * The optional request id is read when present.
+     */
+    @Test
+    public void testRequestId()
+    {
+        System.out.println("==requestId==");
+        RequestDeserializer serializer = new RequestDeserializer();
+        Request request = serializer.getDeserializedRequest(testRequest);
+        assertFalse(request.hasRequestId());
+        assertEquals("", request.getRequestId());
+        request = serializer.getDeserializedRequest("{\"code\":\"NULL\",\"authorityToken\":\"\",\"userId\":\"\",\"pin\":\"\",\"customer\":\"null\",\"requestId\":\"a-17\"}");
+        assertTrue(request.hasRequestId());
+        assertEquals("a-17", request.getRequestId());
+    }
+}
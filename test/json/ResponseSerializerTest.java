@@ -64,4 +64,23 @@ public class ResponseSerializerTest
         assertTrue(expResult.compareTo(result) == 0);
         System.out.println("--REPSONSE:"+response);
     }
-}
\ No newline at end of file
+
+    /**
+     * Responses only carry a request id if the request had one.
+     */
+    @Test
+    public void testRequestId()
+    {
+        System.out.println("==requestId==");
+        Response response = new Response();
+        response.setRequestId("a-17");
+        ResponseSerializer serializer = new ResponseSerializer();
+        String expResult = "{\"code\":\"INIT\",\"responseMessage\":\"\",\"customer\":\"null\",\"requestId\":\"a-17\"}";
+        String result = serializer.getSerializedResponse(response);
+        assertEquals(expResult, result);
+        assertEquals("a-17", new ResponseDeserializer().getDeserializedResponse(result).getRequestId());
+        response.setRequestId(null);
+        expResult = "{\"code\":\"INIT\",\"responseMessage\":\"\",\"customer\":\"null\"}";
+        assertEquals(expResult, serializer.getSerializedResponse(response));
+    }
+}
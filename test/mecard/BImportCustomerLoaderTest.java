@@ -1,8 +1,15 @@
 package mecard;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.List;
+import mecard.config.CustomerFieldTypes;
+import mecard.customer.BImportFormattedCustomer;
+import mecard.customer.Customer;
+import mecard.customer.UserFile;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
@@ -139,22 +146,180 @@ public class BImportCustomerLoaderTest
 //    }
 
     /**
-     * Test of getLockFile method, of class BImportCustomerLoader.
+     * Test of getLock method, of class BImportCustomerLoader.
      */
     @Test
-    public void testGetLockFile()
+    public void testGetLock() throws Exception
     {
-        System.out.println("==getLockFile==");
-        
-        File result = BImportCustomerLoader.getLockFile();
-        assertTrue(result.exists());
-        File result2 = BImportCustomerLoader.getLockFile();
-        assertTrue(result2 == null);
-        result.delete();
-        result2 = BImportCustomerLoader.getLockFile();
-        assertTrue(result.exists());
-        result2.delete();
-        result = BImportCustomerLoader.getLockFile();
-        assertTrue(result.exists());
+        System.out.println("==getLock==");
+        File dir = Files.createTempDirectory("metro-lock").toFile();
+        FileLock result = BImportCustomerLoader.getLock(dir.getAbsolutePath());
+        assertNotNull(result);
+        assertNull(BImportCustomerLoader.getLock(dir.getAbsolutePath()));
+        BImportCustomerLoader.release(result);
+        result = BImportCustomerLoader.getLock(dir.getAbsolutePath());
+        assertNotNull(result);
+        // A lock file left behind doesn't stop the next load.
+        result.channel().close();
+        File lockFile = new File(dir, BImportCustomerLoader.LOCK_FILE);
+        assertTrue(lockFile.exists());
+        result = BImportCustomerLoader.getLock(dir.getAbsolutePath());
+        assertNotNull(result);
+        BImportCustomerLoader.release(result);
+        lockFile.delete();
+        dir.delete();
     }
-}
\ No newline at end of file
+
+    /**
+     * Test of getLockDir method, of class BImportCustomerLoader.
+     */
+    @Test
+    public void testGetLockDir()
+    {
+        System.out.println("==getLockDir==");
+        assertEquals(BImportCustomerLoader.getLoadDir(), BImportCustomerLoader.getLockDir(null));
+        // Without load-delay Metro doesn't load, so -p is used as given.
+        assertFalse(BImportLoadScheduler.isConfigured());
+        assertEquals("elsewhere", BImportCustomerLoader.getLockDir("elsewhere"));
+    }
+
+    private static String write(File dir, String name, String content) throws Exception
+    {
+        File file = new File(dir, name);
+        try (FileOutputStream out = new FileOutputStream(file))
+        {
+            out.write(content.getBytes("UTF-8"));
+        }
+        return file.getAbsolutePath();
+    }
+
+    /**
+     * Test of concatenate method, of class BImportCustomerLoader.
+     */
+    @Test
+    public void testConcatenate() throws Exception
+    {
+        System.out.println("==concatenate==");
+        File dir = Files.createTempDirectory("metro-load").toFile();
+        List<String> files = new ArrayList<>();
+        files.add(write(dir, "metro-21221000000001-data.txt", "borrower: 1;\r\nborrower_address: 1;\r\n"));
+        files.add(dir.getAbsolutePath() + File.separator + "metro-missing-data.txt");
+        files.add(write(dir, "metro-21221000000002-data.txt", "borrower: 2;"));
+        files.add(write(dir, "metro-21221000000003-data.txt", ""));
+        files.add(write(dir, "metro-21221000000004-data.txt", "borrower: 4;\r\n"));
+        // A file bigger than any buffer.
+        StringBuilder big = new StringBuilder();
+        for (int i = 0; i < 20000; i++)
+        {
+            big.append("borrower_phone: 780-555-").append(i).append(";\r\n");
+        }
+        files.add(write(dir, "metro-21221000000005-data.txt", big.toString()));
+        File target = new File(dir, "metro-1-bimport.txt");
+        write(dir, target.getName(), "stale content that is longer than nothing");
+        List<String> consumed = new ArrayList<>();
+        long bytes = BImportCustomerLoader.concatenate(files, target, consumed);
+        String expected = "borrower: 1;\r\nborrower_address: 1;\r\n"
+                + "borrower: 2;\r\n"
+                + "borrower: 4;\r\n"
+                + big.toString();
+        assertEquals(expected, new String(Files.readAllBytes(target.toPath()), "UTF-8"));
+        assertEquals(expected.length(), bytes);
+        assertEquals(5, consumed.size());
+        assertFalse(consumed.contains(files.get(1)));
+        for (String file: files)
+        {
+            new File(file).delete();
+        }
+        target.delete();
+        dir.delete();
+    }
+
+    private static String writeCustomer(File dir, String name, String id, String firstName, String pin)
+    {
+        Customer customer = new Customer();
+        customer.set(CustomerFieldTypes.ID, id);
+        customer.set(CustomerFieldTypes.PIN, pin);
+        customer.set(CustomerFieldTypes.FIRSTNAME, firstName);
+        customer.set(CustomerFieldTypes.LASTNAME, "Balzac");
+        customer.set(CustomerFieldTypes.STREET, "12345 123 St.");
+        customer.set(CustomerFieldTypes.CITY, "Edmonton");
+        customer.set(CustomerFieldTypes.POSTALCODE, "H0H0H0");
+        customer.set(CustomerFieldTypes.EMAIL, "ilsteam@epl.ca");
+        customer.set(CustomerFieldTypes.PHONE, "7804964058");
+        customer.set(CustomerFieldTypes.DOB, "19750822");
+        customer.set(CustomerFieldTypes.PRIVILEGE_EXPIRES, "20200602");
+        File file = new File(dir, name);
+        UserFile userFile = new UserFile(file.getAbsolutePath());
+        userFile.addUserData(new BImportFormattedCustomer(customer).getFormattedCustomer());
+        return file.getAbsolutePath();
+    }
+
+    /**
+     * Test of compact method, of class BImportCustomerLoader.
+     */
+    @Test
+    public void testCompact() throws Exception
+    {
+        System.out.println("==compact==");
+        File dir = Files.createTempDirectory("metro-load").toFile();
+        List<String> files = new ArrayList<>();
+        files.add(writeCustomer(dir, "metro-a-data.txt", "21221000000001", "Billy", ""));
+        files.add(writeCustomer(dir, "metro-b-data.txt", "21221000000002", "Jane", "1234"));
+        files.add(writeCustomer(dir, "metro-c-data.txt", "21221000000001", "William", "1234"));
+        files.add(write(dir, "metro-d-data.txt", "borrower_phone: h-noTC; 780-555-1212\r\n"));
+        // Files are written the way Metro writes them.
+        assertTrue(new String(Files.readAllBytes(new File(files.get(0)).toPath()), "UTF-8").startsWith("M- borrower: "));
+        new File(files.get(0)).setLastModified(System.currentTimeMillis() - 60000L);
+        assertEquals("21221000000001", BImportCustomerLoader.getCustomerKey(files.get(2)));
+        assertEquals("", BImportCustomerLoader.getCustomerKey(files.get(3)));
+        List<String> superseded = new ArrayList<>();
+        List<String> result = BImportCustomerLoader.compact(files, superseded);
+        assertEquals(3, result.size());
+        assertEquals(files.get(1), result.get(0));
+        assertEquals(files.get(2), result.get(1));
+        assertEquals(files.get(3), result.get(2));
+        assertEquals(1, superseded.size());
+        assertEquals(files.get(0), superseded.get(0));
+        // The newest file wins, wherever it is in the list.
+        new File(files.get(0)).setLastModified(System.currentTimeMillis() + 60000L);
+        superseded.clear();
+        result = BImportCustomerLoader.compact(files, superseded);
+        assertTrue(result.contains(files.get(0)));
+        assertEquals(files.get(2), superseded.get(0));
+        for (String file: files)
+        {
+            new File(file).delete();
+        }
+        dir.delete();
+    }
+
+    /**
+     * Test of partition method, of class BImportCustomerLoader.
+     */
+    @Test
+    public void testPartition()
+    {
+        System.out.println("==partition==");
+        List<String> files = new ArrayList<>();
+        for (int i = 0; i < 7; i++)
+        {
+            files.add("metro-" + i + "-data.txt");
+        }
+        List<List<String>> result = BImportCustomerLoader.partition(files, 3);
+        assertEquals(3, result.size());
+        assertEquals(3, result.get(0).size());
+        assertEquals(2, result.get(1).size());
+        assertEquals(2, result.get(2).size());
+        assertEquals("metro-0-data.txt", result.get(0).get(0));
+        assertEquals("metro-3-data.txt", result.get(1).get(0));
+        assertEquals("metro-6-data.txt", result.get(2).get(1));
+        // No empty partitions.
+        result = BImportCustomerLoader.partition(files.subList(0, 2), 4);
+        assertEquals(2, result.size());
+        // But always one to load, even with nothing in it.
+        result = BImportCustomerLoader.partition(new ArrayList<String>(), 4);
+        assertEquals(1, result.size());
+        assertTrue(result.get(0).isEmpty());
+        assertEquals(1, BImportCustomerLoader.partition(files, 0).size());
+    }
+}
@@ -0,0 +1,134 @@
+package mecard;
+
+import java.io.File;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+import mecard.requestbuilder.BImportRequestBuilder;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Andrew Nisbet <anisbet@epl.ca>
+ */
+public class BImportLoadSchedulerTest
+{
+
+    public BImportLoadSchedulerTest()
+    {
+    }
+
+    /**
+     * Stands in for the bimport load, removes the customer files like a load would.
+     */
+    private static class CountingLoader implements Runnable
+    {
+        private final File dir;
+        private final AtomicInteger loads = new AtomicInteger();
+        private final AtomicInteger files = new AtomicInteger();
+
+        private CountingLoader(File dir)
+        {
+            this.dir = dir;
+        }
+
+        @Override
+        public void run()
+        {
+            for (File file: dir.listFiles())
+            {
+                if (file.getName().endsWith(BImportRequestBuilder.DATA_FILE) && file.delete())
+                {
+                    files.incrementAndGet();
+                }
+            }
+            loads.incrementAndGet();
+        }
+    }
+
+    private static void touch(File dir, String id) throws Exception
+    {
+        File file = new File(dir, BImportRequestBuilder.FILE_NAME_PREFIX + id + BImportRequestBuilder.DATA_FILE);
+        Files.write(file.toPath(), ("borrower: " + id + ";\r\n").getBytes("UTF-8"));
+    }
+
+    private static void waitFor(AtomicInteger counter, int value, long millis) throws Exception
+    {
+        long end = System.currentTimeMillis() + millis;
+        while (counter.get() < value && System.currentTimeMillis() < end)
+        {
+            Thread.sleep(20);
+        }
+    }
+
+    /**
+     * Files that arrive close together are loaded together after the delay.
+     */
+    @Test
+    public void testDelay() throws Exception
+    {
+        System.out.println("==delay==");
+        File dir = Files.createTempDirectory("metro-load").toFile();
+        CountingLoader loader = new CountingLoader(dir);
+        BImportLoadScheduler instance = new BImportLoadScheduler(dir.toPath(), 1500L, 100, loader);
+        instance.startWatching();
+        touch(dir, "21221000000001");
+        touch(dir, "21221000000002");
+        touch(dir, "21221000000003");
+        Thread.sleep(500);
+        assertEquals(0, loader.loads.get());
+        waitFor(loader.loads, 1, 10000L);
+        assertEquals(1, loader.loads.get());
+        assertEquals(3, loader.files.get());
+        instance.shutdown();
+        dir.delete();
+    }
+
+    /**
+     * Enough waiting files start a load without waiting for the delay.
+     */
+    @Test
+    public void testMaxFiles() throws Exception
+    {
+        System.out.println("==max files==");
+        File dir = Files.createTempDirectory("metro-load").toFile();
+        CountingLoader loader = new CountingLoader(dir);
+        BImportLoadScheduler instance = new BImportLoadScheduler(dir.toPath(), 60000L, 2, loader);
+        instance.startWatching();
+        touch(dir, "21221000000001");
+        touch(dir, "21221000000002");
+        waitFor(loader.loads, 1, 10000L);
+        assertEquals(1, loader.loads.get());
+        assertEquals(2, loader.files.get());
+        assertEquals(1, instance.getLoadCount());
+        instance.shutdown();
+        dir.delete();
+    }
+
+    /**
+     * Files waiting at start up are loaded, but not while another load 
+     * holds the lock.
+     */
+    @Test
+    public void testLocked() throws Exception
+    {
+        System.out.println("==locked==");
+        File dir = Files.createTempDirectory("metro-load").toFile();
+        touch(dir, "21221000000001");
+        FileLock lock = BImportCustomerLoader.getLock(dir.getAbsolutePath());
+        assertNotNull(lock);
+        CountingLoader loader = new CountingLoader(dir);
+        BImportLoadScheduler instance = new BImportLoadScheduler(dir.toPath(), 300L, 100, loader);
+        instance.startWatching();
+        Thread.sleep(1000);
+        assertEquals(0, loader.loads.get());
+        assertEquals(1, instance.getPendingCount());
+        BImportCustomerLoader.release(lock);
+        waitFor(loader.loads, 1, 10000L);
+        assertEquals(1, loader.files.get());
+        instance.shutdown();
+        new File(dir, BImportCustomerLoader.LOCK_FILE).delete();
+        dir.delete();
+    }
+}
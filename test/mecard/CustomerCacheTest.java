@@ -0,0 +1,143 @@
+package mecard;
+
+import mecard.config.CustomerFieldTypes;
+import mecard.customer.Customer;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Andrew Nisbet <anisbet@epl.ca>
+ */
+public class CustomerCacheTest
+{
+    private final String userId;
+    private final String pin;
+
+    public CustomerCacheTest()
+    {
+        this.userId = "21221012345678";
+        this.pin    = "64058";
+    }
+
+    private Response getResponse()
+    {
+        Customer customer = new Customer();
+        customer.set(CustomerFieldTypes.ID, this.userId);
+        customer.set(CustomerFieldTypes.PIN, this.pin);
+        customer.set(CustomerFieldTypes.PREFEREDNAME, "Balzac, Billy");
+        customer.set(CustomerFieldTypes.FIRSTNAME, "William");
+        Response response = new Response();
+        response.setCode(ResponseTypes.OK);
+        response.setResponse("Customer found.");
+        response.setCustomer(customer);
+        return response;
+    }
+
+    /**
+     * Test of get method, of class CustomerCache.
+     */
+    @Test
+    public void testGet()
+    {
+        System.out.println("==get==");
+        CustomerCache instance = new CustomerCache(60000L, 10);
+        Response response = new Response();
+        assertFalse(instance.get(this.userId, this.pin, response));
+        Response original = getResponse();
+        instance.put(this.userId, this.pin, original, instance.getGeneration());
+        // The cache keeps its own copy.
+        original.getCustomer().set(CustomerFieldTypes.EMAIL, "changed@example.com");
+        assertTrue(instance.get(this.userId, this.pin, response));
+        assertEquals(ResponseTypes.OK, response.getCode());
+        assertEquals("Customer found.", response.getMessage().trim());
+        Customer customer = response.getCustomer();
+        assertEquals(this.pin, customer.get(CustomerFieldTypes.PIN));
+        assertEquals("William", customer.get(CustomerFieldTypes.FIRSTNAME));
+        assertEquals("Balzac", customer.get(CustomerFieldTypes.LASTNAME));
+        assertTrue(customer.isEmpty(CustomerFieldTypes.EMAIL));
+        // A different PIN doesn't get the cached answer.
+        assertFalse(instance.get(this.userId, "1234", new Response()));
+    }
+
+    /**
+     * Entries expire, are invalidated and are evicted least recently used first.
+     */
+    @Test
+    public void testEviction() throws Exception
+    {
+        System.out.println("==eviction==");
+        CustomerCache instance = new CustomerCache(100L, 2);
+        instance.put("1", this.pin, getResponse(), instance.getGeneration());
+        instance.put("2", this.pin, getResponse(), instance.getGeneration());
+        assertTrue(instance.get("1", this.pin, new Response()));
+        instance.put("3", this.pin, getResponse(), instance.getGeneration());
+        assertEquals(2, instance.size());
+        assertFalse(instance.get("2", this.pin, new Response()));
+        assertTrue(instance.get("1", this.pin, new Response()));
+        instance.invalidate("1");
+        assertFalse(instance.get("1", this.pin, new Response()));
+        Thread.sleep(150);
+        assertFalse(instance.get("3", this.pin, new Response()));
+        assertEquals(0, instance.size());
+    }
+
+    /**
+     * A lookup that started before its customer was invalidated isn't kept.
+     */
+    @Test
+    public void testStalePut()
+    {
+        System.out.println("==stale put==");
+        CustomerCache instance = new CustomerCache(60000L, 2);
+        long generation = instance.getGeneration();
+        instance.invalidate(this.userId);
+        assertFalse(instance.put(this.userId, this.pin, getResponse(), generation));
+        assertFalse(instance.get(this.userId, this.pin, new Response()));
+        // Other customers aren't affected.
+        assertTrue(instance.put("1", this.pin, getResponse(), generation));
+        // A lookup that started after the invalidation is kept.
+        assertTrue(instance.put(this.userId, this.pin, getResponse(), instance.getGeneration()));
+        // Once the stamp is pushed out, every lookup older than it is refused.
+        generation = instance.getGeneration();
+        instance.invalidate("2");
+        instance.invalidate("3");
+        instance.invalidate("4");
+        assertFalse(instance.put(this.userId, this.pin, getResponse(), generation));
+        assertTrue(instance.put(this.userId, this.pin, getResponse(), instance.getGeneration()));
+    }
+
+    /**
+     * Only successful answers are kept, so a wrong PIN doesn't push out the right one.
+     */
+    @Test
+    public void testPutUnsuccessful()
+    {
+        System.out.println("==put unsuccessful==");
+        CustomerCache instance = new CustomerCache(60000L, 10);
+        assertTrue(instance.put(this.userId, this.pin, getResponse(), instance.getGeneration()));
+        Response wrongPin = new Response();
+        wrongPin.setCode(ResponseTypes.UNAUTHORIZED);
+        wrongPin.setResponse("PIN does not match.");
+        assertFalse(instance.put(this.userId, "1234", wrongPin, instance.getGeneration()));
+        assertTrue(instance.get(this.userId, this.pin, new Response()));
+        Response failed = getResponse();
+        failed.setCode(ResponseTypes.FAIL);
+        assertFalse(instance.put("1", this.pin, failed, instance.getGeneration()));
+        assertEquals(1, instance.size());
+    }
+
+    /**
+     * Test of hashPin method, of class CustomerCache.
+     */
+    @Test
+    public void testHashPin()
+    {
+        System.out.println("==hashPin==");
+        String hash = CustomerCache.hashPin(this.pin);
+        assertEquals(64, hash.length());
+        assertEquals(hash, CustomerCache.hashPin(this.pin));
+        assertFalse(hash.equals(CustomerCache.hashPin("64059")));
+        assertFalse(hash.contains(this.pin));
+    }
+}
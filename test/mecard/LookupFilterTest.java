@@ -0,0 +1,80 @@
+package mecard;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Andrew Nisbet <anisbet@epl.ca>
+ */
+public class LookupFilterTest
+{
+
+    public LookupFilterTest()
+    {
+    }
+
+    /**
+     * Test of recordNotFound method, of class LookupFilter.
+     */
+    @Test
+    public void testNotFound() throws Exception
+    {
+        System.out.println("==not found==");
+        LookupFilter instance = new LookupFilter(100L, 0, 0L, 10);
+        assertFalse(instance.answer("21221000000000", new Response()));
+        instance.recordNotFound("21221000000000");
+        Response response = new Response();
+        assertTrue(instance.answer("21221000000000", response));
+        assertEquals(ResponseTypes.FAIL, response.getCode());
+        assertFalse(instance.answer("21221012345678", new Response()));
+        Thread.sleep(150);
+        assertFalse(instance.answer("21221000000000", new Response()));
+        instance.recordNotFound("21221000000000");
+        instance.clear("21221000000000");
+        assertFalse(instance.answer("21221000000000", new Response()));
+    }
+
+    /**
+     * Test of recordPinMismatch method, of class LookupFilter.
+     */
+    @Test
+    public void testPinMismatch() throws Exception
+    {
+        System.out.println("==pin mismatch==");
+        LookupFilter instance = new LookupFilter(0L, 3, 200L, 10);
+        String userId = "21221012345678";
+        for (int i = 0; i < 2; i++)
+        {
+            instance.recordPinMismatch(userId);
+            assertFalse(instance.answer(userId, new Response()));
+        }
+        instance.recordPinMismatch(userId);
+        Response response = new Response();
+        assertTrue(instance.answer(userId, response));
+        assertEquals(ResponseTypes.UNAUTHORIZED, response.getCode());
+        // The window slides past the mismatches.
+        Thread.sleep(250);
+        assertFalse(instance.answer(userId, new Response()));
+        // Not found isn't remembered with a ttl of 0.
+        instance.recordNotFound(userId);
+        assertFalse(instance.answer(userId, new Response()));
+    }
+
+    /**
+     * Only the most recently used cards are tracked.
+     */
+    @Test
+    public void testSize()
+    {
+        System.out.println("==size==");
+        LookupFilter instance = new LookupFilter(60000L, 0, 0L, 2);
+        instance.recordNotFound("1");
+        instance.recordNotFound("2");
+        assertTrue(instance.answer("1", new Response()));
+        instance.recordNotFound("3");
+        assertFalse(instance.answer("2", new Response()));
+        assertTrue(instance.answer("1", new Response()));
+        assertTrue(instance.answer("3", new Response()));
+    }
+}
@@ -131,4 +131,34 @@ public class ProtocolTest
 //        result = instance.getResponder(r);
 //        assertTrue(result instanceof APIResponder);
     }
-}
\ No newline at end of file
+
+    /**
+     * Test of negotiateVersion method, of class Protocol.
+     */
+    @Test
+    public void testNegotiateVersion()
+    {
+        System.out.println("=== negotiateVersion ===");
+        assertEquals(Protocol.WIRE_VERSION_1, Protocol.negotiateVersion(0));
+        assertEquals(Protocol.WIRE_VERSION_1, Protocol.negotiateVersion(1));
+        assertEquals(Protocol.WIRE_VERSION_2, Protocol.negotiateVersion(2));
+        assertEquals(Protocol.WIRE_VERSION_LATEST, Protocol.negotiateVersion(99));
+    }
+
+    /**
+     * Test of readRequest method, of class Protocol.
+     */
+    @Test
+    public void testReadRequest()
+    {
+        System.out.println("=== readRequest ===");
+        Request result = Protocol.readRequest("{\"code\":\"NULL\",\"authorityToken\":\"x\",\"customer\":\"null\",\"requestId\":\"a-1\"}");
+        assertNotNull(result);
+        assertTrue(result.hasRequestId());
+        assertEquals("a-1", result.getRequestId());
+        result = Protocol.readRequest("{\"code\":\"NULL\",\"authorityToken\":\"x\",\"customer\":\"null\"}");
+        assertNotNull(result);
+        assertFalse(result.hasRequestId());
+        assertNull(Protocol.readRequest("not a request"));
+    }
+}
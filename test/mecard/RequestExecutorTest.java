@@ -0,0 +1,208 @@
+package mecard;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import mecard.exception.BusyException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Andrew Nisbet <anisbet@epl.ca>
+ */
+public class RequestExecutorTest
+{
+
+    public RequestExecutorTest()
+    {
+    }
+
+    /**
+     * Starts a thread that runs a task which blocks until the latch is released.
+     */
+    private Thread startBlockedRequest(final RequestExecutor instance,
+            final QueryTypes type, final CountDownLatch started, final CountDownLatch release)
+    {
+        Thread thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                instance.execute(type, new Callable<Response>()
+                {
+                    @Override
+                    public Response call() throws Exception
+                    {
+                        started.countDown();
+                        release.await(5, TimeUnit.SECONDS);
+                        return new Response(ResponseTypes.OK);
+                    }
+                });
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Test of execute method, of class RequestExecutor.
+     */
+    @Test
+    public void testExecute()
+    {
+        System.out.println("==execute==");
+        RequestExecutor instance = new RequestExecutor(1, 1, 1, 0, new EnumMap<QueryTypes, Integer>(QueryTypes.class));
+        Response response = instance.execute(QueryTypes.NULL, new Callable<Response>()
+        {
+            @Override
+            public Response call()
+            {
+                return new Response(ResponseTypes.SUCCESS);
+            }
+        });
+        assertEquals(ResponseTypes.SUCCESS, response.getCode());
+        assertEquals(0, instance.getRejectedCount());
+        instance.shutdown();
+    }
+
+    /**
+     * A saturated pool refuses more work.
+     */
+    @Test
+    public void testSaturatedQueue() throws Exception
+    {
+        System.out.println("==saturated queue==");
+        RequestExecutor instance = new RequestExecutor(1, 1, 1, 0, new EnumMap<QueryTypes, Integer>(QueryTypes.class));
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        Thread running = startBlockedRequest(instance, QueryTypes.GET_CUSTOMER, started, release);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        // This one fills the queue.
+        Thread queued = startBlockedRequest(instance, QueryTypes.GET_CUSTOMER, new CountDownLatch(1), release);
+        while (instance.getQueueDepth() == 0)
+        {
+            Thread.sleep(10);
+        }
+        try
+        {
+            instance.execute(QueryTypes.GET_CUSTOMER, new Callable<Response>()
+            {
+                @Override
+                public Response call()
+                {
+                    return new Response(ResponseTypes.OK);
+                }
+            });
+            fail("expected BusyException");
+        }
+        catch (BusyException ex)
+        {
+            Response response = Responder.getExceptionResponse(ex);
+            assertEquals(ResponseTypes.BUSY, response.getCode());
+        }
+        assertEquals(1, instance.getRejectedCount());
+        assertEquals(1, instance.getRejectedCount(QueryTypes.GET_CUSTOMER));
+        release.countDown();
+        running.join();
+        queued.join();
+        instance.shutdown();
+    }
+
+    /**
+     * Query types with a limit are refused once the limit is reached, others
+     * are not.
+     */
+    @Test
+    public void testQueryTypeLimit() throws Exception
+    {
+        System.out.println("==query type limit==");
+        Map<QueryTypes, Integer> limits = new EnumMap<>(QueryTypes.class);
+        limits.put(QueryTypes.GET_CUSTOMER, 1);
+        RequestExecutor instance = new RequestExecutor(4, 4, 4, 0, limits);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        Thread running = startBlockedRequest(instance, QueryTypes.GET_CUSTOMER, started, release);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        Callable<Response> ok = new Callable<Response>()
+        {
+            @Override
+            public Response call()
+            {
+                return new Response(ResponseTypes.OK);
+            }
+        };
+        try
+        {
+            instance.execute(QueryTypes.GET_CUSTOMER, ok);
+            fail("expected BusyException");
+        }
+        catch (BusyException ex)
+        {
+            System.out.println(ex.getMessage());
+        }
+        assertEquals(ResponseTypes.OK, instance.execute(QueryTypes.GET_STATUS, ok).getCode());
+        assertEquals(0, instance.getRejectedCount(QueryTypes.GET_STATUS));
+        release.countDown();
+        running.join();
+        // limit is released when the request completes.
+        assertEquals(ResponseTypes.OK, instance.execute(QueryTypes.GET_CUSTOMER, ok).getCode());
+        instance.shutdown();
+    }
+
+    /**
+     * A request stuck in the queue is refused once the queue timeout has 
+     * passed, not when a thread finally gets to it.
+     */
+    @Test
+    public void testQueueTimeout() throws Exception
+    {
+        System.out.println("==queue timeout==");
+        RequestExecutor instance = new RequestExecutor(1, 1, 1, 200L, new EnumMap<QueryTypes, Integer>(QueryTypes.class));
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        Thread running = startBlockedRequest(instance, QueryTypes.GET_CUSTOMER, started, release);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        final AtomicBoolean ran = new AtomicBoolean();
+        long start = System.currentTimeMillis();
+        try
+        {
+            instance.execute(QueryTypes.GET_CUSTOMER, new Callable<Response>()
+            {
+                @Override
+                public Response call()
+                {
+                    ran.set(true);
+                    return new Response(ResponseTypes.OK);
+                }
+            });
+            fail("expected BusyException");
+        }
+        catch (BusyException ex)
+        {
+            System.out.println(ex.getMessage());
+        }
+        assertTrue(System.currentTimeMillis() - start < 4000L);
+        // The refused request left the queue and never runs.
+        assertEquals(0, instance.getQueueDepth());
+        assertEquals(1, instance.getRejectedCount());
+        release.countDown();
+        running.join();
+        assertFalse(ran.get());
+        // A request that takes longer than the timeout once it has started still gets its answer.
+        Response response = instance.execute(QueryTypes.GET_CUSTOMER, new Callable<Response>()
+        {
+            @Override
+            public Response call() throws Exception
+            {
+                Thread.sleep(500);
+                return new Response(ResponseTypes.OK);
+            }
+        });
+        assertEquals(ResponseTypes.OK, response.getCode());
+        instance.shutdown();
+    }
+}
@@ -0,0 +1,297 @@
+package mecard;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import json.JsonCodec;
+import mecard.config.CustomerFieldTypes;
+import mecard.customer.Customer;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Andrew Nisbet <anisbet@epl.ca>
+ */
+public class RequestJournalTest
+{
+
+    public RequestJournalTest()
+    {
+    }
+
+    private static Request getRequest(String userId)
+    {
+        Customer customer = new Customer();
+        customer.set(CustomerFieldTypes.ID, userId);
+        customer.set(CustomerFieldTypes.FIRSTNAME, "William");
+        customer.set(CustomerFieldTypes.LASTNAME, "Balzac");
+        Request request = new Request();
+        request.setCode(QueryTypes.CREATE_CUSTOMER);
+        request.setUserId(userId);
+        request.setCustomer(customer);
+        return request;
+    }
+
+    private static File[] getSegments(File dir)
+    {
+        List<File> segments = new ArrayList<>();
+        for (File file: dir.listFiles())
+        {
+            if (file.getName().startsWith(RequestJournal.SEGMENT_PREFIX))
+            {
+                segments.add(file);
+            }
+        }
+        return segments.toArray(new File[segments.size()]);
+    }
+
+    private static void delete(File dir)
+    {
+        for (File file: dir.listFiles())
+        {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    /**
+     * Requests that never complete are there to replay when the journal is
+     * opened again, completed ones are not.
+     */
+    @Test
+    public void testReplay() throws Exception
+    {
+        System.out.println("==replay==");
+        File dir = Files.createTempDirectory("metro-journal").toFile();
+        RequestJournal instance = new RequestJournal(dir, 1024L * 1024L);
+        assertEquals(0, instance.getPendingCount());
+        long first  = instance.record(getRequest("21221000000001"));
+        long second = instance.record(getRequest("21221000000002"));
+        long third  = instance.record(getRequest("21221000000003"));
+        assertEquals(3, instance.getOpenCount());
+        instance.complete(second);
+        instance.complete(second);
+        assertEquals(2, instance.getOpenCount());
+        instance.close();
+        
+        instance = new RequestJournal(dir, 1024L * 1024L);
+        Map<Long, String> pending = instance.getPending();
+        assertEquals(2, pending.size());
+        assertEquals("21221000000001", JsonCodec.toRequest(pending.get(first)).getUserId());
+        assertEquals("21221000000003", JsonCodec.toRequest(pending.get(third)).getUserId());
+        // Numbers carry on from where the journal left off.
+        long fourth = instance.record(getRequest("21221000000004"));
+        assertTrue(fourth > third);
+        instance.complete(first);
+        instance.complete(third);
+        instance.complete(fourth);
+        instance.close();
+        
+        instance = new RequestJournal(dir, 1024L * 1024L);
+        assertEquals(0, instance.getPendingCount());
+        instance.close();
+        delete(dir);
+    }
+
+    /**
+     * A record torn by a crash is ignored, the records before it are not.
+     */
+    @Test
+    public void testDamagedRecord() throws Exception
+    {
+        System.out.println("==damaged record==");
+        File dir = Files.createTempDirectory("metro-journal").toFile();
+        RequestJournal instance = new RequestJournal(dir, 1024L * 1024L);
+        instance.record(getRequest("21221000000001"));
+        instance.record(getRequest("21221000000002"));
+        instance.close();
+        File segment = getSegments(dir)[0];
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw"))
+        {
+            // Flip a byte in the last record's payload.
+            file.seek(file.length() - 3);
+            int b = file.read();
+            file.seek(file.length() - 3);
+            file.write(b ^ 0xff);
+        }
+        instance = new RequestJournal(dir, 1024L * 1024L);
+        assertEquals(1, instance.getPendingCount());
+        assertEquals("21221000000001", JsonCodec.toRequest(
+                instance.getPending().values().iterator().next()).getUserId());
+        instance.close();
+        // Cut short.
+        segment = getSegments(dir)[0];
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw"))
+        {
+            file.setLength(file.length() - 5);
+        }
+        instance = new RequestJournal(dir, 1024L * 1024L);
+        assertEquals(0, instance.getPendingCount());
+        instance.close();
+        delete(dir);
+    }
+
+    /**
+     * Full segments are replaced by one holding only the open requests.
+     */
+    @Test
+    public void testSegments() throws Exception
+    {
+        System.out.println("==segments==");
+        File dir = Files.createTempDirectory("metro-journal").toFile();
+        RequestJournal instance = new RequestJournal(dir, 16384L);
+        long open = instance.record(getRequest("21221000000000"));
+        for (int i = 1; i < 200; i++)
+        {
+            long seq = instance.record(getRequest("2122100000" + (1000 + i)));
+            instance.complete(seq);
+        }
+        File[] segments = getSegments(dir);
+        assertEquals(1, segments.length);
+        assertTrue(segments[0].length() < 2L * 16384L);
+        instance.close();
+        instance = new RequestJournal(dir, 16384L);
+        assertEquals(1, instance.getPendingCount());
+        assertTrue(instance.getPending().containsKey(open));
+        instance.close();
+        delete(dir);
+    }
+
+    /**
+     * Requests written at the same time share fsyncs.
+     */
+    @Test
+    public void testGroupSync() throws Exception
+    {
+        System.out.println("==group sync==");
+        File dir = Files.createTempDirectory("metro-journal").toFile();
+        final RequestJournal instance = new RequestJournal(dir, 1024L * 1024L);
+        final int threads = 8;
+        final int each = 50;
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger failures = new AtomicInteger();
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < threads; t++)
+        {
+            final int thread = t;
+            Thread writer = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                        for (int i = 0; i < each; i++)
+                        {
+                            instance.complete(instance.record(getRequest("2122" + thread + "000000" + (1000 + i))));
+                        }
+                    }
+                    catch (Exception ex)
+                    {
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+            writer.start();
+            writers.add(writer);
+        }
+        start.countDown();
+        for (Thread writer: writers)
+        {
+            writer.join();
+        }
+        assertEquals(0, failures.get());
+        assertEquals(0, instance.getOpenCount());
+        System.out.println("fsyncs for " + (threads * each) + " requests: " + instance.getSyncCount());
+        assertTrue(instance.getSyncCount() <= threads * each);
+        instance.close();
+        delete(dir);
+    }
+
+    /**
+     * Every request acknowledged by record() was in the journal when it was
+     * forced, however the writers interleave.
+     */
+    @Test
+    public void testAcknowledgedForced() throws Exception
+    {
+        System.out.println("==acknowledged forced==");
+        File dir = Files.createTempDirectory("metro-journal").toFile();
+        final RequestJournal instance = new RequestJournal(dir, 64L * 1024L);
+        final int threads = 16;
+        final int each = 100;
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger unforced = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < threads; t++)
+        {
+            final int thread = t;
+            Thread writer = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                        for (int i = 0; i < each; i++)
+                        {
+                            long seq = instance.record(getRequest("2122" + thread + "000000" + (1000 + i)));
+                            if (instance.getForcedSeq() < seq)
+                            {
+                                unforced.incrementAndGet();
+                            }
+                            instance.complete(seq);
+                        }
+                    }
+                    catch (Exception ex)
+                    {
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+            writer.start();
+            writers.add(writer);
+        }
+        start.countDown();
+        for (Thread writer: writers)
+        {
+            writer.join();
+        }
+        assertEquals(0, failures.get());
+        assertEquals(0, unforced.get());
+        instance.close();
+        delete(dir);
+    }
+
+    /**
+     * A closed journal refuses new requests rather than losing them.
+     */
+    @Test
+    public void testClosed() throws Exception
+    {
+        System.out.println("==closed==");
+        File dir = Files.createTempDirectory("metro-journal").toFile();
+        RequestJournal instance = new RequestJournal(dir, 1024L * 1024L);
+        instance.close();
+        try
+        {
+            instance.record(getRequest("21221000000001"));
+            fail("expected ServiceUnavailableException");
+        }
+        catch (RuntimeException ex)
+        {
+            assertEquals(ResponseTypes.UNAVAILABLE, Responder.getExceptionResponse(ex).getCode());
+        }
+        assertEquals(0, instance.getOpenCount());
+        delete(dir);
+    }
+}
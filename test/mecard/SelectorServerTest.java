@@ -0,0 +1,229 @@
+package mecard;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import json.ResponseDeserializer;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Andrew Nisbet <anisbet@epl.ca>
+ */
+public class SelectorServerTest
+{
+    private static SelectorServer server;
+
+    public SelectorServerTest()
+    {
+    }
+
+    @BeforeClass
+    public static void setUpClass() throws Exception
+    {
+        server = new SelectorServer(0, 2);
+        Thread thread = new Thread(server, "SelectorServerTest");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @AfterClass
+    public static void tearDownClass()
+    {
+        server.shutdown();
+    }
+
+    /**
+     * Test of run method, of class SelectorServer.
+     */
+    @Test
+    public void testAcknowledgeAndTerminate() throws Exception
+    {
+        System.out.println("==acknowledge and terminate==");
+        Socket socket = new Socket("localhost", server.getPort());
+        socket.setSoTimeout(5000);
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+        assertTrue(in.readLine().startsWith(Protocol.ACKNOWLEDGE));
+        out.println(Protocol.TERMINATE);
+        assertEquals(Protocol.TERMINATE, in.readLine());
+        // server hangs up after terminate.
+        assertNull(in.readLine());
+        socket.close();
+    }
+
+    /**
+     * A request split over several packets is only processed once the whole
+     * line arrives.
+     */
+    @Test
+    public void testPartialLine() throws Exception
+    {
+        System.out.println("==partial line==");
+        Socket socket = new Socket("localhost", server.getPort());
+        socket.setSoTimeout(5000);
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        OutputStream out = socket.getOutputStream();
+        assertTrue(in.readLine().startsWith(Protocol.ACKNOWLEDGE));
+        out.write("XX".getBytes());
+        out.flush();
+        Thread.sleep(100);
+        out.write("0\r\n".getBytes());
+        out.flush();
+        assertEquals(Protocol.TERMINATE, in.readLine());
+        socket.close();
+    }
+
+    /**
+     * Many idle connections are held open by a server with two workers.
+     */
+    @Test
+    public void testManyIdleConnections() throws Exception
+    {
+        System.out.println("==many idle connections==");
+        List<Socket> sockets = new ArrayList<>();
+        for (int i = 0; i < 200; i++)
+        {
+            Socket socket = new Socket("localhost", server.getPort());
+            socket.setSoTimeout(5000);
+            sockets.add(socket);
+        }
+        for (Socket socket: sockets)
+        {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            assertTrue(in.readLine().startsWith(Protocol.ACKNOWLEDGE));
+        }
+        for (Socket socket: sockets)
+        {
+            socket.close();
+        }
+    }
+
+    /**
+     * Tagged requests on one connection are all answered with their ids and
+     * an untagged request that follows is answered after them.
+     */
+    @Test
+    public void testPipelinedRequests() throws Exception
+    {
+        System.out.println("==pipelined requests==");
+        Socket socket = new Socket("localhost", server.getPort());
+        socket.setSoTimeout(5000);
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+        assertTrue(in.readLine().startsWith(Protocol.ACKNOWLEDGE));
+        Set<String> expected = new HashSet<>();
+        for (int i = 0; i < 5; i++)
+        {
+            String id = "req-" + i;
+            expected.add(id);
+            out.println("{\"code\":\"GET_STATUS\",\"authorityToken\":\"not-a-token\",\"userId\":\"\",\"pin\":\"\",\"customer\":\"null\",\"requestId\":\"" + id + "\"}");
+        }
+        out.println("{\"code\":\"GET_STATUS\",\"authorityToken\":\"not-a-token\",\"userId\":\"\",\"pin\":\"\",\"customer\":\"null\"}");
+        ResponseDeserializer deserializer = new ResponseDeserializer();
+        Set<String> received = new HashSet<>();
+        for (int i = 0; i < 5; i++)
+        {
+            received.add(deserializer.getDeserializedResponse(in.readLine()).getRequestId());
+        }
+        assertEquals(expected, received);
+        assertEquals("", deserializer.getDeserializedResponse(in.readLine()).getRequestId());
+        out.println(Protocol.TERMINATE);
+        assertEquals(Protocol.TERMINATE, in.readLine());
+        socket.close();
+    }
+
+    /**
+     * More tagged requests than a connection may have waiting are all 
+     * answered, reading stops at the limit and starts again as they finish.
+     */
+    @Test
+    public void testPipelineLimit() throws Exception
+    {
+        System.out.println("==pipeline limit==");
+        Socket socket = new Socket("localhost", server.getPort());
+        socket.setSoTimeout(5000);
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+        assertTrue(in.readLine().startsWith(Protocol.ACKNOWLEDGE));
+        int count = SocketThread.MAX_PIPELINED * 4;
+        Set<String> expected = new HashSet<>();
+        for (int i = 0; i < count; i++)
+        {
+            String id = "req-" + i;
+            expected.add(id);
+            out.println("{\"code\":\"GET_STATUS\",\"authorityToken\":\"not-a-token\",\"userId\":\"\",\"pin\":\"\",\"customer\":\"null\",\"requestId\":\"" + id + "\"}");
+        }
+        ResponseDeserializer deserializer = new ResponseDeserializer();
+        Set<String> received = new HashSet<>();
+        for (int i = 0; i < count; i++)
+        {
+            received.add(deserializer.getDeserializedResponse(in.readLine()).getRequestId());
+        }
+        assertEquals(expected, received);
+        out.println(Protocol.TERMINATE);
+        assertEquals(Protocol.TERMINATE, in.readLine());
+        socket.close();
+    }
+
+    /**
+     * Requests the workers have no room for are answered BUSY, not lost.
+     */
+    @Test
+    public void testWorkerQueueFull() throws Exception
+    {
+        System.out.println("==worker queue full==");
+        SelectorServer small = new SelectorServer(0, 1, 1);
+        Thread thread = new Thread(small, "SelectorServerTestSmall");
+        thread.setDaemon(true);
+        thread.start();
+        int connections = 4;
+        int each = SocketThread.MAX_PIPELINED;
+        List<Socket> sockets = new ArrayList<>();
+        for (int c = 0; c < connections; c++)
+        {
+            Socket socket = new Socket("localhost", small.getPort());
+            socket.setSoTimeout(5000);
+            sockets.add(socket);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            assertTrue(in.readLine().startsWith(Protocol.ACKNOWLEDGE));
+        }
+        for (int c = 0; c < connections; c++)
+        {
+            PrintWriter out = new PrintWriter(sockets.get(c).getOutputStream(), true);
+            for (int i = 0; i < each; i++)
+            {
+                out.println("{\"code\":\"GET_STATUS\",\"authorityToken\":\"not-a-token\",\"userId\":\"\",\"pin\":\"\",\"customer\":\"null\",\"requestId\":\"" + c + "-" + i + "\"}");
+            }
+        }
+        ResponseDeserializer deserializer = new ResponseDeserializer();
+        int busy = 0;
+        for (int c = 0; c < connections; c++)
+        {
+            BufferedReader in = new BufferedReader(new InputStreamReader(sockets.get(c).getInputStream()));
+            Set<String> received = new HashSet<>();
+            for (int i = 0; i < each; i++)
+            {
+                Response response = deserializer.getDeserializedResponse(in.readLine());
+                received.add(response.getRequestId());
+                if (response.getCode() == ResponseTypes.BUSY)
+                {
+                    busy++;
+                }
+            }
+            assertEquals(each, received.size());
+            sockets.get(c).close();
+        }
+        System.out.println("answered BUSY: " + busy);
+        small.shutdown();
+    }
+}
@@ -0,0 +1,62 @@
+package mecard;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Andrew Nisbet <anisbet@epl.ca>
+ */
+public class StatusProberTest
+{
+
+    public StatusProberTest()
+    {
+    }
+
+    /**
+     * Test of answer method, of class StatusProber.
+     */
+    @Test
+    public void testAnswer()
+    {
+        System.out.println("==answer==");
+        StatusProber instance = new StatusProber(1000L, 5000L);
+        Response response = new Response();
+        // Nothing checked yet, the request has to ask the ILS.
+        assertFalse(instance.answer(response));
+        assertNull(instance.getLatest());
+        Response checked = new Response();
+        checked.setCode(ResponseTypes.OK);
+        checked.setResponse("Services up.");
+        instance.record(checked, null, 12L);
+        assertTrue(instance.answer(response));
+        assertEquals(ResponseTypes.OK, response.getCode());
+        assertEquals("Services up.", response.getMessage().trim());
+        StatusProber.Probe probe = instance.getLatest();
+        assertEquals(12L, probe.getLatency());
+        assertEquals("", probe.getOnline());
+        // Answers don't pile up messages.
+        Response second = new Response();
+        assertTrue(instance.answer(second));
+        assertEquals(response.getMessage(), second.getMessage());
+    }
+
+    /**
+     * Results older than the maximum age are not used.
+     */
+    @Test
+    public void testStale() throws Exception
+    {
+        System.out.println("==stale==");
+        StatusProber instance = new StatusProber(1000L, 100L);
+        Response checked = new Response();
+        checked.setCode(ResponseTypes.UNAVAILABLE);
+        instance.record(checked, null, 5000L);
+        Response response = new Response();
+        assertTrue(instance.answer(response));
+        assertEquals(ResponseTypes.UNAVAILABLE, response.getCode());
+        Thread.sleep(200);
+        assertFalse(instance.answer(new Response()));
+    }
+}
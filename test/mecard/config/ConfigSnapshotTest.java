@@ -0,0 +1,123 @@
+package mecard.config;
+
+import java.util.Map;
+import java.util.Properties;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Andrew Nisbet <anisbet@epl.ca>
+ */
+public class ConfigSnapshotTest
+{
+    private final ConfigSnapshot snapshot;
+
+    public ConfigSnapshotTest()
+    {
+        Properties properties = new Properties();
+        properties.setProperty("library-code", "EPL");
+        this.snapshot = new ConfigSnapshot(ConfigFileTypes.ENVIRONMENT, properties);
+    }
+
+    private void assertReadOnly(Runnable change)
+    {
+        try
+        {
+            change.run();
+            fail("snapshot should be read only");
+        }
+        catch (UnsupportedOperationException ex)
+        {
+            // expected.
+        }
+        assertEquals(1, this.snapshot.size());
+        assertEquals("EPL", this.snapshot.getProperty("library-code"));
+    }
+
+    /**
+     * Test of the Java 8 map methods, of class ConfigSnapshot.
+     */
+    @Test
+    public void testMapMethods()
+    {
+        System.out.println("==map methods==");
+        assertReadOnly(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                snapshot.putIfAbsent("debug", "true");
+            }
+        });
+        assertReadOnly(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                snapshot.replace("library-code", "CAL");
+            }
+        });
+        assertReadOnly(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                snapshot.replace("library-code", "EPL", "CAL");
+            }
+        });
+        assertReadOnly(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                snapshot.remove("library-code", "EPL");
+            }
+        });
+    }
+
+    /**
+     * Test of keySet, entrySet and values methods, of class ConfigSnapshot.
+     */
+    @Test
+    public void testViews()
+    {
+        System.out.println("==views==");
+        assertReadOnly(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                snapshot.keySet().clear();
+            }
+        });
+        assertReadOnly(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                snapshot.values().remove("EPL");
+            }
+        });
+        assertReadOnly(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                snapshot.entrySet().clear();
+            }
+        });
+        assertReadOnly(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                for (Map.Entry<Object, Object> entry: snapshot.entrySet())
+                {
+                    entry.setValue("CAL");
+                }
+            }
+        });
+        assertTrue(this.snapshot.stringPropertyNames().contains("library-code"));
+    }
+}
@@ -20,6 +20,8 @@
 */
 package mecard.config;
 
+import java.io.File;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -137,4 +139,80 @@ public class PropertyReaderTest
 //        // TODO review the generated test code and remove the default call to fail.
 //        fail("The test case is a prototype.");
 //    }
-}
\ No newline at end of file
+
+    /**
+     * Test of getProperties method, the file is read once and the snapshot
+     * can't be changed.
+     */
+    @Test
+    public void testSnapshot()
+    {
+        System.out.println("==snapshot==");
+        Properties first = PropertyReader.getProperties(ConfigFileTypes.ENVIRONMENT);
+        Properties second = PropertyReader.getProperties(ConfigFileTypes.ENVIRONMENT);
+        assertSame(first, second);
+        try
+        {
+            first.setProperty("some-key", "some value");
+            fail("snapshot should be read only");
+        }
+        catch (UnsupportedOperationException ex)
+        {
+            System.out.println(ex.getMessage());
+        }
+        assertNull(first.getProperty("some-key"));
+    }
+
+    /**
+     * Test of reload, pin and unpin methods of class PropertyReader.
+     */
+    @Test
+    public void testReloadAndPin() throws Exception
+    {
+        System.out.println("==reload and pin==");
+        File dir = File.createTempFile("metro", "config");
+        dir.delete();
+        dir.mkdir();
+        File vars = new File(dir, "sysvar.properties");
+        try
+        {
+            writeVars(vars, "one");
+            PropertyReader.setConfigDirectory(dir.getAbsolutePath());
+            assertEquals("one", PropertyReader.getProperties(ConfigFileTypes.VARS).getProperty("value"));
+            PropertyReader.pin();
+            Properties pinned = PropertyReader.getProperties(ConfigFileTypes.VARS);
+            writeVars(vars, "two");
+            assertTrue(PropertyReader.reload(ConfigFileTypes.VARS));
+            // still in the 'request' so no change.
+            assertSame(pinned, PropertyReader.getProperties(ConfigFileTypes.VARS));
+            PropertyReader.unpin();
+            assertEquals("two", PropertyReader.getProperties(ConfigFileTypes.VARS).getProperty("value"));
+            // a broken file leaves the last good settings in place.
+            try (PrintWriter out = new PrintWriter(vars))
+            {
+                out.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?><properties><entry");
+            }
+            assertFalse(PropertyReader.reload(ConfigFileTypes.VARS));
+            assertEquals("two", PropertyReader.getProperties(ConfigFileTypes.VARS).getProperty("value"));
+        }
+        finally
+        {
+            PropertyReader.unpin();
+            PropertyReader.setConfigDirectory(".");
+            vars.delete();
+            dir.delete();
+        }
+    }
+
+    private void writeVars(File file, String value) throws Exception
+    {
+        try (PrintWriter out = new PrintWriter(file))
+        {
+            out.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+            out.println("<!DOCTYPE properties SYSTEM \"http://java.sun.com/dtd/properties.dtd\">");
+            out.println("<properties>");
+            out.println("<entry key=\"value\">" + value + "</entry>");
+            out.println("</properties>");
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package mecard.requestbuilder;
+
+import api.Command;
+import api.CommandStatus;
+import api.DummyCommand;
+import mecard.Responder;
+import mecard.Response;
+import mecard.ResponseTypes;
+import mecard.config.CircuitStateTypes;
+import mecard.exception.ServiceUnavailableException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Andrew Nisbet <anisbet@epl.ca>
+ */
+public class CircuitBreakerTest
+{
+
+    public CircuitBreakerTest()
+    {
+    }
+
+    /**
+     * A command that fails, or doesn't, and takes as long as it is told.
+     */
+    private static class TestCommand implements Command
+    {
+        private boolean fail;
+        private long delay;
+        private int runs;
+
+        @Override
+        public CommandStatus execute()
+        {
+            this.runs++;
+            if (this.delay > 0)
+            {
+                try
+                {
+                    Thread.sleep(this.delay);
+                }
+                catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (this.fail)
+            {
+                throw new RuntimeException("ILS is down");
+            }
+            return new DummyCommand.Builder().setStdout("ok").build().execute();
+        }
+    }
+
+    private void run(Command command, int times)
+    {
+        for (int i = 0; i < times; i++)
+        {
+            try
+            {
+                command.execute();
+            }
+            catch (ServiceUnavailableException ex)
+            {
+                throw ex;
+            }
+            catch (RuntimeException ex)
+            {
+                // the command failed, as intended.
+            }
+        }
+    }
+
+    /**
+     * Test of wrap method, of class CircuitBreaker. Enough failures open the
+     * breaker and commands are then refused without running.
+     */
+    @Test
+    public void testOpen()
+    {
+        System.out.println("==open==");
+        CircuitBreaker instance = new CircuitBreaker("test", 10, 4, 50, 0L, 100, 60000L, 1);
+        TestCommand backend = new TestCommand();
+        Command command = instance.wrap(backend);
+        run(command, 3);
+        backend.fail = true;
+        run(command, 2);
+        assertEquals(CircuitStateTypes.CLOSED, instance.getState());
+        run(command, 1);
+        // 3 of 6 failed.
+        assertEquals(CircuitStateTypes.OPEN, instance.getState());
+        assertEquals(1, instance.getTransitionCount(CircuitStateTypes.OPEN));
+        int runs = backend.runs;
+        try
+        {
+            command.execute();
+            fail("expected ServiceUnavailableException");
+        }
+        catch (ServiceUnavailableException ex)
+        {
+            Response response = Responder.getExceptionResponse(ex);
+            assertEquals(ResponseTypes.UNAVAILABLE, response.getCode());
+        }
+        assertEquals(runs, backend.runs);
+        assertEquals(1, instance.getRejectedCount());
+        System.out.println(instance.toString());
+    }
+
+    /**
+     * After the open time, trial commands close the breaker, or open it again.
+     */
+    @Test
+    public void testHalfOpen() throws Exception
+    {
+        System.out.println("==half open==");
+        CircuitBreaker instance = new CircuitBreaker("test", 4, 2, 50, 0L, 100, 100L, 2);
+        TestCommand backend = new TestCommand();
+        Command command = instance.wrap(backend);
+        backend.fail = true;
+        run(command, 2);
+        assertEquals(CircuitStateTypes.OPEN, instance.getState());
+        Thread.sleep(150);
+        // still down, the trial opens it again.
+        run(command, 1);
+        assertEquals(CircuitStateTypes.OPEN, instance.getState());
+        assertEquals(1, instance.getTransitionCount(CircuitStateTypes.HALF_OPEN));
+        Thread.sleep(150);
+        backend.fail = false;
+        run(command, 1);
+        assertEquals(CircuitStateTypes.HALF_OPEN, instance.getState());
+        run(command, 1);
+        assertEquals(CircuitStateTypes.CLOSED, instance.getState());
+        assertEquals(1, instance.getTransitionCount(CircuitStateTypes.CLOSED));
+    }
+
+    /**
+     * A command that can't start answers null, which fails the trial instead
+     * of leaving the breaker half open.
+     */
+    @Test
+    public void testNotStarted() throws Exception
+    {
+        System.out.println("==not started==");
+        CircuitBreaker instance = new CircuitBreaker("test", 4, 2, 50, 0L, 100, 100L, 1);
+        TestCommand backend = new TestCommand();
+        backend.fail = true;
+        run(instance.wrap(backend), 2);
+        assertEquals(CircuitStateTypes.OPEN, instance.getState());
+        Thread.sleep(150);
+        CommandStatus status = instance.wrap(new Command()
+        {
+            @Override
+            public CommandStatus execute()
+            {
+                return null;
+            }
+        }).execute();
+        assertEquals(ResponseTypes.UNAVAILABLE, status.getStatus());
+        assertEquals(CircuitStateTypes.OPEN, instance.getState());
+        Thread.sleep(150);
+        // The trial permit came back, so the next trial runs.
+        backend.fail = false;
+        run(instance.wrap(backend), 1);
+        assertEquals(CircuitStateTypes.CLOSED, instance.getState());
+    }
+
+    /**
+     * Commands that succeed but are slow open the breaker too.
+     */
+    @Test
+    public void testSlowCalls()
+    {
+        System.out.println("==slow calls==");
+        CircuitBreaker instance = new CircuitBreaker("test", 4, 2, 50, 20L, 100, 60000L, 1);
+        TestCommand backend = new TestCommand();
+        Command command = instance.wrap(backend);
+        backend.delay = 30L;
+        run(command, 1);
+        assertEquals(CircuitStateTypes.CLOSED, instance.getState());
+        run(command, 1);
+        assertEquals(CircuitStateTypes.OPEN, instance.getState());
+    }
+
+    /**
+     * Old outcomes drop out of the window.
+     */
+    @Test
+    public void testWindow()
+    {
+        System.out.println("==window==");
+        CircuitBreaker instance = new CircuitBreaker("test", 4, 4, 75, 0L, 100, 60000L, 1);
+        TestCommand backend = new TestCommand();
+        Command command = instance.wrap(backend);
+        backend.fail = true;
+        run(command, 2);
+        backend.fail = false;
+        run(command, 6);
+        backend.fail = true;
+        run(command, 2);
+        // only 2 of the last 4 failed.
+        assertEquals(CircuitStateTypes.CLOSED, instance.getState());
+        run(command, 1);
+        assertEquals(CircuitStateTypes.OPEN, instance.getState());
+    }
+}
@@ -1,7 +1,10 @@
 
 package mecard.util;
 
+import api.APICommand;
+import api.CommandStatus;
 import java.io.File;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.List;
 import mecard.customer.UserFile;
@@ -68,6 +71,103 @@ public class BImportResultParserTest
         assertTrue(tKeyFile.exists());
     }
 
+    /**
+     * Test of onLine method, of class BImportResultParser, fed by a running
+     * command.
+     */
+    @Test
+    public void testOnLine() throws Exception
+    {
+        System.out.println("==onLine==");
+        File dir = Files.createTempDirectory("metro-report").toFile();
+        BImportResultParser instance = new BImportResultParser(dir.getAbsolutePath() + File.separator);
+        final List<String> events = new ArrayList<>();
+        instance.setCustomerListener(new BImportResultParser.CustomerListener()
+        {
+            @Override
+            public void onCustomer(String userId, boolean loaded)
+            {
+                events.add(userId + (loaded ? " ok" : " fail"));
+            }
+        });
+        List<String> command = new ArrayList<>();
+        command.add("/bin/sh");
+        command.add("-c");
+        command.add("printf '%s' \"" + resultString + "\"");
+        CommandStatus status = new APICommand.Builder()
+                .commandLine(command)
+                .stdout(instance)
+                .build()
+                .execute();
+        assertEquals(1, instance.getSuccessfulCustomers());
+        assertEquals(1, instance.getFailedCustomers());
+        assertEquals("23877000204705", instance.getFailedCustomerKeys().get(0));
+        assertEquals("23877000204705 fail", events.get(0));
+        assertEquals("21221005573552 ok", events.get(1));
+        // The report isn't kept.
+        assertFalse(status.getStdout().contains("modify"));
+        File failFile = new File(dir, "23877000204705.fail");
+        assertTrue(failFile.exists());
+        String failure = new String(Files.readAllBytes(failFile.toPath()), "UTF-8");
+        assertTrue(failure.contains("failed: DbxInsertRow failed"));
+        assertFalse(failure.contains("statistics"));
+        assertFalse(new File(dir, "21221005573552.fail").exists());
+        failFile.delete();
+        dir.delete();
+    }
+
+    /**
+     * The last customer fails, and the statistics after them don't end up in
+     * their '.fail' file.
+     */
+    @Test
+    public void testOnLineLastFails() throws Exception
+    {
+        System.out.println("==onLine last fails==");
+        File dir = Files.createTempDirectory("metro-report").toFile();
+        BImportResultParser instance = new BImportResultParser(dir.getAbsolutePath() + File.separator);
+        String report = "record line   action key(s)\n" +
+"------ ------ ------ ---------------------------------------------------------\n" +
+"     1      1 modify 21221005573552 <ok>\n" +
+"record line   action key(s)\n" +
+"------ ------ ------ ---------------------------------------------------------\n" +
+"     2      2 modify 23877000204705\n" +
+"               failed: DbxInsertRow failed: Database Error|Integrity trigger failed:\n" +
+"\n" +
+"statistics: \n" +
+"  record           2\n" +
+"  modify           2\n";
+        for (String line: report.split("\n"))
+        {
+            instance.onLine(line);
+        }
+        assertEquals(1, instance.getSuccessfulCustomers());
+        assertEquals(1, instance.getFailedCustomers());
+        File failFile = new File(dir, "23877000204705.fail");
+        String failure = new String(Files.readAllBytes(failFile.toPath()), "UTF-8");
+        assertTrue(failure.contains("modify 23877000204705"));
+        assertTrue(failure.contains("failed: DbxInsertRow failed"));
+        assertFalse(failure.contains("statistics"));
+        assertFalse(failure.contains("record"));
+        failFile.delete();
+        dir.delete();
+    }
+
+    /**
+     * Test of add method, of class BImportResultParser.
+     */
+    @Test
+    public void testAdd()
+    {
+        System.out.println("==add==");
+        BImportResultParser instance = new BImportResultParser(null);
+        instance.add(new BImportResultParser(resultString, null));
+        instance.add(new BImportResultParser("     1      1 modify 21221000000009 <ok>\n", null));
+        assertEquals(2, instance.getSuccessfulCustomers());
+        assertEquals(1, instance.getFailedCustomers());
+        assertEquals("23877000204705", instance.getFailedCustomerKeys().get(0));
+    }
+
     /**
      * Test of getSuccessfulCustomers method, of class BImportResultParser.
      */
@@ -0,0 +1,109 @@
+package mecard.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Andrew Nisbet <anisbet@epl.ca>
+ */
+public class SingleFlightTest
+{
+
+    public SingleFlightTest()
+    {
+    }
+
+    /**
+     * Test of execute method, of class SingleFlight. Callers that arrive
+     * while a task runs share its result, and the task runs once.
+     */
+    @Test
+    public void testExecute() throws Exception
+    {
+        System.out.println("==execute==");
+        final SingleFlight<String, String> instance = new SingleFlight<>();
+        final AtomicInteger runs = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Callable<String> task = new Callable<String>()
+        {
+            @Override
+            public String call() throws Exception
+            {
+                runs.incrementAndGet();
+                started.countDown();
+                release.await(5, TimeUnit.SECONDS);
+                return "customer";
+            }
+        };
+        final String[] results = new String[4];
+        Thread[] threads = new Thread[results.length];
+        for (int i = 0; i < threads.length; i++)
+        {
+            final int index = i;
+            threads[i] = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    results[index] = instance.execute("21221012345678", task);
+                }
+            });
+            threads[i].start();
+            if (i == 0)
+            {
+                assertTrue(started.await(5, TimeUnit.SECONDS));
+            }
+        }
+        while (instance.getSharedCount() < threads.length - 1)
+        {
+            Thread.sleep(10);
+        }
+        release.countDown();
+        for (Thread thread: threads)
+        {
+            thread.join();
+        }
+        assertEquals(1, runs.get());
+        for (String result: results)
+        {
+            assertEquals("customer", result);
+        }
+        assertEquals(0, instance.getInFlightCount());
+        // Nothing is kept, the next caller runs the task again.
+        assertEquals("customer", instance.execute("21221012345678", task));
+        assertEquals(2, runs.get());
+    }
+
+    /**
+     * Exceptions reach the caller as they were thrown.
+     */
+    @Test
+    public void testException()
+    {
+        System.out.println("==exception==");
+        SingleFlight<String, String> instance = new SingleFlight<>();
+        try
+        {
+            instance.execute("key", new Callable<String>()
+            {
+                @Override
+                public String call()
+                {
+                    throw new IllegalArgumentException("bad card");
+                }
+            });
+            fail("expected IllegalArgumentException");
+        }
+        catch (IllegalArgumentException ex)
+        {
+            assertEquals("bad card", ex.getMessage());
+        }
+        assertEquals(0, instance.getInFlightCount());
+    }
+}
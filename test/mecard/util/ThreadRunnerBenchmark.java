@@ -0,0 +1,70 @@
+package mecard.util;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import mecard.config.ThreadModeTypes;
+
+/**
+ * Compares thread modes by running many lookups that block the way an ILS
+ * call does. Not a unit test, run it by hand:
+ * <pre>
+ * java -cp ... mecard.util.ThreadRunnerBenchmark [lookups] [blockMillis] [rounds]
+ * </pre>
+ * The first round of each mode is warm up and is not reported.
+ * @author Andrew Nisbet <anisbet@epl.ca>
+ */
+public class ThreadRunnerBenchmark
+{
+    public static void main(String[] args) throws Exception
+    {
+        int lookups = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        final long block = args.length > 1 ? Long.parseLong(args[1]) : 50L;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Runnable lookup = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    Thread.sleep(block);
+                }
+                catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        for (ThreadModeTypes mode: ThreadModeTypes.values())
+        {
+            ThreadRunner.setMode(mode, mode == ThreadModeTypes.POOLED ? 256L * 1024L : 0L);
+            for (int round = 0; round <= rounds; round++)
+            {
+                threads.resetPeakThreadCount();
+                long start = System.nanoTime();
+                List<Future<?>> futures = new ArrayList<>(lookups);
+                for (int i = 0; i < lookups; i++)
+                {
+                    futures.add(ThreadRunner.start(lookup, "Benchmark"));
+                }
+                for (Future<?> future: futures)
+                {
+                    future.get();
+                }
+                long millis = (System.nanoTime() - start) / 1000000L;
+                if (round > 0)
+                {
+                    System.out.println(mode + " round " + round + ": " + lookups
+                            + " lookups in " + millis + "ms, "
+                            + (lookups * 1000L / Math.max(1L, millis)) + "/s, peak threads "
+                            + threads.getPeakThreadCount());
+                }
+            }
+        }
+        ThreadRunner.setMode(ThreadModeTypes.PLATFORM, 0L);
+    }
+}
@@ -0,0 +1,115 @@
+package mecard.util;
+
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import mecard.config.ThreadModeTypes;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Andrew Nisbet <anisbet@epl.ca>
+ */
+public class ThreadRunnerTest
+{
+
+    public ThreadRunnerTest()
+    {
+    }
+
+    @After
+    public void tearDown()
+    {
+        ThreadRunner.setMode(ThreadModeTypes.PLATFORM, 0L);
+    }
+
+    /**
+     * Test of configure method, of class ThreadRunner.
+     */
+    @Test
+    public void testConfigure()
+    {
+        System.out.println("==configure==");
+        Properties props = new Properties();
+        ThreadRunner.configure(props);
+        assertEquals(ThreadModeTypes.PLATFORM, ThreadRunner.getMode());
+        props.setProperty(ThreadRunner.THREAD_MODE_TAG, "Pooled");
+        ThreadRunner.configure(props);
+        assertEquals(ThreadModeTypes.POOLED, ThreadRunner.getMode());
+        assertEquals(256L * 1024L, ThreadRunner.getStackSize());
+        props.setProperty(ThreadRunner.THREAD_MODE_TAG, "nonsense");
+        ThreadRunner.configure(props);
+        assertEquals(ThreadModeTypes.PLATFORM, ThreadRunner.getMode());
+        // Platform threads always get the JVM default stack.
+        props.setProperty(ThreadRunner.STACK_SIZE_TAG, "128");
+        ThreadRunner.configure(props);
+        assertEquals(0L, ThreadRunner.getStackSize());
+        props.setProperty(ThreadRunner.THREAD_MODE_TAG, "pooled");
+        ThreadRunner.configure(props);
+        assertEquals(128L * 1024L, ThreadRunner.getStackSize());
+    }
+
+    /**
+     * Test of start method, of class ThreadRunner, in both modes.
+     */
+    @Test
+    public void testStart() throws Exception
+    {
+        System.out.println("==start==");
+        for (ThreadModeTypes mode: ThreadModeTypes.values())
+        {
+            ThreadRunner.setMode(mode, 256L * 1024L);
+            final AtomicInteger count = new AtomicInteger();
+            Future<?> future = ThreadRunner.start(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    count.incrementAndGet();
+                }
+            }, "ThreadRunnerTest");
+            future.get(5, TimeUnit.SECONDS);
+            assertTrue(future.isDone());
+            assertEquals(1, count.get());
+        }
+    }
+
+    /**
+     * Pooled mode must run blocked tasks side by side, the command watchers
+     * depend on it.
+     */
+    @Test
+    public void testPooledTasksRunTogether() throws Exception
+    {
+        System.out.println("==pooled tasks run together==");
+        ThreadRunner.setMode(ThreadModeTypes.POOLED, 256L * 1024L);
+        final int tasks = 50;
+        final CountDownLatch allStarted = new CountDownLatch(tasks);
+        final CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < tasks; i++)
+        {
+            ThreadRunner.start(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    allStarted.countDown();
+                    try
+                    {
+                        release.await(5, TimeUnit.SECONDS);
+                    }
+                    catch (InterruptedException ex)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }, "ThreadRunnerTest");
+        }
+        assertTrue(allStarted.await(5, TimeUnit.SECONDS));
+        release.countDown();
+    }
+}